@@ -14,31 +14,23 @@
  */
 package com.amazonaws.ant;
 
-import java.lang.reflect.Constructor;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 import org.apache.tools.ant.Task;
 
 import com.amazonaws.AmazonWebServiceClient;
 import com.amazonaws.ClientConfiguration;
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.regions.Region;
-import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.auth.AWSCredentialsProvider;
 
 /**
  * Base class for AWS-related Ant tasks. Handles all shared logic.
  */
 public abstract class AWSAntTask extends Task {
 
-    private static final String CLIENT_CACHE_REFERENCE = "clientCache";
     private static final String USER_AGENT_PREFIX = "AWS Ant Tasks/";
     protected String awsAccessKeyId;
     protected String awsSecretKey;
     protected String awsRegion;
+    private ClientConfig clientConfig;
+    private AssumeRole assumeRole;
 
     /**
      * Sets AWS Access Key.
@@ -74,59 +66,118 @@ public abstract class AWSAntTask extends Task {
         this.awsRegion = awsRegion;
     }
     
-    @SuppressWarnings("unchecked")
+    /**
+     * Sets the HTTP and connection settings of the clients of this task. Not
+     * required, default is the clientConfig with the id "aws.clientConfig",
+     * if the project has one.
+     * 
+     * @param clientConfig
+     *            The settings, or a reference to settings defined in the
+     *            project
+     */
+    public void addConfiguredClientConfig(ClientConfig clientConfig) {
+        this.clientConfig = clientConfig;
+    }
+
+    /**
+     * Sets the role the clients of this task assume. Not required, default is
+     * the assumeRole with the id "aws.assumeRole", if the project has one,
+     * otherwise no role is assumed.
+     * 
+     * @param assumeRole
+     *            The role, or a reference to a role defined in the project
+     */
+    public void addConfiguredAssumeRole(AssumeRole assumeRole) {
+        this.assumeRole = assumeRole;
+    }
+
     public <T extends AmazonWebServiceClient> T getOrCreateClient(
             Class<T> clientClass) {
-        if(getProject().getReference(CLIENT_CACHE_REFERENCE) == null) {
-            Map<List<String>, Object> cache = new HashMap<List<String>, Object>();
-            getProject().addReference(CLIENT_CACHE_REFERENCE, cache);
-        }
-        Map<List<String>, Object> cache = getProject().getReference(CLIENT_CACHE_REFERENCE);
-        
-        List<String> key = Arrays.asList(clientClass.getName(), this.awsRegion);
-        
-        T client = (T) cache.get(key);
-        if(client == null) {
-            T newClient = createClient(clientClass);
-            Region region = RegionUtils.getRegion(this.awsRegion);
-            if(region != null) {
-                newClient.setRegion(region);
-            }
-            cache.put(key, newClient);
-            return newClient;
-        } else {
-            return client;
-        }
+        return getOrCreateClient(clientClass, this.awsRegion);
     }
-    
+
+    /**
+     * Returns a web service client of the specified class for the specified
+     * region, shared with every other task of the build that uses the same
+     * class, region, credentials and client configuration.
+     * 
+     * @param clientClass
+     *            The class of the web service client returned
+     * @param awsRegion
+     *            The region of the client. If null, the client's default
+     *            region.
+     * @return The web service client specified
+     */
+    public <T extends AmazonWebServiceClient> T getOrCreateClient(
+            Class<T> clientClass, String awsRegion) {
+        return AWSClientFactory.get(getProject()).getClient(clientClass,
+                awsRegion, getCredentialsProvider(), getClientConfiguration());
+    }
+
     /**
-     * Returns a web service client of the specified class. Uses your
-     * credentials if they are specified, otherwise the credentials used will be
-     * according to the standard credential chain(Environment variables, Java
-     * System Properties, credential profiles file, instance profile
-     * credentials)
+     * Returns a new web service client of the specified class, not shared
+     * with other tasks. Uses your credentials if they are specified, otherwise
+     * the credentials used will be according to the standard credential
+     * chain(Environment variables, Java System Properties, credential profiles
+     * file, instance profile credentials)
      * 
      * @param clientClass
      *            The class of the web service client returned
      * @return The web service client specified
      */
     public <T extends AmazonWebServiceClient> T createClient(Class<T> clientClass) {
-        try {
-            ClientConfiguration clientConfiguration = new ClientConfiguration()
-                    .withUserAgent(USER_AGENT_PREFIX + this.getClass().getSimpleName());
-            if (awsSecretKey != null && awsAccessKeyId != null) {
-                Constructor<T> constructor = clientClass.getConstructor(
-                        AWSCredentials.class, ClientConfiguration.class);
-                return constructor.newInstance(new BasicAWSCredentials(
-                        awsAccessKeyId, awsSecretKey), clientConfiguration);
-            }
-            Constructor<T> constructor = clientClass
-                    .getConstructor(ClientConfiguration.class);
-            return constructor
-                    .newInstance(clientConfiguration);
-        } catch (Exception e) {
-            throw new RuntimeException("Unable to create client: "
-                    + e.getMessage(), e);
+        return AWSClientFactory.get(getProject()).newClient(clientClass, null,
+                getCredentialsProvider(), getClientConfiguration());
+    }
+
+    /**
+     * Returns the provider of your credentials if they are specified,
+     * otherwise of the standard credential chain, shared with every other task
+     * of the build that uses the same credentials. If a role is assumed, it
+     * provides the sessions of the role, assumed with those credentials.
+     */
+    protected AWSCredentialsProvider getCredentialsProvider() {
+        AWSClientFactory factory = AWSClientFactory.get(getProject());
+        AWSCredentialsProvider credentialsProvider = factory
+                .getCredentialsProvider(awsAccessKeyId, awsSecretKey);
+        AssumeRole role = assumeRole;
+        if (role == null) {
+            role = getProject().getReference(AssumeRole.DEFAULT_REFERENCE);
+        }
+        return role == null ? credentialsProvider : factory
+                .getAssumeRoleCredentialsProvider(role, credentialsProvider,
+                        getClientConfiguration());
+    }
+
+    /**
+     * Returns the configuration of the clients of this task. Unless
+     * maxConnections is set, the connection pool is made large enough for
+     * the requests the task sends at the same time.
+     */
+    protected ClientConfiguration getClientConfiguration() {
+        ClientConfiguration clientConfiguration = new ClientConfiguration()
+                .withUserAgent(USER_AGENT_PREFIX
+                        + this.getClass().getSimpleName());
+        ClientConfig config = clientConfig;
+        if (config == null && getProject() != null) {
+            config = getProject().getReference(ClientConfig.DEFAULT_REFERENCE);
+        }
+        if (config != null) {
+            config.applyTo(clientConfiguration);
         }
+        if (config == null || !config.hasMaxConnections()) {
+            clientConfiguration.setMaxConnections(Math.max(
+                    clientConfiguration.getMaxConnections(),
+                    getTransferConcurrency()));
+        }
+        return clientConfiguration;
+    }
+
+    /**
+     * Returns how many requests this task sends at the same time, at most.
+     * Tasks that send requests from several threads override it.
+     */
+    protected int getTransferConcurrency() {
+        return 1;
     }
 }
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.SubBuildListener;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.RegionUtils;
+
+/**
+ * The web service clients of a build. A client is created once for every
+ * client class, region, credentials and client configuration, and shared by
+ * every task that asks for the same ones, including tasks running at the same
+ * time inside a parallel task. The clients are shut down when the build
+ * finishes. A project run by {@code <ant>} or {@code <antcall>} without
+ * inheritRefs gets its own factory, whose clients are shut down when that
+ * sub-build finishes, since Ant never reports the end of a sub-build as the
+ * end of a build.
+ * <p>
+ * Credentials are compared by provider: tasks with the same access key, or
+ * none, get the same provider from {@link #getCredentialsProvider}, so the
+ * default credential chain is resolved once per build rather than once per
+ * task. The user agent is not part of the configuration compared, so a shared
+ * client keeps the user agent of the task that created it.
+ */
+public class AWSClientFactory implements SubBuildListener {
+
+    private static final String REFERENCE = "clientFactory";
+    private static final String DEFAULT_CREDENTIALS = "default";
+
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(
+            AmazonWebServiceClient.class, AWSCredentialsProvider.class,
+            ClientConfiguration.class);
+
+    /**
+     * The constructors of the client classes, looked up once per class.
+     */
+    private static final ConcurrentMap<Class<?>, MethodHandle> CONSTRUCTORS = new ConcurrentHashMap<Class<?>, MethodHandle>();
+
+    private final Project project;
+    private final ConcurrentMap<List<Object>, AmazonWebServiceClient> clients = new ConcurrentHashMap<List<Object>, AmazonWebServiceClient>();
+    private final ConcurrentMap<List<String>, AmazonWebServiceClient> registeredClients = new ConcurrentHashMap<List<String>, AmazonWebServiceClient>();
+    private final ConcurrentMap<List<Object>, AWSCredentialsProvider> credentialsProviders = new ConcurrentHashMap<List<Object>, AWSCredentialsProvider>();
+    private final List<BuildListener> buildFinishedListeners = new CopyOnWriteArrayList<BuildListener>();
+
+    private AWSClientFactory(Project project) {
+        this.project = project;
+    }
+
+    /**
+     * @return The client factory of the project, created on first use
+     */
+    public static AWSClientFactory get(Project project) {
+        synchronized (project) {
+            AWSClientFactory factory = (AWSClientFactory) project
+                    .getReference(REFERENCE);
+            if (factory == null) {
+                factory = new AWSClientFactory(project);
+                project.addReference(REFERENCE, factory);
+                project.addBuildListener(factory);
+            }
+            return factory;
+        }
+    }
+
+    /**
+     * Returns the credentials provider shared by the tasks of the build that
+     * use the given keys.
+     *
+     * @param accessKeyId
+     *            The access key, or null or empty for the default credential
+     *            chain
+     * @param secretKey
+     *            The secret key, or null or empty for the default credential
+     *            chain
+     */
+    public AWSCredentialsProvider getCredentialsProvider(String accessKeyId,
+            String secretKey) {
+        boolean isDefault = accessKeyId == null || accessKeyId.length() == 0
+                || secretKey == null || secretKey.length() == 0;
+        List<Object> key = isDefault ? Arrays.<Object> asList(DEFAULT_CREDENTIALS)
+                : Arrays.<Object> asList(accessKeyId, secretKey);
+        AWSCredentialsProvider provider = credentialsProviders.get(key);
+        if (provider == null) {
+            provider = isDefault ? new DefaultAWSCredentialsProviderChain()
+                    : new AWSStaticCredentialsProvider(new BasicAWSCredentials(
+                            accessKeyId, secretKey));
+            AWSCredentialsProvider existing = credentialsProviders
+                    .putIfAbsent(key, provider);
+            if (existing != null) {
+                provider = existing;
+            }
+        }
+        return provider;
+    }
+
+    /**
+     * Returns the provider of the sessions of the role shared by the tasks of
+     * the build that assume it with the same credentials. Like a shared
+     * client, it keeps the configuration of the task that created it.
+     *
+     * @param baseCredentials
+     *            The credentials the role is assumed with
+     * @param clientConfiguration
+     *            The configuration of the STS client
+     */
+    public AWSCredentialsProvider getAssumeRoleCredentialsProvider(
+            AssumeRole assumeRole, AWSCredentialsProvider baseCredentials,
+            ClientConfiguration clientConfiguration) {
+        AssumeRole role = assumeRole.resolve();
+        List<Object> key = Arrays.<Object> asList(role, baseCredentials);
+        AWSCredentialsProvider provider = credentialsProviders.get(key);
+        if (provider == null) {
+            provider = role.newCredentialsProvider(baseCredentials,
+                    clientConfiguration);
+            AWSCredentialsProvider existing = credentialsProviders
+                    .putIfAbsent(key, provider);
+            if (existing != null) {
+                // Another task created the same provider at the same time
+                ((AssumeRoleCredentialsProvider) provider).close();
+                provider = existing;
+            }
+        }
+        return provider;
+    }
+
+    /**
+     * Returns the client of the given class shared by the tasks of the build
+     * that use the same region, credentials and configuration, creating it if
+     * it is the first.
+     *
+     * @param region
+     *            The region of the client. If null, the client's default
+     *            region.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends AmazonWebServiceClient> T getClient(Class<T> clientClass,
+            String region, AWSCredentialsProvider credentialsProvider,
+            ClientConfiguration clientConfiguration) {
+        if (!registeredClients.isEmpty()) {
+            T registered = (T) registeredClients.get(Arrays.asList(
+                    clientClass.getName(), region));
+            if (registered != null) {
+                return registered;
+            }
+        }
+        List<Object> key = Arrays.<Object> asList(clientClass.getName(),
+                region, credentialsProvider,
+                configurationKey(clientConfiguration));
+        T client = (T) clients.get(key);
+        if (client == null) {
+            client = newClient(clientClass, region, credentialsProvider,
+                    clientConfiguration);
+            T existing = (T) clients.putIfAbsent(key, client);
+            if (existing != null) {
+                // Another task created the same client at the same time
+                client.shutdown();
+                client = existing;
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Makes every task of the build that asks for a client of the given class
+     * and region use the given client, whatever its credentials and
+     * configuration. The client is not shut down with the others. Only meant
+     * for tests, which reach it through TestClients.
+     */
+    void setClient(Class<? extends AmazonWebServiceClient> clientClass,
+            String region, AmazonWebServiceClient client) {
+        registeredClients.put(Arrays.asList(clientClass.getName(), region),
+                client);
+    }
+
+    /**
+     * Returns a new client of the given class, which is not shared and not
+     * shut down by the factory.
+     *
+     * @param region
+     *            The region of the client. If null, the client's default
+     *            region.
+     */
+    public <T extends AmazonWebServiceClient> T newClient(Class<T> clientClass,
+            String region, AWSCredentialsProvider credentialsProvider,
+            ClientConfiguration clientConfiguration) {
+        T client;
+        try {
+            client = clientClass
+                    .cast((AmazonWebServiceClient) constructorOf(clientClass)
+                            .invokeExact(credentialsProvider,
+                                    clientConfiguration));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException("Unable to create client: "
+                    + e.getMessage(), e);
+        }
+        Region awsRegion = RegionUtils.getRegion(region);
+        if (awsRegion != null) {
+            client.setRegion(awsRegion);
+        }
+        return client;
+    }
+
+    /**
+     * Adds a listener that is told that the build, or the sub-build of the
+     * project of this factory, finished before the clients are shut down, for
+     * work deferred to the end of the build that still needs its clients.
+     */
+    public void addBuildFinishedListener(BuildListener listener) {
+        buildFinishedListeners.add(listener);
+    }
+
+    private static MethodHandle constructorOf(Class<?> clientClass) {
+        MethodHandle constructor = CONSTRUCTORS.get(clientClass);
+        if (constructor == null) {
+            try {
+                constructor = MethodHandles
+                        .publicLookup()
+                        .findConstructor(
+                                clientClass,
+                                MethodType.methodType(void.class,
+                                        AWSCredentialsProvider.class,
+                                        ClientConfiguration.class))
+                        .asType(CONSTRUCTOR_TYPE);
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException("Unable to create client: "
+                        + clientClass.getName()
+                        + " has no constructor taking credentials and a configuration", e);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("Unable to create client: "
+                        + e.getMessage(), e);
+            }
+            CONSTRUCTORS.putIfAbsent(clientClass, constructor);
+        }
+        return constructor;
+    }
+
+    /**
+     * @return The settings of the configuration that make two clients
+     *         different, since ClientConfiguration does not implement equals
+     */
+    private static List<Object> configurationKey(
+            ClientConfiguration configuration) {
+        return Arrays.<Object> asList(configuration.getProtocol(),
+                configuration.getMaxConnections(),
+                configuration.getConnectionTimeout(),
+                configuration.getSocketTimeout(),
+                configuration.getRequestTimeout(),
+                configuration.getClientExecutionTimeout(),
+                configuration.getConnectionTTL(),
+                configuration.getConnectionMaxIdleMillis(),
+                configuration.useTcpKeepAlive(), configuration.useGzip(),
+                Arrays.toString(configuration.getSocketBufferSizeHints()),
+                configuration.getMaxErrorRetry(),
+                configuration.getRetryPolicy(),
+                configuration.useThrottledRetries(),
+                configuration.getProxyHost(), configuration.getProxyPort(),
+                configuration.getProxyUsername(),
+                configuration.getSignerOverride());
+    }
+
+    /**
+     * Shuts down the clients and credentials providers, once the listeners added with
+     * {@link #addBuildFinishedListener} are done, and forgets them, so a
+     * project built again starts with new clients.
+     */
+    public void buildFinished(BuildEvent event) {
+        finish(event);
+    }
+
+    /**
+     * Does what {@link #buildFinished} does when the sub-build is the project
+     * of this factory. Listeners of the parent project are also added to
+     * sub-builds, so the factory of the parent ignores the end of its
+     * sub-builds.
+     */
+    public void subBuildFinished(BuildEvent event) {
+        if (event.getProject() == project) {
+            finish(event);
+        }
+    }
+
+    public void subBuildStarted(BuildEvent event) {
+    }
+
+    private void finish(BuildEvent event) {
+        for (BuildListener listener : buildFinishedListeners) {
+            try {
+                listener.buildFinished(event);
+            } catch (RuntimeException e) {
+                System.err.println("Build finished listener failed: " + e);
+            }
+        }
+        synchronized (project) {
+            if (project.getReference(REFERENCE) == this) {
+                project.getReferences().remove(REFERENCE);
+            }
+            project.removeBuildListener(this);
+        }
+        for (AmazonWebServiceClient client : clients.values()) {
+            client.shutdown();
+        }
+        clients.clear();
+        for (AWSCredentialsProvider provider : credentialsProviders.values()) {
+            if (provider instanceof Closeable) {
+                try {
+                    ((Closeable) provider).close();
+                } catch (IOException e) {
+                    System.err.println("Unable to close credentials provider: "
+                            + e);
+                }
+            }
+        }
+        credentialsProviders.clear();
+    }
+
+    public void buildStarted(BuildEvent event) {
+    }
+
+    public void targetStarted(BuildEvent event) {
+    }
+
+    public void targetFinished(BuildEvent event) {
+    }
+
+    public void taskStarted(BuildEvent event) {
+    }
+
+    public void taskFinished(BuildEvent event) {
+    }
+
+    public void messageLogged(BuildEvent event) {
+    }
+}
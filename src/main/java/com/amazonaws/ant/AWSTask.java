@@ -1,65 +1,46 @@
 package com.amazonaws.ant;
 
 import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import org.apache.tools.ant.PropertyHelper;
-import org.apache.tools.ant.Task;
 
 
 /**
  * Base class for all AWS tasks implemented. Defines common properties.
+ * <p>
+ * Kept for the key, secret and region attributes of the tasks extending it,
+ * which set the same credentials and region as the awsAccessKeyId,
+ * awsSecretKey and awsRegion attributes of {@link AWSAntTask}. Clients and
+ * credentials come from the {@link AWSClientFactory} of the build, like those
+ * of every other task.
  *
  * @author TODO
  */
-public class AWSTask extends Task {
+public class AWSTask extends AWSAntTask {
 
     protected final String DEFAULT_END_POINT = "s3-eu-west-1.amazonaws.com";
 
-    /**
-     * AWS access key.
-     */
-    protected String key;
-
-    /**
-     * AWS secret key.
-     */
-    protected String secret;
-
-    /**
-     * AWS Region to be used. US by default.
-     */
-    protected String region = "US";
-
     public void setKey(String key) {
-        this.key = key;
+        setAWSAccessKeyId(key);
     }
 
     public void setSecret(String secret) {
-        this.secret = secret;
+        setAWSSecretKey(secret);
     }
 
     public void setRegion(String region) {
-        this.region = region;
+        setAWSRegion(region);
     }
 
     protected String getKey() {
-        return this.key;
+        return this.awsAccessKeyId;
     }
 
     protected String getSecret() {
-        return this.secret;
+        return this.awsSecretKey;
     }
 
     protected AWSCredentials getCredentials() {
-        if (this.key == null || this.key.length() == 0 ||
-                this.secret == null || this.secret.length() == 0) {
-            log("Using default AWS credentials provider chain (ignoring credentials from ant build file)");
-            return new DefaultAWSCredentialsProviderChain().getCredentials();
-        } else {
-            log("Using credentials from ant build file");
-            return new BasicAWSCredentials(this.key, this.secret);
-        }
+        return getCredentialsProvider().getCredentials();
     }
 
     protected void addProperty(String propertyName, Object value) {
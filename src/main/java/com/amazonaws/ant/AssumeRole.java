@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import java.io.File;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.DataType;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+
+/**
+ * A role the clients of a task assume, nested in the task as an assumeRole
+ * element, or defined once in the project with an id and referred to with
+ * refid. An assumeRole with the id "aws.assumeRole" is used by every task
+ * without a nested one. The role is assumed with the credentials of the task,
+ * and every task that uses the same assumeRole and credentials shares one
+ * session.
+ */
+public class AssumeRole extends DataType {
+
+    /**
+     * The id of the assumeRole used by tasks without a nested one.
+     */
+    public static final String DEFAULT_REFERENCE = "aws.assumeRole";
+
+    private String roleArn;
+    private String roleSessionName = "aws-ant-tasks";
+    private String externalId;
+    private int durationInSeconds = 3600;
+    private String stsEndpoint;
+    private String stsRegion = "us-east-1";
+    private File sessionCacheDir;
+
+    /**
+     * Set the ARN of the role to assume. Required.
+     */
+    public void setRoleArn(String roleArn) {
+        checkAttributesAllowed();
+        this.roleArn = roleArn;
+    }
+
+    /**
+     * Set the name of the sessions, which shows in CloudTrail. Not required,
+     * default is "aws-ant-tasks".
+     */
+    public void setRoleSessionName(String roleSessionName) {
+        checkAttributesAllowed();
+        this.roleSessionName = roleSessionName;
+    }
+
+    /**
+     * Set the external ID the trust policy of the role requires. Not required,
+     * default is none.
+     */
+    public void setExternalId(String externalId) {
+        checkAttributesAllowed();
+        this.externalId = externalId;
+    }
+
+    /**
+     * Set how long a session lasts. Not required, default is 3600.
+     */
+    public void setDurationInSeconds(int durationInSeconds) {
+        checkAttributesAllowed();
+        this.durationInSeconds = durationInSeconds;
+    }
+
+    /**
+     * Set the STS endpoint, such as "https://sts.eu-west-1.amazonaws.com". Not
+     * required, default is the endpoint of stsRegion.
+     */
+    public void setStsEndpoint(String stsEndpoint) {
+        checkAttributesAllowed();
+        this.stsEndpoint = stsEndpoint;
+    }
+
+    /**
+     * Set the region of the STS endpoint, which requests are signed for. Not
+     * required, default is "us-east-1".
+     */
+    public void setStsRegion(String stsRegion) {
+        checkAttributesAllowed();
+        this.stsRegion = stsRegion;
+    }
+
+    /**
+     * Set the directory sessions are saved in, encrypted, so later builds
+     * reuse them until they are about to expire. Not required, default is to
+     * keep sessions in memory only.
+     */
+    public void setSessionCacheDir(File sessionCacheDir) {
+        checkAttributesAllowed();
+        this.sessionCacheDir = sessionCacheDir;
+    }
+
+    /**
+     * @return This assumeRole, or the one it refers to
+     */
+    public AssumeRole resolve() {
+        return isReference() ? ((AssumeRole) getCheckedRef()).resolve() : this;
+    }
+
+    /**
+     * Returns a new provider of the sessions of the role.
+     *
+     * @param baseCredentials
+     *            The credentials the role is assumed with
+     * @param clientConfiguration
+     *            The configuration of the STS client
+     */
+    public AssumeRoleCredentialsProvider newCredentialsProvider(
+            AWSCredentialsProvider baseCredentials,
+            ClientConfiguration clientConfiguration) {
+        if (isReference()) {
+            return resolve().newCredentialsProvider(baseCredentials,
+                    clientConfiguration);
+        }
+        if (roleArn == null) {
+            throw new BuildException("Missing parameter: roleArn is required");
+        }
+        String endpoint = stsEndpoint != null ? stsEndpoint : "https://sts."
+                + stsRegion + ".amazonaws.com";
+        return new AssumeRoleCredentialsProvider(baseCredentials,
+                clientConfiguration, roleArn, roleSessionName, externalId,
+                durationInSeconds, endpoint, stsRegion, sessionCacheDir);
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Date;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.STSAssumeRoleSessionCredentialsProvider;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClient;
+import com.amazonaws.services.securitytoken.AbstractAWSSecurityTokenService;
+import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
+import com.amazonaws.services.securitytoken.model.AssumeRoleResult;
+import com.amazonaws.services.securitytoken.model.Credentials;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.StringUtils;
+
+/**
+ * Provides the credentials of sessions of an IAM role, assumed through the
+ * STS AssumeRole API by an {@link STSAssumeRoleSessionCredentialsProvider}.
+ * <p>
+ * A session is used until it is about to expire. Within five minutes of its
+ * expiry, a new one is assumed in the background while the current one is
+ * still handed out, so requests do not wait for a renewal.
+ * <p>
+ * With a cache directory, sessions are also saved to disk, so the next build
+ * reuses the session instead of assuming the role again. The file is
+ * encrypted and authenticated with keys derived from the secret key of the
+ * credentials the role is assumed with, so only a process holding those
+ * credentials, which could assume the role anyway, can read it.
+ */
+public class AssumeRoleCredentialsProvider implements AWSCredentialsProvider,
+        Closeable {
+
+    /**
+     * How long a saved session must still last to be reused, which is when
+     * the SDK stops handing out a session and waits for a new one.
+     */
+    private static final long MIN_SAVED_SESSION_LIFE_IN_MS = 60 * 1000L;
+    private static final int MAC_LENGTH = 32;
+    private static final int IV_LENGTH = 16;
+
+    private final AWSCredentialsProvider baseCredentials;
+    private final String roleArn;
+    private final String roleSessionName;
+    private final String externalId;
+    private final int durationInSeconds;
+    private final String stsEndpoint;
+    private final File sessionCacheDir;
+
+    private final SecureRandom random = new SecureRandom();
+    private final AWSSecurityTokenServiceClient sts;
+    private final STSAssumeRoleSessionCredentialsProvider provider;
+
+    /**
+     * @param baseCredentials
+     *            The credentials the role is assumed with
+     * @param clientConfiguration
+     *            The configuration of the STS client
+     * @param externalId
+     *            The external ID, or null
+     * @param stsRegion
+     *            The region requests to stsEndpoint are signed for
+     * @param sessionCacheDir
+     *            The directory sessions are saved in, or null to keep them in
+     *            memory only
+     */
+    public AssumeRoleCredentialsProvider(AWSCredentialsProvider baseCredentials,
+            ClientConfiguration clientConfiguration, String roleArn,
+            String roleSessionName, String externalId, int durationInSeconds,
+            String stsEndpoint, String stsRegion, File sessionCacheDir) {
+        this.baseCredentials = baseCredentials;
+        this.roleArn = roleArn;
+        this.roleSessionName = roleSessionName;
+        this.externalId = externalId;
+        this.durationInSeconds = durationInSeconds;
+        this.stsEndpoint = stsEndpoint;
+        this.sessionCacheDir = sessionCacheDir;
+
+        sts = new AWSSecurityTokenServiceClient(baseCredentials,
+                clientConfiguration);
+        sts.setEndpoint(stsEndpoint);
+        sts.setSignerRegionOverride(stsRegion);
+        STSAssumeRoleSessionCredentialsProvider.Builder builder = new STSAssumeRoleSessionCredentialsProvider.Builder(
+                roleArn, roleSessionName).withStsClient(
+                sessionCacheDir == null ? sts : new SessionCache())
+                .withRoleSessionDurationSeconds(durationInSeconds);
+        if (externalId != null) {
+            builder.withExternalId(externalId);
+        }
+        provider = builder.build();
+    }
+
+    public AWSCredentials getCredentials() {
+        return provider.getCredentials();
+    }
+
+    /**
+     * Assumes the role again, while the caller waits.
+     */
+    public void refresh() {
+        provider.refresh();
+    }
+
+    /**
+     * Stops the background refresh and shuts down the STS client.
+     */
+    public void close() {
+        provider.close();
+        sts.shutdown();
+    }
+
+    /**
+     * @return The session saved for the role and base credentials, or null if
+     *         there is none that can be read
+     */
+    private Credentials load() {
+        if (sessionCacheDir == null) {
+            return null;
+        }
+        AWSCredentials credentials = baseCredentials.getCredentials();
+        File file = cacheFileFor(credentials);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            byte[] content = Files.readAllBytes(file.toPath());
+            if (content.length < IV_LENGTH + MAC_LENGTH) {
+                return null;
+            }
+            byte[] encrypted = Arrays.copyOf(content, content.length
+                    - MAC_LENGTH);
+            byte[] mac = Arrays.copyOfRange(content, content.length
+                    - MAC_LENGTH, content.length);
+            if (!MessageDigest.isEqual(mac, hmac(
+                    deriveKey(credentials, "authentication"), encrypted))) {
+                // Saved with other credentials, or tampered with
+                return null;
+            }
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(deriveKey(
+                    credentials, "encryption"), "AES"), new IvParameterSpec(
+                    encrypted, 0, IV_LENGTH));
+            String[] fields = new String(cipher.doFinal(encrypted, IV_LENGTH,
+                    encrypted.length - IV_LENGTH), StringUtils.UTF8)
+                    .split("\n");
+            return new Credentials(fields[0], fields[1], fields[2], new Date(
+                    Long.parseLong(fields[3])));
+        } catch (IOException e) {
+            return null;
+        } catch (GeneralSecurityException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void save(Credentials session) {
+        if (sessionCacheDir == null) {
+            return;
+        }
+        AWSCredentials credentials = baseCredentials.getCredentials();
+        File file = cacheFileFor(credentials);
+        File temp = null;
+        try {
+            byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(deriveKey(
+                    credentials, "encryption"), "AES"), new IvParameterSpec(iv));
+            byte[] encrypted = cipher.doFinal((session.getAccessKeyId() + "\n"
+                    + session.getSecretAccessKey() + "\n"
+                    + session.getSessionToken() + "\n" + session
+                    .getExpiration().getTime()).getBytes(StringUtils.UTF8));
+            byte[] content = new byte[IV_LENGTH + encrypted.length];
+            System.arraycopy(iv, 0, content, 0, IV_LENGTH);
+            System.arraycopy(encrypted, 0, content, IV_LENGTH, encrypted.length);
+
+            sessionCacheDir.mkdirs();
+            temp = File.createTempFile(file.getName(), ".tmp", sessionCacheDir);
+            temp.setReadable(false, false);
+            temp.setReadable(true, true);
+            temp.setWritable(false, false);
+            temp.setWritable(true, true);
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(content);
+                out.write(hmac(deriveKey(credentials, "authentication"),
+                        content));
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Unable to save the session of " + roleArn
+                    + ": " + e.getMessage());
+        } catch (GeneralSecurityException e) {
+            System.err.println("Unable to save the session of " + roleArn
+                    + ": " + e.getMessage());
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * @return The file the session of the role, assumed with the given
+     *         credentials, is saved in. Its name does not reveal the role.
+     */
+    private File cacheFileFor(AWSCredentials credentials) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+                    (roleArn + "\n" + roleSessionName + "\n" + externalId
+                            + "\n" + durationInSeconds + "\n"
+                            + stsEndpoint + "\n" + credentials
+                            .getAWSAccessKeyId())
+                            .getBytes(StringUtils.UTF8));
+            return new File(sessionCacheDir, BinaryUtils.toHex(digest)
+                    + ".session");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] deriveKey(AWSCredentials credentials, String purpose)
+            throws GeneralSecurityException {
+        byte[] key = hmac(
+                credentials.getAWSSecretKey().getBytes(StringUtils.UTF8),
+                ("aws-ant-tasks session cache " + purpose)
+                        .getBytes(StringUtils.UTF8));
+        // AES-128, which every JRE supports
+        return "encryption".equals(purpose) ? Arrays.copyOf(key, 16) : key;
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data)
+            throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    /**
+     * The STS client of the SDK provider when sessions are saved. Its first
+     * AssumeRole call returns the saved session, if there is one that lasts
+     * long enough. Every other call assumes the role and saves the session.
+     */
+    private class SessionCache extends AbstractAWSSecurityTokenService {
+        private boolean loaded;
+
+        @Override
+        public synchronized AssumeRoleResult assumeRole(
+                AssumeRoleRequest request) {
+            if (!loaded) {
+                loaded = true;
+                Credentials saved = load();
+                if (saved != null
+                        && saved.getExpiration().getTime()
+                                - System.currentTimeMillis() > MIN_SAVED_SESSION_LIFE_IN_MS) {
+                    return new AssumeRoleResult().withCredentials(saved);
+                }
+            }
+            AssumeRoleResult result = sts.assumeRole(request);
+            save(result.getCredentials());
+            return result;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.DataType;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+
+/**
+ * HTTP and connection settings of the clients of a task, nested in the task
+ * as a clientConfig element, or defined once in the project with an id and
+ * referred to with refid. A clientConfig with the id "aws.clientConfig" is
+ * used by every task without a nested one. Settings not set keep the SDK
+ * defaults.
+ */
+public class ClientConfig extends DataType {
+
+    /**
+     * The id of the clientConfig used by tasks without a nested one.
+     */
+    public static final String DEFAULT_REFERENCE = "aws.clientConfig";
+
+    private Integer maxConnections;
+    private Long connectionTTLInMs;
+    private Boolean tcpKeepAlive;
+    private Integer socketSendBufferSizeHint;
+    private Integer socketReceiveBufferSizeHint;
+    private Integer connectionTimeoutInMs;
+    private Integer socketTimeoutInMs;
+    private Integer requestTimeoutInMs;
+    private Integer clientExecutionTimeoutInMs;
+    private Boolean gzip;
+    private String retryPolicy;
+    private Integer maxErrorRetry;
+    private Boolean throttledRetries;
+
+    /**
+     * Set the most connections a client keeps open. Not required, default is
+     * the larger of 50 and the number of requests the task sends at the same
+     * time.
+     */
+    public void setMaxConnections(int maxConnections) {
+        checkAttributesAllowed();
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Set how long a pooled connection may be reused, or -1 for as long as the
+     * server keeps it open. Not required, default is -1.
+     */
+    public void setConnectionTTLInMs(long connectionTTLInMs) {
+        checkAttributesAllowed();
+        this.connectionTTLInMs = connectionTTLInMs;
+    }
+
+    /**
+     * Set whether TCP keep-alive probes are sent on idle connections. Not
+     * required, default is false.
+     */
+    public void setTcpKeepAlive(boolean tcpKeepAlive) {
+        checkAttributesAllowed();
+        this.tcpKeepAlive = tcpKeepAlive;
+    }
+
+    /**
+     * Set the socket send buffer size to ask the operating system for, in
+     * bytes. Not required, default is the operating system's.
+     */
+    public void setSocketSendBufferSizeHint(int socketSendBufferSizeHint) {
+        checkAttributesAllowed();
+        this.socketSendBufferSizeHint = socketSendBufferSizeHint;
+    }
+
+    /**
+     * Set the socket receive buffer size to ask the operating system for, in
+     * bytes. Not required, default is the operating system's.
+     */
+    public void setSocketReceiveBufferSizeHint(int socketReceiveBufferSizeHint) {
+        checkAttributesAllowed();
+        this.socketReceiveBufferSizeHint = socketReceiveBufferSizeHint;
+    }
+
+    /**
+     * Set how long to wait for a connection to open. Not required, default is
+     * 10000.
+     */
+    public void setConnectionTimeoutInMs(int connectionTimeoutInMs) {
+        checkAttributesAllowed();
+        this.connectionTimeoutInMs = connectionTimeoutInMs;
+    }
+
+    /**
+     * Set how long to wait for data on an open connection. Not required,
+     * default is 50000.
+     */
+    public void setSocketTimeoutInMs(int socketTimeoutInMs) {
+        checkAttributesAllowed();
+        this.socketTimeoutInMs = socketTimeoutInMs;
+    }
+
+    /**
+     * Set how long a single HTTP request may take, or 0 for no limit. Not
+     * required, default is 0.
+     */
+    public void setRequestTimeoutInMs(int requestTimeoutInMs) {
+        checkAttributesAllowed();
+        this.requestTimeoutInMs = requestTimeoutInMs;
+    }
+
+    /**
+     * Set how long a call may take, retries included, or 0 for no limit. Not
+     * required, default is 0.
+     */
+    public void setClientExecutionTimeoutInMs(int clientExecutionTimeoutInMs) {
+        checkAttributesAllowed();
+        this.clientExecutionTimeoutInMs = clientExecutionTimeoutInMs;
+    }
+
+    /**
+     * Set whether responses are requested gzip compressed. Not required,
+     * default is false.
+     */
+    public void setGzip(boolean gzip) {
+        checkAttributesAllowed();
+        this.gzip = gzip;
+    }
+
+    /**
+     * Set the retry policy, "default" or "none". Not required, default is
+     * "default".
+     */
+    public void setRetryPolicy(String retryPolicy) {
+        checkAttributesAllowed();
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Set how many times a failed request is retried. Not required, default is
+     * the retry policy's, 3 for "default".
+     */
+    public void setMaxErrorRetry(int maxErrorRetry) {
+        checkAttributesAllowed();
+        this.maxErrorRetry = maxErrorRetry;
+    }
+
+    /**
+     * Set whether retries are throttled once many requests in a row failed,
+     * so an unavailable service is not flooded. Not required, default is true.
+     */
+    public void setThrottledRetries(boolean throttledRetries) {
+        checkAttributesAllowed();
+        this.throttledRetries = throttledRetries;
+    }
+
+    /**
+     * @return Whether maxConnections is set, here or in the referred
+     *         clientConfig
+     */
+    public boolean hasMaxConnections() {
+        if (isReference()) {
+            return getRef().hasMaxConnections();
+        }
+        return maxConnections != null;
+    }
+
+    /**
+     * Sets the settings that were set on the configuration.
+     */
+    public void applyTo(ClientConfiguration configuration) {
+        if (isReference()) {
+            getRef().applyTo(configuration);
+            return;
+        }
+        if (maxConnections != null) {
+            configuration.setMaxConnections(maxConnections);
+        }
+        if (connectionTTLInMs != null) {
+            configuration.setConnectionTTL(connectionTTLInMs);
+        }
+        if (tcpKeepAlive != null) {
+            configuration.setUseTcpKeepAlive(tcpKeepAlive);
+        }
+        if (socketSendBufferSizeHint != null
+                || socketReceiveBufferSizeHint != null) {
+            int[] hints = configuration.getSocketBufferSizeHints();
+            configuration.setSocketBufferSizeHints(
+                    socketSendBufferSizeHint != null ? socketSendBufferSizeHint
+                            : hints[0],
+                    socketReceiveBufferSizeHint != null ? socketReceiveBufferSizeHint
+                            : hints[1]);
+        }
+        if (connectionTimeoutInMs != null) {
+            configuration.setConnectionTimeout(connectionTimeoutInMs);
+        }
+        if (socketTimeoutInMs != null) {
+            configuration.setSocketTimeout(socketTimeoutInMs);
+        }
+        if (requestTimeoutInMs != null) {
+            configuration.setRequestTimeout(requestTimeoutInMs);
+        }
+        if (clientExecutionTimeoutInMs != null) {
+            configuration
+                    .setClientExecutionTimeout(clientExecutionTimeoutInMs);
+        }
+        if (gzip != null) {
+            configuration.setUseGzip(gzip);
+        }
+        if (retryPolicy != null) {
+            if ("none".equalsIgnoreCase(retryPolicy)) {
+                configuration
+                        .setRetryPolicy(PredefinedRetryPolicies.NO_RETRY_POLICY);
+            } else if ("default".equalsIgnoreCase(retryPolicy)) {
+                configuration.setRetryPolicy(PredefinedRetryPolicies.DEFAULT);
+            } else {
+                throw new BuildException("Unknown retryPolicy " + retryPolicy
+                        + ", it must be \"default\" or \"none\"");
+            }
+        }
+        if (maxErrorRetry != null) {
+            configuration.setMaxErrorRetry(maxErrorRetry);
+        }
+        if (throttledRetries != null) {
+            configuration.setUseThrottleRetries(throttledRetries);
+        }
+    }
+
+    private ClientConfig getRef() {
+        return (ClientConfig) getCheckedRef();
+    }
+}
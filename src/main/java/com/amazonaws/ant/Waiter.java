@@ -0,0 +1,221 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import java.util.Random;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+
+/**
+ * Waits for a resource to reach a state, by polling it until a success or a
+ * failure condition is met, or the deadline passes.
+ * <p>
+ * The first poll is immediate, so a resource that is already done costs no
+ * wait. After that, the delay between polls starts at the initial delay and
+ * doubles up to the maximum delay, with jitter, so tasks waiting at the same
+ * time do not poll in lockstep. If a progress condition is set, the delay
+ * starts over from the initial delay whenever it is met, so a resource that is
+ * moving is polled often and one that is not is polled less and less. A poll
+ * refused because of throttling is retried after a longer delay instead of
+ * failing the wait. The wait ends early if the thread is interrupted, as Ant
+ * does to stop a parallel task, or if {@link #cancel()} is called.
+ *
+ * @param <T>
+ *            The state the resource is polled for
+ */
+public class Waiter<T> {
+
+    /**
+     * Gets the current state of the resource.
+     */
+    public interface Poll<T> {
+        T poll();
+    }
+
+    /**
+     * A condition on the state of the resource.
+     */
+    public interface Condition<T> {
+        boolean isMet(T state);
+    }
+
+    private final String description;
+    private final Poll<T> poll;
+    private final Condition<T> success;
+    private Condition<T> failure;
+    private Condition<T> progress;
+    private long initialDelayInMs = 1000;
+    private long maxDelayInMs = 30 * 1000L;
+    private long timeoutInMs = 30 * 60 * 1000L;
+    private final Random random = new Random();
+    private final Object lock = new Object();
+    private volatile boolean cancelled;
+
+    /**
+     * @param description
+     *            What is waited for, such as "stack mystack to reach
+     *            CREATE_COMPLETE", for messages
+     * @param poll
+     *            Gets the current state
+     * @param success
+     *            Met by the state waited for
+     */
+    public Waiter(String description, Poll<T> poll, Condition<T> success) {
+        this.description = description;
+        this.poll = poll;
+        this.success = success;
+    }
+
+    /**
+     * Sets the condition met by states the resource will not leave for the
+     * one waited for, such as a failed state. Not required, default is none.
+     */
+    public Waiter<T> withFailure(Condition<T> failure) {
+        this.failure = failure;
+        return this;
+    }
+
+    /**
+     * Sets the condition met by states that show the resource moved since the
+     * previous poll, after which the delay starts over from the initial delay.
+     * Not required, default is none.
+     */
+    public Waiter<T> withProgress(Condition<T> progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /**
+     * Sets the delay before the second poll, and the most it grows to. Not
+     * required, defaults are 1000 and 30000.
+     */
+    public Waiter<T> withDelays(long initialDelayInMs, long maxDelayInMs) {
+        this.initialDelayInMs = Math.max(1, initialDelayInMs);
+        this.maxDelayInMs = Math.max(this.initialDelayInMs, maxDelayInMs);
+        return this;
+    }
+
+    /**
+     * Sets how long to wait in total. Not required, default is 30 minutes.
+     */
+    public Waiter<T> withTimeoutInMs(long timeoutInMs) {
+        this.timeoutInMs = timeoutInMs;
+        return this;
+    }
+
+    /**
+     * Stops the wait, from another thread. The waiting thread fails with a
+     * BuildException.
+     */
+    public void cancel() {
+        cancelled = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Polls until the success condition is met.
+     *
+     * @return The state that met the success condition
+     * @throws BuildException
+     *             If the failure condition is met, the deadline passes, or the
+     *             wait is interrupted or cancelled
+     */
+    public T run() {
+        long deadline = System.currentTimeMillis() + timeoutInMs;
+        long delay = initialDelayInMs;
+        while (true) {
+            checkCancelled();
+            T state = null;
+            boolean throttled = false;
+            try {
+                state = poll.poll();
+            } catch (AmazonServiceException e) {
+                if (!RetryUtils.isThrottlingException(e)) {
+                    throw e;
+                }
+                throttled = true;
+            }
+            if (!throttled) {
+                if (success.isMet(state)) {
+                    return state;
+                }
+                if (failure != null && failure.isMet(state)) {
+                    throw new BuildException(description + " failed: "
+                            + state);
+                }
+                if (progress != null && progress.isMet(state)) {
+                    delay = initialDelayInMs;
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                throw new BuildException(description + " did not happen in "
+                        + timeoutInMs / 1000 + " seconds"
+                        + (throttled ? ", the last poll was throttled"
+                                : ", the last state was " + state));
+            }
+            if (throttled) {
+                // Back off harder, since the account is polling too much
+                delay = Math.min(delay * 2, maxDelayInMs);
+            }
+            sleep(Math.min(jitter(delay), deadline - now));
+            delay = Math.min(delay * 2, maxDelayInMs);
+        }
+    }
+
+    /**
+     * @return A delay between half the delay and the whole of it
+     */
+    private long jitter(long delay) {
+        long half = delay / 2;
+        synchronized (random) {
+            return half + (long) (random.nextDouble() * (delay - half + 1));
+        }
+    }
+
+    private void sleep(long delayInMs) {
+        long wakeUp = System.currentTimeMillis() + delayInMs;
+        synchronized (lock) {
+            try {
+                long remaining;
+                while (!cancelled
+                        && (remaining = wakeUp - System.currentTimeMillis()) > 0) {
+                    lock.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BuildException("Interrupted while waiting for "
+                        + description, e);
+            }
+        }
+        checkCancelled();
+    }
+
+    private void checkCancelled() {
+        if (cancelled) {
+            throw new BuildException("Cancelled while waiting for "
+                    + description);
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new BuildException("Interrupted while waiting for "
+                    + description);
+        }
+    }
+}
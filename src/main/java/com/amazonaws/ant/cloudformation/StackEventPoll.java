@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ant.Waiter;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsResult;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackEvent;
+
+/**
+ * Gets the statuses of a set of stacks by tailing their events. Events are
+ * returned newest first, so every poll reads pages only until it reaches the
+ * last event it saw, and prints the new ones oldest first. The status of a
+ * stack is taken from its newest event about itself. Stacks that reached
+ * their target status are not polled again.
+ * <p>
+ * The first poll of a stack reads one page of events, to know where to start
+ * from, and describes the stack only if that page holds no event about the
+ * stack itself. Later polls go by stack ID, which keeps working once the
+ * stack is deleted.
+ */
+class StackEventPoll implements Waiter.Poll<Map<String, String>> {
+
+    private static final String STACK_TYPE = "AWS::CloudFormation::Stack";
+
+    private final AmazonCloudFormation client;
+    private final Map<String, String> targets;
+    private final Map<String, String> statuses = new LinkedHashMap<String, String>();
+    private final Map<String, String> stackIds = new HashMap<String, String>();
+    private final Map<String, String> lastEventIds = new HashMap<String, String>();
+    private boolean newEvents;
+
+    /**
+     * @param targets
+     *            The status to wait for, by stack name
+     */
+    StackEventPoll(AmazonCloudFormation client, Map<String, String> targets) {
+        this.client = client;
+        this.targets = targets;
+    }
+
+    /**
+     * @return Whether the last poll found events not seen before
+     */
+    boolean hadNewEvents() {
+        return newEvents;
+    }
+
+    public Map<String, String> poll() {
+        newEvents = false;
+        for (String stackName : targets.keySet()) {
+            if (!targets.get(stackName).equals(statuses.get(stackName))) {
+                if (stackIds.containsKey(stackName)) {
+                    tail(stackName);
+                } else {
+                    start(stackName);
+                }
+            }
+        }
+        return Collections.unmodifiableMap(new LinkedHashMap<String, String>(
+                statuses));
+    }
+
+    private void start(String stackName) {
+        List<StackEvent> events;
+        try {
+            events = client.describeStackEvents(
+                    new DescribeStackEventsRequest().withStackName(stackName))
+                    .getStackEvents();
+        } catch (AmazonServiceException e) {
+            // A deleted stack can no longer be described by name
+            if (StackStatusPoll.DELETE_COMPLETE.equals(targets.get(stackName))
+                    && e.getMessage() != null
+                    && e.getMessage().contains("does not exist")) {
+                statuses.put(stackName, StackStatusPoll.DELETE_COMPLETE);
+                System.out.println(stackName + " does not exist");
+                return;
+            }
+            throw e;
+        }
+        String status = null;
+        for (StackEvent event : events) {
+            if (isAboutStack(event)) {
+                stackIds.put(stackName, event.getStackId());
+                status = event.getResourceStatus();
+                break;
+            }
+        }
+        if (status == null) {
+            Stack stack = client.describeStacks(
+                    new DescribeStacksRequest().withStackName(stackName))
+                    .getStacks().get(0);
+            stackIds.put(stackName, stack.getStackId());
+            status = stack.getStackStatus();
+        }
+        if (!events.isEmpty()) {
+            lastEventIds.put(stackName, events.get(0).getEventId());
+        }
+        statuses.put(stackName, status);
+        System.out.println(stackName + " is in status " + status);
+    }
+
+    private void tail(String stackName) {
+        String lastEventId = lastEventIds.get(stackName);
+        List<StackEvent> newestFirst = new ArrayList<StackEvent>();
+        DescribeStackEventsRequest request = new DescribeStackEventsRequest()
+                .withStackName(stackIds.get(stackName));
+        boolean caughtUp = false;
+        do {
+            DescribeStackEventsResult result = client
+                    .describeStackEvents(request);
+            for (StackEvent event : result.getStackEvents()) {
+                if (event.getEventId().equals(lastEventId)) {
+                    caughtUp = true;
+                    break;
+                }
+                newestFirst.add(event);
+            }
+            request.setNextToken(result.getNextToken());
+        } while (!caughtUp && request.getNextToken() != null);
+        if (newestFirst.isEmpty()) {
+            return;
+        }
+        newEvents = true;
+        lastEventIds.put(stackName, newestFirst.get(0).getEventId());
+        for (int i = newestFirst.size() - 1; i >= 0; i--) {
+            StackEvent event = newestFirst.get(i);
+            System.out.println(format(stackName, event));
+            if (isAboutStack(event)) {
+                statuses.put(stackName, event.getResourceStatus());
+            }
+        }
+    }
+
+    static boolean isAboutStack(StackEvent event) {
+        return STACK_TYPE.equals(event.getResourceType())
+                && event.getStackId().equals(event.getPhysicalResourceId());
+    }
+
+    static String format(String stackName, StackEvent event) {
+        StringBuilder line = new StringBuilder(stackName);
+        if (!isAboutStack(event)) {
+            line.append(" ").append(event.getLogicalResourceId()).append(" (")
+                    .append(event.getResourceType()).append(")");
+        }
+        line.append(" is in status ").append(event.getResourceStatus());
+        if (event.getResourceStatusReason() != null) {
+            line.append(": ").append(event.getResourceStatusReason());
+        }
+        return line.toString();
+    }
+}
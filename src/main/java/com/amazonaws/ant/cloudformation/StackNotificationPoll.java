@@ -0,0 +1,322 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ant.Waiter;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackEvent;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.util.Topics;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.util.DateUtils;
+import com.amazonaws.util.json.Jackson;
+
+/**
+ * Gets the statuses of a set of stacks from the notifications CloudFormation
+ * publishes to their SNS topics, instead of polling the stacks. An SQS queue
+ * is subscribed to the topics, and every poll waits on the queue for up to 20
+ * seconds. Every notification is printed like an event of the stack.
+ * <p>
+ * By default, the queue is created for this wait only, and it is deleted,
+ * along with its subscriptions, by {@link #close}. A named queue is created if
+ * it does not exist, and kept for the next build. Since builds running at the
+ * same time may share it, only the notifications about the stacks waited for
+ * are deleted from it, and the topics are added to its policy rather than
+ * replacing it.
+ * <p>
+ * Notifications can be late or lost, so the statuses of the stacks are polled
+ * whenever no notification about them arrived for the fallback interval.
+ * Notifications about other stacks, or from before the current operation on
+ * the stack, are ignored.
+ */
+class StackNotificationPoll implements Waiter.Poll<Map<String, String>> {
+
+    private static final String QUEUE_NAME_PREFIX = "aws-ant-tasks-stack-events-";
+    private static final int MAX_WAIT_IN_SECONDS = 20;
+    private static final Pattern FIELD = Pattern.compile(
+            "(\\w+)='(.*?)'\\s*(?=\\w+='|\\z)", Pattern.DOTALL);
+
+    private final AmazonCloudFormation client;
+    private final Map<String, String> targets;
+    private final AmazonSNS sns;
+    private final AmazonSQS sqs;
+    private final String queueName;
+    private final boolean ownQueue;
+    private final long fallbackIntervalInMs;
+    private final StackStatusPoll fallback;
+    private final Map<String, String> statuses = new LinkedHashMap<String, String>();
+    private final Map<String, String> stackNames = new HashMap<String, String>();
+    private final Map<String, Date> lastEventTimes = new HashMap<String, Date>();
+    private final List<String> subscriptionArns = new ArrayList<String>();
+    private String queueUrl;
+    private long lastHeard;
+    private boolean subscribed;
+    private boolean heard;
+
+    /**
+     * @param targets
+     *            The status to wait for, by stack name
+     * @param queueName
+     *            The name of the queue to create or reuse, or null to create
+     *            one for this wait only
+     * @param fallbackIntervalInMs
+     *            How long without notifications before the stacks are polled
+     */
+    StackNotificationPoll(AmazonCloudFormation client,
+            Map<String, String> targets, AmazonSNS sns, AmazonSQS sqs,
+            String queueName, long fallbackIntervalInMs) {
+        this.client = client;
+        this.targets = targets;
+        this.sns = sns;
+        this.sqs = sqs;
+        this.ownQueue = queueName == null;
+        this.queueName = ownQueue ? QUEUE_NAME_PREFIX + UUID.randomUUID()
+                : queueName;
+        this.fallbackIntervalInMs = fallbackIntervalInMs;
+        this.fallback = new StackStatusPoll(client, targets);
+    }
+
+    /**
+     * Describes the stacks, and subscribes the queue to their topics.
+     *
+     * @return Whether notifications will arrive, which is not the case if a
+     *         stack has no topic, or the queue cannot be set up
+     */
+    boolean subscribe() {
+        Set<String> topicArns = new LinkedHashSet<String>();
+        for (String stackName : targets.keySet()) {
+            Stack stack = StackStatusPoll.describe(client, stackName,
+                    targets.get(stackName));
+            if (stack == null) {
+                statuses.put(stackName, StackStatusPoll.DELETE_COMPLETE);
+                continue;
+            }
+            statuses.put(stackName, stack.getStackStatus());
+            System.out.println(stackName + " is in status "
+                    + stack.getStackStatus());
+            stackNames.put(stack.getStackId(), stackName);
+            lastEventTimes.put(stack.getStackId(), operationStart(stack));
+            if (stack.getNotificationARNs().isEmpty()) {
+                System.out.println(stackName
+                        + " has no notification topic, polling instead");
+                return false;
+            }
+            topicArns.addAll(stack.getNotificationARNs());
+        }
+        if (topicArns.isEmpty()) {
+            return false;
+        }
+        try {
+            queueUrl = sqs.createQueue(queueName).getQueueUrl();
+            Map<String, String> attributes = sqs.getQueueAttributes(
+                    queueUrl,
+                    Arrays.asList(QueueAttributeName.QueueArn.toString(),
+                            QueueAttributeName.Policy.toString()))
+                    .getAttributes();
+            String queueArn = attributes.get(QueueAttributeName.QueueArn
+                    .toString());
+            String policy = attributes.get(QueueAttributeName.Policy
+                    .toString());
+            for (String topicArn : topicArns) {
+                // A reused queue may already let the topic send to it
+                String subscriptionArn = policy != null
+                        && policy.contains("\"" + topicArn + "\"") ? sns
+                        .subscribe(topicArn, "sqs", queueArn)
+                        .getSubscriptionArn() : Topics.subscribeQueue(sns,
+                        sqs, topicArn, queueUrl, true);
+                subscriptionArns.add(subscriptionArn);
+            }
+        } catch (AmazonClientException e) {
+            System.out.println("Unable to receive the notifications of the "
+                    + "stacks, polling instead: " + e.getMessage());
+            close();
+            return false;
+        }
+        System.out.println("Receiving the notifications of the stacks on "
+                + queueName);
+        lastHeard = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Unsubscribes and deletes the queue if it was created for this wait. A
+     * named queue and its subscriptions are kept for the next build.
+     */
+    void close() {
+        if (!ownQueue || queueUrl == null) {
+            return;
+        }
+        try {
+            for (String subscriptionArn : subscriptionArns) {
+                // Not an ARN while the subscription awaits confirmation
+                if (subscriptionArn != null
+                        && subscriptionArn.startsWith("arn:")) {
+                    sns.unsubscribe(subscriptionArn);
+                }
+            }
+            sqs.deleteQueue(queueUrl);
+        } catch (AmazonClientException e) {
+            System.out.println("Unable to delete the queue " + queueName
+                    + ": " + e.getMessage());
+        }
+        subscriptionArns.clear();
+        queueUrl = null;
+    }
+
+    /**
+     * @return Whether the last poll received notifications about the stacks
+     */
+    boolean hadNotifications() {
+        return heard;
+    }
+
+    public Map<String, String> poll() {
+        heard = false;
+        if (subscribed) {
+            receive();
+            if (!heard
+                    && System.currentTimeMillis() - lastHeard >= fallbackIntervalInMs) {
+                statuses.putAll(fallback.poll());
+                lastHeard = System.currentTimeMillis();
+            }
+        }
+        // The first poll returns the statuses found when subscribing
+        subscribed = true;
+        return Collections.unmodifiableMap(new LinkedHashMap<String, String>(
+                statuses));
+    }
+
+    private void receive() {
+        List<Message> messages = sqs.receiveMessage(
+                new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(
+                        10).withWaitTimeSeconds(
+                        (int) Math.max(1, Math.min(MAX_WAIT_IN_SECONDS,
+                                fallbackIntervalInMs / 1000)))).getMessages();
+        List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>();
+        for (Message message : messages) {
+            StackEvent event = parse(message.getBody());
+            boolean accepted = event != null && apply(event);
+            // Other builds may wait on a named queue for other stacks
+            if (accepted || ownQueue) {
+                entries.add(new DeleteMessageBatchRequestEntry(Integer
+                        .toString(entries.size()), message.getReceiptHandle()));
+            }
+        }
+        if (!entries.isEmpty()) {
+            sqs.deleteMessageBatch(queueUrl, entries);
+        }
+        if (heard) {
+            lastHeard = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return Whether the event is about a stack waited for, including events
+     *         from before the current operation, which are ignored
+     */
+    private boolean apply(StackEvent event) {
+        String stackName = stackNames.get(event.getStackId());
+        if (stackName == null) {
+            return false;
+        }
+        if (event.getTimestamp().before(lastEventTimes.get(event.getStackId()))) {
+            return true;
+        }
+        heard = true;
+        System.out.println(StackEventPoll.format(stackName, event));
+        // Notifications can arrive out of order, so an older status does not
+        // replace a newer one
+        if (StackEventPoll.isAboutStack(event)) {
+            statuses.put(stackName, event.getResourceStatus());
+            lastEventTimes.put(event.getStackId(), event.getTimestamp());
+        }
+        return true;
+    }
+
+    /**
+     * Reads a notification, delivered either wrapped in an SNS envelope, as
+     * SNS delivers it to queues by default, or raw.
+     *
+     * @return The event it is about, or null if it is not about an event
+     */
+    static StackEvent parse(String body) {
+        String message = body;
+        try {
+            if (body.trim().startsWith("{")) {
+                message = Jackson.jsonNodeOf(body).get("Message").asText();
+            }
+        } catch (RuntimeException e) {
+            return null;
+        }
+        Map<String, String> fields = new HashMap<String, String>();
+        Matcher matcher = FIELD.matcher(message.trim());
+        while (matcher.find()) {
+            fields.put(matcher.group(1), matcher.group(2));
+        }
+        if (fields.get("StackId") == null
+                || fields.get("ResourceStatus") == null
+                || fields.get("Timestamp") == null) {
+            return null;
+        }
+        String reason = fields.get("ResourceStatusReason");
+        return new StackEvent().withStackId(fields.get("StackId"))
+                .withStackName(fields.get("StackName"))
+                .withEventId(fields.get("EventId"))
+                .withLogicalResourceId(fields.get("LogicalResourceId"))
+                .withPhysicalResourceId(fields.get("PhysicalResourceId"))
+                .withResourceType(fields.get("ResourceType"))
+                .withResourceStatus(fields.get("ResourceStatus"))
+                .withResourceStatusReason(
+                        reason == null || reason.isEmpty() ? null : reason)
+                .withTimestamp(
+                        DateUtils.parseISO8601Date(fields.get("Timestamp")));
+    }
+
+    /**
+     * @return When the latest operation on the stack started
+     */
+    private static Date operationStart(Stack stack) {
+        Date start = stack.getCreationTime();
+        if (stack.getLastUpdatedTime() != null
+                && (start == null || stack.getLastUpdatedTime().after(start))) {
+            start = stack.getLastUpdatedTime();
+        }
+        if (stack.getDeletionTime() != null
+                && (start == null || stack.getDeletionTime().after(start))) {
+            start = stack.getDeletionTime();
+        }
+        return start != null ? start : new Date(0);
+    }
+}
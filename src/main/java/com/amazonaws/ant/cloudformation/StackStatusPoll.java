@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ant.Waiter;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.Stack;
+
+/**
+ * Gets the statuses of a set of stacks with as few DescribeStacks calls as it
+ * can. Stacks that reached their target status are not described again. While
+ * more stacks are pending than the unfiltered listing of all stacks took pages
+ * the last time, the pending stacks are found in one paginated listing
+ * instead of being described one by one. Deleted stacks are left out of the
+ * listing, so pending stacks missing from it are described one by one.
+ */
+class StackStatusPoll implements Waiter.Poll<Map<String, String>> {
+
+    static final String DELETE_COMPLETE = "DELETE_COMPLETE";
+
+    private final AmazonCloudFormation client;
+    private final Map<String, String> targets;
+    private final Map<String, String> statuses = new LinkedHashMap<String, String>();
+    private int listingPages = 1;
+
+    /**
+     * @param targets
+     *            The status to wait for, by stack name
+     */
+    StackStatusPoll(AmazonCloudFormation client, Map<String, String> targets) {
+        this.client = client;
+        this.targets = targets;
+    }
+
+    public Map<String, String> poll() {
+        List<String> pending = new ArrayList<String>();
+        for (String stackName : targets.keySet()) {
+            if (!targets.get(stackName).equals(statuses.get(stackName))) {
+                pending.add(stackName);
+            }
+        }
+        if (pending.size() > listingPages) {
+            pending = describeAll(pending);
+        }
+        for (String stackName : pending) {
+            update(stackName, describe(stackName));
+        }
+        return Collections.unmodifiableMap(new LinkedHashMap<String, String>(
+                statuses));
+    }
+
+    /**
+     * Lists all stacks, and updates the status of the pending ones.
+     *
+     * @return The pending stacks missing from the listing
+     */
+    private List<String> describeAll(List<String> pending) {
+        List<String> missing = new ArrayList<String>(pending);
+        DescribeStacksRequest request = new DescribeStacksRequest();
+        int pages = 0;
+        do {
+            DescribeStacksResult result = client.describeStacks(request);
+            pages++;
+            for (Stack stack : result.getStacks()) {
+                if (missing.remove(stack.getStackName())) {
+                    update(stack.getStackName(), stack.getStackStatus());
+                }
+            }
+            request.setNextToken(result.getNextToken());
+        } while (request.getNextToken() != null);
+        listingPages = pages;
+        return missing;
+    }
+
+    private String describe(String stackName) {
+        Stack stack = describe(client, stackName, targets.get(stackName));
+        return stack == null ? DELETE_COMPLETE : stack.getStackStatus();
+    }
+
+    /**
+     * Describes a stack by name.
+     *
+     * @param target
+     *            The status waited for
+     * @return The stack, or null if it does not exist and DELETE_COMPLETE is
+     *         waited for
+     */
+    static Stack describe(AmazonCloudFormation client, String stackName,
+            String target) {
+        try {
+            return client
+                    .describeStacks(
+                            new DescribeStacksRequest()
+                                    .withStackName(stackName)).getStacks()
+                    .get(0);
+        } catch (AmazonServiceException e) {
+            // A deleted stack can no longer be described by name
+            if (DELETE_COMPLETE.equals(target) && e.getMessage() != null
+                    && e.getMessage().contains("does not exist")) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private void update(String stackName, String status) {
+        if (!status.equals(statuses.put(stackName, status))) {
+            System.out.println(stackName + " is in status " + status);
+        }
+    }
+}
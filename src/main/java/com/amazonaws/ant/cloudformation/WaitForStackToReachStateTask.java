@@ -1,111 +1,334 @@
-///*
-// * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
-// *
-// * Licensed under the Apache License, Version 2.0 (the "License").
-// * You may not use this file except in compliance with the License.
-// * A copy of the License is located at
-// *
-// *  http://aws.amazon.com/apache2.0
-// *
-// * or in the "license" file accompanying this file. This file is distributed
-// * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
-// * express or implied. See the License for the specific language governing
-// * permissions and limitations under the License.
-// */
-//package com.amazonaws.ant.cloudformation;
-//
-//import org.apache.tools.ant.BuildException;
-//
-//import com.amazonaws.ant.AWSAntTask;
-//import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
-//import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
-//
-//public class WaitForStackToReachStateTask extends AWSAntTask {
-//
-//    private static final String FAILED = "FAILED";
-//    private String stackName;
-//    private String status;
-//
-//    /**
-//     * Set the name of this stack. Required.
-//     * 
-//     * @param stackName
-//     *            The stack name
-//     */
-//    public void setStackName(String stackName) {
-//        this.stackName = stackName;
-//    }
-//
-//    /**
-//     * Set the status to wait for this stack to reach. Should not contain
-//     * "FAILED"
-//     * 
-//     * @param status
-//     *            The status to wait for this stack to reach.
-//     */
-//    public void setStatus(String status) {
-//        this.status = status;
-//    }
-//
-//    /**
-//     * Waits for the specified stack to reach the specified status. Returns true
-//     * if it does, returns false if it reaches a status with "FAILED", or if 30
-//     * minutes pass without reaching the desired status.
-//     */
-//    private void checkParams() {
-//        boolean areMissingParams = false;
-//        StringBuilder errors = new StringBuilder("");
-//
-//        if (stackName == null) {
-//            areMissingParams = true;
-//            errors.append("Missing parameter: stackName is required \n");
-//        }
-//
-//        if (status == null) {
-//            areMissingParams = true;
-//            errors.append("Missing parameter: stackName is required \n");
-//        }
-//
-//        if (areMissingParams) {
-//            throw new BuildException(errors.toString());
-//        }
-//    }
-//
-//    public void execute() {
-//        checkParams();
-//        AmazonCloudFormationClient client = getOrCreateClient(AmazonCloudFormationClient.class);
-//        if (!waitForCloudFormationStackToReachStatus(client, stackName, status)) {
-//            throw new BuildException("The stack update or creation failed");
-//        }
-//    }
-//
-//    public static boolean waitForCloudFormationStackToReachStatus(
-//            AmazonCloudFormationClient client, String stackName, String status) {
-//        int count = 0;
-//        while (true) {
-//            if (count++ == 100) {
-//                System.out
-//                        .println(stackName + " never reached state " + status);
-//                return false;
-//            }
-//            try {
-//                Thread.sleep(1000 * 30);
-//            } catch (InterruptedException e) {
-//                System.out.println(e.getMessage());
-//                return false;
-//            }
-//            String stackStatus = client
-//                    .describeStacks(
-//                            new DescribeStacksRequest()
-//                                    .withStackName(stackName)).getStacks()
-//                    .get(0).getStackStatus();
-//            if (stackStatus.equals(status)) {
-//                return true;
-//            } else if (stackStatus.contains(FAILED)) {
-//                System.out.println("The process failed with status " + stackStatus);
-//                return false;
-//            }
-//            System.out.println(stackName + " is in status " + stackStatus);
-//        }
-//    }
-//}
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.Waiter;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+
+public class WaitForStackToReachStateTask extends AWSAntTask {
+
+    private static final String FAILED = "FAILED";
+    private static final String ROLLBACK_COMPLETE = "ROLLBACK_COMPLETE";
+    private static final int DEFAULT_TIMEOUT_IN_MINUTES = 50;
+    private String stackName;
+    private String status;
+    private List<StackStatus> stacks = new LinkedList<StackStatus>();
+    private int timeoutInMinutes = DEFAULT_TIMEOUT_IN_MINUTES;
+    private boolean streamEvents = true;
+    private boolean useNotifications;
+    private String queueName;
+    private int notificationFallbackInSeconds = 60;
+
+    /**
+     * Set the name of this stack. Required, unless stacks are nested.
+     *
+     * @param stackName
+     *            The stack name
+     */
+    public void setStackName(String stackName) {
+        this.stackName = stackName;
+    }
+
+    /**
+     * Set the status to wait for this stack to reach. Should not contain
+     * "FAILED"
+     *
+     * @param status
+     *            The status to wait for this stack to reach.
+     */
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    /**
+     * Allows you to add any number of nested preconfigured StackStatus
+     * elements, to wait for several stacks at once.
+     *
+     * @param stack
+     *            A preconfigured StackStatus object.
+     */
+    public void addConfiguredStack(StackStatus stack) {
+        stacks.add(stack);
+    }
+
+    /**
+     * Set how long to wait for the stacks to reach their statuses. Not
+     * required, default is 50.
+     *
+     * @param timeoutInMinutes
+     *            The most minutes to wait
+     */
+    public void setTimeoutInMinutes(int timeoutInMinutes) {
+        this.timeoutInMinutes = timeoutInMinutes;
+    }
+
+    /**
+     * Set whether to follow the events of the stacks, printing the progress of
+     * every resource, rather than only their statuses. Following statuses
+     * only takes fewer calls when many stacks are waited for. Not required,
+     * default is true.
+     *
+     * @param streamEvents
+     *            Whether to follow the events of the stacks
+     */
+    public void setStreamEvents(boolean streamEvents) {
+        this.streamEvents = streamEvents;
+    }
+
+    /**
+     * Set whether to learn the statuses of the stacks from the notifications
+     * published to their SNS topics, through an SQS queue, rather than by
+     * polling them. Stacks are polled if a stack has no topic or the queue
+     * cannot be set up. Not required, default is false.
+     *
+     * @param useNotifications
+     *            Whether to receive the notifications of the stacks
+     */
+    public void setUseNotifications(boolean useNotifications) {
+        this.useNotifications = useNotifications;
+    }
+
+    /**
+     * Set the name of the SQS queue notifications are received on, which is
+     * created if it does not exist and kept after the wait. Not required,
+     * default is a queue created for this wait only and deleted after it.
+     *
+     * @param queueName
+     *            The name of the queue
+     */
+    public void setQueueName(String queueName) {
+        this.queueName = queueName;
+    }
+
+    /**
+     * Set how long to go without notifications before the stacks are polled.
+     * Not required, default is 60.
+     *
+     * @param notificationFallbackInSeconds
+     *            The most seconds to wait for a notification
+     */
+    public void setNotificationFallbackInSeconds(
+            int notificationFallbackInSeconds) {
+        this.notificationFallbackInSeconds = notificationFallbackInSeconds;
+    }
+
+    private void checkParams() {
+        boolean areMissingParams = false;
+        StringBuilder errors = new StringBuilder("");
+
+        if (stackName == null && status != null) {
+            areMissingParams = true;
+            errors.append("Missing parameter: stackName is required \n");
+        }
+
+        if (status == null && (stackName != null || stacks.isEmpty())) {
+            areMissingParams = true;
+            errors.append("Missing parameter: status is required \n");
+        }
+
+        if (stackName == null && stacks.isEmpty()) {
+            areMissingParams = true;
+            errors.append("Missing parameter: stackName or a nested stack is required \n");
+        }
+
+        for (StackStatus stack : stacks) {
+            if (stack.getName() == null || stack.getStatus() == null) {
+                areMissingParams = true;
+                errors.append("Missing parameter: name and status are required for every nested stack \n");
+                break;
+            }
+        }
+
+        if (areMissingParams) {
+            throw new BuildException(errors.toString());
+        }
+    }
+
+    public void execute() {
+        checkParams();
+        Map<String, String> targets = new LinkedHashMap<String, String>();
+        if (stackName != null) {
+            targets.put(stackName, status);
+        }
+        for (StackStatus stack : stacks) {
+            targets.put(stack.getName(), stack.getStatus());
+        }
+        AmazonCloudFormationClient client = getOrCreateClient(AmazonCloudFormationClient.class);
+        long timeoutInMs = timeoutInMinutes * 60 * 1000L;
+        if (useNotifications) {
+            final StackNotificationPoll poll = new StackNotificationPoll(
+                    client, targets, getOrCreateClient(AmazonSNSClient.class),
+                    getOrCreateClient(AmazonSQSClient.class), queueName,
+                    notificationFallbackInSeconds * 1000L);
+            if (poll.subscribe()) {
+                try {
+                    // Every poll waits on the queue, so there is little to
+                    // wait between them
+                    newWaiter(targets, poll,
+                            new Waiter.Condition<Map<String, String>>() {
+                                public boolean isMet(
+                                        Map<String, String> statuses) {
+                                    return poll.hadNotifications();
+                                }
+                            }).withDelays(10, 1000)
+                            .withTimeoutInMs(timeoutInMs).run();
+                } finally {
+                    poll.close();
+                }
+                return;
+            }
+        }
+        newWaiter(client, targets, timeoutInMs, streamEvents).run();
+    }
+
+    /**
+     * Waits for the specified stack to reach the specified status, printing its
+     * events. Returns true if it does, returns false if it reaches a status
+     * with "FAILED", rolls back, is deleted, or if 50 minutes pass without
+     * reaching the desired status.
+     */
+    public static boolean waitForCloudFormationStackToReachStatus(
+            AmazonCloudFormation client, String stackName, String status) {
+        try {
+            newWaiter(client, stackName, status,
+                    DEFAULT_TIMEOUT_IN_MINUTES * 60 * 1000L).run();
+            return true;
+        } catch (BuildException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Returns a waiter for the specified stack to reach the specified status,
+     * which prints the events of the stack and fails if the stack reaches a
+     * status with "FAILED", rolls back or is deleted instead.
+     */
+    public static Waiter<Map<String, String>> newWaiter(
+            AmazonCloudFormation client, String stackName, String status,
+            long timeoutInMs) {
+        Map<String, String> targets = new LinkedHashMap<String, String>();
+        targets.put(stackName, status);
+        return newWaiter(client, targets, timeoutInMs, true);
+    }
+
+    /**
+     * Returns a waiter for every specified stack to reach its status, which
+     * fails as soon as any of them reaches a status with "FAILED", rolls back
+     * or is deleted instead. The state waited on is the last known status of
+     * every stack. When following events, polls are more frequent while new
+     * events arrive, and back off while none do.
+     *
+     * @param targets
+     *            The status to wait for, by stack name
+     * @param streamEvents
+     *            Whether to follow the events of the stacks, rather than only
+     *            their statuses
+     */
+    public static Waiter<Map<String, String>> newWaiter(
+            AmazonCloudFormation client, final Map<String, String> targets,
+            long timeoutInMs, boolean streamEvents) {
+        Waiter.Poll<Map<String, String>> poll;
+        Waiter.Condition<Map<String, String>> progress = null;
+        if (streamEvents) {
+            final StackEventPoll eventPoll = new StackEventPoll(client, targets);
+            poll = eventPoll;
+            progress = new Waiter.Condition<Map<String, String>>() {
+                public boolean isMet(Map<String, String> statuses) {
+                    return eventPoll.hadNewEvents();
+                }
+            };
+        } else {
+            poll = new StackStatusPoll(client, targets);
+        }
+        return newWaiter(targets, poll, progress).withDelays(2000, 30 * 1000L)
+                .withTimeoutInMs(timeoutInMs);
+    }
+
+    private static Waiter<Map<String, String>> newWaiter(
+            final Map<String, String> targets,
+            Waiter.Poll<Map<String, String>> poll,
+            Waiter.Condition<Map<String, String>> progress) {
+        String description = targets.size() == 1 ? targets.keySet()
+                .iterator().next()
+                + " to reach " + targets.values().iterator().next()
+                : targets.size() + " stacks to reach their statuses";
+        return new Waiter<Map<String, String>>(description, poll,
+                new Waiter.Condition<Map<String, String>>() {
+                    public boolean isMet(Map<String, String> statuses) {
+                        return statuses.equals(targets);
+                    }
+                }).withFailure(new Waiter.Condition<Map<String, String>>() {
+            public boolean isMet(Map<String, String> statuses) {
+                for (Map.Entry<String, String> stack : statuses.entrySet()) {
+                    if (isFailed(stack.getValue())
+                            && !stack.getValue().equals(
+                                    targets.get(stack.getKey()))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }).withProgress(progress);
+    }
+
+    private static boolean isFailed(String stackStatus) {
+        return stackStatus.contains(FAILED)
+                || stackStatus.endsWith(ROLLBACK_COMPLETE)
+                || stackStatus.equals(StackStatusPoll.DELETE_COMPLETE);
+    }
+
+    /**
+     * Nested element for specifying a stack to wait for, and the status to
+     * wait for it to reach.
+     */
+    public static class StackStatus {
+        private String name;
+        private String status;
+
+        /**
+         * Set the name of the stack. Required.
+         */
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Set the status to wait for the stack to reach. Required.
+         */
+        public void setStatus(String status) {
+            this.status = status;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import org.apache.tools.ant.TaskContainer;
 import org.apache.tools.ant.UnknownElement;
 
 import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.Waiter;
 import com.amazonaws.services.opsworks.AWSOpsWorksClient;
 import com.amazonaws.services.opsworks.model.Deployment;
 import com.amazonaws.services.opsworks.model.DescribeDeploymentsRequest;
@@ -62,6 +63,7 @@ public class IncrementalDeploymentTask extends AWSAntTask {
      * first group to succeed in order to deploy, etc.
      */
     public static class DeploymentGroup implements TaskContainer {
+        private static final long DEPLOYMENT_TIMEOUT_IN_MS = 1000 * 10 * 100;
         private List<Task> deployAppTasks = new LinkedList<Task>();
         private Set<String> deploymentIds = new HashSet<String>();
         private AWSOpsWorksClient client;
@@ -119,11 +121,7 @@ public class IncrementalDeploymentTask extends AWSAntTask {
                 deploymentIds.add(deployAppTask.getDescription());
             }
 
-            try {
-                waitForDeploymentGroupToSucceed(deploymentIds, client);
-            } catch (InterruptedException e) {
-                throw new BuildException(e.getMessage(), e);
-            }
+            waitForDeploymentGroupToSucceed(deploymentIds, client);
         }
 
         /**
@@ -133,39 +131,41 @@ public class IncrementalDeploymentTask extends AWSAntTask {
          *            The set of the IDs of the deployments in the group
          * @param client
          *            The client to use to access AWSOpsWorks
-         * @throws InterruptedException
-         *             If the thread is interrupted
+         * @throws BuildException
+         *             If a deployment fails, the wait times out or the thread
+         *             is interrupted
          */
-        public void waitForDeploymentGroupToSucceed(Set<String> deploymentIds,
-                AWSOpsWorksClient client) throws InterruptedException {
-            int count = 0;
-            while (true) {
-                if (deploymentIds.isEmpty()) {
-                    return;
-                }
-
-                Thread.sleep(1000 * 10);
-                if (count++ > 100) {
-                    throw new BuildException(
-                            "Deployment never failed or succeeded");
-                }
-
-                List<Deployment> deployments = client.describeDeployments(
-                        new DescribeDeploymentsRequest()
-                                .withDeploymentIds(deploymentIds))
-                        .getDeployments();
-                for (Deployment deployment : deployments) {
-                    String status = deployment.getStatus();
-                    System.out.println(deployment.getDeploymentId() + " : "
-                            + status);
-                    if (status.equalsIgnoreCase("failed")) {
-                        throw new BuildException("Deployment "
-                                + deployment.getDeploymentId() + " failed");
-                    } else if (status.equalsIgnoreCase("successful")) {
-                        deploymentIds.remove(deployment.getDeploymentId());
+        public void waitForDeploymentGroupToSucceed(
+                final Set<String> deploymentIds, final AWSOpsWorksClient client) {
+            new Waiter<Set<String>>("deployments " + deploymentIds
+                    + " to succeed", new Waiter.Poll<Set<String>>() {
+                public Set<String> poll() {
+                    if (deploymentIds.isEmpty()) {
+                        return deploymentIds;
+                    }
+                    List<Deployment> deployments = client.describeDeployments(
+                            new DescribeDeploymentsRequest()
+                                    .withDeploymentIds(deploymentIds))
+                            .getDeployments();
+                    for (Deployment deployment : deployments) {
+                        String status = deployment.getStatus();
+                        System.out.println(deployment.getDeploymentId() + " : "
+                                + status);
+                        if (status.equalsIgnoreCase("failed")) {
+                            throw new BuildException("Deployment "
+                                    + deployment.getDeploymentId() + " failed");
+                        } else if (status.equalsIgnoreCase("successful")) {
+                            deploymentIds.remove(deployment.getDeploymentId());
+                        }
                     }
+                    return deploymentIds;
                 }
-            }
+            }, new Waiter.Condition<Set<String>>() {
+                public boolean isMet(Set<String> remaining) {
+                    return remaining.isEmpty();
+                }
+            }).withDelays(2000, 10 * 1000L)
+                    .withTimeoutInMs(DEPLOYMENT_TIMEOUT_IN_MS).run();
         }
     }
 
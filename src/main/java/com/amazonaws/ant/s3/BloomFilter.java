@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.amazonaws.util.Md5Utils;
+import com.amazonaws.util.StringUtils;
+
+/**
+ * A Bloom filter of strings. It never says a string it was given is absent,
+ * and says a string it wasn't given is present with a probability close to the
+ * one it was sized for, as long as it holds no more strings than its
+ * capacity.
+ */
+public class BloomFilter {
+
+    private final long[] words;
+    private final long bitCount;
+    private final int hashCount;
+    private final int capacity;
+    private long size;
+
+    /**
+     * @param capacity
+     *            The number of strings the filter is sized for
+     * @param falsePositiveRate
+     *            The rate of false positives once it holds that many strings,
+     *            e.g. 0.01
+     */
+    public BloomFilter(int capacity, double falsePositiveRate) {
+        this.capacity = Math.max(1, capacity);
+        long bits = (long) Math.ceil(-this.capacity
+                * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.words = new long[(int) ((Math.max(64, bits) + 63) / 64)];
+        this.bitCount = words.length * 64L;
+        this.hashCount = Math.max(1,
+                (int) Math.round((double) bitCount / this.capacity * Math.log(2)));
+    }
+
+    private BloomFilter(long[] words, int hashCount, int capacity, long size) {
+        this.words = words;
+        this.bitCount = words.length * 64L;
+        this.hashCount = hashCount;
+        this.capacity = capacity;
+        this.size = size;
+    }
+
+    public void add(String value) {
+        long[] hashes = hash(value);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = index(hashes, i);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        size++;
+    }
+
+    /**
+     * @return False if the value was never added, true if it probably was
+     */
+    public boolean mightContain(String value) {
+        long[] hashes = hash(value);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = index(hashes, i);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of values added, counting duplicates
+     */
+    public long size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The size of the filter in bytes
+     */
+    public int getSizeInBytes() {
+        return words.length * 8;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(capacity);
+        out.writeInt(hashCount);
+        out.writeLong(size);
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    public static BloomFilter readFrom(DataInputStream in) throws IOException {
+        int capacity = in.readInt();
+        int hashCount = in.readInt();
+        long size = in.readLong();
+        long[] words = new long[in.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+        return new BloomFilter(words, hashCount, capacity, size);
+    }
+
+    /**
+     * Derives every bit index from two 64 bit hashes, which is as good as
+     * independent hash functions.
+     */
+    private long index(long[] hashes, int i) {
+        long combined = hashes[0] + i * hashes[1];
+        return (combined & Long.MAX_VALUE) % bitCount;
+    }
+
+    private static long[] hash(String value) {
+        byte[] md5 = Md5Utils.computeMD5Hash(value.getBytes(StringUtils.UTF8));
+        long first = 0;
+        long second = 0;
+        for (int i = 0; i < 8; i++) {
+            first = (first << 8) | (md5[i] & 0xff);
+            second = (second << 8) | (md5[i + 8] & 0xff);
+        }
+        return new long[] { first, second };
+    }
+}
@@ -1,26 +1,37 @@
 package com.amazonaws.ant.s3;
 
 import com.amazonaws.ant.AWSTask;
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.cloudfront.AmazonCloudFront;
 import com.amazonaws.services.cloudfront.AmazonCloudFrontClient;
-import com.amazonaws.services.cloudfront.model.CreateInvalidationRequest;
-import com.amazonaws.services.cloudfront.model.CreateInvalidationResult;
-import com.amazonaws.services.cloudfront.model.InvalidationBatch;
-import com.amazonaws.services.cloudfront.model.Paths;
 import org.apache.tools.ant.BuildException;
 
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 public class CloudFront extends AWSTask {
     private String distibutionId;
     private String pathsString = "\0";
     boolean fail = false;
+    private String bucketName;
+    private String originPath = "";
+    private int wildcardThreshold = 10;
+    private int maxPaths = 0;
+    private int maxPathsPerInvalidation = CloudFrontInvalidator.MAX_PATHS_IN_PROGRESS;
+    private boolean waitForCompletion = false;
+    private long pollIntervalInMs = 5000;
+    private int timeoutInMinutes = 30;
+    private String latencyProperty;
+    private boolean coalesce = false;
 
     Vector<Delete> delete = new Vector<Delete>();
 
+    /**
+     * Set the ID of the distribution, or the IDs of several distributions
+     * separated by commas, which are invalidated concurrently. Required.
+     */
     public void setDistributionId(String distributionId) {
         this.distibutionId = distributionId;
     }
@@ -33,52 +44,193 @@ public class CloudFront extends AWSTask {
         fail = b;
     }
 
-    public void execute() {
-        if (fail) throw new BuildException("Fail requested.");
+    /**
+     * Set the bucket whose keys uploaded or deleted earlier in the build are
+     * invalidated, in addition to any paths given. Not required, default is
+     * none. If set and nothing changed, no invalidation is created.
+     */
+    public void setBucketName(String bucketName) {
+        this.bucketName = bucketName;
+    }
 
-        log("Executing invalidation for key : " + this.getKey() + " on distribution id: " + this.distibutionId);
+    /**
+     * Set the origin path of the distribution, such as "/production". Not
+     * required, default is none. It is removed from the changed keys, and
+     * keys outside of it are not invalidated.
+     */
+    public void setOriginPath(String originPath) {
+        this.originPath = originPath;
+    }
 
-        AmazonCloudFront front = new AmazonCloudFrontClient(getCredentials());
+    /**
+     * Set the number of changed paths under a directory above which the
+     * directory is invalidated with a wildcard. Not required, default is 10.
+     */
+    public void setWildcardThreshold(int wildcardThreshold) {
+        this.wildcardThreshold = wildcardThreshold;
+    }
 
-        CreateInvalidationRequest invalidationRequest = new CreateInvalidationRequest();
-        invalidationRequest.setDistributionId(distibutionId);
+    /**
+     * Set the most paths to invalidate for the changed keys. Not required,
+     * default is 0, for no limit. The deepest directories are invalidated
+     * with wildcards until the paths fit.
+     */
+    public void setMaxPaths(int maxPaths) {
+        this.maxPaths = maxPaths;
+    }
 
-        InvalidationBatch invalidationBatch = new InvalidationBatch();
+    /**
+     * Set the most paths in one invalidation. Not required, default is 3000,
+     * the most paths CloudFront allows in progress for a distribution. More
+     * paths are split into several invalidations, each created once the
+     * earlier ones leave room.
+     */
+    public void setMaxPathsPerInvalidation(int maxPathsPerInvalidation) {
+        this.maxPathsPerInvalidation = maxPathsPerInvalidation;
+    }
 
-        Collection<String> paths = new Vector<String>();
-        int pathsSize;
-        int i;
-        String path;
+    /**
+     * Set whether to wait for the invalidations to complete. Not required,
+     * default is false.
+     */
+    public void setWaitForCompletion(boolean waitForCompletion) {
+        this.waitForCompletion = waitForCompletion;
+    }
+
+    /**
+     * Set the first delay before checking again whether invalidations have
+     * completed, or retrying one refused because too many are in progress.
+     * Not required, default is 5000. The delay doubles every time, up to a
+     * minute.
+     */
+    public void setPollIntervalInMs(long pollIntervalInMs) {
+        this.pollIntervalInMs = pollIntervalInMs;
+    }
+
+    /**
+     * Set how long to keep retrying or waiting for the invalidations of a
+     * distribution. Not required, default is 30.
+     */
+    public void setTimeoutInMinutes(int timeoutInMinutes) {
+        this.timeoutInMinutes = timeoutInMinutes;
+    }
+
+    /**
+     * Set the property to store the time the invalidations took in, in
+     * milliseconds, until they completed if waitForCompletion is true. Not
+     * required, default is none.
+     */
+    public void setLatencyProperty(String latencyProperty) {
+        this.latencyProperty = latencyProperty;
+    }
+
+    /**
+     * Set whether to defer the invalidation, so it is merged with the other
+     * deferred invalidations of the build. Not required, default is false.
+     * If true, the paths are invalidated at the next cloudfront-flush task,
+     * or when the build finishes.
+     */
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    public void execute() {
+        if (fail) throw new BuildException("Fail requested.");
+        if (distibutionId == null) {
+            throw new BuildException("Missing parameter: distributionId is required");
+        }
 
+        log("Executing invalidation for key : " + this.getKey() + " on distribution id: " + this.distibutionId);
+
+        List<String> paths = new ArrayList<String>();
         if (pathsString != "\0") {
-            String[] parts = pathsString.split(",");
-            pathsSize = parts.length;
-            for (i = 0; i < pathsSize; i++) {
-                path = parts[i];
+            for (String path : pathsString.split(",")) {
                 log("Invalidation for path: " + path);
                 paths.add(path);
             }
         } else {
-            pathsSize = this.delete.size();
-            for (i = 0; i < pathsSize; i++) {
-                path = this.delete.get(i).getPath();
-                log("Invalidation for path: " + this.delete.get(i).getPath());
-                paths.add(path);
+            for (Delete path : this.delete) {
+                log("Invalidation for path: " + path.getPath());
+                paths.add(path.getPath());
             }
         }
+        if (bucketName != null) {
+            List<String> changedPaths = getChangedPaths();
+            for (String changedPath : changedPaths) {
+                log("Invalidation for changed path: " + changedPath);
+            }
+            paths.addAll(changedPaths);
+        }
+        if (paths.isEmpty()) {
+            log("Nothing to invalidate on distribution id: " + this.distibutionId);
+            return;
+        }
 
-        log("complete creating paths list total item to invalidate: " + pathsSize);
+        log("complete creating paths list total item to invalidate: " + paths.size());
+
+        // Several distributions, such as one per environment, are
+        // invalidated concurrently
+        Map<String, List<String>> pathsByDistribution = new LinkedHashMap<String, List<String>>();
+        for (String distributionId : distibutionId.split(",")) {
+            if (distributionId.trim().length() > 0) {
+                pathsByDistribution.put(distributionId.trim(), paths);
+            }
+        }
 
-        Paths pathsList = new Paths().withItems(paths);
-        pathsList.setQuantity(pathsSize);
+        CloudFrontInvalidator invalidator = new CloudFrontInvalidator(
+                createClient(), maxPathsPerInvalidation, pollIntervalInMs,
+                timeoutInMinutes * 60 * 1000L);
+        if (coalesce) {
+            CloudFrontInvalidations.register(getProject(), invalidator,
+                    pathsByDistribution.keySet(), paths);
+            log("Deferred the invalidation of " + paths.size() + " paths");
+            return;
+        }
 
-        invalidationBatch.setPaths(pathsList);
-        invalidationBatch.setCallerReference(distibutionId + String.valueOf((int) System.currentTimeMillis() / 1000));
-        invalidationRequest.setInvalidationBatch(invalidationBatch);
+        long start = System.currentTimeMillis();
+        try {
+            Map<String, List<String>> invalidationIds = invalidator.invalidate(
+                    pathsByDistribution, waitForCompletion);
+            log("Invalidations created: " + invalidationIds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while invalidating", e);
+        } catch (Exception e) {
+            throw new BuildException("Invalidation failed: " + e.getMessage(), e);
+        }
+        long latency = System.currentTimeMillis() - start;
+        log("Invalidation took " + latency + " ms");
+        if (latencyProperty != null) {
+            addProperty(latencyProperty, String.valueOf(latency));
+        }
+    }
 
-        CreateInvalidationResult result = front.createInvalidation(invalidationRequest);
+    protected AmazonCloudFront createClient() {
+        return getOrCreateClient(AmazonCloudFrontClient.class);
+    }
 
-        log("Invalidation result: " + result.getInvalidation().getStatus());
+    /**
+     * @return The fewest paths that invalidate the keys of the bucket changed
+     *         in the build, with wildcards for directories with many changes
+     */
+    private List<String> getChangedPaths() {
+        String prefix = originPath;
+        while (prefix.startsWith("/")) {
+            prefix = prefix.substring(1);
+        }
+        if (prefix.length() > 0 && !prefix.endsWith("/")) {
+            prefix += "/";
+        }
+        CloudFrontPathTrie trie = new CloudFrontPathTrie();
+        for (String key : S3ChangeSets.get(getProject(), bucketName)) {
+            if (key.startsWith(prefix)) {
+                trie.add(key.substring(prefix.length()));
+            }
+        }
+        List<String> changedPaths = trie.collapse(wildcardThreshold, maxPaths);
+        log(trie.size() + " keys of " + bucketName + " changed, invalidating "
+                + changedPaths.size() + " paths");
+        return changedPaths;
     }
 
     public Delete createDelete() {
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.ant.AWSTask;
+import com.amazonaws.services.cloudfront.AmazonCloudFront;
+import com.amazonaws.services.cloudfront.AmazonCloudFrontClient;
+
+/**
+ * Ant Task for creating the CloudFront invalidations deferred by cloudfront
+ * tasks with coalesce set, merged per distribution.
+ */
+public class CloudFrontFlushTask extends AWSTask {
+    private int maxPathsPerInvalidation = CloudFrontInvalidator.MAX_PATHS_IN_PROGRESS;
+    private boolean waitForCompletion = false;
+    private long pollIntervalInMs = 5000;
+    private int timeoutInMinutes = 30;
+    private String latencyProperty;
+
+    /**
+     * Set the most paths in one invalidation. Not required, default is 3000.
+     */
+    public void setMaxPathsPerInvalidation(int maxPathsPerInvalidation) {
+        this.maxPathsPerInvalidation = maxPathsPerInvalidation;
+    }
+
+    /**
+     * Set whether to wait for the invalidations to complete. Not required,
+     * default is false.
+     */
+    public void setWaitForCompletion(boolean waitForCompletion) {
+        this.waitForCompletion = waitForCompletion;
+    }
+
+    /**
+     * Set the first delay before checking again whether invalidations have
+     * completed. Not required, default is 5000.
+     */
+    public void setPollIntervalInMs(long pollIntervalInMs) {
+        this.pollIntervalInMs = pollIntervalInMs;
+    }
+
+    /**
+     * Set how long to keep retrying or waiting for the invalidations of a
+     * distribution. Not required, default is 30.
+     */
+    public void setTimeoutInMinutes(int timeoutInMinutes) {
+        this.timeoutInMinutes = timeoutInMinutes;
+    }
+
+    /**
+     * Set the property to store the time the invalidations took in, in
+     * milliseconds. Not required, default is none.
+     */
+    public void setLatencyProperty(String latencyProperty) {
+        this.latencyProperty = latencyProperty;
+    }
+
+    /**
+     * Creates the deferred invalidations
+     */
+    @Override
+    public void execute() {
+        long start = System.currentTimeMillis();
+        Map<String, List<String>> invalidationIds;
+        try {
+            invalidationIds = CloudFrontInvalidations.flush(getProject(),
+                    new CloudFrontInvalidator(createClient(),
+                            maxPathsPerInvalidation, pollIntervalInMs,
+                            timeoutInMinutes * 60 * 1000L), waitForCompletion);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while invalidating", e);
+        } catch (Exception e) {
+            throw new BuildException("Invalidation failed: " + e.getMessage(), e);
+        }
+        if (invalidationIds.isEmpty()) {
+            log("No deferred invalidations");
+            return;
+        }
+        long latency = System.currentTimeMillis() - start;
+        log("Invalidations created: " + invalidationIds + " in " + latency
+                + " ms");
+        if (latencyProperty != null) {
+            addProperty(latencyProperty, String.valueOf(latency));
+        }
+    }
+
+    protected AmazonCloudFront createClient() {
+        return getOrCreateClient(AmazonCloudFrontClient.class);
+    }
+}
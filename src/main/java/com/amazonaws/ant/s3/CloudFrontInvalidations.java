@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+
+import com.amazonaws.ant.AWSClientFactory;
+
+/**
+ * The CloudFront invalidations deferred by the tasks of a build. The paths
+ * registered for a distribution are merged, so a build that uploads in several
+ * steps creates one set of invalidations per distribution instead of one per
+ * step: duplicate paths are sent once, and paths a wildcard covers are not
+ * sent at all. The invalidations are created at an explicit flush, or when
+ * the build finishes.
+ */
+public class CloudFrontInvalidations implements BuildListener {
+
+    private static final String REFERENCE = "cloudFrontInvalidations";
+
+    private final Project project;
+    private final Map<String, Set<String>> pathsByDistribution = new LinkedHashMap<String, Set<String>>();
+    private CloudFrontInvalidator invalidator;
+    private int registrations;
+
+    private CloudFrontInvalidations(Project project) {
+        this.project = project;
+    }
+
+    /**
+     * Defers the invalidation of the paths of the distributions.
+     *
+     * @param invalidator
+     *            Creates the invalidations if the build finishes before an
+     *            explicit flush. The one registered last is used.
+     */
+    public static void register(Project project,
+            CloudFrontInvalidator invalidator,
+            Collection<String> distributionIds, Collection<String> paths) {
+        CloudFrontInvalidations invalidations = get(project);
+        synchronized (invalidations) {
+            for (String distributionId : distributionIds) {
+                Set<String> registered = invalidations.pathsByDistribution
+                        .get(distributionId);
+                if (registered == null) {
+                    registered = new LinkedHashSet<String>();
+                    invalidations.pathsByDistribution.put(distributionId,
+                            registered);
+                }
+                registered.addAll(paths);
+            }
+            invalidations.invalidator = invalidator;
+            invalidations.registrations++;
+        }
+    }
+
+    /**
+     * Creates the deferred invalidations, and forgets them.
+     *
+     * @param invalidator
+     *            Creates the invalidations, or null for the one registered
+     *            last
+     * @return The IDs of the invalidations created, by distribution ID
+     */
+    public static Map<String, List<String>> flush(Project project,
+            CloudFrontInvalidator invalidator, boolean waitForCompletion)
+            throws Exception {
+        CloudFrontInvalidations invalidations = get(project);
+        Map<String, List<String>> merged = new LinkedHashMap<String, List<String>>();
+        int registrations;
+        synchronized (invalidations) {
+            for (Map.Entry<String, Set<String>> entry : invalidations.pathsByDistribution
+                    .entrySet()) {
+                merged.put(entry.getKey(), merge(entry.getValue()));
+            }
+            if (invalidator == null) {
+                invalidator = invalidations.invalidator;
+            }
+            registrations = invalidations.registrations;
+            invalidations.pathsByDistribution.clear();
+            invalidations.registrations = 0;
+        }
+        if (merged.isEmpty()) {
+            return new LinkedHashMap<String, List<String>>();
+        }
+        int paths = 0;
+        for (List<String> distributionPaths : merged.values()) {
+            paths += distributionPaths.size();
+        }
+        System.out.println("Coalesced " + registrations
+                + " invalidation requests into " + paths + " paths on "
+                + merged.size() + " distributions");
+        return invalidator.invalidate(merged, waitForCompletion);
+    }
+
+    /**
+     * @return The paths without duplicates and without the paths covered by a
+     *         wildcard, such as "/css/site.css" by "/css/*", in order
+     */
+    static List<String> merge(Collection<String> paths) {
+        List<String> sorted = new ArrayList<String>(new LinkedHashSet<String>(
+                paths));
+        // A wildcard sorts right before the paths it covers
+        Collections.sort(sorted, new Comparator<String>() {
+            public int compare(String left, String right) {
+                int byPrefix = prefixOf(left).compareTo(prefixOf(right));
+                if (byPrefix != 0) {
+                    return byPrefix;
+                }
+                return Boolean.compare(!left.endsWith("*"),
+                        !right.endsWith("*"));
+            }
+        });
+        List<String> merged = new ArrayList<String>();
+        String wildcardPrefix = null;
+        for (String path : sorted) {
+            if (wildcardPrefix != null && path.startsWith(wildcardPrefix)) {
+                continue;
+            }
+            merged.add(path);
+            if (path.endsWith("*")) {
+                wildcardPrefix = prefixOf(path);
+            }
+        }
+        return merged;
+    }
+
+    private static String prefixOf(String path) {
+        return path.endsWith("*") ? path.substring(0, path.length() - 1)
+                : path;
+    }
+
+    private static CloudFrontInvalidations get(Project project) {
+        synchronized (project) {
+            CloudFrontInvalidations invalidations = (CloudFrontInvalidations) project
+                    .getReference(REFERENCE);
+            if (invalidations == null) {
+                invalidations = new CloudFrontInvalidations(project);
+                project.addReference(REFERENCE, invalidations);
+                // Told before the clients it invalidates with are shut down
+                AWSClientFactory.get(project).addBuildFinishedListener(
+                        invalidations);
+            }
+            return invalidations;
+        }
+    }
+
+    /**
+     * Creates the invalidations still deferred when the build finishes, even
+     * if it failed, since the objects uploaded before the failure changed.
+     */
+    public void buildFinished(BuildEvent event) {
+        try {
+            flush(project, null, false);
+        } catch (Exception e) {
+            System.err.println("Failed to create the deferred invalidations: "
+                    + e);
+        }
+    }
+
+    public void buildStarted(BuildEvent event) {
+    }
+
+    public void targetStarted(BuildEvent event) {
+    }
+
+    public void targetFinished(BuildEvent event) {
+    }
+
+    public void taskStarted(BuildEvent event) {
+    }
+
+    public void taskFinished(BuildEvent event) {
+    }
+
+    public void messageLogged(BuildEvent event) {
+    }
+}
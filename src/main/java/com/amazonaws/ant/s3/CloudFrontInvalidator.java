@@ -0,0 +1,230 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.amazonaws.services.cloudfront.AmazonCloudFront;
+import com.amazonaws.services.cloudfront.model.CreateInvalidationRequest;
+import com.amazonaws.services.cloudfront.model.GetInvalidationRequest;
+import com.amazonaws.services.cloudfront.model.InvalidationBatch;
+import com.amazonaws.services.cloudfront.model.Paths;
+import com.amazonaws.services.cloudfront.model.TooManyInvalidationsInProgressException;
+
+/**
+ * Invalidates paths of several CloudFront distributions at the same time.
+ * <p>
+ * CloudFront limits how many paths, and how many of them wildcards, can be in
+ * progress for a distribution. The paths are split into invalidations within
+ * those limits, and an invalidation refused because too many are in progress
+ * is retried with a growing delay, until the earlier ones have completed.
+ */
+public class CloudFrontInvalidator {
+
+    /**
+     * The most paths in progress for a distribution.
+     */
+    public static final int MAX_PATHS_IN_PROGRESS = 3000;
+
+    /**
+     * The most wildcard paths in progress for a distribution.
+     */
+    public static final int MAX_WILDCARDS_IN_PROGRESS = 15;
+
+    private static final String COMPLETED = "Completed";
+    private static final long MAX_POLL_INTERVAL_IN_MS = 60 * 1000L;
+
+    private final AmazonCloudFront client;
+    private final int maxPathsPerInvalidation;
+    private final long pollIntervalInMs;
+    private final long timeoutInMs;
+
+    /**
+     * @param maxPathsPerInvalidation
+     *            The most paths in one invalidation, up to
+     *            {@link #MAX_PATHS_IN_PROGRESS}
+     * @param pollIntervalInMs
+     *            The first delay before retrying a refused invalidation or
+     *            checking whether one has completed. It doubles every time,
+     *            up to a minute.
+     * @param timeoutInMs
+     *            How long to keep retrying or waiting for a distribution
+     */
+    public CloudFrontInvalidator(AmazonCloudFront client,
+            int maxPathsPerInvalidation, long pollIntervalInMs, long timeoutInMs) {
+        this.client = client;
+        this.maxPathsPerInvalidation = Math.max(1,
+                Math.min(maxPathsPerInvalidation, MAX_PATHS_IN_PROGRESS));
+        this.pollIntervalInMs = Math.max(1, pollIntervalInMs);
+        this.timeoutInMs = timeoutInMs;
+    }
+
+    /**
+     * Invalidates the paths of every distribution, one thread per
+     * distribution.
+     *
+     * @param pathsByDistribution
+     *            The paths to invalidate, by distribution ID
+     * @param waitForCompletion
+     *            Whether to return only once every invalidation has completed
+     * @return The IDs of the invalidations created, by distribution ID
+     * @throws Exception
+     *             The first failure, after every other distribution was done
+     */
+    public Map<String, List<String>> invalidate(
+            Map<String, List<String>> pathsByDistribution,
+            final boolean waitForCompletion) throws Exception {
+        Map<String, Future<List<String>>> futures = new LinkedHashMap<String, Future<List<String>>>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+                pathsByDistribution.size()));
+        try {
+            for (final Map.Entry<String, List<String>> entry : pathsByDistribution
+                    .entrySet()) {
+                futures.put(entry.getKey(), executor
+                        .submit(new Callable<List<String>>() {
+                            public List<String> call() throws Exception {
+                                return invalidate(entry.getKey(),
+                                        entry.getValue(), waitForCompletion);
+                            }
+                        }));
+            }
+            Map<String, List<String>> invalidationIds = new LinkedHashMap<String, List<String>>();
+            Exception failure = null;
+            for (Map.Entry<String, Future<List<String>>> future : futures
+                    .entrySet()) {
+                try {
+                    invalidationIds.put(future.getKey(), future.getValue()
+                            .get());
+                } catch (ExecutionException e) {
+                    System.err.println("Failed to invalidate distribution "
+                            + future.getKey() + ": " + e.getCause());
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e
+                                .getCause() : e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return invalidationIds;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Invalidates the paths of one distribution.
+     *
+     * @return The IDs of the invalidations created
+     */
+    public List<String> invalidate(String distributionId, List<String> paths,
+            boolean waitForCompletion) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutInMs;
+        List<String> invalidationIds = new ArrayList<String>();
+        for (List<String> batch : batch(paths, maxPathsPerInvalidation,
+                MAX_WILDCARDS_IN_PROGRESS)) {
+            invalidationIds.add(create(distributionId, batch, deadline));
+        }
+        System.out.println("Created " + invalidationIds.size()
+                + " invalidations of " + paths.size()
+                + " paths on distribution " + distributionId);
+        if (waitForCompletion) {
+            for (String invalidationId : invalidationIds) {
+                waitForCompletion(distributionId, invalidationId, deadline);
+            }
+            System.out.println("Invalidations of distribution "
+                    + distributionId + " completed");
+        }
+        return invalidationIds;
+    }
+
+    /**
+     * @return The paths split into batches of at most maxPaths paths and
+     *         maxWildcards wildcard paths, in order
+     */
+    static List<List<String>> batch(List<String> paths, int maxPaths,
+            int maxWildcards) {
+        List<List<String>> batches = new ArrayList<List<String>>();
+        List<String> batch = new ArrayList<String>();
+        int wildcards = 0;
+        for (String path : paths) {
+            boolean wildcard = path.endsWith("*");
+            if (batch.size() == maxPaths || wildcard
+                    && wildcards == maxWildcards) {
+                batches.add(batch);
+                batch = new ArrayList<String>();
+                wildcards = 0;
+            }
+            batch.add(path);
+            if (wildcard) {
+                wildcards++;
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private String create(String distributionId, List<String> paths,
+            long deadline) throws InterruptedException {
+        // Unique for every batch, and the same for its retries, so a retry
+        // that reaches CloudFront twice creates a single invalidation
+        String callerReference = distributionId + "-" + UUID.randomUUID();
+        CreateInvalidationRequest request = new CreateInvalidationRequest(
+                distributionId, new InvalidationBatch(new Paths().withItems(
+                        paths).withQuantity(paths.size()), callerReference));
+        long interval = pollIntervalInMs;
+        while (true) {
+            try {
+                return client.createInvalidation(request).getInvalidation()
+                        .getId();
+            } catch (TooManyInvalidationsInProgressException e) {
+                if (System.currentTimeMillis() + interval > deadline) {
+                    throw e;
+                }
+                Thread.sleep(interval);
+                interval = Math.min(interval * 2, MAX_POLL_INTERVAL_IN_MS);
+            }
+        }
+    }
+
+    private void waitForCompletion(String distributionId,
+            String invalidationId, long deadline) throws InterruptedException {
+        long interval = pollIntervalInMs;
+        while (!COMPLETED.equals(client
+                .getInvalidation(
+                        new GetInvalidationRequest(distributionId,
+                                invalidationId)).getInvalidation().getStatus())) {
+            if (System.currentTimeMillis() + interval > deadline) {
+                throw new IllegalStateException("Invalidation "
+                        + invalidationId + " of distribution "
+                        + distributionId + " did not complete in time");
+            }
+            Thread.sleep(interval);
+            interval = Math.min(interval * 2, MAX_POLL_INTERVAL_IN_MS);
+        }
+    }
+}
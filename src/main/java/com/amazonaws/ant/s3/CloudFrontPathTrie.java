@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.amazonaws.util.SdkHttpUtils;
+
+/**
+ * Collapses a set of changed keys into few CloudFront invalidation paths. The
+ * keys are kept in a trie of their "/" separated segments. A directory is
+ * invalidated with a wildcard, such as "/css/*", when listing what changed in
+ * it would take more paths than the threshold, and with the exact paths of
+ * its changed objects otherwise. Every path is billed the same, but a wildcard
+ * also evicts the unchanged objects of the directory from the edge caches, so
+ * wildcards are only used where they save enough paths. The root is never
+ * collapsed by the threshold, since "/*" evicts the whole distribution; it is
+ * only used when nothing else brings the paths down to maxPaths.
+ */
+public class CloudFrontPathTrie {
+
+    private final Node root = new Node(true);
+    private int size;
+
+    /**
+     * Adds a changed key, such as "css/site.css".
+     */
+    public void add(String key) {
+        Node node = root;
+        int start = 0;
+        int slash;
+        while ((slash = key.indexOf('/', start)) >= 0) {
+            node = node.child(key.substring(start, slash));
+            start = slash + 1;
+        }
+        node = node.child(key.substring(start));
+        if (!node.changed) {
+            node.changed = true;
+            size++;
+        }
+    }
+
+    /**
+     * @return The number of distinct keys added
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param wildcardThreshold
+     *            The number of paths under a directory other than the root
+     *            above which it is invalidated with a wildcard instead, at
+     *            least 1
+     * @param maxPaths
+     *            The most paths to return, or 0 for no limit. Until the paths
+     *            fit, the deepest directory that needs several paths is
+     *            invalidated with a wildcard, down to invalidating everything
+     *            with "/*".
+     * @return The invalidation paths covering every key, URL encoded and
+     *         starting with "/"
+     */
+    public List<String> collapse(int wildcardThreshold, int maxPaths) {
+        List<String> paths = new ArrayList<String>();
+        if (size == 0) {
+            return paths;
+        }
+        int threshold = Math.max(1, wildcardThreshold);
+        clearForced(root);
+        while (count(root, threshold) > maxPaths && maxPaths > 0) {
+            Node deepest = findDeepestExpanded(root, threshold);
+            (deepest == null ? root : deepest).forced = true;
+        }
+        collectDirectory(root, "/", threshold, paths);
+        return paths;
+    }
+
+    /**
+     * Counts the paths needed for the node and everything under it, and keeps
+     * the count of its directory in the node.
+     */
+    private static int count(Node node, int threshold) {
+        int directoryCount = 0;
+        for (Node child : node.children.values()) {
+            directoryCount += count(child, threshold);
+        }
+        node.directoryCount = directoryCount;
+        int count = node.changed ? 1 : 0;
+        if (!node.children.isEmpty()) {
+            count += node.isCollapsed(threshold) ? 1 : directoryCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return The deepest directory below the root that isn't collapsed and
+     *         needs more than one path, preferring the one that needs the
+     *         most, or null if there is none
+     */
+    private static Node findDeepestExpanded(Node root, int threshold) {
+        Node[] best = new Node[1];
+        findDeepestExpanded(root, threshold, 1, best, new int[1]);
+        return best[0];
+    }
+
+    private static void findDeepestExpanded(Node node, int threshold,
+            int depth, Node[] best, int[] bestDepth) {
+        for (Node child : node.children.values()) {
+            if (child.children.isEmpty() || child.isCollapsed(threshold)) {
+                continue;
+            }
+            if (child.directoryCount > 1
+                    && (best[0] == null || depth > bestDepth[0]
+                            || depth == bestDepth[0]
+                            && child.directoryCount > best[0].directoryCount)) {
+                best[0] = child;
+                bestDepth[0] = depth;
+            }
+            findDeepestExpanded(child, threshold, depth + 1, best, bestDepth);
+        }
+    }
+
+    private static void clearForced(Node node) {
+        node.forced = false;
+        for (Node child : node.children.values()) {
+            clearForced(child);
+        }
+    }
+
+    private static void collectDirectory(Node node, String directoryPath,
+            int threshold, List<String> paths) {
+        if (node.isCollapsed(threshold)) {
+            paths.add(directoryPath + "*");
+            return;
+        }
+        for (Map.Entry<String, Node> entry : node.children.entrySet()) {
+            Node child = entry.getValue();
+            String path = directoryPath
+                    + SdkHttpUtils.urlEncode(entry.getKey(), false);
+            if (child.changed) {
+                paths.add(path);
+            }
+            if (!child.children.isEmpty()) {
+                collectDirectory(child, path + "/", threshold, paths);
+            }
+        }
+    }
+
+    private static class Node {
+        private final Map<String, Node> children = new TreeMap<String, Node>();
+        private final boolean root;
+        private boolean changed;
+        private boolean forced;
+        private int directoryCount;
+
+        Node(boolean root) {
+            this.root = root;
+        }
+
+        boolean isCollapsed(int threshold) {
+            return forced || !root && directoryCount > threshold;
+        }
+
+        Node child(String segment) {
+            Node child = children.get(segment);
+            if (child == null) {
+                child = new Node(false);
+                children.put(segment, child);
+            }
+            return child;
+        }
+    }
+}
@@ -0,0 +1,530 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.StorageClass;
+
+/**
+ * Ant task for copying the objects under a prefix to another bucket or
+ * prefix, entirely on the S3 side. Objects are copied concurrently with
+ * CopyObject, or with concurrent UploadPartCopy requests if they are too large
+ * for a single copy. Objects that are already in the destination are
+ * skipped.
+ */
+public class CopyS3ObjectsTask extends AWSAntTask {
+
+    /** CopyObject can't copy objects larger than 5 GB. */
+    private static final long MAX_SINGLE_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+
+    /** The limits S3 sets on the parts of an upload. */
+    private static final long MIN_PART_SIZE_IN_MB = 5;
+    private static final long MAX_PART_SIZE_IN_MB = 5 * 1024;
+    private static final int MAX_PARTS = 10000;
+
+    private String sourceBucket;
+    private String sourcePrefix;
+    private String sourceRegion;
+    private String destinationBucket;
+    private String destinationPrefix;
+    private String destinationRegion;
+    private boolean skipUnchanged = true;
+    private int threads = 16;
+    private int listThreads = 8;
+    private long partSizeInMb = 512;
+    private long partSize = partSizeInMb * 1024 * 1024;
+    private long multipartThreshold = MAX_SINGLE_COPY_SIZE;
+    private List<S3ObjectSelector> selectors = new ArrayList<S3ObjectSelector>();
+
+    /**
+     * Specify the bucket to copy objects from. Required.
+     * 
+     * @param sourceBucket
+     *            The name of the source bucket
+     */
+    public void setSourceBucket(String sourceBucket) {
+        this.sourceBucket = sourceBucket;
+    }
+
+    /**
+     * Specify the prefix of the keys to copy. Required. Set it to "" to copy
+     * every object in the bucket.
+     * 
+     * @param sourcePrefix
+     *            All objects whose keys begin with this prefix are copied
+     */
+    public void setSourcePrefix(String sourcePrefix) {
+        this.sourcePrefix = sourcePrefix;
+    }
+
+    /**
+     * Set the region of the source bucket. Not required, default is awsRegion.
+     * 
+     * @param sourceRegion
+     *            The region of the source bucket
+     */
+    public void setSourceRegion(String sourceRegion) {
+        this.sourceRegion = sourceRegion;
+    }
+
+    /**
+     * Specify the bucket to copy objects to. Required.
+     * 
+     * @param destinationBucket
+     *            The name of the destination bucket
+     */
+    public void setDestinationBucket(String destinationBucket) {
+        this.destinationBucket = destinationBucket;
+    }
+
+    /**
+     * Set the prefix that replaces sourcePrefix in the destination keys. Not
+     * required, default is sourcePrefix.
+     * 
+     * @param destinationPrefix
+     *            The prefix of the destination keys
+     */
+    public void setDestinationPrefix(String destinationPrefix) {
+        this.destinationPrefix = destinationPrefix;
+    }
+
+    /**
+     * Set the region of the destination bucket. Not required, default is
+     * awsRegion.
+     * 
+     * @param destinationRegion
+     *            The region of the destination bucket
+     */
+    public void setDestinationRegion(String destinationRegion) {
+        this.destinationRegion = destinationRegion;
+    }
+
+    /**
+     * Set whether objects that are already in the destination are skipped. An
+     * object is in the destination if the ETags match. Objects uploaded or
+     * copied in parts have ETags that copies don't keep, so for them, the
+     * destination must instead have the same size and be no older than the
+     * source. Not required, default is true.
+     * 
+     * @param skipUnchanged
+     *            Whether to skip objects that are already in the destination
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * Set how many objects, or parts of large objects, are copied at the same
+     * time. Not required, default is 16.
+     * 
+     * @param threads
+     *            The number of concurrent copy requests
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Set how many key ranges are listed at the same time. Not required,
+     * default is 8.
+     * 
+     * @param listThreads
+     *            The number of concurrent list requests
+     */
+    public void setListThreads(int listThreads) {
+        this.listThreads = listThreads;
+    }
+
+    /**
+     * Set the size of the parts objects larger than 5 GB are copied in. It is
+     * grown for objects that would need more than 10,000 parts. Not required,
+     * default is 512.
+     * 
+     * @param partSizeInMb
+     *            The part size in megabytes, from 5 to 5120
+     */
+    public void setPartSizeInMb(long partSizeInMb) {
+        this.partSizeInMb = partSizeInMb;
+        this.partSize = partSizeInMb * 1024 * 1024;
+    }
+
+    /**
+     * Sets the size above which objects are copied in parts. Only meant for
+     * tests.
+     */
+    void setMultipartThreshold(long multipartThreshold) {
+        this.multipartThreshold = multipartThreshold;
+    }
+
+    /**
+     * Sets the part size in bytes. Only meant for tests.
+     */
+    void setPartSize(long partSize) {
+        this.partSize = partSize;
+    }
+
+    /**
+     * Only copy objects of a certain size.
+     */
+    public void addConfiguredSize(S3ObjectSelectors.Size size) {
+        addSelector(size);
+    }
+
+    /**
+     * Only copy objects last modified within a certain window.
+     */
+    public void addConfiguredModified(S3ObjectSelectors.Modified modified) {
+        addSelector(modified);
+    }
+
+    /**
+     * Only copy objects whose key matches a glob or regular expression.
+     */
+    public void addConfiguredKey(S3ObjectSelectors.Key key) {
+        addSelector(key);
+    }
+
+    /**
+     * Only copy objects in certain storage classes.
+     */
+    public void addConfiguredStorageClass(
+            S3ObjectSelectors.StorageClass storageClass) {
+        addSelector(storageClass);
+    }
+
+    private void addSelector(S3ObjectSelector selector) {
+        selector.checkParams();
+        selectors.add(selector);
+    }
+
+    public void checkParams() {
+        boolean areMalformedParams = false;
+        StringBuilder errors = new StringBuilder("");
+        if (sourceBucket == null) {
+            areMalformedParams = true;
+            errors.append("Missing parameter: sourceBucket is required. \n");
+        }
+        if (sourcePrefix == null) {
+            areMalformedParams = true;
+            errors.append("Missing parameter: sourcePrefix is required. Set it to \"\" to copy every object in the bucket. \n");
+        }
+        if (destinationBucket == null) {
+            areMalformedParams = true;
+            errors.append("Missing parameter: destinationBucket is required. \n");
+        }
+        if (destinationBucket != null
+                && destinationBucket.equals(sourceBucket)
+                && (destinationPrefix == null || destinationPrefix
+                        .equals(sourcePrefix))) {
+            areMalformedParams = true;
+            errors.append("The destination cannot be the same as the source. \n");
+        }
+        if (threads < 1 || listThreads < 1) {
+            areMalformedParams = true;
+            errors.append("threads and listThreads must be at least 1. \n");
+        }
+        if (partSizeInMb < MIN_PART_SIZE_IN_MB
+                || partSizeInMb > MAX_PART_SIZE_IN_MB) {
+            areMalformedParams = true;
+            errors.append("partSizeInMb must be from " + MIN_PART_SIZE_IN_MB
+                    + " to " + MAX_PART_SIZE_IN_MB + ". \n");
+        }
+        if (areMalformedParams) {
+            throw new BuildException(errors.toString());
+        }
+    }
+
+    @Override
+    protected int getTransferConcurrency() {
+        return threads + listThreads;
+    }
+
+    public void execute() {
+        checkParams();
+        final AmazonS3Client sourceClient = getOrCreateClient(
+                AmazonS3Client.class, sourceRegion != null ? sourceRegion
+                        : awsRegion);
+        final AmazonS3Client destinationClient = getOrCreateClient(
+                AmazonS3Client.class, destinationRegion != null ? destinationRegion
+                        : awsRegion);
+        final String prefix = destinationPrefix != null ? destinationPrefix
+                : sourcePrefix;
+        System.out.println("Copying objects with prefix \"" + sourcePrefix
+                + "\" from bucket " + sourceBucket + " to prefix \"" + prefix
+                + "\" in bucket " + destinationBucket + "...");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final ExecutorService partExecutor = Executors
+                .newFixedThreadPool(threads);
+        final Semaphore copiesInFlight = new Semaphore(threads * 2);
+        final List<Future<Long>> copies = new ArrayList<Future<Long>>();
+        final AtomicLong copied = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        try {
+            final S3ListingSnapshot destinationListing = skipUnchanged ? S3ListingSnapshots
+                    .get(getProject(), destinationClient, destinationBucket,
+                            prefix, listThreads) : null;
+            S3ListingSnapshot sourceListing = S3ListingSnapshots.find(
+                    getProject(), sourceBucket, sourcePrefix);
+            S3ObjectSource source = sourceListing != null ? sourceListing
+                    .withPrefix(sourcePrefix)
+                    : new S3ParallelListingObjectSource(sourceClient,
+                            sourceBucket, sourcePrefix, listThreads, false);
+            source.forEachObject(new S3ObjectSource.Handler() {
+                public void handle(final S3ObjectSummary objectSummary) {
+                    if (objectSummary.getKey().endsWith("/")
+                            || !S3ObjectSelectors.isSelected(
+                                    selectors, objectSummary)) {
+                        return;
+                    }
+                    final String destinationKey = prefix
+                            + objectSummary.getKey().substring(
+                                    sourcePrefix.length());
+                    S3ObjectSummary destination = destinationListing == null ? null
+                            : destinationListing.get(destinationKey);
+                    if (destination != null
+                            && isCopyOf(objectSummary, destination)) {
+                        skipped.incrementAndGet();
+                        return;
+                    }
+                    acquire(copiesInFlight);
+                    bytes.addAndGet(collect(copies, false));
+                    copied.incrementAndGet();
+                    copies.add(executor.submit(new Callable<Long>() {
+                        public Long call() {
+                            try {
+                                copy(sourceClient, destinationClient,
+                                        partExecutor, objectSummary,
+                                        destinationKey);
+                                return objectSummary.getSize();
+                            } finally {
+                                copiesInFlight.release();
+                            }
+                        }
+                    }));
+                }
+            });
+
+            bytes.addAndGet(collect(copies, true));
+            System.out.println("Copied " + copied + " objects (" + bytes
+                    + " bytes), skipped " + skipped + " unchanged objects");
+        } catch (IOException e) {
+            throw new BuildException("Unable to list objects: "
+                    + e.getMessage(), e);
+        } catch (AmazonClientException e) {
+            throw new BuildException("Unable to copy objects: "
+                    + e.getMessage(), e);
+        } finally {
+            executor.shutdownNow();
+            partExecutor.shutdownNow();
+            if (copied.get() > 0) {
+                S3ListingSnapshots.invalidate(getProject(), destinationBucket);
+            }
+        }
+    }
+
+    /**
+     * Removes the finished copies from the list.
+     * 
+     * @param wait
+     *            Whether to wait for all copies to finish
+     * @return The number of bytes the removed copies copied
+     */
+    private static long collect(List<Future<Long>> copies, boolean wait) {
+        long bytes = 0;
+        Iterator<Future<Long>> iterator = copies.iterator();
+        try {
+            while (iterator.hasNext()) {
+                Future<Long> copy = iterator.next();
+                if (wait || copy.isDone()) {
+                    bytes += copy.get();
+                    iterator.remove();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while copying objects");
+        } catch (ExecutionException e) {
+            throw new BuildException("Unable to copy objects: "
+                    + e.getCause().getMessage(), e.getCause());
+        }
+        return bytes;
+    }
+
+    /**
+     * Copies one object, failing if it changed since it was listed. The copy
+     * keeps the storage class of the source. Like CopyObject, it doesn't keep
+     * the ACL of the source; the copy gets the default ACL of the destination
+     * bucket.
+     */
+    private void copy(AmazonS3 sourceClient, AmazonS3 client,
+            ExecutorService partExecutor, S3ObjectSummary objectSummary,
+            String destinationKey) {
+        if (objectSummary.getSize() > multipartThreshold) {
+            copyInParts(sourceClient, client, partExecutor, objectSummary,
+                    destinationKey);
+        } else if (client.copyObject(new CopyObjectRequest(sourceBucket,
+                objectSummary.getKey(), destinationBucket, destinationKey)
+                .withMatchingETagConstraint(objectSummary.getETag())
+                .withStorageClass(storageClassOf(objectSummary))) == null) {
+            throw new AmazonClientException(objectSummary.getKey()
+                    + " changed while it was copied");
+        }
+    }
+
+    private void copyInParts(AmazonS3 sourceClient, final AmazonS3 client,
+            ExecutorService partExecutor, final S3ObjectSummary objectSummary,
+            final String destinationKey) {
+        ObjectMetadata sourceMetadata = sourceClient.getObjectMetadata(
+                sourceBucket, objectSummary.getKey());
+        final String uploadId = client.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(destinationBucket,
+                        destinationKey, copyableMetadata(sourceMetadata))
+                        .withStorageClass(storageClassOf(objectSummary)))
+                .getUploadId();
+        List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+        try {
+            int partNumber = 1;
+            long size = objectSummary.getSize();
+            // S3 refuses uploads of more than 10,000 parts
+            long partSize = Math.max(this.partSize, (size + MAX_PARTS - 1)
+                    / MAX_PARTS);
+            for (long offset = 0; offset < size; offset += partSize) {
+                final CopyPartRequest request = new CopyPartRequest()
+                        .withSourceBucketName(sourceBucket)
+                        .withSourceKey(objectSummary.getKey())
+                        .withDestinationBucketName(destinationBucket)
+                        .withDestinationKey(destinationKey)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber++)
+                        .withFirstByte(offset)
+                        .withLastByte(Math.min(offset + partSize, size) - 1)
+                        .withMatchingETagConstraint(objectSummary.getETag());
+                parts.add(partExecutor.submit(new Callable<PartETag>() {
+                    public PartETag call() {
+                        CopyPartResult result = client.copyPart(request);
+                        if (result == null) {
+                            throw new AmazonClientException(objectSummary
+                                    .getKey() + " changed while it was copied");
+                        }
+                        return result.getPartETag();
+                    }
+                }));
+            }
+            List<PartETag> partETags = new ArrayList<PartETag>();
+            for (Future<PartETag> part : parts) {
+                partETags.add(part.get());
+            }
+            client.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                    destinationBucket, destinationKey, uploadId, partETags));
+        } catch (Exception e) {
+            for (Future<PartETag> part : parts) {
+                part.cancel(true);
+            }
+            client.abortMultipartUpload(new AbortMultipartUploadRequest(
+                    destinationBucket, destinationKey, uploadId));
+            Throwable cause = e instanceof ExecutionException ? e.getCause()
+                    : e;
+            throw new AmazonClientException("Unable to copy "
+                    + objectSummary.getKey() + ": " + cause.getMessage(),
+                    cause);
+        }
+    }
+
+    /**
+     * @return Whether the destination object is a copy of the source object.
+     *         The ETag of an object uploaded or copied in parts isn't the MD5
+     *         of its content, and a copy gets a new one, so unless both ETags
+     *         are MD5s, the objects are compared by size, and the copy must be
+     *         no older than the source.
+     */
+    private static boolean isCopyOf(S3ObjectSummary source,
+            S3ObjectSummary destination) {
+        if (S3ListingSnapshot.isMd5Hex(source.getETag())
+                && S3ListingSnapshot.isMd5Hex(destination.getETag())) {
+            return source.getETag().equals(destination.getETag());
+        }
+        return source.getSize() == destination.getSize()
+                && source.getLastModified() != null
+                && destination.getLastModified() != null
+                && !destination.getLastModified().before(
+                        source.getLastModified());
+    }
+
+    /**
+     * Returns the metadata of the source that a new object can be created
+     * with, leaving out what S3 computes itself.
+     */
+    private static ObjectMetadata copyableMetadata(ObjectMetadata source) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(source.getContentType());
+        if (source.getContentEncoding() != null) {
+            metadata.setContentEncoding(source.getContentEncoding());
+        }
+        if (source.getCacheControl() != null) {
+            metadata.setCacheControl(source.getCacheControl());
+        }
+        if (source.getContentDisposition() != null) {
+            metadata.setContentDisposition(source.getContentDisposition());
+        }
+        metadata.setUserMetadata(source.getUserMetadata());
+        return metadata;
+    }
+
+    /**
+     * @return The storage class of the object, or null for the default
+     */
+    private static String storageClassOf(S3ObjectSummary objectSummary) {
+        String storageClass = objectSummary.getStorageClass();
+        return StorageClass.Standard.toString().equals(storageClass) ? null
+                : storageClass;
+    }
+
+    private static void acquire(Semaphore semaphore) {
+        try {
+            semaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while copying objects");
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import com.amazonaws.services.s3.model.VersionListing;
+
+/**
+ * Ant task for deleting every object under a prefix in an S3 bucket, and
+ * optionally every version, every delete marker and the bucket itself. The
+ * prefix is listed in parallel key ranges, and keys are deleted with
+ * concurrent DeleteObjects requests of up to 1000 keys each.
+ */
+public class DeleteFromS3Task extends AWSAntTask {
+    private String bucketName;
+    private String keyPrefix;
+    private File keyList;
+    private boolean versions = false;
+    private boolean deleteBucket = false;
+    private int listThreads = 8;
+    private int deleteThreads = 8;
+    private int maxRetries = 3;
+    private List<S3ObjectSelector> selectors = new ArrayList<S3ObjectSelector>();
+
+    /**
+     * Specify the name of your S3 bucket
+     * 
+     * @param bucketName
+     *            The name of the bucket in S3 to delete objects from
+     */
+    public void setBucketName(String bucketName) {
+        this.bucketName = bucketName;
+    }
+
+    /**
+     * Specify the prefix of the keys to delete. Required unless keyList is
+     * set. Set it to "" to delete every object in the bucket.
+     * 
+     * @param keyPrefix
+     *            All objects whose keys begin with this prefix are deleted
+     */
+    public void setKeyPrefix(String keyPrefix) {
+        this.keyPrefix = keyPrefix;
+    }
+
+    /**
+     * Specify a local file listing the keys to delete, instead of listing the
+     * bucket. Optional. Uses the same format as the keyList of
+     * download-from-s3.
+     * 
+     * @param keyList
+     *            The key list file
+     */
+    public void setKeyList(File keyList) {
+        this.keyList = keyList;
+    }
+
+    /**
+     * Set whether to delete every version and delete marker of the keys,
+     * rather than only their current versions. Not required, default is
+     * false. Versions are listed sequentially.
+     * 
+     * @param versions
+     *            Whether to delete all versions
+     */
+    public void setVersions(boolean versions) {
+        this.versions = versions;
+    }
+
+    /**
+     * Set whether to delete the bucket once it is empty. Not required, default
+     * is false. Requires keyPrefix to be "" and, for versioned buckets,
+     * versions to be true.
+     * 
+     * @param deleteBucket
+     *            Whether to delete the bucket
+     */
+    public void setDeleteBucket(boolean deleteBucket) {
+        this.deleteBucket = deleteBucket;
+    }
+
+    /**
+     * Set how many key ranges are listed at the same time. Not required,
+     * default is 8.
+     * 
+     * @param listThreads
+     *            The number of concurrent list requests
+     */
+    public void setListThreads(int listThreads) {
+        this.listThreads = listThreads;
+    }
+
+    /**
+     * Set how many DeleteObjects requests are sent at the same time. Not
+     * required, default is 8.
+     * 
+     * @param deleteThreads
+     *            The number of concurrent delete requests
+     */
+    public void setDeleteThreads(int deleteThreads) {
+        this.deleteThreads = deleteThreads;
+    }
+
+    /**
+     * Set how many times keys that S3 failed to delete are retried. Not
+     * required, default is 3.
+     * 
+     * @param maxRetries
+     *            The number of retries
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Only delete objects of a certain size.
+     */
+    public void addConfiguredSize(S3ObjectSelectors.Size size) {
+        addSelector(size);
+    }
+
+    /**
+     * Only delete objects last modified within a certain window.
+     */
+    public void addConfiguredModified(S3ObjectSelectors.Modified modified) {
+        addSelector(modified);
+    }
+
+    /**
+     * Only delete objects whose key matches a glob or regular expression.
+     */
+    public void addConfiguredKey(S3ObjectSelectors.Key key) {
+        addSelector(key);
+    }
+
+    /**
+     * Only delete objects in certain storage classes.
+     */
+    public void addConfiguredStorageClass(
+            S3ObjectSelectors.StorageClass storageClass) {
+        addSelector(storageClass);
+    }
+
+    private void addSelector(S3ObjectSelector selector) {
+        selector.checkParams();
+        selectors.add(selector);
+    }
+
+    public void checkParams() {
+        boolean areMalformedParams = false;
+        StringBuilder errors = new StringBuilder("");
+        if (bucketName == null) {
+            areMalformedParams = true;
+            errors.append("Missing parameter: bucketName is required. \n");
+        }
+        if (keyPrefix == null && keyList == null) {
+            areMalformedParams = true;
+            errors.append("Either keyPrefix or keyList must be set. Set keyPrefix to \"\" to delete every object in the bucket. \n");
+        }
+        if (versions && keyList != null) {
+            areMalformedParams = true;
+            errors.append("versions cannot be set with keyList. \n");
+        }
+        if (versions && !selectors.isEmpty()) {
+            areMalformedParams = true;
+            errors.append("Selectors cannot be nested if versions is set. \n");
+        }
+        if (deleteBucket
+                && (keyList != null || !"".equals(keyPrefix) || !selectors
+                        .isEmpty())) {
+            areMalformedParams = true;
+            errors.append("deleteBucket requires keyPrefix to be \"\", without keyList or selectors. \n");
+        }
+        if (listThreads < 1 || deleteThreads < 1 || maxRetries < 0) {
+            areMalformedParams = true;
+            errors.append("listThreads and deleteThreads must be at least 1, and maxRetries at least 0. \n");
+        }
+        if (areMalformedParams) {
+            throw new BuildException(errors.toString());
+        }
+    }
+
+    @Override
+    protected int getTransferConcurrency() {
+        return listThreads + deleteThreads;
+    }
+
+    public void execute() {
+        checkParams();
+        AmazonS3Client client = getOrCreateClient(AmazonS3Client.class);
+        String prefix = keyPrefix == null ? "" : keyPrefix;
+        final S3BatchDeleter deleter = new S3BatchDeleter(client, bucketName,
+                deleteThreads, maxRetries);
+        System.out.println("Deleting " + (versions ? "all versions of " : "")
+                + "objects with prefix \"" + prefix + "\" from bucket "
+                + bucketName + "...");
+        boolean listed = false;
+        try {
+            if (versions) {
+                deleteVersions(client, prefix, deleter);
+            } else {
+                S3ObjectSource source;
+                S3ListingSnapshot snapshot = S3ListingSnapshots.find(
+                        getProject(), bucketName, prefix);
+                if (keyList != null) {
+                    source = new S3KeyListObjectSource(keyList, bucketName,
+                            prefix);
+                } else if (snapshot != null) {
+                    source = snapshot.withPrefix(prefix);
+                } else {
+                    source = new S3ParallelListingObjectSource(client,
+                            bucketName, prefix, listThreads, false);
+                }
+                source.forEachObject(new S3ObjectSource.Handler() {
+                    public void handle(S3ObjectSummary objectSummary) {
+                        if (S3ObjectSelectors.isSelected(selectors,
+                                objectSummary)) {
+                            deleter.delete(new KeyVersion(objectSummary
+                                    .getKey()));
+                        }
+                    }
+                });
+            }
+            listed = true;
+        } catch (IOException e) {
+            throw new BuildException("Unable to read the objects to delete: "
+                    + e.getMessage(), e);
+        } catch (AmazonClientException e) {
+            throw new BuildException("Unable to list the objects to delete: "
+                    + e.getMessage(), e);
+        } finally {
+            S3ListingSnapshots.invalidate(getProject(), bucketName);
+            if (!listed) {
+                deleter.shutdown();
+            }
+        }
+        System.out.println("Deleted " + deleter.finish() + " objects");
+
+        if (deleteBucket) {
+            try {
+                client.deleteBucket(bucketName);
+            } catch (AmazonClientException e) {
+                throw new BuildException("Unable to delete bucket "
+                        + bucketName + ": " + e.getMessage(), e);
+            }
+            System.out.println("Bucket " + bucketName + " deleted");
+        }
+    }
+
+    private void deleteVersions(AmazonS3Client client, String prefix,
+            S3BatchDeleter deleter) {
+        VersionListing listing = client.listVersions(bucketName, prefix);
+        while (true) {
+            for (S3VersionSummary version : listing.getVersionSummaries()) {
+                deleter.delete(new KeyVersion(version.getKey(), version
+                        .getVersionId()));
+            }
+            if (listing.isTruncated()) {
+                listing = client.listNextBatchOfVersions(listing);
+            } else {
+                break;
+            }
+        }
+    }
+}
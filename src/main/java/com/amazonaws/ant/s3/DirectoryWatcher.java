@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches directory trees for changes, and reports them in batches. Changes
+ * are collected until none has happened for the debounce period, so a burst
+ * of changes, like a build rewriting a directory, is reported once with every
+ * path it touched.
+ * <p>
+ * Directories are registered when the watcher is created, so changes made
+ * after that but before {@link #watch(Handler)} is called are not lost.
+ */
+public class DirectoryWatcher {
+
+    /**
+     * The longest a batch is held back by changes that keep coming, as a
+     * multiple of the debounce period.
+     */
+    private static final int MAX_DEBOUNCE_PERIODS = 10;
+
+    /**
+     * Receives the batches of changes.
+     */
+    public interface Handler {
+
+        /**
+         * @param changed
+         *            The files and directories that were created, modified or
+         *            deleted. The directories that were created or whose
+         *            changes were lost are included as a whole.
+         */
+        void filesChanged(Set<File> changed);
+    }
+
+    private final List<File> directories;
+    private final long debounceInMs;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<WatchKey, Path>();
+
+    /**
+     * @param directories
+     *            The roots of the directory trees to watch
+     * @param debounceInMs
+     *            How long to wait for more changes before reporting a batch
+     */
+    public DirectoryWatcher(List<File> directories, long debounceInMs)
+            throws IOException {
+        this.directories = directories;
+        this.debounceInMs = debounceInMs;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        try {
+            for (File directory : directories) {
+                register(directory.toPath());
+            }
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reports batches of changes to the handler until the thread is
+     * interrupted.
+     */
+    public void watch(Handler handler) throws IOException,
+            InterruptedException {
+        while (true) {
+            WatchKey key = watchService.take();
+            long deadline = System.currentTimeMillis() + debounceInMs
+                    * MAX_DEBOUNCE_PERIODS;
+            Set<File> changed = new TreeSet<File>();
+            while (key != null) {
+                collect(key, changed);
+                if (System.currentTimeMillis() >= deadline) {
+                    break;
+                }
+                key = watchService.poll(debounceInMs, TimeUnit.MILLISECONDS);
+            }
+            if (!changed.isEmpty()) {
+                handler.filesChanged(changed);
+            }
+        }
+    }
+
+    /**
+     * Stops watching.
+     */
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void collect(WatchKey key, Set<File> changed) throws IOException {
+        Path directory = watchedDirectories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || directory == null) {
+                // Changes were lost, so everything may have changed
+                for (File root : directories) {
+                    changed.add(root);
+                }
+                continue;
+            }
+            Path child = directory.resolve((Path) event.context());
+            changed.add(child.toFile());
+            if (event.kind() == ENTRY_CREATE
+                    && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                register(child);
+            }
+        }
+        if (!key.reset()) {
+            watchedDirectories.remove(key);
+        }
+    }
+
+    private void register(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory,
+                    BasicFileAttributes attributes) throws IOException {
+                watchedDirectories.put(directory.register(watchService,
+                        ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -16,14 +16,21 @@ package com.amazonaws.ant.s3;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Iterator;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.tools.ant.BuildException;
 
 import com.amazonaws.ant.AWSAntTask;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
 import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 
 /**
@@ -39,6 +46,21 @@ public class DownloadFileFromS3Task extends AWSAntTask {
     private String key;
     private String keyPrefix;
     private File file;
+    private File cacheDir;
+    private long cacheMaxSizeInMb = 10240;
+    private boolean cacheLinks = true;
+    private String proxyEndpoint;
+    private boolean hedge = false;
+    private int hedgePercentile = 95;
+    private int hedgeBudgetPercent = 5;
+    private boolean mirror = false;
+    private String inventoryManifest;
+    private File inventoryDataDir;
+    private File keyList;
+    private int listThreads = 1;
+    private List<S3ObjectSelector> selectors = new ArrayList<S3ObjectSelector>();
+    private HedgedRequests hedger;
+    private S3DownloadCache cache;
 
     /**
      * Specify the name of your S3 bucket
@@ -95,6 +117,197 @@ public class DownloadFileFromS3Task extends AWSAntTask {
         this.dir = dir;
     }
 
+    /**
+     * Specify a download cache directory. Optional. Objects are stored in
+     * this directory keyed by bucket, key and ETag, so builds that share the
+     * same cache directory only download each version of an object once. The
+     * cache may be shared by several builds running on the same machine at
+     * the same time.
+     * 
+     * @param cacheDir
+     *            The directory of the shared download cache
+     */
+    public void setCacheDir(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Set the maximum size of the download cache. Not required, default is
+     * 10240 (10 GB). When the task finishes, the least recently used entries
+     * are evicted until the cache fits. Zero disables eviction. Does nothing
+     * unless cacheDir is set.
+     * 
+     * @param cacheMaxSizeInMb
+     *            The maximum size of the download cache, in megabytes
+     */
+    public void setCacheMaxSizeInMb(long cacheMaxSizeInMb) {
+        this.cacheMaxSizeInMb = cacheMaxSizeInMb;
+    }
+
+    /**
+     * Set whether files are hard linked from the download cache rather than
+     * copied. Not required, default is true. Hard linked files share their
+     * contents with the cache entry, so they must not be modified in place.
+     * Does nothing unless cacheDir is set.
+     * 
+     * @param cacheLinks
+     *            Whether to hard link files from the download cache
+     */
+    public void setCacheLinks(boolean cacheLinks) {
+        this.cacheLinks = cacheLinks;
+    }
+
+    /**
+     * Specify the endpoint of an S3 caching proxy (see the s3-cache-proxy
+     * task), such as "http://cachehost:8080". Optional. If set, objects are
+     * downloaded through the proxy, while listings still go to S3 directly.
+     * 
+     * @param proxyEndpoint
+     *            The endpoint of the S3 caching proxy
+     */
+    public void setProxyEndpoint(String proxyEndpoint) {
+        this.proxyEndpoint = proxyEndpoint;
+    }
+
+    /**
+     * Set whether to hedge downloads. Not required, default is false. If
+     * true, a download whose first byte takes longer than hedgePercentile of
+     * the recent downloads is duplicated, the first copy to respond is kept
+     * and the other is aborted. Downloads served from the cache are not
+     * hedged.
+     * 
+     * @param hedge
+     *            Whether to hedge slow downloads
+     */
+    public void setHedge(boolean hedge) {
+        this.hedge = hedge;
+    }
+
+    /**
+     * Set the percentile of recent download latencies after which a download
+     * is duplicated. Not required, default is 95. Does nothing unless hedge is
+     * true.
+     * 
+     * @param hedgePercentile
+     *            The latency percentile, between 1 and 99
+     */
+    public void setHedgePercentile(int hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Set the maximum number of duplicate downloads, as a percentage of all
+     * downloads. Not required, default is 5. Does nothing unless hedge is true.
+     * 
+     * @param hedgeBudgetPercent
+     *            The percentage of extra requests hedging may send
+     */
+    public void setHedgeBudgetPercent(int hedgeBudgetPercent) {
+        this.hedgeBudgetPercent = hedgeBudgetPercent;
+    }
+
+    /**
+     * Set whether dir should mirror the objects with keyPrefix. Not required,
+     * default is false. If true, objects whose local file already has the
+     * same size and last modified time are not downloaded again, and files
+     * under dir/keyPrefix that have no corresponding object are deleted.
+     * Files elsewhere in dir are kept. Cannot be set if key is set.
+     * 
+     * @param mirror
+     *            Whether to mirror the objects with keyPrefix into dir
+     */
+    public void setMirror(boolean mirror) {
+        this.mirror = mirror;
+    }
+
+    /**
+     * Specify an S3 Inventory report to read the objects to download from,
+     * instead of listing the bucket. Optional. Only CSV reports are supported.
+     * 
+     * @param inventoryManifest
+     *            The manifest.json of the report, either as an
+     *            "s3://bucket/key" URL or as the path of a local copy
+     */
+    public void setInventoryManifest(String inventoryManifest) {
+        this.inventoryManifest = inventoryManifest;
+    }
+
+    /**
+     * Specify the directory holding the data files of a local inventory
+     * manifest. Not required, default is the directory of the manifest.
+     * 
+     * @param inventoryDataDir
+     *            The directory the data files were downloaded to
+     */
+    public void setInventoryDataDir(File inventoryDataDir) {
+        this.inventoryDataDir = inventoryDataDir;
+    }
+
+    /**
+     * Specify a local file listing the keys to download, instead of listing
+     * the bucket. Optional. The file has one key or one JSON object per line,
+     * or a JSON array of either. JSON objects have a "key" and may have a
+     * "size", "eTag", "lastModified" and "storageClass".
+     * 
+     * @param keyList
+     *            The key list file
+     */
+    public void setKeyList(File keyList) {
+        this.keyList = keyList;
+    }
+
+    /**
+     * Set how many key ranges of the bucket are listed at the same time. Not
+     * required, default is 1, which pages through the listing sequentially.
+     * Higher values split the key space and list the ranges concurrently,
+     * which is much faster for prefixes with millions of keys. Does nothing
+     * with inventoryManifest or keyList.
+     * 
+     * @param listThreads
+     *            The number of concurrent list requests
+     */
+    public void setListThreads(int listThreads) {
+        this.listThreads = listThreads;
+    }
+
+    /**
+     * Only download objects of a certain size. Cannot be nested if key is
+     * set.
+     */
+    public void addConfiguredSize(S3ObjectSelectors.Size size) {
+        addSelector(size);
+    }
+
+    /**
+     * Only download objects last modified within a certain window. Cannot be
+     * nested if key is set.
+     */
+    public void addConfiguredModified(S3ObjectSelectors.Modified modified) {
+        addSelector(modified);
+    }
+
+    /**
+     * Only download objects whose key matches a glob or regular expression.
+     * Cannot be nested if key is set.
+     */
+    public void addConfiguredKey(S3ObjectSelectors.Key key) {
+        addSelector(key);
+    }
+
+    /**
+     * Only download objects in certain storage classes. Cannot be nested if
+     * key is set.
+     */
+    public void addConfiguredStorageClass(
+            S3ObjectSelectors.StorageClass storageClass) {
+        addSelector(storageClass);
+    }
+
+    private void addSelector(S3ObjectSelector selector) {
+        selector.checkParams();
+        selectors.add(selector);
+    }
+
     public void checkParams() {
         boolean areMalformedParams = false;
         StringBuilder errors = new StringBuilder("");
@@ -106,9 +319,22 @@ public class DownloadFileFromS3Task extends AWSAntTask {
             areMalformedParams = true;
             errors.append("key and keyPrefix cannot both be set. You either want to download a single file, or all files with a certain prefix. \n");
         }
-        if (key == null && keyPrefix == null) {
+        boolean hasObjectSource = inventoryManifest != null || keyList != null;
+        if (key == null && keyPrefix == null && !hasObjectSource) {
+            areMalformedParams = true;
+            errors.append("Either key, keyPrefix, inventoryManifest or keyList must be set \n");
+        }
+        if (inventoryManifest != null && keyList != null) {
+            areMalformedParams = true;
+            errors.append("inventoryManifest and keyList cannot both be set. \n");
+        }
+        if (key != null && hasObjectSource) {
             areMalformedParams = true;
-            errors.append("Either key or keyPrefix must be set \n");
+            errors.append("key cannot be set with inventoryManifest or keyList. \n");
+        }
+        if (hasObjectSource && dir == null) {
+            areMalformedParams = true;
+            errors.append("If inventoryManifest or keyList is set, then dir must be set to specify what directory to download the files to. \n");
         }
         if (keyPrefix != null && file != null) {
             areMalformedParams = true;
@@ -118,14 +344,43 @@ public class DownloadFileFromS3Task extends AWSAntTask {
             areMalformedParams = true;
             errors.append("If keyPrefix is set, then dir must be set to specify what directory to download the files to. \n");
         }
+        if (!selectors.isEmpty() && key != null) {
+            areMalformedParams = true;
+            errors.append("Selectors cannot be nested if key is set. \n");
+        }
+        if (listThreads < 1) {
+            areMalformedParams = true;
+            errors.append("listThreads must be at least 1. \n");
+        }
+        if (mirror && key != null) {
+            areMalformedParams = true;
+            errors.append("mirror cannot be set if key is set. \n");
+        }
         if (areMalformedParams) {
             throw new BuildException(errors.toString());
         }
     }
 
-    private void downloadObjectToFile(AmazonS3Client client, File file, String key) {
+    private void downloadObjectToFile(AmazonS3Client client, File file,
+            String key, String eTag) {
         System.out.println("Downloading S3Object with key " + key
                 + " from bucket " + bucketName + " to file " + file + "...");
+        if (cache != null) {
+            try {
+                if (cache.fetch(client, bucketName, key, eTag, file)) {
+                    System.out.println("Download successful (from cache)");
+                } else {
+                    System.out.println("Download successful");
+                }
+                return;
+            } catch (BuildException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new BuildException(
+                        "Exception while trying to download object: "
+                                + e.getMessage(), e);
+            }
+        }
         try {
             if (file.getParentFile() != null) {
                 file.getParentFile().mkdirs();
@@ -137,7 +392,19 @@ public class DownloadFileFromS3Task extends AWSAntTask {
                             + e.getMessage());
         }
         try {
-            client.getObject(new GetObjectRequest(bucketName, key), file);
+            if (hedger != null) {
+                S3Object object = hedger.execute(new HedgedDownload(client,
+                        key));
+                S3ObjectInputStream content = object.getObjectContent();
+                try {
+                    Files.copy(content, file.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    content.close();
+                }
+            } else {
+                client.getObject(new GetObjectRequest(bucketName, key), file);
+            }
         } catch (Exception e) {
             throw new BuildException(
                     "Exception while trying to download object: "
@@ -146,33 +413,223 @@ public class DownloadFileFromS3Task extends AWSAntTask {
         System.out.println("Download successful");
     }
 
+    @Override
+    protected int getTransferConcurrency() {
+        // One download, and its hedge
+        return listThreads + (hedge ? 2 : 1);
+    }
+
     public void execute() {
+        checkParams();
         AmazonS3Client client = getOrCreateClient(AmazonS3Client.class);
+        AmazonS3Client downloadClient = client;
+        if (proxyEndpoint != null) {
+            downloadClient = createClient(AmazonS3Client.class);
+            downloadClient.setEndpoint(proxyEndpoint);
+            downloadClient.setS3ClientOptions(S3ClientOptions.builder()
+                    .setPathStyleAccess(true).build());
+        }
+        if (cacheDir != null) {
+            cache = new S3DownloadCache(cacheDir, cacheMaxSizeInMb * 1024 * 1024);
+            cache.setUseLinks(cacheLinks);
+        }
+        if (hedge) {
+            hedger = new HedgedRequests(hedgePercentile, hedgeBudgetPercent);
+        }
+        try {
+            download(client, downloadClient);
+        } finally {
+            if (cache != null) {
+                cache.trim();
+            }
+            if (hedger != null) {
+                System.out.println("Hedged downloads: " + hedger.getSummary());
+                hedger.shutdown();
+            }
+            if (downloadClient != client) {
+                downloadClient.shutdown();
+            }
+        }
+    }
+
+    private void download(AmazonS3Client client, AmazonS3Client downloadClient) {
         if (key != null) {
             File targetFile = file == null ? new File(key) : file;
-            downloadObjectToFile(client, targetFile, key);
+            downloadObjectToFile(downloadClient, targetFile, key, null);
         } else {
-            ObjectListing objectListing = client.listObjects(bucketName);
-
-            while (true) {
-                for (Iterator<?> iterator = objectListing.getObjectSummaries()
-                        .iterator(); iterator.hasNext();) {
-                    S3ObjectSummary objectSummary = (S3ObjectSummary) iterator
-                            .next();
-                    String key = objectSummary.getKey();
-                    if (key.startsWith(keyPrefix)) {
-                        downloadObjectToFile(client, new File(dir
-                                + File.pathSeparator + key), key);
-                    }
+            String prefix = keyPrefix == null ? "" : keyPrefix;
+            S3ObjectSource source;
+            S3ListingSnapshot snapshot = S3ListingSnapshots.find(getProject(),
+                    bucketName, prefix);
+            if (inventoryManifest != null) {
+                source = new S3InventoryObjectSource(client, inventoryManifest,
+                        inventoryDataDir, bucketName, prefix);
+            } else if (keyList != null) {
+                source = new S3KeyListObjectSource(keyList, bucketName, prefix);
+            } else if (snapshot != null) {
+                source = snapshot.withPrefix(prefix);
+            } else if (listThreads > 1) {
+                source = new S3ParallelListingObjectSource(client, bucketName,
+                        prefix, listThreads, false);
+            } else {
+                source = new S3ListingObjectSource(client, bucketName, prefix);
+            }
+            PrefixDownload prefixDownload = new PrefixDownload(downloadClient);
+            try {
+                source.forEachObject(prefixDownload);
+            } catch (IOException e) {
+                throw new BuildException("Unable to read the objects to download: "
+                        + e.getMessage(), e);
+            }
+
+            if (!selectors.isEmpty()) {
+                System.out.println("Skipped " + prefixDownload.unselected
+                        + " objects not matching the selectors");
+            }
+            if (mirror) {
+                // Only files whose path starts with the prefix can be
+                // objects with the prefix
+                int slash = prefix.lastIndexOf('/');
+                int deleted = deleteStaleFiles(
+                        new File(dir, prefix.substring(0, slash + 1))
+                                .getAbsoluteFile(), prefix.substring(slash + 1),
+                        prefixDownload.mirroredFiles);
+                System.out.println("Mirrored "
+                        + prefixDownload.mirroredFiles.size() + " objects to "
+                        + dir + ": " + prefixDownload.unchanged
+                        + " unchanged, " + deleted + " stale files deleted");
+            }
+        }
+    }
+
+    /**
+     * Downloads each selected object of a source into dir.
+     */
+    private class PrefixDownload implements S3ObjectSource.Handler {
+        private final AmazonS3Client downloadClient;
+        private final Set<File> mirroredFiles = new HashSet<File>();
+        private int unchanged;
+        private int unselected;
+
+        PrefixDownload(AmazonS3Client downloadClient) {
+            this.downloadClient = downloadClient;
+        }
+
+        public void handle(S3ObjectSummary objectSummary) {
+            String key = objectSummary.getKey();
+            if (key.endsWith("/")) {
+                return;
+            }
+            if (!S3ObjectSelectors.isSelected(selectors, objectSummary)) {
+                unselected++;
+                return;
+            }
+            File targetFile = new File(dir, key);
+            if (mirror) {
+                mirroredFiles.add(targetFile.getAbsoluteFile());
+                if (isUpToDate(targetFile, objectSummary)) {
+                    unchanged++;
+                    return;
                 }
+            }
+            downloadObjectToFile(downloadClient, targetFile, key,
+                    objectSummary.getETag());
+            if (mirror && objectSummary.getLastModified() != null) {
+                targetFile.setLastModified(objectSummary.getLastModified()
+                        .getTime());
+            }
+        }
+    }
 
-                if (objectListing.isTruncated()) {
-                    objectListing = client
-                            .listNextBatchOfObjects(objectListing);
-                } else {
-                    break;
+    /**
+     * A mirrored file is up to date if it has the size of the object, and the
+     * last modified time it was given when it was downloaded. S3 only keeps
+     * last modified times to the second.
+     */
+    private boolean isUpToDate(File file, S3ObjectSummary objectSummary) {
+        return file.isFile()
+                && objectSummary.getLastModified() != null
+                && file.length() == objectSummary.getSize()
+                && file.lastModified() / 1000 == objectSummary
+                        .getLastModified().getTime() / 1000;
+    }
+
+    /**
+     * Deletes the files under directory that aren't mirrored, and the
+     * directories left empty.
+     * 
+     * @param namePrefix
+     *            The prefix of the names of the files and directories of
+     *            directory to look in
+     * @return The number of files deleted
+     */
+    private int deleteStaleFiles(File directory, String namePrefix,
+            Set<File> mirroredFiles) {
+        int deleted = 0;
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return 0;
+        }
+        for (File child : children) {
+            if (!child.getName().startsWith(namePrefix)) {
+                continue;
+            }
+            if (child.isDirectory()) {
+                deleted += deleteStaleFiles(child, "", mirroredFiles);
+                String[] remaining = child.list();
+                if (remaining != null && remaining.length == 0) {
+                    child.delete();
                 }
+            } else if (!mirroredFiles.contains(child)) {
+                System.out.println("Deleting stale file " + child);
+                if (!child.delete()) {
+                    throw new BuildException("Unable to delete stale file "
+                            + child);
+                }
+                deleted++;
             }
         }
+        return deleted;
+    }
+
+    /**
+     * Sends the GET of an object, returning once the response headers arrive.
+     * Only the time to the first byte is hedged, so the latency samples don't
+     * depend on object sizes; the body is read by the caller.
+     */
+    private class HedgedDownload implements HedgedRequests.Request<S3Object> {
+        private final AmazonS3Client client;
+        private final String key;
+
+        HedgedDownload(AmazonS3Client client, String key) {
+            this.client = client;
+            this.key = key;
+        }
+
+        public HedgedRequests.Attempt<S3Object> newAttempt() {
+            return new HedgedRequests.Attempt<S3Object>() {
+                private volatile boolean aborted;
+
+                public S3Object call() throws Exception {
+                    S3Object object = client.getObject(new GetObjectRequest(
+                            bucketName, key));
+                    if (aborted) {
+                        discard(object);
+                        throw new IOException("Download aborted");
+                    }
+                    return object;
+                }
+
+                public void abort() {
+                    // The SDK aborts the request when the thread is
+                    // interrupted
+                    aborted = true;
+                }
+
+                public void discard(S3Object object) {
+                    object.getObjectContent().abort();
+                }
+            };
+        }
     }
 }
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs idempotent requests with hedging to cut tail latency. If a request
+ * hasn't finished after the configured percentile of recently observed
+ * latencies, a duplicate is issued; whichever finishes first wins and the
+ * other is aborted. A budget caps the number of duplicates as a fraction of all
+ * requests, so a slow service doesn't get twice the load.
+ * <p>
+ * Hedging only starts once enough latencies have been observed to compute a
+ * meaningful percentile. Since the latency of an attempt is the time its
+ * {@link Attempt#call()} takes, attempts should only cover the part of a
+ * request whose duration doesn't depend on its size, such as waiting for the
+ * first byte of a download, and leave transferring the body to the caller.
+ */
+public class HedgedRequests {
+
+    private static final int SAMPLE_COUNT = 256;
+    private static final int MIN_SAMPLES = 20;
+
+    /**
+     * One try of a hedged request. A new attempt is created for the original
+     * request and for each duplicate, so they may run concurrently.
+     */
+    public interface Attempt<T> extends Callable<T> {
+
+        /**
+         * Aborts this attempt from another thread because the other attempt
+         * won. Should make a blocked {@link #call()} return promptly.
+         */
+        void abort();
+
+        /**
+         * Releases the result of this attempt if it completed but lost. Called
+         * on whichever thread notices, possibly the one that ran the attempt.
+         */
+        void discard(T result);
+    }
+
+    /**
+     * Creates the attempts of one hedged request.
+     */
+    public interface Request<T> {
+        Attempt<T> newAttempt();
+    }
+
+    private final ExecutorService executor;
+    private final double percentile;
+    private final double budget;
+    private final long[] samples = new long[SAMPLE_COUNT];
+    private int sampleCount;
+    private int nextSample;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * @param percentilePercent
+     *            The latency percentile after which a duplicate is issued,
+     *            e.g. 95
+     * @param budgetPercent
+     *            The maximum number of duplicates, as a percentage of all
+     *            requests, e.g. 5
+     */
+    public HedgedRequests(int percentilePercent, int budgetPercent) {
+        this.percentile = percentilePercent / 100.0;
+        this.budget = budgetPercent / 100.0;
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hedged-request");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Runs the given request, hedging it if it is slow. Blocks until an
+     * attempt succeeds, or until all attempts have failed.
+     *
+     * @return The result of the first successful attempt
+     * @throws Exception
+     *             The failure of the last attempt, if none succeeded
+     */
+    public <T> T execute(Request<T> request) throws Exception {
+        requests.incrementAndGet();
+        CompletionService<T> completion = new ExecutorCompletionService<T>(
+                executor);
+        long start = System.nanoTime();
+        Running<T> primary = new Running<T>(request.newAttempt());
+        Future<T> primaryFuture = completion.submit(primary);
+        Running<T> hedge = null;
+        Future<T> hedgeFuture = null;
+
+        long delay = hedgeDelayInNanos();
+        Future<T> done = delay < 0 ? null : completion.poll(delay,
+                TimeUnit.NANOSECONDS);
+        if (done == null && delay >= 0 && acquireHedge()) {
+            hedge = new Running<T>(request.newAttempt());
+            hedgeFuture = completion.submit(hedge);
+        }
+
+        int pending = hedgeFuture == null ? 1 : 2;
+        ExecutionException failure = null;
+        try {
+            while (pending > 0) {
+                if (done == null) {
+                    done = completion.take();
+                }
+                pending--;
+                try {
+                    T result = done.get();
+                    boolean hedgeWon = done == hedgeFuture;
+                    if (hedgeWon) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    record(System.nanoTime() - start);
+                    if (pending > 0) {
+                        if (hedgeWon) {
+                            cancel(primary, primaryFuture);
+                        } else {
+                            cancel(hedge, hedgeFuture);
+                        }
+                    }
+                    return result;
+                } catch (ExecutionException e) {
+                    failure = e;
+                    done = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            cancel(primary, primaryFuture);
+            if (hedgeFuture != null) {
+                cancel(hedge, hedgeFuture);
+            }
+            throw e;
+        }
+        Throwable cause = failure.getCause();
+        if (cause instanceof Exception) {
+            throw (Exception) cause;
+        }
+        throw failure;
+    }
+
+    /**
+     * @return A one-line summary of how many requests were hedged
+     */
+    public String getSummary() {
+        return requests.get() + " requests, " + hedges.get()
+                + " hedged, " + hedgeWins.get() + " won by the duplicate";
+    }
+
+    /**
+     * Stops the threads running attempts.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private <T> void cancel(Running<T> running, Future<T> future) {
+        if (running.abandon()) {
+            // It finished before it was abandoned, so release what it produced
+            try {
+                running.attempt.discard(future.get());
+            } catch (Exception e) {
+                // A failed loser has nothing to release
+            }
+        } else {
+            // It releases its own result if it still completes
+            running.attempt.abort();
+            future.cancel(true);
+        }
+    }
+
+    private boolean acquireHedge() {
+        while (true) {
+            long current = hedges.get();
+            if (current + 1 > budget * requests.get()) {
+                return false;
+            }
+            if (hedges.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Runs an attempt, and releases its result itself if the attempt was
+     * abandoned by the time it completed, so the result of a losing attempt is
+     * always released exactly once.
+     */
+    private static class Running<T> implements Callable<T> {
+        private final Attempt<T> attempt;
+        private boolean completed;
+        private boolean abandoned;
+
+        Running(Attempt<T> attempt) {
+            this.attempt = attempt;
+        }
+
+        public T call() throws Exception {
+            T result = attempt.call();
+            synchronized (this) {
+                if (!abandoned) {
+                    completed = true;
+                    return result;
+                }
+            }
+            attempt.discard(result);
+            throw new CancellationException("Attempt lost");
+        }
+
+        /**
+         * @return Whether the attempt had already completed, in which case the
+         *         caller must release its result
+         */
+        synchronized boolean abandon() {
+            abandoned = true;
+            return completed;
+        }
+    }
+
+    /**
+     * @return The delay after which a request is hedged, or -1 if too few
+     *         latencies have been observed yet
+     */
+    private synchronized long hedgeDelayInNanos() {
+        if (sampleCount < MIN_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sampleCount) - 1;
+        return sorted[Math.max(0, Math.min(index, sampleCount - 1))];
+    }
+
+    private synchronized void record(long latencyInNanos) {
+        samples[nextSample] = latencyInNanos;
+        nextSample = (nextSample + 1) % SAMPLE_COUNT;
+        if (sampleCount < SAMPLE_COUNT) {
+            sampleCount++;
+        }
+    }
+}
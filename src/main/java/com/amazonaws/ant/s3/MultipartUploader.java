@@ -0,0 +1,407 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.util.Md5Utils;
+
+/**
+ * Uploads files to S3, splitting large files into parts that are uploaded
+ * concurrently. Every PUT is read from a buffer that is filled once, so
+ * single-object PUTs and part uploads can be hedged with {@link HedgedRequests}
+ * and safely sent twice. The same buffers can be sent to several buckets, so a
+ * file replicated to several regions is only read once.
+ */
+public class MultipartUploader {
+
+    private final HedgedRequests hedger;
+    private final ExecutorService partExecutor;
+    private final long partSize;
+    private final ExecutorService fanOutExecutor = Executors
+            .newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "upload-fan-out");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * @param hedger
+     *            Hedges each PUT if not null
+     * @param partExecutor
+     *            Runs the part uploads of large files
+     * @param partSize
+     *            The size of each part, which is also the size above which
+     *            files are uploaded in parts. At least 5 MB.
+     */
+    public MultipartUploader(HedgedRequests hedger,
+            ExecutorService partExecutor, long partSize) {
+        this.hedger = hedger;
+        this.partExecutor = partExecutor;
+        this.partSize = partSize;
+    }
+
+    /**
+     * Uploads a file to several buckets, blocking until it is complete in all
+     * of them. Each part is read and hashed once, and its buffer is sent to
+     * all targets concurrently. A target that fails doesn't stop the others;
+     * its multipart upload is aborted, so no parts are left behind.
+     *
+     * @return The failure of each target, in the order of the targets, or
+     *         null for the targets the file was uploaded to
+     */
+    public List<Exception> upload(List<Target> targets, String key,
+            File file, ObjectMetadata metadata, CannedAccessControlList acl)
+            throws InterruptedException {
+        AtomicReferenceArray<Exception> failures = new AtomicReferenceArray<Exception>(
+                targets.size());
+        long length = file.length();
+        if (length <= partSize) {
+            byte[] content;
+            try {
+                content = readPart(file, 0, (int) length);
+            } catch (IOException e) {
+                return Collections.<Exception> nCopies(targets.size(), e);
+            }
+            metadata.setContentLength(content.length);
+            metadata.setContentMD5(Md5Utils.md5AsBase64(content));
+            List<Callable<Object>> puts = new ArrayList<Callable<Object>>();
+            for (Target target : targets) {
+                puts.add(newPutObject(target, key, content, metadata, acl));
+            }
+            fanOut(puts, failures);
+            return toList(failures);
+        }
+
+        final String[] uploadIds = new String[targets.size()];
+        for (int i = 0; i < targets.size(); i++) {
+            Target target = targets.get(i);
+            try {
+                uploadIds[i] = target.client.initiateMultipartUpload(
+                        new InitiateMultipartUploadRequest(target.bucketName,
+                                key, metadata).withCannedACL(acl))
+                        .getUploadId();
+            } catch (Exception e) {
+                failures.set(i, e);
+            }
+        }
+        if (!toList(failures).contains(null)) {
+            return toList(failures);
+        }
+        List<Future<List<PartETag>>> parts = new ArrayList<Future<List<PartETag>>>();
+        try {
+            int partNumber = 1;
+            for (long offset = 0; offset < length; offset += partSize) {
+                parts.add(partExecutor.submit(newPartUpload(targets, key,
+                        uploadIds, failures, file, partNumber++, offset,
+                        (int) Math.min(partSize, length - offset))));
+            }
+            List<List<PartETag>> partETags = new ArrayList<List<PartETag>>();
+            for (int i = 0; i < targets.size(); i++) {
+                partETags.add(new ArrayList<PartETag>());
+            }
+            for (Future<List<PartETag>> part : parts) {
+                List<PartETag> partETag;
+                try {
+                    partETag = get(part);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    // Reading the file failed, which fails every target
+                    for (int i = 0; i < targets.size(); i++) {
+                        failures.compareAndSet(i, null, e);
+                    }
+                    break;
+                }
+                for (int i = 0; i < targets.size(); i++) {
+                    partETags.get(i).add(partETag.get(i));
+                }
+            }
+            for (int i = 0; i < targets.size(); i++) {
+                if (failures.get(i) != null) {
+                    continue;
+                }
+                Target target = targets.get(i);
+                try {
+                    target.client
+                            .completeMultipartUpload(new CompleteMultipartUploadRequest(
+                                    target.bucketName, key, uploadIds[i],
+                                    partETags.get(i)));
+                } catch (Exception e) {
+                    failures.set(i, e);
+                }
+            }
+        } finally {
+            for (Future<List<PartETag>> part : parts) {
+                part.cancel(true);
+            }
+            for (int i = 0; i < targets.size(); i++) {
+                if (uploadIds[i] != null && failures.get(i) != null) {
+                    abort(targets.get(i), key, uploadIds[i]);
+                }
+            }
+        }
+        return toList(failures);
+    }
+
+    /**
+     * Stops the threads sending buffers to several targets.
+     */
+    public void shutdown() {
+        fanOutExecutor.shutdownNow();
+    }
+
+    /**
+     * Reads one part and uploads it to every target that hasn't failed yet.
+     * Returns the ETag of the part in each target, or null for failed ones.
+     */
+    private Callable<List<PartETag>> newPartUpload(final List<Target> targets,
+            final String key, final String[] uploadIds,
+            final AtomicReferenceArray<Exception> failures, final File file,
+            final int partNumber, final long offset, final int size) {
+        return new Callable<List<PartETag>>() {
+            public List<PartETag> call() throws Exception {
+                final byte[] content = readPart(file, offset, size);
+                final String md5 = Md5Utils.md5AsBase64(content);
+                final PartETag[] partETags = new PartETag[targets.size()];
+                List<Callable<Object>> uploads = new ArrayList<Callable<Object>>();
+                for (int i = 0; i < targets.size(); i++) {
+                    final Target target = targets.get(i);
+                    final String uploadId = uploadIds[i];
+                    final int index = i;
+                    uploads.add(new Callable<Object>() {
+                        public Object call() throws Exception {
+                            if (failures.get(index) != null) {
+                                return null;
+                            }
+                            partETags[index] = execute(new HedgedRequests.Request<PartETag>() {
+                                public HedgedRequests.Attempt<PartETag> newAttempt() {
+                                    return new PutAttempt<PartETag>() {
+                                        public PartETag call() {
+                                            return target.client.uploadPart(
+                                                    new UploadPartRequest()
+                                                            .withBucketName(target.bucketName)
+                                                            .withKey(key)
+                                                            .withUploadId(uploadId)
+                                                            .withPartNumber(partNumber)
+                                                            .withPartSize(size)
+                                                            .withMD5Digest(md5)
+                                                            .withInputStream(
+                                                                    new ByteArrayInputStream(
+                                                                            content)))
+                                                    .getPartETag();
+                                        }
+                                    };
+                                }
+                            });
+                            return null;
+                        }
+                    });
+                }
+                fanOut(uploads, failures);
+                return Arrays.asList(partETags);
+            }
+        };
+    }
+
+    private Callable<Object> newPutObject(final Target target,
+            final String key, final byte[] content,
+            final ObjectMetadata metadata, final CannedAccessControlList acl) {
+        return new Callable<Object>() {
+            public Object call() throws Exception {
+                return execute(new HedgedRequests.Request<Object>() {
+                    public HedgedRequests.Attempt<Object> newAttempt() {
+                        return new PutAttempt<Object>() {
+                            public Object call() {
+                                return target.client
+                                        .putObject(new PutObjectRequest(
+                                                target.bucketName, key,
+                                                new ByteArrayInputStream(
+                                                        content), metadata
+                                                        .clone())
+                                                .withCannedAcl(acl));
+                            }
+                        };
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Runs one request per target, concurrently if there are several, and
+     * records the failure of each target.
+     */
+    private void fanOut(List<Callable<Object>> requests,
+            AtomicReferenceArray<Exception> failures)
+            throws InterruptedException {
+        if (requests.size() == 1) {
+            try {
+                requests.get(0).call();
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                failures.compareAndSet(0, null, e);
+            }
+            return;
+        }
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        try {
+            for (Callable<Object> request : requests) {
+                futures.add(fanOutExecutor.submit(request));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    get(futures.get(i));
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    failures.compareAndSet(i, null, e);
+                }
+            }
+        } finally {
+            for (Future<Object> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void abort(Target target, String key, String uploadId) {
+        try {
+            target.client.abortMultipartUpload(new AbortMultipartUploadRequest(
+                    target.bucketName, key, uploadId));
+        } catch (Exception e) {
+            System.err.println("Failed to abort the upload of " + key + " to "
+                    + target.bucketName + ": " + e);
+        }
+    }
+
+    private <T> T execute(HedgedRequests.Request<T> request) throws Exception {
+        if (hedger != null) {
+            return hedger.execute(request);
+        }
+        return request.newAttempt().call();
+    }
+
+    private static List<Exception> toList(
+            AtomicReferenceArray<Exception> failures) {
+        List<Exception> list = new ArrayList<Exception>();
+        for (int i = 0; i < failures.length(); i++) {
+            list.add(failures.get(i));
+        }
+        return list;
+    }
+
+    static byte[] readPart(File file, long offset, int size) throws IOException {
+        byte[] content = new byte[size];
+        InputStream in = new FileInputStream(file);
+        try {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = in.skip(offset - skipped);
+                if (n <= 0) {
+                    throw new IOException("Unexpected end of file " + file);
+                }
+                skipped += n;
+            }
+            int read = 0;
+            while (read < size) {
+                int n = in.read(content, read, size - read);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of file " + file);
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+    private static <T> T get(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * A bucket to upload to, with the client for its region.
+     */
+    public static class Target {
+        private final AmazonS3 client;
+        private final String bucketName;
+
+        public Target(AmazonS3 client, String bucketName) {
+            this.client = client;
+            this.bucketName = bucketName;
+        }
+
+        public AmazonS3 getClient() {
+            return client;
+        }
+
+        public String getBucketName() {
+            return bucketName;
+        }
+    }
+
+    /**
+     * A PUT attempt. Its request body is read from a buffer, so the SDK aborts
+     * it when the thread running it is interrupted.
+     */
+    private abstract static class PutAttempt<T> implements
+            HedgedRequests.Attempt<T> {
+
+        public void abort() {
+            // Interrupting the thread aborts the request
+        }
+
+        public void discard(T result) {
+            // The duplicate wrote the same content
+        }
+    }
+}
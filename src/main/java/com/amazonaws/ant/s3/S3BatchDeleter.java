@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+
+/**
+ * Deletes objects with DeleteObjects requests of up to 1000 keys, sent
+ * concurrently. Keys that a request fails to delete are retried with backoff.
+ * At most two batches per thread are held in memory, so {@link #delete} blocks
+ * when deletion falls behind. Finished batches are collected as new ones are
+ * submitted, and a batch that fails other than by keys failing to delete stops
+ * the deletion at the next submit.
+ */
+public class S3BatchDeleter {
+
+    static final int MAX_BATCH_SIZE = 1000;
+    private static final long BASE_BACKOFF_IN_MS = 200;
+
+    private final AmazonS3 client;
+    private final String bucketName;
+    private final int maxRetries;
+    private final ExecutorService executor;
+    private final Semaphore batchesInFlight;
+    private final List<Future<List<DeleteError>>> futures = new ArrayList<Future<List<DeleteError>>>();
+    private final AtomicLong deleted = new AtomicLong();
+    private int failedCount;
+    private DeleteError firstFailure;
+    private List<KeyVersion> batch = new ArrayList<KeyVersion>();
+
+    /**
+     * @param threads
+     *            The number of DeleteObjects requests sent at the same time
+     * @param maxRetries
+     *            The number of times keys that failed to delete are retried
+     */
+    public S3BatchDeleter(AmazonS3 client, String bucketName, int threads,
+            int maxRetries) {
+        this.client = client;
+        this.bucketName = bucketName;
+        this.maxRetries = maxRetries;
+        this.batchesInFlight = new Semaphore(threads * 2);
+        this.executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "s3-deleter");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Queues a key, or a version of a key, for deletion.
+     * 
+     * @throws BuildException
+     *             If a batch failed other than by keys failing to delete
+     */
+    public void delete(KeyVersion keyVersion) {
+        batch.add(keyVersion);
+        if (batch.size() == MAX_BATCH_SIZE) {
+            submit();
+        }
+    }
+
+    /**
+     * Deletes the queued keys and waits for every batch to finish.
+     * 
+     * @return The number of keys deleted
+     * @throws BuildException
+     *             If some keys couldn't be deleted after all retries
+     */
+    public long finish() {
+        if (!batch.isEmpty()) {
+            submit();
+        }
+        try {
+            for (Future<List<DeleteError>> future : futures) {
+                collect(future);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failedCount > 0) {
+            throw new BuildException(failedCount
+                    + " objects could not be deleted, such as "
+                    + firstFailure.getKey() + ": " + firstFailure.getCode()
+                    + " " + firstFailure.getMessage());
+        }
+        return deleted.get();
+    }
+
+    /**
+     * Stops deleting, without waiting for the batches in progress.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void submit() {
+        Iterator<Future<List<DeleteError>>> finished = futures.iterator();
+        while (finished.hasNext()) {
+            Future<List<DeleteError>> future = finished.next();
+            if (future.isDone()) {
+                try {
+                    collect(future);
+                } catch (BuildException e) {
+                    executor.shutdownNow();
+                    throw e;
+                }
+                finished.remove();
+            }
+        }
+        final List<KeyVersion> keys = batch;
+        batch = new ArrayList<KeyVersion>();
+        try {
+            batchesInFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while deleting objects");
+        }
+        futures.add(executor.submit(new Callable<List<DeleteError>>() {
+            public List<DeleteError> call() throws Exception {
+                try {
+                    return deleteWithRetries(keys);
+                } finally {
+                    batchesInFlight.release();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Waits for a batch, and records the keys it failed to delete.
+     * 
+     * @throws BuildException
+     *             If the batch failed other than by keys failing to delete
+     */
+    private void collect(Future<List<DeleteError>> future) {
+        List<DeleteError> errors;
+        try {
+            errors = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while deleting objects");
+        } catch (ExecutionException e) {
+            throw new BuildException("Unable to delete objects: "
+                    + e.getCause().getMessage(), e.getCause());
+        }
+        if (!errors.isEmpty() && firstFailure == null) {
+            firstFailure = errors.get(0);
+        }
+        failedCount += errors.size();
+    }
+
+    /**
+     * @return The errors of the keys that still failed after all retries
+     */
+    private List<DeleteError> deleteWithRetries(List<KeyVersion> keys)
+            throws InterruptedException {
+        for (int attempt = 0;; attempt++) {
+            try {
+                client.deleteObjects(new DeleteObjectsRequest(bucketName)
+                        .withKeys(keys).withQuiet(true));
+                deleted.addAndGet(keys.size());
+                return new ArrayList<DeleteError>();
+            } catch (MultiObjectDeleteException e) {
+                deleted.addAndGet(keys.size() - e.getErrors().size());
+                if (attempt == maxRetries) {
+                    return e.getErrors();
+                }
+                keys = new ArrayList<KeyVersion>();
+                for (DeleteError error : e.getErrors()) {
+                    keys.add(new KeyVersion(error.getKey(), error
+                            .getVersionId()));
+                }
+            }
+            Thread.sleep(BASE_BACKOFF_IN_MS << attempt);
+        }
+    }
+}
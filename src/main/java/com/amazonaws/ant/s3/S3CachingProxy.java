@@ -0,0 +1,288 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.DateUtils;
+import com.amazonaws.util.IOUtils;
+import com.amazonaws.util.StringUtils;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small caching HTTP proxy for S3 object GETs, meant to be shared by the
+ * machines of a build farm. Clients address it as a path-style S3 endpoint
+ * (http://host:port/bucket/key). Objects are served from an
+ * {@link S3DownloadCache} and revalidated against S3 with a conditional GET on
+ * every request, so only changed objects are transferred from S3.
+ * <p>
+ * The proxy fetches from S3 with its own client and credentials; it does not
+ * check the signatures of incoming requests, so it must only be reachable from
+ * trusted machines. Only GET and HEAD requests on objects are supported, and
+ * requests with query parameters, such as versionId, are refused.
+ */
+public class S3CachingProxy {
+
+    private static final int NOT_MODIFIED = 304;
+
+    private final AmazonS3 upstream;
+    private final S3DownloadCache cache;
+    private final Map<String, ObjectMetadata> knownObjects = new ConcurrentHashMap<String, ObjectMetadata>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param upstream
+     *            The client used to fetch and revalidate objects in S3
+     * @param cache
+     *            The cache holding object contents
+     */
+    public S3CachingProxy(AmazonS3 upstream, S3DownloadCache cache) {
+        this.upstream = upstream;
+        this.cache = cache;
+    }
+
+    /**
+     * Starts serving requests on the given address.
+     *
+     * @param address
+     *            The address to listen on. Use port 0 to pick a free port.
+     * @param threads
+     *            The number of requests served concurrently
+     */
+    public void start(InetSocketAddress address, int threads)
+            throws IOException {
+        server = HttpServer.create(address, 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/", new ProxyHandler());
+        server.start();
+    }
+
+    /**
+     * Stops serving requests, waiting up to a second for in-flight requests
+     * to finish.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(1);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The port the proxy is listening on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return The number of GETs served from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of GETs whose contents had to be fetched from S3
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private class ProxyHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String path = exchange.getRequestURI().getPath();
+                int slash = path.indexOf('/', 1);
+                if (slash < 0 || slash == path.length() - 1) {
+                    sendError(exchange, 501, "NotImplemented",
+                            "Only object requests are supported");
+                    return;
+                }
+                if (exchange.getRequestURI().getRawQuery() != null) {
+                    sendError(exchange, 501, "NotImplemented",
+                            "Query parameters such as versionId are not supported");
+                    return;
+                }
+                String bucketName = path.substring(1, slash);
+                String key = path.substring(slash + 1);
+                String method = exchange.getRequestMethod();
+                if ("HEAD".equals(method)) {
+                    head(exchange, bucketName, key);
+                } else if ("GET".equals(method)) {
+                    get(exchange, bucketName, key);
+                } else {
+                    sendError(exchange, 405, "MethodNotAllowed",
+                            "Only GET and HEAD are supported");
+                }
+            } catch (AmazonServiceException e) {
+                sendError(exchange, e.getStatusCode(), e.getErrorCode(),
+                        e.getErrorMessage());
+            } catch (Exception e) {
+                sendError(exchange, 502, "BadGateway", e.getMessage());
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void head(HttpExchange exchange, String bucketName, String key)
+                throws IOException {
+            ObjectMetadata metadata = upstream.getObjectMetadata(bucketName,
+                    key);
+            setHeaders(exchange.getResponseHeaders(), metadata,
+                    metadata.getContentLength());
+            exchange.sendResponseHeaders(200, -1);
+        }
+
+        private void get(HttpExchange exchange, String bucketName, String key)
+                throws IOException {
+            String id = bucketName + "/" + key;
+            ObjectMetadata metadata = knownObjects.get(id);
+            FileInputStream entry = null;
+            if (metadata != null) {
+                entry = cache.lookup(bucketName, key, metadata.getETag());
+            }
+            try {
+                S3Object object;
+                if (entry != null) {
+                    object = upstream.getObject(new GetObjectRequest(
+                            bucketName, key)
+                            .withNonmatchingETagConstraint(metadata.getETag()));
+                } else {
+                    object = upstream.getObject(new GetObjectRequest(
+                            bucketName, key));
+                }
+
+                if (object == null) {
+                    // Not modified since it was cached
+                    hits.incrementAndGet();
+                } else {
+                    misses.incrementAndGet();
+                    if (entry != null) {
+                        entry.close();
+                        entry = null;
+                    }
+                    try {
+                        metadata = object.getObjectMetadata();
+                        entry = cache.store(bucketName, key,
+                                metadata.getETag(), object.getObjectContent());
+                    } finally {
+                        object.close();
+                    }
+                    knownObjects.put(id, metadata);
+                }
+
+                // The entry stays readable through the open stream, even if
+                // the cache is trimmed meanwhile
+                long length = entry.getChannel().size();
+                setHeaders(exchange.getResponseHeaders(), metadata, length);
+                String ifNoneMatch = exchange.getRequestHeaders().getFirst(
+                        "If-None-Match");
+                if (ifNoneMatch != null
+                        && ifNoneMatch.equals(quote(metadata.getETag()))) {
+                    exchange.sendResponseHeaders(NOT_MODIFIED, -1);
+                    return;
+                }
+                exchange.sendResponseHeaders(200, length == 0 ? -1 : length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    IOUtils.copy(entry, out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                if (entry != null) {
+                    entry.close();
+                }
+            }
+        }
+
+        private void setHeaders(Headers headers, ObjectMetadata metadata,
+                long length) {
+            headers.set("ETag", quote(metadata.getETag()));
+            headers.set("Content-Length", String.valueOf(length));
+            if (metadata.getContentType() != null) {
+                headers.set("Content-Type", metadata.getContentType());
+            }
+            if (metadata.getContentEncoding() != null) {
+                headers.set("Content-Encoding", metadata.getContentEncoding());
+            }
+            if (metadata.getCacheControl() != null) {
+                headers.set("Cache-Control", metadata.getCacheControl());
+            }
+            if (metadata.getLastModified() != null) {
+                headers.set("Last-Modified",
+                        DateUtils.formatRFC822Date(metadata.getLastModified()));
+            }
+            for (Map.Entry<String, String> userMetadata : metadata
+                    .getUserMetadata().entrySet()) {
+                headers.set("x-amz-meta-" + userMetadata.getKey(),
+                        userMetadata.getValue());
+            }
+        }
+
+        private void sendError(HttpExchange exchange, int status,
+                String code, String message) throws IOException {
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                    + "<Error><Code>" + escape(code) + "</Code><Message>"
+                    + escape(message) + "</Message></Error>")
+                    .getBytes(StringUtils.UTF8);
+            exchange.getResponseHeaders().set("Content-Type",
+                    "application/xml");
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+        }
+
+        private String escape(String text) {
+            return text == null ? "" : text.replace("&", "&amp;")
+                    .replace("<", "&lt;").replace(">", "&gt;")
+                    .replace("\"", "&quot;");
+        }
+
+        private String quote(String eTag) {
+            return "\"" + eTag + "\"";
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+/**
+ * Ant task that runs an {@link S3CachingProxy} until the build is interrupted.
+ * Point download-from-s3 tasks on other machines at it with their
+ * proxyEndpoint attribute.
+ */
+public class S3CachingProxyTask extends AWSAntTask {
+
+    private static final long TRIM_PERIOD_IN_MS = 60 * 1000;
+
+    private File cacheDir;
+    private long cacheMaxSizeInMb = 10240;
+    private String bindAddress;
+    private int port = 8080;
+    private int threads = 16;
+
+    /**
+     * Specify the directory the proxy caches objects in. Required. It must
+     * not be used as the cacheDir of download-from-s3 tasks that download
+     * through this proxy.
+     *
+     * @param cacheDir
+     *            The cache directory
+     */
+    public void setCacheDir(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Set the maximum size of the cache. Not required, default is 10240 (10
+     * GB). The least recently used objects are evicted every minute until the
+     * cache fits.
+     *
+     * @param cacheMaxSizeInMb
+     *            The maximum size of the cache, in megabytes
+     */
+    public void setCacheMaxSizeInMb(long cacheMaxSizeInMb) {
+        this.cacheMaxSizeInMb = cacheMaxSizeInMb;
+    }
+
+    /**
+     * Set the address to listen on. Not required, by default the proxy
+     * listens on all interfaces.
+     *
+     * @param bindAddress
+     *            The address to listen on
+     */
+    public void setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    /**
+     * Set the port to listen on. Not required, default is 8080.
+     *
+     * @param port
+     *            The port to listen on
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Set how many requests are served concurrently. Not required, default
+     * is 16.
+     *
+     * @param threads
+     *            The number of requests served concurrently
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    private void checkParams() {
+        if (cacheDir == null) {
+            throw new BuildException("Missing parameter: cacheDir is required");
+        }
+    }
+
+    @Override
+    protected int getTransferConcurrency() {
+        return threads;
+    }
+
+    public void execute() {
+        checkParams();
+        S3DownloadCache cache = new S3DownloadCache(cacheDir,
+                cacheMaxSizeInMb * 1024 * 1024);
+        S3CachingProxy proxy = new S3CachingProxy(
+                getOrCreateClient(AmazonS3Client.class), cache);
+        InetSocketAddress address = bindAddress == null ? new InetSocketAddress(
+                port) : new InetSocketAddress(bindAddress, port);
+        try {
+            proxy.start(address, threads);
+        } catch (IOException e) {
+            throw new BuildException("Unable to start the S3 caching proxy: "
+                    + e.getMessage(), e);
+        }
+        System.out.println("S3 caching proxy listening on port "
+                + proxy.getPort() + "...");
+        try {
+            while (true) {
+                Thread.sleep(TRIM_PERIOD_IN_MS);
+                cache.trim();
+                System.out.println("Served " + proxy.getHitCount()
+                        + " requests from the cache, " + proxy.getMissCount()
+                        + " from S3");
+            }
+        } catch (InterruptedException e) {
+            System.out.println("S3 caching proxy stopped");
+        } finally {
+            proxy.stop();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * The keys the S3 tasks of a build uploaded or deleted, by bucket. The
+ * cloudfront task invalidates them, so only what a build changed is evicted
+ * from the edge caches, and the warm-cloudfront task fetches the uploaded ones
+ * back into the caches.
+ */
+public final class S3ChangeSets {
+
+    private static final String REFERENCE = "s3ChangeSets";
+    private static final String DELETED_REFERENCE = "s3DeletedKeys";
+
+    private S3ChangeSets() {
+    }
+
+    /**
+     * Records that the object of the key was uploaded.
+     */
+    public static void record(Project project, String bucketName, String key) {
+        Map<String, SortedSet<String>> changeSets = getChangeSets(project,
+                REFERENCE);
+        Map<String, SortedSet<String>> deletedKeys = getChangeSets(project,
+                DELETED_REFERENCE);
+        synchronized (changeSets) {
+            keysOf(changeSets, bucketName).add(key);
+            keysOf(deletedKeys, bucketName).remove(key);
+        }
+    }
+
+    /**
+     * Records that the object of the key was deleted.
+     */
+    public static void recordDeletion(Project project, String bucketName,
+            String key) {
+        Map<String, SortedSet<String>> changeSets = getChangeSets(project,
+                REFERENCE);
+        Map<String, SortedSet<String>> deletedKeys = getChangeSets(project,
+                DELETED_REFERENCE);
+        synchronized (changeSets) {
+            keysOf(changeSets, bucketName).add(key);
+            keysOf(deletedKeys, bucketName).add(key);
+        }
+    }
+
+    /**
+     * @return A copy of the keys of the bucket changed so far in the build
+     */
+    public static SortedSet<String> get(Project project, String bucketName) {
+        Map<String, SortedSet<String>> changeSets = getChangeSets(project,
+                REFERENCE);
+        synchronized (changeSets) {
+            return new TreeSet<String>(keysOf(changeSets, bucketName));
+        }
+    }
+
+    /**
+     * @return A copy of the keys of the bucket uploaded so far in the build,
+     *         and not deleted since
+     */
+    public static SortedSet<String> getUploaded(Project project,
+            String bucketName) {
+        Map<String, SortedSet<String>> changeSets = getChangeSets(project,
+                REFERENCE);
+        Map<String, SortedSet<String>> deletedKeys = getChangeSets(project,
+                DELETED_REFERENCE);
+        synchronized (changeSets) {
+            SortedSet<String> keys = new TreeSet<String>(keysOf(changeSets,
+                    bucketName));
+            keys.removeAll(keysOf(deletedKeys, bucketName));
+            return keys;
+        }
+    }
+
+    private static SortedSet<String> keysOf(
+            Map<String, SortedSet<String>> changeSets, String bucketName) {
+        SortedSet<String> keys = changeSets.get(bucketName);
+        if (keys == null) {
+            keys = new TreeSet<String>();
+            changeSets.put(bucketName, keys);
+        }
+        return keys;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, SortedSet<String>> getChangeSets(
+            Project project, String reference) {
+        synchronized (project) {
+            Map<String, SortedSet<String>> changeSets = (Map<String, SortedSet<String>>) project
+                    .getReference(reference);
+            if (changeSets == null) {
+                changeSets = new HashMap<String, SortedSet<String>>();
+                project.addReference(reference, changeSets);
+            }
+            return changeSets;
+        }
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.StringUtils;
+
+/**
+ * A content-addressed cache of S3 objects that can be shared by every build
+ * running on the same machine. Entries are keyed by bucket, key and ETag, so an
+ * object that changes in S3 never hits a stale entry. Cache hits are
+ * materialized as hard links where the file system allows it, and as copies
+ * otherwise.
+ * <p>
+ * Concurrent builds are coordinated with file locks, so the cache may be
+ * shared between JVMs. The total size of the cache is kept under a cap by
+ * evicting the least recently used entries when {@link #trim()} is called.
+ * <p>
+ * Lock files are empty while in use. Eviction deletes the lock file of an
+ * entry while holding its lock, then writes a byte to it, so a build that
+ * was waiting on the deleted file sees that it is no longer the one at that
+ * path and locks the current one instead.
+ */
+public class S3DownloadCache {
+
+    private static final String GLOBAL_LOCK_FILE = ".lock";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * File locks are held on behalf of the whole JVM, so threads of the same
+     * build (for example under Ant's parallel task) must also be serialized
+     * in-process. Guarded by itself.
+     */
+    private static final Map<String, JvmLock> JVM_LOCKS = new HashMap<String, JvmLock>();
+
+    private final File directory;
+    private final long maxSizeInBytes;
+    private boolean useLinks = true;
+
+    /**
+     * @param directory
+     *            The directory holding the cache. Created if it doesn't exist.
+     * @param maxSizeInBytes
+     *            The size the cache is trimmed down to by {@link #trim()}. Zero
+     *            or less disables eviction.
+     */
+    public S3DownloadCache(File directory, long maxSizeInBytes) {
+        this.directory = directory;
+        this.maxSizeInBytes = maxSizeInBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new BuildException("Unable to create cache directory "
+                    + directory);
+        }
+    }
+
+    /**
+     * Set whether cache hits are materialized as hard links. If false, or if
+     * the file system can't link the files, entries are copied instead. Files
+     * that are hard links share their contents with the cache, so they must
+     * not be modified in place.
+     *
+     * @param useLinks
+     *            Whether to hard link cached files into place
+     */
+    public void setUseLinks(boolean useLinks) {
+        this.useLinks = useLinks;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Places the object with the given bucket, key and ETag at the target
+     * file, downloading it into the cache first if it isn't there yet.
+     *
+     * @return true if the object was served from the cache
+     */
+    public boolean fetch(AmazonS3 client, String bucketName, String key,
+            String eTag, File target) {
+        if (eTag == null) {
+            ObjectMetadata metadata = client.getObjectMetadata(bucketName, key);
+            eTag = metadata.getETag();
+        }
+        String name = entryName(bucketName, key, eTag);
+        File entry = entryFile(name);
+        boolean hit = true;
+
+        EntryLock lock = EntryLock.acquire(lockFile(entry), true);
+        try {
+            if (!entry.isFile()) {
+                hit = false;
+                populate(client, bucketName, key, eTag, entry);
+            }
+            // The lock file's modification time records the last access
+            lock.touch();
+            materialize(entry, target);
+        } finally {
+            lock.release();
+        }
+        return hit;
+    }
+
+    /**
+     * Opens the cached copy of the given object version, marking it as
+     * recently used. The stream is opened while the entry is locked, so it
+     * keeps reading the whole entry even if the entry is evicted or replaced
+     * afterwards.
+     *
+     * @return A stream the caller must close, or null if the object version
+     *         isn't cached
+     */
+    public FileInputStream lookup(String bucketName, String key, String eTag)
+            throws IOException {
+        String name = entryName(bucketName, key, eTag);
+        File entry = entryFile(name);
+        EntryLock lock = EntryLock.acquire(lockFile(entry), true);
+        try {
+            if (!entry.isFile()) {
+                return null;
+            }
+            lock.touch();
+            return new FileInputStream(entry);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Stores the contents of the given object version read from a stream,
+     * replacing any existing entry. The stream is not closed.
+     *
+     * @return A stream on the stored entry, opened like by
+     *         {@link #lookup(String, String, String)}, which the caller must
+     *         close
+     */
+    public FileInputStream store(String bucketName, String key, String eTag,
+            InputStream content) throws IOException {
+        String name = entryName(bucketName, key, eTag);
+        File entry = entryFile(name);
+        File part = File.createTempFile(name, PART_SUFFIX,
+                entry.getParentFile());
+        try {
+            Files.copy(content, part.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            EntryLock lock = EntryLock.acquire(lockFile(entry), true);
+            try {
+                Files.move(part.toPath(), entry.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                lock.touch();
+                return new FileInputStream(entry);
+            } finally {
+                lock.release();
+            }
+        } finally {
+            part.delete();
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache fits its size
+     * cap. Entries that are locked by another build are skipped.
+     */
+    public void trim() {
+        if (maxSizeInBytes <= 0) {
+            return;
+        }
+        EntryLock global = EntryLock.acquire(new File(directory,
+                GLOBAL_LOCK_FILE), true);
+        try {
+            List<File> lockFiles = new ArrayList<File>();
+            long totalSize = 0;
+            File[] shards = directory.listFiles();
+            if (shards == null) {
+                return;
+            }
+            for (File shard : shards) {
+                File[] files = shard.isDirectory() ? shard.listFiles() : null;
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    if (file.getName().endsWith(LOCK_SUFFIX)) {
+                        lockFiles.add(file);
+                    } else if (!file.getName().endsWith(PART_SUFFIX)) {
+                        totalSize += file.length();
+                    }
+                }
+            }
+            if (totalSize <= maxSizeInBytes) {
+                return;
+            }
+
+            final Map<File, Long> lastAccess = new HashMap<File, Long>();
+            for (File lockFile : lockFiles) {
+                lastAccess.put(lockFile, lockFile.lastModified());
+            }
+            Collections.sort(lockFiles, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    long diff = lastAccess.get(a) - lastAccess.get(b);
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+            });
+            for (File lockFile : lockFiles) {
+                if (totalSize <= maxSizeInBytes) {
+                    break;
+                }
+                String lockName = lockFile.getName();
+                String name = lockName.substring(0, lockName.length()
+                        - LOCK_SUFFIX.length());
+                EntryLock lock = EntryLock.acquire(lockFile, false);
+                if (lock == null) {
+                    continue;
+                }
+                try {
+                    File entry = new File(lockFile.getParentFile(), name);
+                    long length = entry.length();
+                    if (!entry.exists() || entry.delete()) {
+                        totalSize -= length;
+                        lock.evict();
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        } finally {
+            global.release();
+        }
+    }
+
+    private void populate(AmazonS3 client, String bucketName, String key,
+            String eTag, File entry) {
+        File part = null;
+        try {
+            part = File.createTempFile(entry.getName(), PART_SUFFIX,
+                    entry.getParentFile());
+            ObjectMetadata metadata = client.getObject(new GetObjectRequest(
+                    bucketName, key).withMatchingETagConstraint(eTag), part);
+            if (metadata == null) {
+                throw new BuildException("The object " + key + " in bucket "
+                        + bucketName + " changed while it was being cached");
+            }
+            Files.move(part.toPath(), entry.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new BuildException("Unable to add " + key
+                    + " to the download cache: " + e.getMessage(), e);
+        } finally {
+            if (part != null) {
+                part.delete();
+            }
+        }
+    }
+
+    private void materialize(File entry, File target) {
+        try {
+            if (target.getParentFile() != null) {
+                target.getParentFile().mkdirs();
+            }
+            Files.deleteIfExists(target.toPath());
+            if (useLinks) {
+                try {
+                    createLink(target, entry);
+                    return;
+                } catch (IOException e) {
+                    // Not supported here, e.g. across devices. Fall back to a copy.
+                } catch (UnsupportedOperationException e) {
+                    // Fall back to a copy.
+                }
+            }
+            Files.copy(entry.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new BuildException("Unable to copy cached object to "
+                    + target + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Hard links the target to the entry. Overridden by tests to simulate
+     * file systems without hard links.
+     */
+    void createLink(File target, File entry) throws IOException {
+        Files.createLink(target.toPath(), entry.toPath());
+    }
+
+    private File entryFile(String name) {
+        File shard = new File(directory, name.substring(0, 2));
+        shard.mkdirs();
+        return new File(shard, name);
+    }
+
+    private static File lockFile(File entry) {
+        return new File(entry.getPath() + LOCK_SUFFIX);
+    }
+
+    static String entryName(String bucketName, String key, String eTag) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((bucketName + "\n" + key + "\n" + eTag)
+                    .getBytes(StringUtils.UTF8));
+            return BinaryUtils.toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * An in-process lock on one lock file, dropped from {@link #JVM_LOCKS} once
+     * no thread uses it any more.
+     */
+    private static class JvmLock {
+        private final ReentrantLock lock = new ReentrantLock();
+        private int users;
+    }
+
+    /**
+     * A lock held both in-process and on a lock file, so that it excludes
+     * other threads of this build as well as other builds on the machine.
+     */
+    private static class EntryLock {
+        private final String path;
+        private final JvmLock jvmLock;
+        private final File file;
+        private RandomAccessFile raf;
+        private FileLock fileLock;
+
+        private EntryLock(String path, JvmLock jvmLock, File file) {
+            this.path = path;
+            this.jvmLock = jvmLock;
+            this.file = file;
+        }
+
+        /**
+         * Returns the acquired lock, or null if it wasn't available and
+         * blocking was not requested.
+         */
+        static EntryLock acquire(File file, boolean block) {
+            String path = file.getAbsolutePath();
+            JvmLock jvmLock;
+            synchronized (JVM_LOCKS) {
+                jvmLock = JVM_LOCKS.get(path);
+                if (jvmLock == null) {
+                    jvmLock = new JvmLock();
+                    JVM_LOCKS.put(path, jvmLock);
+                }
+                jvmLock.users++;
+            }
+            EntryLock lock = new EntryLock(path, jvmLock, file);
+            if (block) {
+                jvmLock.lock.lock();
+            } else if (!jvmLock.lock.tryLock()) {
+                lock.forget();
+                return null;
+            }
+            try {
+                while (true) {
+                    lock.raf = new RandomAccessFile(file, "rw");
+                    FileChannel channel = lock.raf.getChannel();
+                    lock.fileLock = block ? channel.lock() : channel.tryLock();
+                    if (lock.fileLock == null) {
+                        lock.release();
+                        return null;
+                    }
+                    if (channel.size() == 0) {
+                        return lock;
+                    }
+                    // Evicted while we waited; lock the file now at the path
+                    lock.fileLock.release();
+                    lock.raf.close();
+                }
+            } catch (IOException e) {
+                lock.release();
+                throw new BuildException("Unable to lock " + file + ": "
+                        + e.getMessage(), e);
+            }
+        }
+
+        void touch() {
+            file.setLastModified(System.currentTimeMillis());
+        }
+
+        /**
+         * Deletes the lock file and marks it as evicted, for builds waiting on
+         * it. If it cannot be deleted, as on Windows while it is open, it is
+         * left as it is and keeps guarding its path.
+         */
+        void evict() {
+            if (file.delete()) {
+                try {
+                    raf.write(1);
+                } catch (IOException e) {
+                    // The file is gone from the path already
+                }
+            }
+        }
+
+        void release() {
+            try {
+                if (fileLock != null) {
+                    fileLock.release();
+                }
+                if (raf != null) {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                // The lock is released when the channel is closed anyway
+            } finally {
+                jvmLock.lock.unlock();
+                forget();
+            }
+        }
+
+        private void forget() {
+            synchronized (JVM_LOCKS) {
+                if (--jvmLock.users == 0) {
+                    JVM_LOCKS.remove(path);
+                }
+            }
+        }
+    }
+}
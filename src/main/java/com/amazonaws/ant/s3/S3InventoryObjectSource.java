@@ -0,0 +1,235 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.DateUtils;
+import com.amazonaws.util.StringUtils;
+import com.amazonaws.util.json.Jackson;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Enumerates the objects of a bucket from an S3 Inventory report instead of
+ * listing the bucket. The report is read through its manifest.json, either
+ * from S3 (an "s3://bucket/key" URL) or from a local copy. The data files of
+ * a local manifest are looked up by file name in a local data directory.
+ * <p>
+ * Only CSV reports are supported. In versioned reports, only the latest
+ * version of each object is passed on, and delete markers are skipped.
+ */
+public class S3InventoryObjectSource implements S3ObjectSource {
+    private static final String S3_SCHEME = "s3://";
+    private static final String BUCKET_ARN_PREFIX = "arn:aws:s3:::";
+
+    private final AmazonS3 client;
+    private final String manifest;
+    private final File dataDir;
+    private final String bucketName;
+    private final String prefix;
+
+    /**
+     * @param client
+     *            The client used to read a manifest and data files in S3
+     * @param manifest
+     *            The location of the manifest, either "s3://bucket/key" or
+     *            the path of a local file
+     * @param dataDir
+     *            The directory holding the data files of a local manifest. If
+     *            null, the directory of the manifest.
+     * @param bucketName
+     *            The bucket the report must be of
+     * @param prefix
+     *            Only keys beginning with this prefix are passed on
+     */
+    public S3InventoryObjectSource(AmazonS3 client, String manifest,
+            File dataDir, String bucketName, String prefix) {
+        this.client = client;
+        this.manifest = manifest;
+        this.dataDir = dataDir;
+        this.bucketName = bucketName;
+        this.prefix = prefix;
+    }
+
+    public void forEachObject(Handler handler) throws IOException {
+        JsonNode root;
+        InputStream in = open(manifest);
+        try {
+            root = Jackson.getObjectMapper().readTree(in);
+        } finally {
+            in.close();
+        }
+
+        String format = root.path("fileFormat").asText();
+        if (!"CSV".equalsIgnoreCase(format)) {
+            throw new BuildException("Unsupported S3 Inventory format "
+                    + format + " in " + manifest + ". Only CSV is supported.");
+        }
+        String sourceBucket = root.path("sourceBucket").asText();
+        if (!bucketName.equals(sourceBucket)) {
+            throw new BuildException("The S3 Inventory report " + manifest
+                    + " is of bucket " + sourceBucket + ", not " + bucketName);
+        }
+        Map<String, Integer> columns = new HashMap<String, Integer>();
+        String[] schema = root.path("fileSchema").asText().split(",");
+        for (int i = 0; i < schema.length; i++) {
+            columns.put(schema[i].trim(), i);
+        }
+        if (!columns.containsKey("Key")) {
+            throw new BuildException("The S3 Inventory report " + manifest
+                    + " has no Key column");
+        }
+        String destinationBucket = root.path("destinationBucket").asText();
+        if (destinationBucket.startsWith(BUCKET_ARN_PREFIX)) {
+            destinationBucket = destinationBucket.substring(BUCKET_ARN_PREFIX
+                    .length());
+        }
+
+        for (Iterator<JsonNode> files = root.path("files").elements(); files
+                .hasNext();) {
+            String key = files.next().path("key").asText();
+            String location;
+            if (manifest.startsWith(S3_SCHEME)) {
+                location = S3_SCHEME + destinationBucket + "/" + key;
+            } else {
+                File directory = dataDir != null ? dataDir : new File(manifest)
+                        .getAbsoluteFile().getParentFile();
+                location = new File(directory, key.substring(key
+                        .lastIndexOf('/') + 1)).getPath();
+            }
+            readDataFile(location, columns, handler);
+        }
+    }
+
+    private void readDataFile(String location, Map<String, Integer> columns,
+            Handler handler) throws IOException {
+        InputStream in = open(location);
+        if (location.endsWith(".gz")) {
+            in = new GZIPInputStream(in);
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+                StringUtils.UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0) {
+                    continue;
+                }
+                List<String> fields = parseCsvLine(line);
+                String key = URLDecoder.decode(field(fields, columns, "Key"),
+                        "UTF-8");
+                if (!key.startsWith(prefix)
+                        || "false".equals(field(fields, columns, "IsLatest"))
+                        || "true".equals(field(fields, columns,
+                                "IsDeleteMarker"))) {
+                    continue;
+                }
+                S3ObjectSummary objectSummary = new S3ObjectSummary();
+                objectSummary.setBucketName(bucketName);
+                objectSummary.setKey(key);
+                String size = field(fields, columns, "Size");
+                if (size != null && size.length() > 0) {
+                    objectSummary.setSize(Long.parseLong(size));
+                }
+                String lastModified = field(fields, columns,
+                        "LastModifiedDate");
+                if (lastModified != null && lastModified.length() > 0) {
+                    objectSummary.setLastModified(DateUtils
+                            .parseISO8601Date(lastModified));
+                }
+                String eTag = field(fields, columns, "ETag");
+                if (eTag != null && eTag.length() > 0) {
+                    objectSummary.setETag(eTag);
+                }
+                objectSummary.setStorageClass(field(fields, columns,
+                        "StorageClass"));
+                handler.handle(objectSummary);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private InputStream open(String location) throws IOException {
+        if (location.startsWith(S3_SCHEME)) {
+            String path = location.substring(S3_SCHEME.length());
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                throw new BuildException("Malformed S3 location: " + location);
+            }
+            return client.getObject(path.substring(0, slash),
+                    path.substring(slash + 1)).getObjectContent();
+        }
+        return new FileInputStream(location);
+    }
+
+    private static String field(List<String> fields,
+            Map<String, Integer> columns, String name) {
+        Integer index = columns.get(name);
+        if (index == null || index >= fields.size()) {
+            return null;
+        }
+        return fields.get(index);
+    }
+
+    /**
+     * Splits a line of an inventory CSV file, in which every field may be
+     * quoted and quotes inside quoted fields are doubled.
+     */
+    static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length()
+                        && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Tells whether keys exist in a bucket without a request per key. The keys of
+ * the bucket are kept in a {@link BloomFilter} persisted to a local file, so a
+ * key the filter has never seen is known to be new without asking S3. Only the
+ * keys the filter might contain are confirmed with a HEAD request.
+ * <p>
+ * The filter is built from a listing of the bucket, and kept current by adding
+ * every key uploaded through it. It is rebuilt from a new listing once it is
+ * older than the maximum age, or holds more keys than it was sized for. A
+ * stale filter can only cause uploads of keys that already exist, never skip
+ * keys that don't.
+ */
+public class S3KeyIndex {
+
+    private static final int MAGIC = 0x53334b49;
+    private static final int VERSION = 1;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private final AmazonS3 client;
+    private final String bucketName;
+    private final File file;
+    private BloomFilter filter;
+    private long builtAt;
+    private int heads;
+    private int falsePositives;
+
+    private S3KeyIndex(AmazonS3 client, String bucketName, File file) {
+        this.client = client;
+        this.bucketName = bucketName;
+        this.file = file;
+    }
+
+    /**
+     * Loads the index of a bucket, or builds it from a listing if the file
+     * doesn't exist, is too old or is full.
+     *
+     * @param capacity
+     *            The smallest number of keys to size a new filter for
+     * @param maxAgeInMs
+     *            The age after which the index is rebuilt
+     * @param listThreads
+     *            The number of threads listing the bucket
+     */
+    public static S3KeyIndex open(AmazonS3 client, String bucketName,
+            File file, int capacity, long maxAgeInMs, int listThreads)
+            throws IOException {
+        S3KeyIndex index = new S3KeyIndex(client, bucketName, file);
+        if (file.exists() && index.load()
+                && System.currentTimeMillis() - index.builtAt <= maxAgeInMs
+                && index.filter.size() <= index.filter.getCapacity()) {
+            return index;
+        }
+        long previousSize = index.filter == null ? 0 : index.filter.size();
+        index.build((int) Math.min(Integer.MAX_VALUE,
+                Math.max(capacity, previousSize * 2)), listThreads);
+        return index;
+    }
+
+    /**
+     * @return Whether the key exists. Sends a HEAD request only if the filter
+     *         might contain the key.
+     */
+    public boolean exists(String key) {
+        if (!filter.mightContain(key)) {
+            return false;
+        }
+        heads++;
+        if (client.doesObjectExist(bucketName, key)) {
+            return true;
+        }
+        falsePositives++;
+        return false;
+    }
+
+    /**
+     * Records that the key now exists.
+     */
+    public void add(String key) {
+        filter.add(key);
+    }
+
+    /**
+     * Writes the index to its file.
+     */
+    public void save() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(builtAt);
+            filter.writeTo(out);
+        } finally {
+            out.close();
+        }
+        file.delete();
+        if (!temp.renameTo(file)) {
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    /**
+     * @return A one-line summary of the HEAD requests sent
+     */
+    public String getSummary() {
+        return heads + " HEAD requests, " + falsePositives
+                + " for keys that didn't exist";
+    }
+
+    /**
+     * @return Whether the file held a valid index
+     */
+    private boolean load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            builtAt = in.readLong();
+            filter = BloomFilter.readFrom(in);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable key index " + file + ": "
+                    + e);
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void build(int capacity, int listThreads) throws IOException {
+        System.out.println("Building the key index of " + bucketName + "...");
+        builtAt = System.currentTimeMillis();
+        final BloomFilter newFilter = new BloomFilter(capacity,
+                FALSE_POSITIVE_RATE);
+        new S3ParallelListingObjectSource(client, bucketName, "",
+                listThreads, false).forEachObject(new S3ObjectSource.Handler() {
+            public void handle(S3ObjectSummary objectSummary) {
+                newFilter.add(objectSummary.getKey());
+            }
+        });
+        filter = newFilter;
+        System.out.println("Indexed " + filter.size() + " keys in "
+                + filter.getSizeInBytes() + " bytes");
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Iterator;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.DateUtils;
+import com.amazonaws.util.StringUtils;
+import com.amazonaws.util.json.Jackson;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Enumerates the objects named in a local key list file. The file either has
+ * one key per line, one JSON object per line, or holds a single JSON array of
+ * keys or objects. JSON objects have a "key" and may have a "size", "eTag",
+ * "lastModified" (in ISO 8601 format) and "storageClass". Blank lines are
+ * ignored.
+ */
+public class S3KeyListObjectSource implements S3ObjectSource {
+    private final File keyList;
+    private final String bucketName;
+    private final String prefix;
+
+    /**
+     * @param prefix
+     *            Only keys beginning with this prefix are passed on
+     */
+    public S3KeyListObjectSource(File keyList, String bucketName, String prefix) {
+        this.keyList = keyList;
+        this.bucketName = bucketName;
+        this.prefix = prefix;
+    }
+
+    public void forEachObject(Handler handler) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(keyList), StringUtils.UTF8));
+        try {
+            reader.mark(1);
+            int first = reader.read();
+            while (first >= 0 && Character.isWhitespace(first)) {
+                reader.mark(1);
+                first = reader.read();
+            }
+            reader.reset();
+            if (first == '[') {
+                readArray(reader, handler);
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0) {
+                    continue;
+                }
+                if (line.startsWith("{")) {
+                    handle(Jackson.getObjectMapper().readTree(line), handler);
+                } else {
+                    handle(newSummary(line), handler);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void readArray(Reader reader, Handler handler) throws IOException {
+        JsonNode array = Jackson.getObjectMapper().readTree(reader);
+        for (Iterator<JsonNode> entries = array.elements(); entries.hasNext();) {
+            JsonNode entry = entries.next();
+            if (entry.isTextual()) {
+                handle(newSummary(entry.asText()), handler);
+            } else {
+                handle(entry, handler);
+            }
+        }
+    }
+
+    private void handle(JsonNode entry, Handler handler) {
+        if (!entry.hasNonNull("key")) {
+            throw new BuildException("Entry without a key in " + keyList
+                    + ": " + entry);
+        }
+        S3ObjectSummary objectSummary = newSummary(entry.get("key").asText());
+        if (entry.hasNonNull("size")) {
+            objectSummary.setSize(entry.get("size").asLong());
+        }
+        if (entry.hasNonNull("eTag")) {
+            objectSummary.setETag(entry.get("eTag").asText());
+        }
+        if (entry.hasNonNull("lastModified")) {
+            objectSummary.setLastModified(DateUtils.parseISO8601Date(entry
+                    .get("lastModified").asText()));
+        }
+        if (entry.hasNonNull("storageClass")) {
+            objectSummary.setStorageClass(entry.get("storageClass").asText());
+        }
+        handle(objectSummary, handler);
+    }
+
+    private void handle(S3ObjectSummary objectSummary, Handler handler) {
+        if (objectSummary.getKey().startsWith(prefix)) {
+            handler.handle(objectSummary);
+        }
+    }
+
+    private S3ObjectSummary newSummary(String key) {
+        S3ObjectSummary objectSummary = new S3ObjectSummary();
+        objectSummary.setBucketName(bucketName);
+        objectSummary.setKey(key);
+        return objectSummary;
+    }
+}
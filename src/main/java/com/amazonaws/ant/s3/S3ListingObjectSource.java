@@ -0,0 +1,51 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Enumerates the objects with a prefix by paginating through a bucket
+ * listing.
+ */
+public class S3ListingObjectSource implements S3ObjectSource {
+    private final AmazonS3 client;
+    private final String bucketName;
+    private final String prefix;
+
+    public S3ListingObjectSource(AmazonS3 client, String bucketName,
+            String prefix) {
+        this.client = client;
+        this.bucketName = bucketName;
+        this.prefix = prefix;
+    }
+
+    public void forEachObject(Handler handler) {
+        ObjectListing objectListing = client.listObjects(bucketName, prefix);
+        while (true) {
+            for (S3ObjectSummary objectSummary : objectListing
+                    .getObjectSummaries()) {
+                handler.handle(objectSummary);
+            }
+            if (objectListing.isTruncated()) {
+                objectListing = client.listNextBatchOfObjects(objectListing);
+            } else {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,550 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.StringUtils;
+
+/**
+ * A listing of a bucket stored in a compact, sorted file that is read through
+ * a memory map, so a listing of millions of objects costs little heap and can
+ * be shared by the tasks of a build.
+ * <p>
+ * Objects are stored in key order, in blocks of {@value #BLOCK_SIZE}. Each key
+ * only stores the bytes that differ from the previous key, except the first
+ * key of a block, which is stored whole so a block can be decoded on its own.
+ * A lookup binary searches the first keys of the blocks and scans one block.
+ * Sizes, last modified dates, ETags and storage classes are stored with
+ * variable length encodings.
+ * <p>
+ * Layout: a header with the bucket and prefix; the blocks; the offsets of the
+ * blocks; and a trailer with the object count, the block count and the
+ * offset of the block offsets.
+ */
+public class S3ListingSnapshot implements S3ObjectSource {
+
+    private static final int MAGIC = 0x53334c53;
+    private static final int VERSION = 1;
+    private static final int BLOCK_SIZE = 16;
+    private static final int TRAILER_SIZE = 8 + 4 + 4 + 4;
+
+    private static final int ETAG_NONE = 0;
+    private static final int ETAG_MD5 = 1;
+    private static final int ETAG_OTHER = 2;
+    private static final int STORAGE_CLASS_NONE = 0;
+    private static final int STORAGE_CLASS_STANDARD = 1;
+    private static final int STORAGE_CLASS_OTHER = 2;
+    private static final String STANDARD = "STANDARD";
+
+    private final File file;
+    private final ByteBuffer buffer;
+    private final String bucketName;
+    private final String prefix;
+    private final long createdAt;
+    private final long count;
+    private final int blockCount;
+    private final int blockOffsets;
+
+    private S3ListingSnapshot(File file, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        int end = buffer.limit();
+        if (end < TRAILER_SIZE + 8 || buffer.getInt(0) != MAGIC
+                || buffer.getInt(end - 4) != MAGIC) {
+            throw new IOException(file + " is not a listing snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(file + " has an unsupported version");
+        }
+        this.count = buffer.getLong(end - TRAILER_SIZE);
+        this.blockCount = buffer.getInt(end - TRAILER_SIZE + 8);
+        this.blockOffsets = buffer.getInt(end - TRAILER_SIZE + 12);
+        Reader header = new Reader(8);
+        this.createdAt = header.readVarLong();
+        this.bucketName = header.readString();
+        this.prefix = header.readString();
+    }
+
+    /**
+     * Writes a snapshot of the objects of a source, which must pass them in
+     * key order.
+     */
+    public static void write(S3ObjectSource sortedSource, File file,
+            String bucketName, String prefix) throws IOException {
+        final Writer writer = new Writer(file, bucketName, prefix);
+        boolean written = false;
+        try {
+            sortedSource.forEachObject(new Handler() {
+                public void handle(S3ObjectSummary objectSummary) {
+                    try {
+                        writer.add(objectSummary);
+                    } catch (IOException e) {
+                        throw new SnapshotWriteException(e);
+                    }
+                }
+            });
+            writer.finish();
+            written = true;
+        } catch (SnapshotWriteException e) {
+            throw e.getCause();
+        } finally {
+            writer.close();
+            if (!written) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Maps a snapshot file into memory.
+     */
+    public static S3ListingSnapshot open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to map");
+            }
+            return new S3ListingSnapshot(file, channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            // The mapping stays valid after the file is closed
+            randomAccessFile.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getBucketName() {
+        return bucketName;
+    }
+
+    /**
+     * @return The prefix of the listing. The snapshot holds every object of
+     *         the bucket whose key starts with it.
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return When the listing started, in milliseconds since the epoch
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long size() {
+        return count;
+    }
+
+    /**
+     * @return The object with the given key, or null if there was none
+     */
+    public S3ObjectSummary get(String key) {
+        byte[] target = key.getBytes(StringUtils.UTF8);
+        int block = findBlock(target);
+        if (block < 0) {
+            return null;
+        }
+        Reader reader = new Reader(blockOffset(block));
+        for (int i = 0; i < BLOCK_SIZE && reader.hasEntry(); i++) {
+            int comparison = compare(reader.readEntryKey(), target);
+            if (comparison == 0) {
+                return reader.readEntryValues();
+            }
+            if (comparison > 0) {
+                return null;
+            }
+            reader.skipEntryValues();
+        }
+        return null;
+    }
+
+    public void forEachObject(Handler handler) {
+        forEachObject("", handler);
+    }
+
+    /**
+     * Passes the objects whose key starts with the prefix to the handler, in
+     * key order.
+     */
+    public void forEachObject(String keyPrefix, Handler handler) {
+        if (blockCount == 0) {
+            return;
+        }
+        byte[] target = keyPrefix.getBytes(StringUtils.UTF8);
+        int block = Math.max(0, findBlock(target));
+        Reader reader = new Reader(blockOffset(block));
+        while (reader.hasEntry()) {
+            byte[] key = reader.readEntryKey();
+            int comparison = compare(key, target);
+            if (comparison < 0) {
+                reader.skipEntryValues();
+                continue;
+            }
+            if (!startsWith(key, target)) {
+                return;
+            }
+            handler.handle(reader.readEntryValues());
+        }
+    }
+
+    /**
+     * @return The objects whose key starts with the prefix, as a source
+     */
+    public S3ObjectSource withPrefix(final String keyPrefix) {
+        return new S3ObjectSource() {
+            public void forEachObject(Handler handler) {
+                S3ListingSnapshot.this.forEachObject(keyPrefix, handler);
+            }
+        };
+    }
+
+    /**
+     * @return The last block whose first key is not after the target, or -1
+     *         if the target is before every key
+     */
+    private int findBlock(byte[] target) {
+        int low = 0;
+        int high = blockCount - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            Reader reader = new Reader(blockOffset(middle));
+            if (compare(reader.readEntryKey(), target) <= 0) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    private int blockOffset(int block) {
+        return buffer.getInt(blockOffsets + block * 4);
+    }
+
+    /**
+     * Compares keys in the unsigned byte order of their UTF-8 encoding, which
+     * is the order S3 lists them in.
+     */
+    static int compare(byte[] first, byte[] second) {
+        int length = Math.min(first.length, second.length);
+        for (int i = 0; i < length; i++) {
+            int difference = (first[i] & 0xff) - (second[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return first.length - second.length;
+    }
+
+    /**
+     * @return Whether the ETag is 32 lowercase hex digits, as the ETag of an
+     *         object uploaded in one part is
+     */
+    static boolean isMd5Hex(String eTag) {
+        if (eTag.length() != 32) {
+            return false;
+        }
+        for (int i = 0; i < 32; i++) {
+            char c = eTag.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes entries from an offset. Only absolute reads of the shared
+     * buffer are used, so readers can be used from several threads.
+     */
+    private class Reader {
+        private int position;
+        private byte[] key = new byte[0];
+
+        Reader(int position) {
+            this.position = position;
+        }
+
+        boolean hasEntry() {
+            return position < blockOffsets;
+        }
+
+        byte[] readEntryKey() {
+            int shared = readVarInt();
+            int unshared = readVarInt();
+            byte[] next = new byte[shared + unshared];
+            System.arraycopy(key, 0, next, 0, shared);
+            for (int i = 0; i < unshared; i++) {
+                next[shared + i] = buffer.get(position++);
+            }
+            key = next;
+            return key;
+        }
+
+        S3ObjectSummary readEntryValues() {
+            S3ObjectSummary objectSummary = new S3ObjectSummary();
+            objectSummary.setBucketName(bucketName);
+            objectSummary.setKey(new String(key, StringUtils.UTF8));
+            objectSummary.setSize(readVarLong());
+            long lastModified = readVarLong();
+            if (lastModified > 0) {
+                objectSummary.setLastModified(new Date(lastModified - 1));
+            }
+            int eTagKind = buffer.get(position++);
+            if (eTagKind == ETAG_MD5) {
+                byte[] md5 = new byte[16];
+                for (int i = 0; i < md5.length; i++) {
+                    md5[i] = buffer.get(position++);
+                }
+                objectSummary.setETag(BinaryUtils.toHex(md5));
+            } else if (eTagKind == ETAG_OTHER) {
+                objectSummary.setETag(readString());
+            }
+            int storageClassKind = buffer.get(position++);
+            if (storageClassKind == STORAGE_CLASS_STANDARD) {
+                objectSummary.setStorageClass(STANDARD);
+            } else if (storageClassKind == STORAGE_CLASS_OTHER) {
+                objectSummary.setStorageClass(readString());
+            }
+            return objectSummary;
+        }
+
+        void skipEntryValues() {
+            readVarLong();
+            readVarLong();
+            int eTagKind = buffer.get(position++);
+            if (eTagKind == ETAG_MD5) {
+                position += 16;
+            } else if (eTagKind == ETAG_OTHER) {
+                skipString();
+            }
+            if (buffer.get(position++) == STORAGE_CLASS_OTHER) {
+                skipString();
+            }
+        }
+
+        void skipString() {
+            int length = readVarInt();
+            position += length;
+        }
+
+        String readString() {
+            byte[] bytes = new byte[readVarInt()];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(position++);
+            }
+            return new String(bytes, StringUtils.UTF8);
+        }
+
+        int readVarInt() {
+            return (int) readVarLong();
+        }
+
+        long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                byte b = buffer.get(position++);
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot as the objects stream in.
+     */
+    private static class Writer {
+        private final File file;
+        private final DataOutputStream out;
+        private final IntArray blockOffsets = new IntArray();
+        private byte[] previousKey;
+        private long count;
+
+        Writer(File file, String bucketName, String prefix) throws IOException {
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeVarLong(System.currentTimeMillis());
+            writeString(bucketName);
+            writeString(prefix);
+        }
+
+        void add(S3ObjectSummary objectSummary) throws IOException {
+            byte[] key = objectSummary.getKey().getBytes(StringUtils.UTF8);
+            if (previousKey != null && compare(previousKey, key) >= 0) {
+                throw new IOException("Listing is not sorted: "
+                        + objectSummary.getKey() + " came after "
+                        + new String(previousKey, StringUtils.UTF8));
+            }
+            int shared = 0;
+            if (count % BLOCK_SIZE == 0) {
+                blockOffsets.add(position());
+            } else {
+                int length = Math.min(previousKey.length, key.length);
+                while (shared < length && previousKey[shared] == key[shared]) {
+                    shared++;
+                }
+            }
+            writeVarLong(shared);
+            writeVarLong(key.length - shared);
+            out.write(key, shared, key.length - shared);
+            writeVarLong(objectSummary.getSize());
+            Date lastModified = objectSummary.getLastModified();
+            writeVarLong(lastModified == null ? 0 : lastModified.getTime() + 1);
+            writeETag(objectSummary.getETag());
+            String storageClass = objectSummary.getStorageClass();
+            if (storageClass == null) {
+                out.writeByte(STORAGE_CLASS_NONE);
+            } else if (STANDARD.equals(storageClass)) {
+                out.writeByte(STORAGE_CLASS_STANDARD);
+            } else {
+                out.writeByte(STORAGE_CLASS_OTHER);
+                writeString(storageClass);
+            }
+            previousKey = key;
+            count++;
+        }
+
+        void finish() throws IOException {
+            int offsets = position();
+            for (int i = 0; i < blockOffsets.size(); i++) {
+                out.writeInt(blockOffsets.get(i));
+            }
+            out.writeLong(count);
+            out.writeInt(blockOffsets.size());
+            out.writeInt(offsets);
+            out.writeInt(MAGIC);
+            out.flush();
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+
+        private void writeETag(String eTag) throws IOException {
+            if (eTag == null) {
+                out.writeByte(ETAG_NONE);
+            } else if (isMd5Hex(eTag)) {
+                out.writeByte(ETAG_MD5);
+                out.write(BinaryUtils.fromHex(eTag));
+            } else {
+                out.writeByte(ETAG_OTHER);
+                writeString(eTag);
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StringUtils.UTF8);
+            writeVarLong(bytes.length);
+            out.write(bytes);
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7fL) != 0) {
+                out.writeByte((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+
+        /**
+         * @return The number of bytes written so far
+         */
+        private int position() throws IOException {
+            // DataOutputStream stops counting at Integer.MAX_VALUE
+            if (out.size() == Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to map");
+            }
+            return out.size();
+        }
+    }
+
+    /**
+     * A growable array of ints, to avoid boxing an offset per block.
+     */
+    private static class IntArray {
+        private int[] values = new int[1024];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Carries a write failure out of a handler.
+     */
+    private static class SnapshotWriteException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SnapshotWriteException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
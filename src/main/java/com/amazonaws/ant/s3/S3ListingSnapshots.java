@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tools.ant.Project;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * The {@link S3ListingSnapshot}s shared by the S3 tasks of a build. A task that
+ * needs a listing opens the snapshot of an earlier task if one covers its
+ * prefix, instead of listing the bucket again. Tasks that change a bucket drop
+ * its snapshots, so later tasks don't see a stale listing.
+ */
+public final class S3ListingSnapshots {
+
+    private static final String REFERENCE = "s3ListingSnapshots";
+
+    private S3ListingSnapshots() {
+    }
+
+    /**
+     * @return The snapshot of the build that covers the prefix of the bucket,
+     *         or null if there is none
+     */
+    public static S3ListingSnapshot find(Project project, String bucketName,
+            String prefix) {
+        List<S3ListingSnapshot> snapshots = getSnapshots(project);
+        synchronized (snapshots) {
+            for (S3ListingSnapshot snapshot : snapshots) {
+                if (snapshot.getBucketName().equals(bucketName)
+                        && prefix.startsWith(snapshot.getPrefix())) {
+                    return snapshot;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The snapshot of the build that covers the prefix of the bucket,
+     *         listing the bucket into a new one if there is none
+     */
+    public static S3ListingSnapshot get(Project project, AmazonS3 client,
+            String bucketName, String prefix, int listThreads)
+            throws IOException {
+        S3ListingSnapshot snapshot = find(project, bucketName, prefix);
+        if (snapshot != null) {
+            System.out.println("Using the listing of " + bucketName
+                    + " with prefix \"" + snapshot.getPrefix() + "\"");
+            return snapshot;
+        }
+        File file = File.createTempFile("s3-listing-", ".snapshot");
+        file.deleteOnExit();
+        S3ListingSnapshot.write(new S3ParallelListingObjectSource(client,
+                bucketName, prefix, listThreads, true), file, bucketName,
+                prefix);
+        snapshot = S3ListingSnapshot.open(file);
+        System.out.println("Listed " + snapshot.size() + " objects of "
+                + bucketName + " with prefix \"" + prefix + "\" into "
+                + file.length() + " bytes");
+        List<S3ListingSnapshot> snapshots = getSnapshots(project);
+        synchronized (snapshots) {
+            snapshots.add(snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Drops the snapshots of a bucket whose objects were changed.
+     */
+    public static void invalidate(Project project, String bucketName) {
+        List<S3ListingSnapshot> snapshots = getSnapshots(project);
+        synchronized (snapshots) {
+            for (int i = snapshots.size() - 1; i >= 0; i--) {
+                if (snapshots.get(i).getBucketName().equals(bucketName)) {
+                    // The file is deleted on exit, once it is unmapped
+                    snapshots.remove(i);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<S3ListingSnapshot> getSnapshots(Project project) {
+        synchronized (project) {
+            List<S3ListingSnapshot> snapshots = (List<S3ListingSnapshot>) project
+                    .getReference(REFERENCE);
+            if (snapshots == null) {
+                snapshots = new ArrayList<S3ListingSnapshot>();
+                project.addReference(REFERENCE, snapshots);
+            }
+            return snapshots;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.util.DateUtils;
+
+/**
+ * Sets the caching headers, content type and storage class of uploaded objects
+ * by key. The rules are checked in order, and the first rule that matches a
+ * key and sets a header decides that header, so specific rules go before
+ * general ones.
+ * <p>
+ * Every rule is compiled once. A glob ending in a literal, such as
+ * "**&#47;*.css", is only matched against keys with that ending, so most
+ * rules are ruled out by a string comparison.
+ */
+public class S3MetadataRules {
+
+    /**
+     * The Cache-Control of objects whose name contains a hash of their
+     * content. Such an object never changes, so caches can keep it for a year
+     * without revalidating it.
+     */
+    public static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    private static final int MIN_FINGERPRINT_LENGTH = 8;
+    private static final Pattern RELATIVE_EXPIRES = Pattern
+            .compile("\\+?(\\d+)([smhd])");
+
+    private final List<Rule> rules;
+    private final boolean immutableFingerprints;
+
+    /**
+     * @param rules
+     *            The rules, in order of precedence. Each one must have passed
+     *            {@link Rule#checkParams()}.
+     * @param immutableFingerprints
+     *            Whether to give objects whose name contains a hash the
+     *            {@link #IMMUTABLE_CACHE_CONTROL}, before any rule
+     */
+    public S3MetadataRules(List<Rule> rules, boolean immutableFingerprints) {
+        this.rules = new ArrayList<Rule>(rules);
+        this.immutableFingerprints = immutableFingerprints;
+    }
+
+    /**
+     * @return Whether the rules never change any metadata
+     */
+    public boolean isEmpty() {
+        return rules.isEmpty() && !immutableFingerprints;
+    }
+
+    /**
+     * Sets the headers the rules give the key on the metadata of its object.
+     * Headers no rule sets are left as they are.
+     */
+    public void apply(String key, ObjectMetadata metadata) {
+        String cacheControl = null;
+        if (immutableFingerprints && isFingerprinted(key)) {
+            cacheControl = IMMUTABLE_CACHE_CONTROL;
+        }
+        Date expires = null;
+        String contentType = null;
+        String storageClass = null;
+        long now = System.currentTimeMillis();
+        for (Rule rule : rules) {
+            if (!rule.matches(key)) {
+                continue;
+            }
+            if (cacheControl == null) {
+                cacheControl = rule.cacheControl;
+            }
+            if (expires == null) {
+                expires = rule.getExpires(now);
+            }
+            if (contentType == null) {
+                contentType = rule.contentType;
+            }
+            if (storageClass == null) {
+                storageClass = rule.storageClass;
+            }
+        }
+        if (cacheControl != null) {
+            metadata.setCacheControl(cacheControl);
+        }
+        if (expires != null) {
+            metadata.setHttpExpiresDate(expires);
+        }
+        if (contentType != null) {
+            metadata.setContentType(contentType);
+        }
+        if (storageClass != null) {
+            // Sent with PUTs and with the initiation of multipart uploads
+            metadata.setHeader(Headers.STORAGE_CLASS, storageClass);
+        }
+    }
+
+    /**
+     * @return Whether the last segment of the key has a part, between dots,
+     *         dashes or underscores, that looks like a hash: at least 8 hex
+     *         digits, with both letters and digits. Such as "app.3f2a9c1b.js"
+     *         or "logo-5d41402abc4b2a76.png".
+     */
+    static boolean isFingerprinted(String key) {
+        String name = key.substring(key.lastIndexOf('/') + 1);
+        int start = 0;
+        for (int i = 0; i <= name.length(); i++) {
+            if (i == name.length() || name.charAt(i) == '.'
+                    || name.charAt(i) == '-' || name.charAt(i) == '_') {
+                if (isHash(name, start, i)) {
+                    return true;
+                }
+                start = i + 1;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isHash(String name, int start, int end) {
+        if (end - start < MIN_FINGERPRINT_LENGTH) {
+            return false;
+        }
+        boolean letters = false;
+        boolean digits = false;
+        for (int i = start; i < end; i++) {
+            char c = Character.toLowerCase(name.charAt(i));
+            if (c >= '0' && c <= '9') {
+                digits = true;
+            } else if (c >= 'a' && c <= 'f') {
+                letters = true;
+            } else {
+                return false;
+            }
+        }
+        // Names like "20140101" or "deadbeef" are more likely words or dates
+        return letters && digits;
+    }
+
+    /**
+     * The headers to give objects whose key matches a glob or a regular
+     * expression. In a glob, "*" matches within one path segment, "**"
+     * matches across segments and "?" matches one character other than "/".
+     */
+    public static class Rule {
+        private String glob;
+        private String regex;
+        private String cacheControl;
+        private String expires;
+        private String contentType;
+        private String storageClass;
+        private Pattern pattern;
+        private String suffix = "";
+        private long expiresInMs = -1;
+        private Date expiresDate;
+
+        /**
+         * Set a glob the whole key must match, such as "**&#47;*.css".
+         */
+        public void setGlob(String glob) {
+            this.glob = glob;
+        }
+
+        /**
+         * Set a regular expression the whole key must match.
+         */
+        public void setRegex(String regex) {
+            this.regex = regex;
+        }
+
+        /**
+         * Set the Cache-Control header, such as "public, max-age=300". Not
+         * required, default is none.
+         */
+        public void setCacheControl(String cacheControl) {
+            this.cacheControl = cacheControl;
+        }
+
+        /**
+         * Set the Expires header, either as a date, such as
+         * "Thu, 01 Dec 2016 16:00:00 GMT", or as a time from the upload, such
+         * as "7d", "12h", "30m" or "90s". Not required, default is none.
+         */
+        public void setExpires(String expires) {
+            this.expires = expires;
+        }
+
+        /**
+         * Set the Content-Type header, such as "text/html; charset=utf-8".
+         * Not required, default is guessed from the file name.
+         */
+        public void setContentType(String contentType) {
+            this.contentType = contentType;
+        }
+
+        /**
+         * Set the storage class, such as "STANDARD_IA". Not required, default
+         * is STANDARD.
+         */
+        public void setStorageClass(String storageClass) {
+            this.storageClass = storageClass;
+        }
+
+        public void checkParams() {
+            if ((glob == null) == (regex == null)) {
+                throw new BuildException(
+                        "metadata: exactly one of glob or regex must be set");
+            }
+            if (cacheControl == null && expires == null && contentType == null
+                    && storageClass == null) {
+                throw new BuildException("metadata: at least one of "
+                        + "cacheControl, expires, contentType or storageClass "
+                        + "must be set");
+            }
+            try {
+                pattern = Pattern.compile(glob != null ? S3ObjectSelectors.Key
+                        .globToRegex(glob) : regex);
+            } catch (PatternSyntaxException e) {
+                throw new BuildException("metadata: malformed regex: "
+                        + e.getMessage());
+            }
+            if (glob != null) {
+                suffix = glob.substring(Math.max(glob.lastIndexOf('*'),
+                        glob.lastIndexOf('?')) + 1);
+            }
+            if (expires != null) {
+                Matcher relative = RELATIVE_EXPIRES.matcher(expires.trim()
+                        .toLowerCase(Locale.ENGLISH));
+                if (relative.matches()) {
+                    expiresInMs = Long.parseLong(relative.group(1))
+                            * unitInMs(relative.group(2).charAt(0));
+                } else {
+                    expiresDate = parseDate(expires.trim());
+                }
+            }
+            if (storageClass != null) {
+                try {
+                    storageClass = StorageClass.fromValue(
+                            storageClass.toUpperCase(Locale.ENGLISH))
+                            .toString();
+                } catch (IllegalArgumentException e) {
+                    throw new BuildException("metadata: unknown storageClass "
+                            + storageClass);
+                }
+            }
+        }
+
+        boolean matches(String key) {
+            return key.endsWith(suffix) && pattern.matcher(key).matches();
+        }
+
+        Date getExpires(long now) {
+            if (expiresInMs >= 0) {
+                return new Date(now + expiresInMs);
+            }
+            return expiresDate;
+        }
+
+        private static long unitInMs(char unit) {
+            switch (unit) {
+            case 's':
+                return 1000L;
+            case 'm':
+                return 60 * 1000L;
+            case 'h':
+                return 60 * 60 * 1000L;
+            default:
+                return 24 * 60 * 60 * 1000L;
+            }
+        }
+
+        private static Date parseDate(String date) {
+            try {
+                return DateUtils.parseRFC822Date(date);
+            } catch (RuntimeException e) {
+                try {
+                    return DateUtils.parseISO8601Date(date);
+                } catch (RuntimeException e2) {
+                    throw new BuildException("metadata: expires must be a date "
+                            + "or a time such as 7d, not " + date);
+                }
+            }
+        }
+    }
+}
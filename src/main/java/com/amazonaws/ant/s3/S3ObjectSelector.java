@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Selects S3 objects using only what a bucket listing returns about them, so
+ * that no request is made for the objects it rejects.
+ */
+public interface S3ObjectSelector {
+
+    /**
+     * Checks the selector's attributes, throwing a BuildException if they
+     * are malformed.
+     */
+    void checkParams();
+
+    /**
+     * @param objectSummary
+     *            The object as it appears in a bucket listing
+     * @return Whether the object is selected
+     */
+    boolean isSelected(S3ObjectSummary objectSummary);
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.DateUtils;
+
+/**
+ * The {@link S3ObjectSelector}s that can be nested in S3 tasks. All selectors
+ * nested in a task must select an object for the task to act on it.
+ */
+public final class S3ObjectSelectors {
+
+    private S3ObjectSelectors() {
+    }
+
+    /**
+     * @return Whether every one of the selectors selects the object
+     */
+    public static boolean isSelected(Iterable<S3ObjectSelector> selectors,
+            S3ObjectSummary objectSummary) {
+        for (S3ObjectSelector selector : selectors) {
+            if (!selector.isSelected(objectSummary)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Selects objects by size. Sizes are in bytes, or may end with K, M or G.
+     */
+    public static class Size implements S3ObjectSelector {
+        private long min = 0;
+        private long max = Long.MAX_VALUE;
+
+        /**
+         * Set the smallest size selected. Not required, default is 0.
+         */
+        public void setMin(String min) {
+            this.min = parseSize(min);
+        }
+
+        /**
+         * Set the largest size selected. Not required, by default there is
+         * no limit.
+         */
+        public void setMax(String max) {
+            this.max = parseSize(max);
+        }
+
+        public void checkParams() {
+            if (min > max) {
+                throw new BuildException("size: min cannot be larger than max");
+            }
+        }
+
+        public boolean isSelected(S3ObjectSummary objectSummary) {
+            return objectSummary.getSize() >= min
+                    && objectSummary.getSize() <= max;
+        }
+
+        static long parseSize(String size) {
+            String value = size.trim().toUpperCase(Locale.ENGLISH);
+            long multiplier = 1;
+            if (value.endsWith("K")) {
+                multiplier = 1024L;
+            } else if (value.endsWith("M")) {
+                multiplier = 1024L * 1024;
+            } else if (value.endsWith("G")) {
+                multiplier = 1024L * 1024 * 1024;
+            }
+            if (multiplier > 1) {
+                value = value.substring(0, value.length() - 1);
+            }
+            try {
+                return Long.parseLong(value) * multiplier;
+            } catch (NumberFormatException e) {
+                throw new BuildException("Malformed size: " + size);
+            }
+        }
+    }
+
+    /**
+     * Selects objects by when they were last modified. Dates are in ISO 8601
+     * format, such as 2014-06-01T00:00:00Z.
+     */
+    public static class Modified implements S3ObjectSelector {
+        private Date after;
+        private Date before;
+        private long withinHours = -1;
+
+        /**
+         * Set the date objects must have been modified after. Not required.
+         */
+        public void setAfter(String after) {
+            this.after = parseDate(after);
+        }
+
+        /**
+         * Set the date objects must have been modified before. Not required.
+         */
+        public void setBefore(String before) {
+            this.before = parseDate(before);
+        }
+
+        /**
+         * Set how many hours before the task runs objects must have been
+         * modified after. Not required.
+         */
+        public void setWithinHours(long withinHours) {
+            this.withinHours = withinHours;
+        }
+
+        public void checkParams() {
+            if (after == null && before == null && withinHours < 0) {
+                throw new BuildException(
+                        "modified: one of after, before or withinHours must be set");
+            }
+            if (withinHours >= 0) {
+                Date since = new Date(System.currentTimeMillis() - withinHours
+                        * 60 * 60 * 1000);
+                if (after == null || since.after(after)) {
+                    after = since;
+                }
+            }
+        }
+
+        public boolean isSelected(S3ObjectSummary objectSummary) {
+            Date lastModified = objectSummary.getLastModified();
+            if (lastModified == null) {
+                // Not known from a key list without dates
+                return false;
+            }
+            return (after == null || lastModified.after(after))
+                    && (before == null || lastModified.before(before));
+        }
+
+        private static Date parseDate(String date) {
+            try {
+                return DateUtils.parseISO8601Date(date);
+            } catch (RuntimeException e) {
+                throw new BuildException("Malformed date: " + date
+                        + ". Use ISO 8601, such as 2014-06-01T00:00:00Z");
+            }
+        }
+    }
+
+    /**
+     * Selects objects whose key matches a glob or a regular expression. In a
+     * glob, "*" matches within one path segment, "**" matches across segments
+     * and "?" matches one character other than "/".
+     */
+    public static class Key implements S3ObjectSelector {
+        private String glob;
+        private String regex;
+        private Pattern pattern;
+
+        /**
+         * Set a glob the whole key must match, such as "**&#47;*.jar".
+         */
+        public void setGlob(String glob) {
+            this.glob = glob;
+        }
+
+        /**
+         * Set a regular expression the whole key must match.
+         */
+        public void setRegex(String regex) {
+            this.regex = regex;
+        }
+
+        public void checkParams() {
+            if ((glob == null) == (regex == null)) {
+                throw new BuildException(
+                        "key: exactly one of glob or regex must be set");
+            }
+            try {
+                pattern = Pattern.compile(glob != null ? globToRegex(glob)
+                        : regex);
+            } catch (PatternSyntaxException e) {
+                throw new BuildException("key: malformed regex: "
+                        + e.getMessage());
+            }
+        }
+
+        public boolean isSelected(S3ObjectSummary objectSummary) {
+            return pattern.matcher(objectSummary.getKey()).matches();
+        }
+
+        static String globToRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*' && i + 1 < glob.length()
+                        && glob.charAt(i + 1) == '*') {
+                    i++;
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                        // "**/" also matches no directory at all
+                        i++;
+                        regex.append("(?:.*/)?");
+                    } else {
+                        regex.append(".*");
+                    }
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return regex.toString();
+        }
+    }
+
+    /**
+     * Selects objects in one of a comma separated list of storage classes,
+     * such as "STANDARD,STANDARD_IA".
+     */
+    public static class StorageClass implements S3ObjectSelector {
+        private final Set<String> names = new HashSet<String>();
+
+        /**
+         * Set the storage classes selected, separated by commas. Required.
+         */
+        public void setName(String names) {
+            for (String name : names.split(",")) {
+                if (name.trim().length() > 0) {
+                    this.names.add(name.trim().toUpperCase(Locale.ENGLISH));
+                }
+            }
+        }
+
+        public void checkParams() {
+            if (names.isEmpty()) {
+                throw new BuildException("storageClass: name is required");
+            }
+        }
+
+        public boolean isSelected(S3ObjectSummary objectSummary) {
+            String storageClass = objectSummary.getStorageClass();
+            return names.contains(storageClass == null ? "STANDARD"
+                    : storageClass.toUpperCase(Locale.ENGLISH));
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.IOException;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Enumerates the objects an S3 task acts on, such as from a bucket listing or
+ * an S3 Inventory report.
+ */
+public interface S3ObjectSource {
+
+    /**
+     * Receives the objects of a source, one at a time.
+     */
+    interface Handler {
+        void handle(S3ObjectSummary objectSummary);
+    }
+
+    /**
+     * Passes every object of this source to the handler. Sources that can't
+     * supply a field of S3ObjectSummary leave it null, or 0 for the size.
+     */
+    void forEachObject(Handler handler) throws IOException;
+}
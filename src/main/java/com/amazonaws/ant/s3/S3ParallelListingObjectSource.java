@@ -0,0 +1,342 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.StringUtils;
+
+/**
+ * Lists the objects with a prefix by listing many key ranges concurrently,
+ * instead of paging through the whole prefix one marker at a time.
+ * <p>
+ * The key space is first split at the common prefixes a delimited listing
+ * returns. Each range (lo, hi] is then listed with lo as the marker. When the
+ * first page of a range is truncated, the rest of the range is split again at
+ * boundaries that extend the longest prefix the keys of that page share by one
+ * character, and the new ranges are listed concurrently. This adapts to both deep
+ * and flat key spaces without knowing their shape in advance. The first page
+ * of each new range only asks for about as many keys as the truncated page
+ * held per boundary character, and is limited to the prefix both ends of the
+ * range share, so sparse ranges don't fetch a full page of keys past their
+ * end. Keys are compared in the UTF-8 byte order S3 lists them in.
+ * <p>
+ * The handler is always called from the thread calling
+ * {@link #forEachObject(Handler)}. Objects are passed in key order if the
+ * source is sorted, otherwise in the order their ranges finish.
+ */
+public class S3ParallelListingObjectSource implements S3ObjectSource {
+
+    /** The characters ranges are split at, in ascending order. */
+    static final String BOUNDARY_CHARACTERS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private static final String DELIMITER = "/";
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private final AmazonS3 client;
+    private final String bucketName;
+    private final String prefix;
+    private final int threads;
+    private final boolean sorted;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    /**
+     * @param threads
+     *            The number of ranges listed at the same time
+     * @param sorted
+     *            Whether objects must be passed on in key order
+     */
+    public S3ParallelListingObjectSource(AmazonS3 client, String bucketName,
+            String prefix, int threads, boolean sorted) {
+        this.client = client;
+        this.bucketName = bucketName;
+        this.prefix = prefix;
+        this.threads = threads;
+        this.sorted = sorted;
+    }
+
+    /**
+     * Sets the number of keys requested per page. Only meant for tests.
+     */
+    void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public void forEachObject(Handler handler) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "s3-lister");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        try {
+            CompletionService<RangeResult> completion = new ExecutorCompletionService<RangeResult>(
+                    executor);
+            List<Range> ranges = new ArrayList<Range>();
+            String lo = null;
+            for (String boundary : discoverBoundaries()) {
+                ranges.add(submit(completion, lo, boundary, pageSize));
+                lo = boundary;
+            }
+            ranges.add(submit(completion, lo, null, pageSize));
+
+            if (sorted) {
+                for (Range range : ranges) {
+                    emitInOrder(range, handler);
+                }
+            } else {
+                int pending = ranges.size();
+                while (pending > 0) {
+                    RangeResult result = get(completion.take());
+                    pending += result.children.size() - 1;
+                    emit(result, handler);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while listing " + bucketName);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The common prefixes directly under the prefix, in order
+     */
+    private List<String> discoverBoundaries() {
+        ObjectListing listing = client.listObjects(new ListObjectsRequest(
+                bucketName, prefix, null, DELIMITER, pageSize));
+        List<String> boundaries = new ArrayList<String>(
+                listing.getCommonPrefixes());
+        Collections.sort(boundaries, new Comparator<String>() {
+            public int compare(String first, String second) {
+                return compareKeys(first, second);
+            }
+        });
+        return boundaries;
+    }
+
+    private void emitInOrder(Range range, Handler handler)
+            throws InterruptedException {
+        RangeResult result = get(range.future);
+        emit(result, handler);
+        for (Range child : result.children) {
+            emitInOrder(child, handler);
+        }
+    }
+
+    private void emit(RangeResult result, Handler handler) {
+        for (S3ObjectSummary objectSummary : result.objectSummaries) {
+            handler.handle(objectSummary);
+        }
+    }
+
+    private Range submit(CompletionService<RangeResult> completion,
+            String lo, String hi, int firstPageSize) {
+        return new Range(completion.submit(new RangeLister(completion, lo, hi,
+                firstPageSize)));
+    }
+
+    private static RangeResult get(Future<RangeResult> future)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new AmazonClientException("Unable to list objects: "
+                    + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Returns the boundaries to split the keys after last, up to and
+     * including hi, at. They extend the longest prefix that the keys of the
+     * page ending at last share by one character, and are strictly between
+     * last and hi.
+     */
+    static List<String> splitBoundaries(String prefix, String first,
+            String last, String hi) {
+        int shared = Math.max(prefix.length(), commonPrefixLength(first, last));
+        if (hi != null) {
+            shared = Math.max(shared, commonPrefixLength(last, hi));
+        }
+        String base = last.substring(0, shared);
+        List<String> boundaries = new ArrayList<String>();
+        for (int i = 0; i < BOUNDARY_CHARACTERS.length(); i++) {
+            String boundary = base + BOUNDARY_CHARACTERS.charAt(i);
+            if (compareKeys(boundary, last) > 0
+                    && (hi == null || compareKeys(boundary, hi) < 0)) {
+                boundaries.add(boundary);
+            }
+        }
+        return boundaries;
+    }
+
+    /**
+     * Returns how many keys to ask for in the first page of the ranges between
+     * the given boundaries: twice the average number of keys of the page per
+     * boundary character it covered, assuming those ranges are about as dense.
+     */
+    static int childPageSize(List<S3ObjectSummary> page,
+            List<String> boundaries, int pageSize) {
+        String base = boundaries.get(0).substring(0,
+                boundaries.get(0).length() - 1);
+        Set<Character> characters = new HashSet<Character>();
+        int keys = 0;
+        for (S3ObjectSummary objectSummary : page) {
+            String key = objectSummary.getKey();
+            if (key.length() > base.length() && key.startsWith(base)) {
+                characters.add(key.charAt(base.length()));
+                keys++;
+            }
+        }
+        if (characters.isEmpty()) {
+            return pageSize;
+        }
+        int perCharacter = (keys + characters.size() - 1) / characters.size();
+        return Math.min(pageSize, Math.max(2, 2 * perCharacter));
+    }
+
+    /**
+     * Compares keys in the order S3 lists them in.
+     */
+    private static int compareKeys(String first, String second) {
+        return S3ListingSnapshot.compare(first.getBytes(StringUtils.UTF8),
+                second.getBytes(StringUtils.UTF8));
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                // Don't split a surrogate pair
+                return i > 0 && Character.isHighSurrogate(a.charAt(i - 1)) ? i - 1
+                        : i;
+            }
+        }
+        return length;
+    }
+
+    private static class Range {
+        private final Future<RangeResult> future;
+
+        Range(Future<RangeResult> future) {
+            this.future = future;
+        }
+    }
+
+    private static class RangeResult {
+        private final List<S3ObjectSummary> objectSummaries;
+        private final List<Range> children;
+
+        RangeResult(List<S3ObjectSummary> objectSummaries, List<Range> children) {
+            this.objectSummaries = objectSummaries;
+            this.children = children;
+        }
+    }
+
+    /**
+     * Lists the keys after lo, up to and including hi, splitting the rest of
+     * the range into new ranges after the first truncated page.
+     */
+    private class RangeLister implements Callable<RangeResult> {
+        private final CompletionService<RangeResult> completion;
+        private final String lo;
+        private final String hi;
+        private final int firstPageSize;
+
+        RangeLister(CompletionService<RangeResult> completion, String lo,
+                String hi, int firstPageSize) {
+            this.completion = completion;
+            this.lo = lo;
+            this.hi = hi;
+            this.firstPageSize = firstPageSize;
+        }
+
+        public RangeResult call() {
+            List<S3ObjectSummary> objectSummaries = new ArrayList<S3ObjectSummary>();
+            // All keys in the range share the prefix of its ends, so S3 can
+            // stop at the end of that prefix instead of the whole prefix
+            String rangePrefix = prefix;
+            if (lo != null && hi != null) {
+                rangePrefix = lo.substring(0, Math.max(prefix.length(),
+                        commonPrefixLength(lo, hi)));
+            }
+            String marker = lo;
+            int maxKeys = firstPageSize;
+            while (true) {
+                ObjectListing listing = client.listObjects(new ListObjectsRequest(
+                        bucketName, rangePrefix, marker, null, maxKeys));
+                List<S3ObjectSummary> page = listing.getObjectSummaries();
+                for (S3ObjectSummary objectSummary : page) {
+                    if (hi != null
+                            && compareKeys(objectSummary.getKey(), hi) > 0) {
+                        return new RangeResult(objectSummaries,
+                                Collections.<Range> emptyList());
+                    }
+                    objectSummaries.add(objectSummary);
+                }
+                if (!listing.isTruncated() || page.isEmpty()) {
+                    return new RangeResult(objectSummaries,
+                            Collections.<Range> emptyList());
+                }
+
+                String last = page.get(page.size() - 1).getKey();
+                List<String> boundaries = splitBoundaries(prefix, page.get(0)
+                        .getKey(), last, hi);
+                if (!boundaries.isEmpty()) {
+                    int childPageSize = childPageSize(page, boundaries,
+                            pageSize);
+                    List<Range> children = new ArrayList<Range>();
+                    String childLo = last;
+                    for (String boundary : boundaries) {
+                        children.add(submit(completion, childLo, boundary,
+                                childPageSize));
+                        childLo = boundary;
+                    }
+                    // The last range holds the rest of this one, whose
+                    // density the page says nothing about
+                    children.add(submit(completion, childLo, hi, pageSize));
+                    return new RangeResult(objectSummaries, children);
+                }
+                marker = last;
+                maxKeys = pageSize;
+            }
+        }
+    }
+}
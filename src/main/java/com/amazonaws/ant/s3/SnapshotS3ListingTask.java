@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.IOException;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+/**
+ * Ant task for listing a bucket once into a snapshot that the later S3 tasks
+ * of the build use instead of listing it again. The snapshot is dropped when a
+ * task of the build changes the bucket.
+ */
+public class SnapshotS3ListingTask extends AWSAntTask {
+    private String bucketName;
+    private String keyPrefix = "";
+    private int listThreads = 8;
+
+    /**
+     * Specify the name of your S3 bucket
+     * 
+     * @param bucketName
+     *            The name of the bucket in S3 to list
+     */
+    public void setBucketName(String bucketName) {
+        this.bucketName = bucketName;
+    }
+
+    /**
+     * Specify the prefix of the keys to list. Not required, default is "",
+     * which lists the whole bucket. The snapshot is used by tasks whose prefix
+     * starts with it.
+     * 
+     * @param keyPrefix
+     *            The prefix of the keys to list
+     */
+    public void setKeyPrefix(String keyPrefix) {
+        this.keyPrefix = keyPrefix;
+    }
+
+    /**
+     * Set how many key ranges are listed at the same time. Not required,
+     * default is 8.
+     * 
+     * @param listThreads
+     *            The number of concurrent list requests
+     */
+    public void setListThreads(int listThreads) {
+        this.listThreads = listThreads;
+    }
+
+    private void checkParams() {
+        StringBuilder errors = new StringBuilder("");
+        boolean areMalformedParams = false;
+        if (bucketName == null) {
+            areMalformedParams = true;
+            errors.append("Missing parameter: bucketName is required. \n");
+        }
+        if (keyPrefix == null) {
+            areMalformedParams = true;
+            errors.append("keyPrefix cannot be null. \n");
+        }
+        if (listThreads < 1) {
+            areMalformedParams = true;
+            errors.append("listThreads must be at least 1. \n");
+        }
+        if (areMalformedParams) {
+            throw new BuildException(errors.toString());
+        }
+    }
+
+    @Override
+    protected int getTransferConcurrency() {
+        return listThreads;
+    }
+
+    public void execute() {
+        checkParams();
+        try {
+            S3ListingSnapshots.get(getProject(),
+                    getOrCreateClient(AmazonS3Client.class), bucketName,
+                    keyPrefix, listThreads);
+        } catch (IOException e) {
+            throw new BuildException("Unable to write the listing snapshot: "
+                    + e.getMessage(), e);
+        } catch (AmazonClientException e) {
+            throw new BuildException("Unable to list bucket " + bucketName
+                    + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -16,15 +16,29 @@
 package com.amazonaws.ant.s3;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
 import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
 
 import com.amazonaws.ant.AWSAntTask;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.internal.Mimetypes;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.transfer.MultipleFileUpload;
 import com.amazonaws.services.s3.transfer.ObjectCannedAclProvider;
@@ -35,12 +49,30 @@ import com.amazonaws.services.s3.transfer.Upload;
  * Ant Task for uploading a fileset or filesets to S3.
  */
 public class UploadFileSetToS3Task extends AWSAntTask {
+    private static final int PART_UPLOAD_THREADS = 10;
+    private static final int KEY_INDEX_CAPACITY = 1000000;
+    private static final int KEY_INDEX_LIST_THREADS = 8;
+
     private Vector<FileSet> filesets = new Vector<FileSet>();
     private String bucketName;
     private String keyPrefix;
     private boolean printStatusUpdates = false;
     private boolean continueOnFail = false;
     private int statusUpdatePeriodInMs = 500;
+    private boolean hedge = false;
+    private int hedgePercentile = 95;
+    private int hedgeBudgetPercent = 5;
+    private int partSizeInMb = 16;
+    private List<Destination> destinations = new ArrayList<Destination>();
+    private boolean watch = false;
+    private long watchDebounceInMs = 200;
+    private boolean skipExisting = false;
+    private File keyIndexDir = new File(System.getProperty("java.io.tmpdir"),
+            "s3-key-index");
+    private int keyIndexMaxAgeInHours = 24;
+    private List<S3MetadataRules.Rule> metadataRules = new ArrayList<S3MetadataRules.Rule>();
+    private boolean immutableFingerprints = false;
+    private S3MetadataRules compiledRules;
 
     /**
      * Specify a fileset to be deployed.
@@ -53,7 +85,8 @@ public class UploadFileSetToS3Task extends AWSAntTask {
     }
 
     /**
-     * Specify the name of your S3 bucket
+     * Specify the name of your S3 bucket. Not required if destinations are
+     * nested.
      *
      * @param bucketName
      *            The name of the bucket in S3 to store the files in. An
@@ -118,43 +151,263 @@ public class UploadFileSetToS3Task extends AWSAntTask {
         this.statusUpdatePeriodInMs = statusUpdatePeriodInMs;
     }
 
+    /**
+     * Set whether to hedge uploads. Not required, default is false. If true,
+     * files are uploaded from memory buffers, in parts of partSizeInMb, and a
+     * PUT that takes longer than hedgePercentile of the recent PUTs is
+     * duplicated. The first copy to finish is kept and the other is aborted.
+     *
+     * @param hedge
+     *            Whether to hedge slow PUTs
+     */
+    public void setHedge(boolean hedge) {
+        this.hedge = hedge;
+    }
+
+    /**
+     * Set the percentile of recent PUT latencies after which a PUT is
+     * duplicated. Not required, default is 95. Does nothing unless hedge is
+     * true.
+     *
+     * @param hedgePercentile
+     *            The latency percentile, between 1 and 99
+     */
+    public void setHedgePercentile(int hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Set the maximum number of duplicate PUTs, as a percentage of all PUTs.
+     * Not required, default is 5. Does nothing unless hedge is true.
+     *
+     * @param hedgeBudgetPercent
+     *            The percentage of extra requests hedging may send
+     */
+    public void setHedgeBudgetPercent(int hedgeBudgetPercent) {
+        this.hedgeBudgetPercent = hedgeBudgetPercent;
+    }
+
+    /**
+     * Set the size of the parts large files are uploaded in. Not required,
+     * default is 16. Files no larger than this are uploaded with a single PUT.
+     * Does nothing unless hedge is true or destinations are nested.
+     *
+     * @param partSizeInMb
+     *            The part size in megabytes, at least 5
+     */
+    public void setPartSizeInMb(int partSizeInMb) {
+        this.partSizeInMb = partSizeInMb;
+    }
+
+    /**
+     * Set whether to keep watching the filesets after uploading them. Not
+     * required, default is false. If true, changed files are uploaded and
+     * deleted files are deleted from S3 as soon as the changes settle, until
+     * the build is interrupted. Failures are printed and watching continues.
+     *
+     * @param watch
+     *            Whether to watch the filesets for changes
+     */
+    public void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+
+    /**
+     * Set how long to wait for more changes before publishing a burst of
+     * changes. Not required, default is 200. Does nothing unless watch is
+     * true.
+     *
+     * @param watchDebounceInMs
+     *            How long the files must stay unchanged before they are
+     *            published
+     */
+    public void setWatchDebounceInMs(long watchDebounceInMs) {
+        this.watchDebounceInMs = watchDebounceInMs;
+    }
+
+    /**
+     * Set whether to skip files whose key already exists. Not required,
+     * default is false. Meant for immutable keys, such as names that contain a
+     * hash of the content, since a changed file with an existing key is not
+     * uploaded. The keys of each bucket are looked up in a compact index kept
+     * in keyIndexDir, so only keys the index might contain are checked with a
+     * HEAD request.
+     *
+     * @param skipExisting
+     *            Whether to skip files that already exist in S3
+     */
+    public void setSkipExisting(boolean skipExisting) {
+        this.skipExisting = skipExisting;
+    }
+
+    /**
+     * Set the directory the key indexes of the buckets are kept in. Not
+     * required, default is the s3-key-index directory in the temporary
+     * directory. Does nothing unless skipExisting is true.
+     *
+     * @param keyIndexDir
+     *            The directory to keep the key indexes in
+     */
+    public void setKeyIndexDir(File keyIndexDir) {
+        this.keyIndexDir = keyIndexDir;
+    }
+
+    /**
+     * Set the age after which a key index is rebuilt from a listing of its
+     * bucket. Not required, default is 24. Keys uploaded by this task are
+     * added to the index as they are uploaded, so the index only misses keys
+     * added by others. Does nothing unless skipExisting is true.
+     *
+     * @param keyIndexMaxAgeInHours
+     *            The maximum age of a key index in hours
+     */
+    public void setKeyIndexMaxAgeInHours(int keyIndexMaxAgeInHours) {
+        this.keyIndexMaxAgeInHours = keyIndexMaxAgeInHours;
+    }
+
+    /**
+     * Set whether to mark files whose name contains a hash of their content,
+     * such as app.3f2a9c1b.js, as immutable. Not required, default is false.
+     * If true, they are uploaded with "Cache-Control: public,
+     * max-age=31536000, immutable", whatever the metadata rules say, so
+     * CloudFront and browsers never revalidate them.
+     *
+     * @param immutableFingerprints
+     *            Whether to mark fingerprinted files as immutable
+     */
+    public void setImmutableFingerprints(boolean immutableFingerprints) {
+        this.immutableFingerprints = immutableFingerprints;
+    }
+
+    /**
+     * Set the Cache-Control, Expires, Content-Type or storage class of the
+     * files whose key matches a pattern. The first matching rule that sets a
+     * header decides it.
+     */
+    public void addConfiguredMetadata(S3MetadataRules.Rule rule) {
+        rule.checkParams();
+        metadataRules.add(rule);
+    }
+
+    /**
+     * Also upload the files to another bucket, possibly in another region.
+     * Each file is read once, and sent to bucketName and all destinations
+     * concurrently. Files are uploaded from memory buffers, in parts of
+     * partSizeInMb.
+     */
+    public void addConfiguredDestination(Destination destination) {
+        if (destination.bucket == null) {
+            throw new BuildException("Missing parameter: bucket is required for a destination");
+        }
+        destinations.add(destination);
+    }
+
     /**
      * Verifies that all necessary parameters were set
      */
     private void checkParameters() {
         StringBuilder errors = new StringBuilder("");
         boolean areMalformedParams = false;
-        if (bucketName == null) {
+        if (bucketName == null && destinations.isEmpty()) {
             areMalformedParams = true;
-            errors.append("Missing parameter: bucketName is required \n");
+            errors.append("Missing parameter: bucketName or a destination is required \n");
         }
         if (filesets.size() < 1) {
             areMalformedParams = true;
             errors.append("Missing parameter: you must specify at least one fileset \n");
         }
+        if (partSizeInMb < 5) {
+            areMalformedParams = true;
+            errors.append("partSizeInMb must be at least 5 \n");
+        }
+        if (watchDebounceInMs < 0) {
+            areMalformedParams = true;
+            errors.append("watchDebounceInMs cannot be negative \n");
+        }
         if (areMalformedParams) {
             throw new BuildException(errors.toString());
         }
     }
 
+    @Override
+    protected int getTransferConcurrency() {
+        return hedge ? 2 * PART_UPLOAD_THREADS : PART_UPLOAD_THREADS;
+    }
+
     /**
      * Uploads files to S3
      */
     @Override
 	public void execute() {
         checkParameters();
-        TransferManager transferManager;
-        if (awsSecretKey != null && awsAccessKeyId != null) {
-            transferManager = new TransferManager(getOrCreateClient(AmazonS3Client.class));
-        } else {
-            transferManager = new TransferManager();
-        }
+        compiledRules = new S3MetadataRules(metadataRules, immutableFingerprints);
+        // Only created for uploads to bucketName alone, which don't go
+        // through the uploader
+        TransferManager transferManager = null;
         
         if(keyPrefix==null) {
     		keyPrefix = "";
     	}
+
+        HedgedRequests hedger = null;
+        ExecutorService partExecutor = null;
+        MultipartUploader uploader = null;
+        List<Destination> allDestinations = new ArrayList<Destination>();
+        if (bucketName != null) {
+            allDestinations.add(new Destination(bucketName, awsRegion));
+        }
+        allDestinations.addAll(destinations);
+        List<MultipartUploader.Target> targets = new ArrayList<MultipartUploader.Target>();
+        for (Destination destination : allDestinations) {
+            String region = destination.region == null ? awsRegion
+                    : destination.region;
+            targets.add(new MultipartUploader.Target(getOrCreateClient(
+                    AmazonS3Client.class, region), destination.bucket));
+        }
+        if (hedge) {
+            hedger = new HedgedRequests(hedgePercentile, hedgeBudgetPercent);
+        }
+        if (hedge || watch || !destinations.isEmpty()) {
+            partExecutor = Executors.newFixedThreadPool(PART_UPLOAD_THREADS);
+            uploader = new MultipartUploader(hedger, partExecutor,
+                    partSizeInMb * 1024L * 1024L);
+        }
         
-        
+        List<S3KeyIndex> keyIndexes = null;
+        if (skipExisting) {
+            keyIndexes = new ArrayList<S3KeyIndex>();
+            for (int i = 0; i < allDestinations.size(); i++) {
+                try {
+                    keyIndexes.add(S3KeyIndex.open(targets.get(i).getClient(),
+                            allDestinations.get(i).bucket, new File(
+                                    keyIndexDir, allDestinations.get(i).bucket
+                                            + ".index"), KEY_INDEX_CAPACITY,
+                            keyIndexMaxAgeInHours * 3600L * 1000L,
+                            KEY_INDEX_LIST_THREADS));
+                } catch (IOException e) {
+                    throw new BuildException("Failed to open the key index of "
+                            + allDestinations.get(i) + ": " + e, e);
+                }
+            }
+        }
+        int skippedExisting = 0;
+
+        // Watch before the first upload, so no change is missed
+        DirectoryWatcher watcher = null;
+        NavigableMap<String, String> uploadedKeys = new TreeMap<String, String>();
+        if (watch) {
+            List<File> directories = new ArrayList<File>();
+            for (FileSet fileSet : filesets) {
+                directories.add(fileSet.getDir(getProject()));
+            }
+            try {
+                watcher = new DirectoryWatcher(directories, watchDebounceInMs);
+            } catch (IOException e) {
+                throw new BuildException("Failed to watch " + directories
+                        + ": " + e, e);
+            }
+        }
+
         ObjectCannedAclProvider cannedAclProvider = new ObjectCannedAclProvider() {
 
             public CannedAccessControlList provideObjectCannedAcl(File file) {
@@ -181,10 +434,7 @@ public class UploadFileSetToS3Task extends AWSAntTask {
 //                    	System.out.println("base directory path: "+keyBase+"...");
                     	
                     	
-                    	String path = file.getPath();
-                    	int indexOfWar=path.indexOf("war/");
-                		
-                		path = path.substring(indexOfWar,path.length());
+                    	String path = keyFor(file);
                 		
                 		
 //                		if(Pattern.matches("geeksforge*ks", 
@@ -192,14 +442,18 @@ public class UploadFileSetToS3Task extends AWSAntTask {
 //                			
 //                		}
                 		
-                		if(path.contains("/classes/") || path.contains(".class")) {
+                		if(path == null) {
                 			System.out.println("Skipping class file " + file.getName()
                             + "...");
                 			continue;
                 		}
                 		
+                		if (keyIndexes != null && existsEverywhere(keyIndexes, path)) {
+                		    skippedExisting++;
+                		    continue;
+                		}
+                		
 //                    	if(path.indexOf(''war))
-                    	System.out.println("file path:"+path);
                         System.out.println("Uploading file " + file.getName()
                                 + "...");
                         
@@ -210,8 +464,25 @@ public class UploadFileSetToS3Task extends AWSAntTask {
 //                        + "...");
                 		
                         
+                        if (uploader != null) {
+                            uploadToTargets(uploader, targets,
+                                    allDestinations, file, path);
+                            uploadedKeys.put(file.getPath(), path);
+                            addToIndexes(keyIndexes, path);
+                            System.out.println("Upload succesful");
+                            continue;
+                        }
+
 //                        Upload upload = transferManager.upload(bucketName, key, file);
-                        Upload upload = transferManager.upload(new PutObjectRequest(bucketName, path, file).withCannedAcl((CannedAccessControlList.PublicRead)));
+                        PutObjectRequest putObjectRequest = new PutObjectRequest(bucketName, path, file).withCannedAcl((CannedAccessControlList.PublicRead));
+                        if (!compiledRules.isEmpty()) {
+                            putObjectRequest.setMetadata(newMetadata(file, path));
+                        }
+                        if (transferManager == null) {
+                            transferManager = new TransferManager(
+                                    getOrCreateClient(AmazonS3Client.class));
+                        }
+                        Upload upload = transferManager.upload(putObjectRequest);
                         
 //                    	MultipleFileUpload mulupload = transferManager.uploadDirectory(bucketName, keyBase, base, true, null, null, cannedAclProvider);
                     	
@@ -236,6 +507,8 @@ public class UploadFileSetToS3Task extends AWSAntTask {
                             upload.waitForCompletion();
                         }
 //                    	mulupload.waitForCompletion();
+                        S3ChangeSets.record(getProject(), bucketName, path);
+                        addToIndexes(keyIndexes, path);
                         System.out.println("Upload succesful");
 //                        break;
                     } catch (Exception e) {
@@ -250,8 +523,331 @@ public class UploadFileSetToS3Task extends AWSAntTask {
                     }
                 }
             } finally {
-                transferManager.shutdownNow(false);
+                if (transferManager != null) {
+                    // Keeps the shared client
+                    transferManager.shutdownNow(false);
+                    transferManager = null;
+                }
+            }
+        }
+        for (Destination destination : allDestinations) {
+            S3ListingSnapshots.invalidate(getProject(), destination.bucket);
+        }
+        try {
+            if (keyIndexes != null) {
+                System.out.println("Skipped " + skippedExisting
+                        + " files that already exist");
+                for (int i = 0; i < keyIndexes.size(); i++) {
+                    System.out.println("Key index of " + allDestinations.get(i)
+                            + ": " + keyIndexes.get(i).getSummary());
+                    try {
+                        keyIndexes.get(i).save();
+                    } catch (IOException e) {
+                        System.err.println("Failed to save the key index of "
+                                + allDestinations.get(i) + ": " + e);
+                    }
+                }
+            }
+            if (allDestinations.size() > 1) {
+                for (Destination destination : allDestinations) {
+                    System.out.println("Uploaded " + destination.uploadedFiles
+                            + " files (" + destination.uploadedBytes
+                            + " bytes) to " + destination + ", "
+                            + destination.failedFiles + " failed");
+                }
+            }
+            if (watcher != null) {
+                watchForChanges(watcher, uploader, targets, allDestinations,
+                        uploadedKeys);
+            }
+        } finally {
+            if (hedger != null) {
+                System.out.println("Hedged uploads: " + hedger.getSummary());
+                hedger.shutdown();
+            }
+            if (uploader != null) {
+                uploader.shutdown();
+                partExecutor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * @return The key of the file, or null if it isn't uploaded
+     */
+    private static String keyFor(File file) {
+        String path = file.getPath();
+        int indexOfWar = path.indexOf("war/");
+        path = path.substring(indexOfWar, path.length());
+        if (path.contains("/classes/") || path.contains(".class")) {
+            return null;
+        }
+        return path;
+    }
+
+    private static boolean existsEverywhere(List<S3KeyIndex> keyIndexes,
+            String key) {
+        for (S3KeyIndex keyIndex : keyIndexes) {
+            if (!keyIndex.exists(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addToIndexes(List<S3KeyIndex> keyIndexes, String key) {
+        if (keyIndexes != null) {
+            for (S3KeyIndex keyIndex : keyIndexes) {
+                keyIndex.add(key);
+            }
+        }
+    }
+
+    /**
+     * Uploads a file to every destination, counting the successes and
+     * failures of each one.
+     *
+     * @throws Exception
+     *             The first failure, after the file was uploaded to the other
+     *             destinations
+     */
+    private void uploadToTargets(MultipartUploader uploader,
+            List<MultipartUploader.Target> targets,
+            List<Destination> allDestinations, File file, String path)
+            throws Exception {
+        List<Exception> failures = uploader.upload(targets, path, file,
+                newMetadata(file, path), CannedAccessControlList.PublicRead);
+        Exception failure = null;
+        for (int i = 0; i < failures.size(); i++) {
+            Destination destination = allDestinations.get(i);
+            if (failures.get(i) == null) {
+                S3ChangeSets.record(getProject(), destination.bucket, path);
+                destination.uploadedFiles++;
+                destination.uploadedBytes += file.length();
+            } else {
+                destination.failedFiles++;
+                System.err.println("Failed to upload " + file.getName()
+                        + " to " + destination + ": " + failures.get(i));
+                if (failure == null) {
+                    failure = failures.get(i);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return The metadata of the file's object, with the headers the
+     *         metadata rules give its key
+     */
+    private ObjectMetadata newMetadata(File file, String path) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentType(Mimetypes.getInstance().getMimetype(file));
+        compiledRules.apply(path, objectMetadata);
+        return objectMetadata;
+    }
+
+    /**
+     * Publishes changes to the filesets until the build is interrupted.
+     *
+     * @param uploadedKeys
+     *            The keys of the uploaded files, by file path. Updated as
+     *            files are uploaded and deleted.
+     */
+    private void watchForChanges(DirectoryWatcher watcher,
+            final MultipartUploader uploader,
+            final List<MultipartUploader.Target> targets,
+            final List<Destination> allDestinations,
+            final NavigableMap<String, String> uploadedKeys) {
+        final List<FileSetMatcher> matchers = new ArrayList<FileSetMatcher>();
+        for (FileSet fileSet : filesets) {
+            matchers.add(new FileSetMatcher(fileSet, getProject()));
+        }
+        System.out.println("Watching for changes...");
+        try {
+            watcher.watch(new DirectoryWatcher.Handler() {
+                public void filesChanged(Set<File> changed) {
+                    long start = System.currentTimeMillis();
+                    List<File> changedFiles = new ArrayList<File>();
+                    int deleted = 0;
+                    for (File file : changed) {
+                        if (file.exists()) {
+                            collectFiles(file, changedFiles);
+                        } else {
+                            deleted += deleteKeys(file, targets, uploadedKeys,
+                                    getProject());
+                        }
+                    }
+                    int uploaded = 0;
+                    for (File file : changedFiles) {
+                        String path = matches(matchers, file)
+                                && file.getPath().contains("war/")
+                                ? keyFor(file) : null;
+                        if (path == null) {
+                            continue;
+                        }
+                        try {
+                            uploadToTargets(uploader, targets,
+                                    allDestinations, file, path);
+                            uploadedKeys.put(file.getPath(), path);
+                            uploaded++;
+                        } catch (Exception e) {
+                            System.err.println("The file " + file.getName()
+                                    + " failed to upload: " + e);
+                        }
+                    }
+                    for (Destination destination : allDestinations) {
+                        S3ListingSnapshots.invalidate(getProject(),
+                                destination.bucket);
+                    }
+                    System.out.println("Published " + uploaded
+                            + " changed and " + deleted + " deleted files in "
+                            + (System.currentTimeMillis() - start) + " ms");
+                }
+            });
+        } catch (InterruptedException e) {
+            System.out.println("Stopped watching for changes");
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new BuildException("Failed to watch for changes: " + e, e);
+        } finally {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                // Nothing left to watch
+            }
+        }
+    }
+
+    private static void collectFiles(File file, List<File> files) {
+        if (file.isFile()) {
+            files.add(file);
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                collectFiles(child, files);
+            }
+        }
+    }
+
+    private static boolean matches(List<FileSetMatcher> matchers, File file) {
+        for (FileSetMatcher matcher : matchers) {
+            if (matcher.matches(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deletes the keys of a deleted file, or of all files that were in a
+     * deleted directory.
+     *
+     * @return The number of keys deleted
+     */
+    private static int deleteKeys(File file,
+            List<MultipartUploader.Target> targets,
+            NavigableMap<String, String> uploadedKeys, Project project) {
+        String filePath = file.getPath();
+        int deleted = 0;
+        Iterator<Map.Entry<String, String>> entries = uploadedKeys
+                .tailMap(filePath, true).entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            String path = entry.getKey();
+            if (!path.startsWith(filePath)) {
+                break;
+            }
+            if (!path.equals(filePath)
+                    && !path.startsWith(filePath + File.separator)) {
+                continue;
+            }
+            try {
+                for (MultipartUploader.Target target : targets) {
+                    target.getClient().deleteObject(target.getBucketName(),
+                            entry.getValue());
+                    S3ChangeSets.recordDeletion(project,
+                            target.getBucketName(), entry.getValue());
+                }
+                entries.remove();
+                deleted++;
+            } catch (Exception e) {
+                System.err.println("Failed to delete " + entry.getValue()
+                        + ": " + e);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Tells whether a file is included in a fileset without scanning it.
+     */
+    private static class FileSetMatcher extends DirectoryScanner {
+        private final String basePath;
+
+        FileSetMatcher(FileSet fileSet, Project project) {
+            fileSet.setupDirectoryScanner(this, project);
+            // Defaults that scan() would otherwise fill in
+            if (includes == null) {
+                includes = new String[] { SelectorUtils.DEEP_TREE_MATCH };
             }
+            if (excludes == null) {
+                excludes = new String[0];
+            }
+            basePath = getBasedir().getAbsolutePath() + File.separator;
+        }
+
+        boolean matches(File file) {
+            String absolutePath = file.getAbsolutePath();
+            if (!absolutePath.startsWith(basePath)) {
+                return false;
+            }
+            String name = absolutePath.substring(basePath.length());
+            return isIncluded(name) && !isExcluded(name)
+                    && isSelected(name, file);
+        }
+    }
+
+    /**
+     * A bucket the files are uploaded to, in addition to bucketName.
+     */
+    public static class Destination {
+        private String bucket;
+        private String region;
+        private int uploadedFiles;
+        private long uploadedBytes;
+        private int failedFiles;
+
+        public Destination() {
+        }
+
+        private Destination(String bucket, String region) {
+            this.bucket = bucket;
+            this.region = region;
+        }
+
+        /**
+         * Set the name of the bucket. Required.
+         */
+        public void setBucket(String bucket) {
+            this.bucket = bucket;
+        }
+
+        /**
+         * Set the region of the bucket. Not required, default is the region
+         * of the task.
+         */
+        public void setRegion(String region) {
+            this.region = region;
+        }
+
+        @Override
+        public String toString() {
+            return bucket + (region == null ? "" : " in " + region);
         }
     }
 }
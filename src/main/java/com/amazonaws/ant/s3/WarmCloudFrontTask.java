@@ -0,0 +1,338 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.ant.AWSTask;
+import com.amazonaws.services.cloudfront.AmazonCloudFront;
+import com.amazonaws.services.cloudfront.AmazonCloudFrontClient;
+import com.amazonaws.services.cloudfront.model.GetDistributionRequest;
+import com.amazonaws.util.SdkHttpUtils;
+
+/**
+ * Ant Task for fetching changed objects through a CloudFront distribution, so
+ * its edge caches hold them before the first users ask for them.
+ */
+public class WarmCloudFrontTask extends AWSTask {
+    private String distributionId;
+    private String baseUrl;
+    private String bucketName;
+    private String originPath = "";
+    private String urls;
+    private String acceptEncodings;
+    private int concurrency = 16;
+    private int timeoutInMs = 10000;
+    private boolean failOnError = false;
+
+    /**
+     * Set the ID of the distribution, whose domain name the objects are
+     * fetched from. Not required if baseUrl is set.
+     */
+    public void setDistributionId(String distributionId) {
+        this.distributionId = distributionId;
+    }
+
+    /**
+     * Set the URL the paths are fetched from, such as
+     * "https://www.example.com". Not required if distributionId is set.
+     */
+    public void setBaseUrl(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * Set the bucket whose keys uploaded earlier in the build are fetched.
+     * Not required, default is none.
+     */
+    public void setBucketName(String bucketName) {
+        this.bucketName = bucketName;
+    }
+
+    /**
+     * Set the origin path of the distribution, such as "/production". Not
+     * required, default is none. It is removed from the uploaded keys, and
+     * keys outside of it are not fetched.
+     */
+    public void setOriginPath(String originPath) {
+        this.originPath = originPath;
+    }
+
+    /**
+     * Set paths, such as "/index.html", or URLs to fetch, separated by
+     * commas. Not required, default is none.
+     */
+    public void setUrls(String urls) {
+        this.urls = urls;
+    }
+
+    /**
+     * Set the Accept-Encoding values to fetch every URL with, separated by
+     * commas, such as "gzip,br,identity". CloudFront caches a copy per
+     * encoding it compresses for. Not required, default is to fetch every
+     * URL once, without Accept-Encoding.
+     */
+    public void setAcceptEncodings(String acceptEncodings) {
+        this.acceptEncodings = acceptEncodings;
+    }
+
+    /**
+     * Set how many requests are sent at the same time. Not required, default
+     * is 16.
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Set the connect and read timeout of each request. Not required, default
+     * is 10000.
+     */
+    public void setTimeoutInMs(int timeoutInMs) {
+        this.timeoutInMs = timeoutInMs;
+    }
+
+    /**
+     * Set whether the task fails if a request fails or gets an error status.
+     * Not required, default is false, since warming is only an optimization.
+     */
+    public void setFailOnError(boolean failOnError) {
+        this.failOnError = failOnError;
+    }
+
+    /**
+     * Verifies that all necessary parameters were set
+     */
+    private void checkParameters() {
+        StringBuilder errors = new StringBuilder("");
+        boolean areMalformedParams = false;
+        if ((distributionId == null) == (baseUrl == null)) {
+            areMalformedParams = true;
+            errors.append("Exactly one of distributionId or baseUrl must be set \n");
+        }
+        if (bucketName == null && urls == null) {
+            areMalformedParams = true;
+            errors.append("Missing parameter: bucketName or urls is required \n");
+        }
+        if (concurrency < 1) {
+            areMalformedParams = true;
+            errors.append("concurrency must be at least 1 \n");
+        }
+        if (areMalformedParams) {
+            throw new BuildException(errors.toString());
+        }
+    }
+
+    /**
+     * Fetches the URLs
+     */
+    @Override
+    public void execute() {
+        checkParameters();
+        String base = baseUrl != null ? baseUrl : "https://"
+                + createClient().getDistribution(
+                        new GetDistributionRequest(distributionId))
+                        .getDistribution().getDomainName();
+        while (base.endsWith("/")) {
+            base = base.substring(0, base.length() - 1);
+        }
+
+        List<String> targets = new ArrayList<String>();
+        if (urls != null) {
+            for (String url : urls.split(",")) {
+                url = url.trim();
+                if (url.length() > 0) {
+                    targets.add(url.contains("://") ? url : base
+                            + (url.startsWith("/") ? "" : "/") + url);
+                }
+            }
+        }
+        if (bucketName != null) {
+            String prefix = originPath;
+            while (prefix.startsWith("/")) {
+                prefix = prefix.substring(1);
+            }
+            if (prefix.length() > 0 && !prefix.endsWith("/")) {
+                prefix += "/";
+            }
+            for (String key : S3ChangeSets.getUploaded(getProject(), bucketName)) {
+                if (key.startsWith(prefix)) {
+                    targets.add(base + "/"
+                            + SdkHttpUtils.urlEncode(
+                                    key.substring(prefix.length()), true));
+                }
+            }
+        }
+        List<String> encodings = new ArrayList<String>();
+        if (acceptEncodings == null) {
+            encodings.add(null);
+        } else {
+            for (String encoding : acceptEncodings.split(",")) {
+                if (encoding.trim().length() > 0) {
+                    encodings.add(encoding.trim());
+                }
+            }
+        }
+        if (targets.isEmpty()) {
+            System.out.println("Nothing to warm");
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                concurrency, targets.size() * encodings.size()));
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        long start = System.currentTimeMillis();
+        try {
+            for (final String url : targets) {
+                for (final String encoding : encodings) {
+                    futures.add(executor.submit(new Callable<Result>() {
+                        public Result call() {
+                            return fetch(url, encoding);
+                        }
+                    }));
+                }
+            }
+            List<Result> results = new ArrayList<Result>();
+            for (Future<Result> future : futures) {
+                Result result = future.get();
+                System.out.println(result);
+                results.add(result);
+            }
+            report(results, System.currentTimeMillis() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while warming", e);
+        } catch (ExecutionException e) {
+            throw new BuildException("Failed to warm: " + e.getCause(),
+                    e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void report(List<Result> results, long elapsedInMs) {
+        List<Long> latencies = new ArrayList<Long>();
+        int hits = 0;
+        int errors = 0;
+        for (Result result : results) {
+            latencies.add(result.latencyInMs);
+            if (result.isError()) {
+                errors++;
+            } else if (result.cacheStatus != null
+                    && result.cacheStatus.toLowerCase(Locale.ENGLISH)
+                            .startsWith("hit")) {
+                hits++;
+            }
+        }
+        Collections.sort(latencies);
+        System.out.println("Warmed " + results.size() + " URLs in "
+                + elapsedInMs + " ms: " + hits + " were already cached, "
+                + errors + " failed, median latency "
+                + latencies.get(latencies.size() / 2) + " ms, p95 "
+                + latencies.get((int) Math.ceil(latencies.size() * 0.95) - 1)
+                + " ms");
+        if (errors > 0 && failOnError) {
+            throw new BuildException(errors + " URLs failed to warm");
+        }
+    }
+
+    /**
+     * Fetches the URL, reading and discarding the whole response, since
+     * CloudFront may not cache a response the client stopped reading. Reading
+     * it all also lets the connection be kept alive for the next request.
+     */
+    private Result fetch(String url, String encoding) {
+        Result result = new Result(url, encoding);
+        long start = System.currentTimeMillis();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url)
+                    .openConnection();
+            connection.setConnectTimeout(timeoutInMs);
+            connection.setReadTimeout(timeoutInMs);
+            if (encoding != null) {
+                connection.setRequestProperty("Accept-Encoding", encoding);
+            }
+            result.status = connection.getResponseCode();
+            result.cacheStatus = connection.getHeaderField("X-Cache");
+            result.age = connection.getHeaderField("Age");
+            InputStream in = result.status >= 400 ? connection
+                    .getErrorStream() : connection.getInputStream();
+            if (in != null) {
+                try {
+                    byte[] buffer = new byte[8192];
+                    while (in.read(buffer) >= 0) {
+                        // Discarded
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            result.failure = e;
+        }
+        result.latencyInMs = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    protected AmazonCloudFront createClient() {
+        return getOrCreateClient(AmazonCloudFrontClient.class);
+    }
+
+    /**
+     * The outcome of fetching a URL with one Accept-Encoding.
+     */
+    private static class Result {
+        private final String url;
+        private final String encoding;
+        private int status;
+        private String cacheStatus;
+        private String age;
+        private long latencyInMs;
+        private IOException failure;
+
+        Result(String url, String encoding) {
+            this.url = url;
+            this.encoding = encoding;
+        }
+
+        boolean isError() {
+            return failure != null || status >= 400;
+        }
+
+        @Override
+        public String toString() {
+            return url + (encoding == null ? "" : " (" + encoding + ")")
+                    + ": "
+                    + (failure != null ? "failed: " + failure : status + ", "
+                            + latencyInMs + " ms"
+                            + (cacheStatus == null ? "" : ", " + cacheStatus)
+                            + (age == null ? "" : ", age " + age));
+        }
+    }
+}
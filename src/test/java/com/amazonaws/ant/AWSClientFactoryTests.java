@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+public class AWSClientFactoryTests {
+    private static final AtomicInteger SHUTDOWNS = new AtomicInteger();
+
+    private Project project;
+
+    @Before
+    public void setUp() {
+        project = new Project();
+        SHUTDOWNS.set(0);
+        CountingClient.CREATED.set(0);
+    }
+
+    @Test
+    public void testClientsAreSharedBySameSettings() {
+        AWSClientFactory factory = AWSClientFactory.get(project);
+        AWSCredentialsProvider credentials = factory.getCredentialsProvider(
+                "key", "secret");
+        assertSame(credentials, factory.getCredentialsProvider("key", "secret"));
+        assertSame(factory.getCredentialsProvider(null, null),
+                factory.getCredentialsProvider("", ""));
+
+        CountingClient client = factory.getClient(CountingClient.class,
+                "us-west-2", credentials, new ClientConfiguration());
+        assertSame(client, factory.getClient(CountingClient.class, "us-west-2",
+                credentials, new ClientConfiguration().withUserAgent("other")));
+        assertNotSame(client, factory.getClient(CountingClient.class,
+                "eu-west-1", credentials, new ClientConfiguration()));
+        assertNotSame(client, factory.getClient(CountingClient.class,
+                "us-west-2", factory.getCredentialsProvider("key", "other"),
+                new ClientConfiguration()));
+        assertNotSame(client, factory.getClient(CountingClient.class,
+                "us-west-2", credentials,
+                new ClientConfiguration().withMaxConnections(7)));
+    }
+
+    @Test
+    public void testTasksShareClients() {
+        TestTask first = new TestTask();
+        first.setProject(project);
+        first.setAWSAccessKeyId("key");
+        first.setAWSSecretKey("secret");
+        AWSTask second = new AWSTask();
+        second.setProject(project);
+        second.setKey("key");
+        second.setSecret("secret");
+        assertSame(first.getOrCreateClient(AmazonS3Client.class),
+                second.getOrCreateClient(AmazonS3Client.class));
+        assertEquals("key", second.getCredentials().getAWSAccessKeyId());
+    }
+
+    @Test
+    public void testConcurrentTasksGetOneClient() throws Exception {
+        final AWSClientFactory factory = AWSClientFactory.get(project);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<CountingClient>> futures = new ArrayList<Future<CountingClient>>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<CountingClient>() {
+                    public CountingClient call() throws Exception {
+                        start.await();
+                        return factory.getClient(CountingClient.class, null,
+                                factory.getCredentialsProvider(null, null),
+                                new ClientConfiguration());
+                    }
+                }));
+            }
+            start.countDown();
+            CountingClient client = futures.get(0).get();
+            for (Future<CountingClient> future : futures) {
+                assertSame(client, future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        project.fireBuildFinished(null);
+        // The clients created by losing threads were shut down right away
+        assertEquals(CountingClient.CREATED.get(), SHUTDOWNS.get());
+    }
+
+    @Test
+    public void testClientsAreShutDownWhenTheBuildFinishes() {
+        final AWSClientFactory factory = AWSClientFactory.get(project);
+        final CountingClient client = factory.getClient(CountingClient.class,
+                null, factory.getCredentialsProvider(null, null),
+                new ClientConfiguration());
+        final AtomicInteger shutdownsSeen = new AtomicInteger(-1);
+        factory.addBuildFinishedListener(new TestListener() {
+            @Override
+            public void buildFinished(BuildEvent event) {
+                shutdownsSeen.set(SHUTDOWNS.get());
+            }
+        });
+        project.fireBuildFinished(null);
+        assertEquals(0, shutdownsSeen.get());
+        assertEquals(1, SHUTDOWNS.get());
+        assertNotSame(factory, AWSClientFactory.get(project));
+        assertNotSame(client, AWSClientFactory.get(project).getClient(
+                CountingClient.class, null,
+                factory.getCredentialsProvider(null, null),
+                new ClientConfiguration()));
+    }
+
+    @Test
+    public void testSubBuildClientsAreShutDownWhenTheSubBuildFinishes() {
+        AWSClientFactory factory = AWSClientFactory.get(project);
+        factory.getClient(CountingClient.class, null,
+                factory.getCredentialsProvider(null, null),
+                new ClientConfiguration());
+        // What <antcall> does: the new project gets the listeners of its
+        // parent, but not its references
+        Project subProject = new Project();
+        for (Object listener : project.getBuildListeners()) {
+            subProject.addBuildListener((BuildListener) listener);
+        }
+        subProject.fireSubBuildStarted();
+        AWSClientFactory subFactory = AWSClientFactory.get(subProject);
+        assertNotSame(factory, subFactory);
+        subFactory.getClient(CountingClient.class, null,
+                subFactory.getCredentialsProvider(null, null),
+                new ClientConfiguration());
+        subProject.fireSubBuildFinished(null);
+        assertEquals(1, SHUTDOWNS.get());
+        assertSame(factory, AWSClientFactory.get(project));
+
+        project.fireBuildFinished(null);
+        assertEquals(2, SHUTDOWNS.get());
+    }
+
+    @Test
+    public void testSetClientOverridesSettings() {
+        AWSClientFactory factory = AWSClientFactory.get(project);
+        AmazonS3Client client = new AmazonS3Client();
+        factory.setClient(AmazonS3Client.class, null, client);
+        TestTask task = new TestTask();
+        task.setProject(project);
+        task.setAWSAccessKeyId("key");
+        task.setAWSSecretKey("secret");
+        assertSame(client, task.getOrCreateClient(AmazonS3Client.class));
+    }
+
+    public static class CountingClient extends AmazonS3Client {
+        static final AtomicInteger CREATED = new AtomicInteger();
+
+        public CountingClient(AWSCredentialsProvider credentialsProvider,
+                ClientConfiguration clientConfiguration) {
+            super(credentialsProvider, clientConfiguration);
+            CREATED.incrementAndGet();
+        }
+
+        @Override
+        public void shutdown() {
+            SHUTDOWNS.incrementAndGet();
+            super.shutdown();
+        }
+    }
+
+    private static class TestTask extends AWSAntTask {
+    }
+
+    private static class TestListener implements BuildListener {
+        public void buildStarted(BuildEvent event) {
+        }
+
+        public void buildFinished(BuildEvent event) {
+        }
+
+        public void targetStarted(BuildEvent event) {
+        }
+
+        public void targetFinished(BuildEvent event) {
+        }
+
+        public void taskStarted(BuildEvent event) {
+        }
+
+        public void taskFinished(BuildEvent event) {
+        }
+
+        public void messageLogged(BuildEvent event) {
+        }
+    }
+}
@@ -36,6 +36,8 @@ import com.amazonaws.services.s3.model.S3ObjectSummary;
 
 public class AWSTestUtils {
 
+    private static final long WAIT_TIMEOUT_IN_MS = 1000 * 30 * 100;
+
     public static void emptyAndDeleteBucket(AmazonS3Client client,
             String bucketName) {
         ObjectListing objectListing = client.listObjects(bucketName);
@@ -76,72 +78,70 @@ public class AWSTestUtils {
     }
 
     public static void waitForEnvironmentToTransitionToStateAndHealth(
-            String environmentName, EnvironmentStatus state,
-            EnvironmentHealth health, AWSElasticBeanstalkClient bcClient)
-            throws InterruptedException {
+            final String environmentName, final EnvironmentStatus state,
+            final EnvironmentHealth health,
+            final AWSElasticBeanstalkClient bcClient) {
         System.out.println("Waiting for instance " + environmentName
                 + " to transition to " + state + "/" + health);
 
-        int count = 0;
-        while (true) {
-            Thread.sleep(1000 * 30);
-            if (count++ > 100) {
-                throw new RuntimeException("Environment " + environmentName
-                        + " never transitioned to " + state + "/" + health);
-            }
-
-            List<EnvironmentDescription> environments = bcClient
-                    .describeEnvironments(
-                            new DescribeEnvironmentsRequest()
-                                    .withEnvironmentNames(environmentName))
-                    .getEnvironments();
-
-            if (environments.size() == 0) {
-                System.out
-                        .println("No environments with that name were found.");
-                return;
-            }
-
-            EnvironmentDescription environment = environments.get(0);
-            System.out.println(" - " + environment.getStatus() + "/"
-                    + environment.getHealth());
-            if (environment.getStatus().equalsIgnoreCase(state.toString()) == false)
-                continue;
-            if (health != null
-                    && environment.getHealth().equalsIgnoreCase(
-                            health.toString()) == false)
-                continue;
-            return;
-        }
+        new Waiter<EnvironmentDescription>("environment " + environmentName
+                + " to transition to " + state + "/" + health,
+                new Waiter.Poll<EnvironmentDescription>() {
+                    public EnvironmentDescription poll() {
+                        List<EnvironmentDescription> environments = bcClient
+                                .describeEnvironments(
+                                        new DescribeEnvironmentsRequest()
+                                                .withEnvironmentNames(environmentName))
+                                .getEnvironments();
+                        if (environments.size() == 0) {
+                            System.out
+                                    .println("No environments with that name were found.");
+                            return null;
+                        }
+                        EnvironmentDescription environment = environments
+                                .get(0);
+                        System.out.println(" - " + environment.getStatus()
+                                + "/" + environment.getHealth());
+                        return environment;
+                    }
+                }, new Waiter.Condition<EnvironmentDescription>() {
+                    public boolean isMet(EnvironmentDescription environment) {
+                        return environment == null
+                                || environment.getStatus().equalsIgnoreCase(
+                                        state.toString())
+                                && (health == null || environment.getHealth()
+                                        .equalsIgnoreCase(health.toString()));
+                    }
+                }).withDelays(5000, 30 * 1000L)
+                .withTimeoutInMs(WAIT_TIMEOUT_IN_MS).run();
     }
 
     public static void waitForOpsworksInstanceToReachState(
-            AWSOpsWorksClient client, String instanceId, String state)
-            throws InterruptedException {
+            final AWSOpsWorksClient client, final String instanceId,
+            final String state) {
 
         System.out.println("Waiting for instance " + instanceId
                 + " to transition to " + state);
-        int count = 0;
-        while (true) {
-            Thread.sleep(1000 * 30);
-            if (count++ > 100) {
-                throw new RuntimeException("Never reached " + state);
-            }
-            Instance instance = client
-                    .describeInstances(
-                            new DescribeInstancesRequest()
-                                    .withInstanceIds(instanceId))
-                    .getInstances().get(0);
-            String status = instance.getStatus();
-            System.out.println(status);
-            if (status.contains("failed")) {
-                throw new RuntimeException("instance failed to launch");
+        new Waiter<String>("instance " + instanceId + " to reach " + state,
+                new Waiter.Poll<String>() {
+                    public String poll() {
+                        Instance instance = client
+                                .describeInstances(
+                                        new DescribeInstancesRequest()
+                                                .withInstanceIds(instanceId))
+                                .getInstances().get(0);
+                        System.out.println(instance.getStatus());
+                        return instance.getStatus();
+                    }
+                }, new Waiter.Condition<String>() {
+                    public boolean isMet(String status) {
+                        return status.equalsIgnoreCase(state);
+                    }
+                }).withFailure(new Waiter.Condition<String>() {
+            public boolean isMet(String status) {
+                return status.contains("failed");
             }
-            if (!status.equalsIgnoreCase(state)) {
-                continue;
-            }
-            return;
-        }
-
+        }).withDelays(5000, 30 * 1000L).withTimeoutInMs(WAIT_TIMEOUT_IN_MS)
+                .run();
     }
 }
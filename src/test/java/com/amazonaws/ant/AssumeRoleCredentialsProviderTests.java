@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.ant.s3.CopyS3ObjectsTask;
+import com.amazonaws.util.StringUtils;
+
+public class AssumeRoleCredentialsProviderTests {
+    private static final String ROLE_ARN = "arn:aws:iam::123456789012:role/deploy";
+
+    private FakeSts sts;
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        sts = new FakeSts();
+        sts.start();
+        cacheDir = Files.createTempDirectory("sessions").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        sts.stop();
+        for (File file : cacheDir.listFiles()) {
+            file.delete();
+        }
+        cacheDir.delete();
+    }
+
+    @Test
+    public void testSessionIsReused() {
+        AssumeRoleCredentialsProvider provider = newProvider("basesecret",
+                null);
+        AWSCredentials credentials = provider.getCredentials();
+        assertEquals("ASIA1", credentials.getAWSAccessKeyId());
+        assertEquals("token1",
+                ((AWSSessionCredentials) credentials).getSessionToken());
+        assertSame(credentials, provider.getCredentials());
+        assertEquals(1, sts.getCallCount());
+
+        assertEquals("AssumeRole", sts.getLastParameters().get("Action"));
+        assertEquals(ROLE_ARN, sts.getLastParameters().get("RoleArn"));
+        assertEquals("build", sts.getLastParameters().get("ExternalId"));
+        assertTrue(sts.getLastAuthorization().startsWith(
+                "AWS4-HMAC-SHA256 Credential=AKIDBASE/"));
+        assertTrue(sts.getLastAuthorization().contains(
+                "/us-east-1/sts/aws4_request"));
+    }
+
+    @Test
+    public void testSessionIsSavedEncryptedForTheNextBuild()
+            throws IOException {
+        newProvider("basesecret", cacheDir).getCredentials();
+        File[] files = cacheDir.listFiles();
+        assertEquals(1, files.length);
+        String content = new String(Files.readAllBytes(files[0].toPath()),
+                StringUtils.UTF8);
+        assertFalse(content.contains("secret1"));
+        assertFalse(content.contains("token1"));
+
+        // A later build reuses the saved session
+        assertEquals("ASIA1", newProvider("basesecret", cacheDir)
+                .getCredentials().getAWSAccessKeyId());
+        assertEquals(1, sts.getCallCount());
+
+        // Other credentials cannot read it
+        assertEquals("ASIA2", newProvider("othersecret", cacheDir)
+                .getCredentials().getAWSAccessKeyId());
+        assertEquals(2, sts.getCallCount());
+    }
+
+    @Test
+    public void testSessionIsRefreshedInTheBackground() throws Exception {
+        // Within the last five minutes, when the SDK refreshes in the background
+        sts.setExpirationInMs(4 * 60 * 1000L);
+        AssumeRoleCredentialsProvider provider = newProvider("basesecret",
+                cacheDir);
+        try {
+            assertEquals("ASIA1", provider.getCredentials()
+                    .getAWSAccessKeyId());
+            sts.setExpirationInMs(60 * 60 * 1000L);
+            sts.setDelayInMs(500);
+
+            // Within the refresh window, the current session is still used
+            long start = System.currentTimeMillis();
+            assertEquals("ASIA1", provider.getCredentials()
+                    .getAWSAccessKeyId());
+            assertTrue(System.currentTimeMillis() - start < 500);
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!"ASIA2".equals(provider.getCredentials()
+                    .getAWSAccessKeyId())
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals("ASIA2", provider.getCredentials()
+                    .getAWSAccessKeyId());
+            assertEquals(2, sts.getCallCount());
+        } finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void testRefusalIsReported() {
+        sts.setDenied(true);
+        try {
+            newProvider("basesecret", null).getCredentials();
+            fail();
+        } catch (AmazonServiceException e) {
+            assertEquals("AccessDenied", e.getErrorCode());
+            assertEquals(403, e.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testTasksShareTheProjectRole() {
+        Project project = new Project();
+        AssumeRole assumeRole = new AssumeRole();
+        assumeRole.setProject(project);
+        assumeRole.setRoleArn(ROLE_ARN);
+        assumeRole.setStsEndpoint(sts.getEndpoint());
+        project.addReference(AssumeRole.DEFAULT_REFERENCE, assumeRole);
+
+        CopyS3ObjectsTask first = newTask(project);
+        CopyS3ObjectsTask second = newTask(project);
+        AWSCredentialsProvider provider = first.getCredentialsProvider();
+        assertTrue(provider instanceof AssumeRoleCredentialsProvider);
+        assertSame(provider, second.getCredentialsProvider());
+        assertEquals("ASIA1", provider.getCredentials().getAWSAccessKeyId());
+        assertEquals("ASIA1", second.getCredentialsProvider().getCredentials()
+                .getAWSAccessKeyId());
+        assertEquals(1, sts.getCallCount());
+        project.fireBuildFinished(null);
+    }
+
+    private CopyS3ObjectsTask newTask(Project project) {
+        CopyS3ObjectsTask task = new CopyS3ObjectsTask();
+        task.setProject(project);
+        task.setAWSAccessKeyId("AKIDBASE");
+        task.setAWSSecretKey("basesecret");
+        return task;
+    }
+
+    private AssumeRoleCredentialsProvider newProvider(String baseSecret,
+            File sessionCacheDir) {
+        return new AssumeRoleCredentialsProvider(
+                new AWSStaticCredentialsProvider(new BasicAWSCredentials(
+                        "AKIDBASE", baseSecret)), new ClientConfiguration(),
+                ROLE_ARN, "build", "build", 3600, sts.getEndpoint(),
+                "us-east-1", sessionCacheDir);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import static org.junit.Assert.*;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.Reference;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.ant.s3.CopyS3ObjectsTask;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+
+public class ClientConfigTests {
+    private Project project;
+
+    @Before
+    public void setUp() {
+        project = new Project();
+    }
+
+    @Test
+    public void testSettingsAreApplied() {
+        ClientConfig config = new ClientConfig();
+        config.setMaxConnections(200);
+        config.setConnectionTTLInMs(60000);
+        config.setTcpKeepAlive(true);
+        config.setSocketSendBufferSizeHint(1 << 20);
+        config.setSocketReceiveBufferSizeHint(2 << 20);
+        config.setSocketTimeoutInMs(5000);
+        config.setGzip(true);
+        config.setRetryPolicy("none");
+        CopyS3ObjectsTask task = newTask();
+        task.addConfiguredClientConfig(config);
+
+        ClientConfiguration configuration = task.getClientConfiguration();
+        assertEquals(200, configuration.getMaxConnections());
+        assertEquals(60000, configuration.getConnectionTTL());
+        assertTrue(configuration.useTcpKeepAlive());
+        assertEquals(1 << 20, configuration.getSocketBufferSizeHints()[0]);
+        assertEquals(2 << 20, configuration.getSocketBufferSizeHints()[1]);
+        assertEquals(5000, configuration.getSocketTimeout());
+        assertTrue(configuration.useGzip());
+        assertSame(PredefinedRetryPolicies.NO_RETRY_POLICY,
+                configuration.getRetryPolicy());
+        assertTrue(configuration.getUserAgentPrefix().contains(
+                "CopyS3ObjectsTask"));
+    }
+
+    @Test
+    public void testPoolIsSizedByConcurrency() {
+        CopyS3ObjectsTask task = newTask();
+        assertEquals(ClientConfiguration.DEFAULT_MAX_CONNECTIONS, task
+                .getClientConfiguration().getMaxConnections());
+        task.setThreads(100);
+        assertEquals(108, task.getClientConfiguration().getMaxConnections());
+
+        ClientConfig config = new ClientConfig();
+        config.setMaxConnections(20);
+        task.addConfiguredClientConfig(config);
+        assertEquals(20, task.getClientConfiguration().getMaxConnections());
+    }
+
+    @Test
+    public void testProjectLevelConfigIsReferred() {
+        ClientConfig shared = new ClientConfig();
+        shared.setProject(project);
+        shared.setMaxConnections(300);
+        project.addReference("fast", shared);
+        ClientConfig config = new ClientConfig();
+        config.setProject(project);
+        config.setRefid(new Reference(project, "fast"));
+        CopyS3ObjectsTask task = newTask();
+        task.addConfiguredClientConfig(config);
+        assertEquals(300, task.getClientConfiguration().getMaxConnections());
+
+        // Used by tasks without a nested clientConfig
+        project.addReference(ClientConfig.DEFAULT_REFERENCE, shared);
+        assertEquals(300, newTask().getClientConfiguration()
+                .getMaxConnections());
+    }
+
+    @Test(expected = BuildException.class)
+    public void testUnknownRetryPolicyFails() {
+        ClientConfig config = new ClientConfig();
+        config.setRetryPolicy("sometimes");
+        CopyS3ObjectsTask task = newTask();
+        task.addConfiguredClientConfig(config);
+        task.getClientConfiguration();
+    }
+
+    private CopyS3ObjectsTask newTask() {
+        CopyS3ObjectsTask task = new CopyS3ObjectsTask();
+        task.setProject(project);
+        return task;
+    }
+}
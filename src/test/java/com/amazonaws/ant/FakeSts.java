@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.util.DateUtils;
+import com.amazonaws.util.IOUtils;
+import com.amazonaws.util.StringUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for the STS AssumeRole API. Every call returns new
+ * session credentials, numbered from 1, such as "ASIA1", "secret1" and
+ * "token1".
+ */
+public class FakeSts {
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile long expirationInMs = 60 * 60 * 1000L;
+    private volatile long delayInMs;
+    private volatile boolean denied;
+    private volatile Map<String, String> lastParameters;
+    private volatile String lastAuthorization;
+    private HttpServer server;
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Sets how long after a call the sessions it returns expire.
+     */
+    public void setExpirationInMs(long expirationInMs) {
+        this.expirationInMs = expirationInMs;
+    }
+
+    /**
+     * Sets how long every call takes.
+     */
+    public void setDelayInMs(long delayInMs) {
+        this.delayInMs = delayInMs;
+    }
+
+    /**
+     * Makes every call fail with AccessDenied.
+     */
+    public void setDenied(boolean denied) {
+        this.denied = denied;
+    }
+
+    public int getCallCount() {
+        return calls.get();
+    }
+
+    public Map<String, String> getLastParameters() {
+        return lastParameters;
+    }
+
+    public String getLastAuthorization() {
+        return lastAuthorization;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        String body = new String(IOUtils.toByteArray(exchange.getRequestBody()),
+                StringUtils.UTF8);
+        for (String pair : body.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, equals),
+                        "UTF-8"), URLDecoder.decode(
+                        pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        lastParameters = parameters;
+        lastAuthorization = exchange.getRequestHeaders()
+                .getFirst("Authorization");
+        int call = calls.incrementAndGet();
+        if (delayInMs > 0) {
+            try {
+                Thread.sleep(delayInMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (denied) {
+            send(exchange, 403, "<ErrorResponse><Error><Type>Sender</Type>"
+                    + "<Code>AccessDenied</Code><Message>Not authorized to "
+                    + "perform sts:AssumeRole</Message></Error></ErrorResponse>");
+            return;
+        }
+        send(exchange, 200, "<AssumeRoleResponse><AssumeRoleResult>"
+                + "<Credentials><AccessKeyId>ASIA" + call + "</AccessKeyId>"
+                + "<SecretAccessKey>secret" + call + "</SecretAccessKey>"
+                + "<SessionToken>token" + call + "</SessionToken>"
+                + "<Expiration>"
+                + DateUtils.formatISO8601Date(new Date(System
+                        .currentTimeMillis() + expirationInMs))
+                + "</Expiration></Credentials></AssumeRoleResult>"
+                + "</AssumeRoleResponse>");
+    }
+
+    private void send(HttpExchange exchange, int status, String xml)
+            throws IOException {
+        byte[] content = xml.getBytes(StringUtils.UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "text/xml");
+        exchange.sendResponseHeaders(status, content.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(content);
+        out.close();
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import org.apache.tools.ant.Project;
+
+import com.amazonaws.AmazonWebServiceClient;
+
+/**
+ * Lets the fake services of tests in other packages replace the clients of a
+ * build.
+ */
+public class TestClients {
+
+    private TestClients() {
+    }
+
+    /**
+     * Makes every task of the project that asks for a client of the given
+     * class and region use the given client, whatever its credentials and
+     * configuration.
+     */
+    public static void use(Project project,
+            Class<? extends AmazonWebServiceClient> clientClass,
+            String region, AmazonWebServiceClient client) {
+        AWSClientFactory.get(project).setClient(clientClass, region, client);
+    }
+}
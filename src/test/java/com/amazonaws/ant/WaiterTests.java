@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.BuildException;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+
+public class WaiterTests {
+
+    private static final Waiter.Condition<Integer> AT_LEAST_THREE = new Waiter.Condition<Integer>() {
+        public boolean isMet(Integer state) {
+            return state >= 3;
+        }
+    };
+
+    /**
+     * Counts up from 1, and records when each poll happens.
+     */
+    private static class CountingPoll implements Waiter.Poll<Integer> {
+        final AtomicInteger count = new AtomicInteger();
+        final List<Long> times = new ArrayList<Long>();
+
+        public Integer poll() {
+            times.add(System.currentTimeMillis());
+            return count.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testFirstPollIsImmediate() {
+        CountingPoll poll = new CountingPoll();
+        long start = System.currentTimeMillis();
+        Integer state = new Waiter<Integer>("one", poll,
+                new Waiter.Condition<Integer>() {
+                    public boolean isMet(Integer state) {
+                        return true;
+                    }
+                }).withDelays(10000, 10000).run();
+        assertEquals(1, state.intValue());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void testDelaysGrow() {
+        CountingPoll poll = new CountingPoll();
+        Integer state = new Waiter<Integer>("three", poll, AT_LEAST_THREE)
+                .withDelays(100, 1000).run();
+        assertEquals(3, state.intValue());
+        long first = poll.times.get(1) - poll.times.get(0);
+        long second = poll.times.get(2) - poll.times.get(1);
+        // Jitter keeps each delay between half of it and the whole of it
+        assertTrue(first >= 50 && first < 500);
+        assertTrue(second >= 100 && second < 700);
+    }
+
+    @Test
+    public void testProgressResetsTheDelay() {
+        CountingPoll poll = new CountingPoll();
+        new Waiter<Integer>("four", poll, new Waiter.Condition<Integer>() {
+            public boolean isMet(Integer state) {
+                return state >= 4;
+            }
+        }).withProgress(new Waiter.Condition<Integer>() {
+            public boolean isMet(Integer state) {
+                return state == 2;
+            }
+        }).withDelays(100, 1000).run();
+        long afterProgress = poll.times.get(2) - poll.times.get(1);
+        long afterNoProgress = poll.times.get(3) - poll.times.get(2);
+        assertTrue(afterProgress >= 50 && afterProgress < 300);
+        assertTrue(afterNoProgress >= 100 && afterNoProgress < 700);
+    }
+
+    @Test
+    public void testFailureConditionEndsTheWait() {
+        CountingPoll poll = new CountingPoll();
+        try {
+            new Waiter<Integer>("ten", poll, new Waiter.Condition<Integer>() {
+                public boolean isMet(Integer state) {
+                    return state >= 10;
+                }
+            }).withFailure(AT_LEAST_THREE).withDelays(1, 1).run();
+            fail();
+        } catch (BuildException e) {
+            assertEquals("ten failed: 3", e.getMessage());
+        }
+        assertEquals(3, poll.count.get());
+    }
+
+    @Test
+    public void testTimeout() {
+        CountingPoll poll = new CountingPoll();
+        long start = System.currentTimeMillis();
+        try {
+            new Waiter<Integer>("never", poll, new Waiter.Condition<Integer>() {
+                public boolean isMet(Integer state) {
+                    return false;
+                }
+            }).withDelays(50, 100).withTimeoutInMs(300).run();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().startsWith("never did not happen"));
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 300 && elapsed < 2000);
+        assertTrue(poll.count.get() > 1);
+    }
+
+    @Test
+    public void testThrottledPollsAreRetried() {
+        final AtomicInteger count = new AtomicInteger();
+        Integer state = new Waiter<Integer>("three",
+                new Waiter.Poll<Integer>() {
+                    public Integer poll() {
+                        if (count.incrementAndGet() < 3) {
+                            AmazonServiceException e = new AmazonServiceException(
+                                    "Rate exceeded");
+                            e.setErrorCode("Throttling");
+                            throw e;
+                        }
+                        return count.get();
+                    }
+                }, AT_LEAST_THREE).withDelays(1, 10).run();
+        assertEquals(3, state.intValue());
+    }
+
+    @Test
+    public void testOtherErrorsAreNotRetried() {
+        final AtomicInteger count = new AtomicInteger();
+        try {
+            new Waiter<Integer>("three", new Waiter.Poll<Integer>() {
+                public Integer poll() {
+                    count.incrementAndGet();
+                    AmazonServiceException e = new AmazonServiceException(
+                            "Stack does not exist");
+                    e.setErrorCode("ValidationError");
+                    throw e;
+                }
+            }, AT_LEAST_THREE).withDelays(1, 10).run();
+            fail();
+        } catch (AmazonServiceException e) {
+            assertEquals("ValidationError", e.getErrorCode());
+        }
+        assertEquals(1, count.get());
+    }
+
+    @Test
+    public void testCancelFromAnotherThread() throws InterruptedException {
+        final Waiter<Integer> waiter = new Waiter<Integer>("never",
+                new CountingPoll(), new Waiter.Condition<Integer>() {
+                    public boolean isMet(Integer state) {
+                        return false;
+                    }
+                }).withDelays(60000, 60000);
+        final BuildException[] thrown = new BuildException[1];
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    waiter.run();
+                } catch (BuildException e) {
+                    thrown[0] = e;
+                }
+            }
+        };
+        thread.start();
+        Thread.sleep(100);
+        waiter.cancel();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertTrue(thrown[0].getMessage().startsWith("Cancelled"));
+    }
+
+    @Test
+    public void testInterrupt() throws InterruptedException {
+        final Waiter<Integer> waiter = new Waiter<Integer>("never",
+                new CountingPoll(), new Waiter.Condition<Integer>() {
+                    public boolean isMet(Integer state) {
+                        return false;
+                    }
+                }).withDelays(60000, 60000);
+        final BuildException[] thrown = new BuildException[1];
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    waiter.run();
+                } catch (BuildException e) {
+                    thrown[0] = e;
+                }
+            }
+        };
+        thread.start();
+        Thread.sleep(100);
+        thread.interrupt();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertTrue(thrown[0].getMessage().startsWith("Interrupted"));
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.Project;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ant.TestClients;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsResult;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackEvent;
+
+/**
+ * An in-memory stand-in for the CloudFormation stack APIs. Each stack goes
+ * through the statuses it is given, one per call that describes it or its
+ * events, and stays in the last one. Every status is recorded as an event of
+ * the stack, after the events of its resources. Like the real API, listing
+ * all stacks leaves out deleted ones, describing a deleted stack by name
+ * fails, and events are returned newest first.
+ */
+public class FakeCloudFormation extends AmazonCloudFormationClient {
+
+    private static final String STACK_TYPE = "AWS::CloudFormation::Stack";
+
+    private final Map<String, LinkedList<List<StackEvent>>> steps = new LinkedHashMap<String, LinkedList<List<StackEvent>>>();
+    private final Map<String, List<StackEvent>> events = new LinkedHashMap<String, List<StackEvent>>();
+    private final Map<String, String> statuses = new LinkedHashMap<String, String>();
+    private final Map<String, Date> creationTimes = new HashMap<String, Date>();
+    private final Map<String, List<String>> notificationArns = new HashMap<String, List<String>>();
+    private final AtomicInteger describeStacksCalls = new AtomicInteger();
+    private final AtomicInteger listStacksCalls = new AtomicInteger();
+    private final AtomicInteger describeStackEventsCalls = new AtomicInteger();
+    private final AtomicInteger eventIds = new AtomicInteger();
+    private int pageSize = 100;
+    private int eventPageSize = 100;
+
+    public FakeCloudFormation() {
+        super(new AWSStaticCredentialsProvider(new BasicAWSCredentials("key",
+                "secret")));
+    }
+
+    /**
+     * Makes the CloudFormation tasks of the given project use this stand-in.
+     */
+    public void useIn(Project project) {
+        TestClients.use(project, AmazonCloudFormationClient.class, null,
+                this);
+    }
+
+    /**
+     * Sets the statuses the stack goes through. The stack is in the first one
+     * right away.
+     */
+    public synchronized void setStatuses(String stackName, String... statuses) {
+        LinkedList<List<StackEvent>> stackSteps = new LinkedList<List<StackEvent>>();
+        for (String status : statuses) {
+            List<StackEvent> step = new ArrayList<StackEvent>();
+            step.add(newEvent(stackName, stackName, STACK_TYPE, status));
+            stackSteps.add(step);
+        }
+        steps.put(stackName, stackSteps);
+        events.put(stackName, new ArrayList<StackEvent>());
+        creationTimes.put(stackName, new Date());
+        advance(stackName);
+    }
+
+    /**
+     * Adds events of a resource of the stack, which happen just before the
+     * stack reaches the status with the given index.
+     */
+    public synchronized void addResourceEvents(String stackName,
+            int statusIndex, String logicalResourceId, String... statuses) {
+        // The first status was reached already
+        List<StackEvent> step = steps.get(stackName).get(statusIndex - 1);
+        for (String status : statuses) {
+            step.add(step.size() - 1, newEvent(stackName, logicalResourceId,
+                    "AWS::S3::Bucket", status));
+        }
+    }
+
+    /**
+     * Sets the SNS topics the stack publishes its events to.
+     */
+    public synchronized void setNotificationArns(String stackName,
+            String... topicArns) {
+        notificationArns.put(stackName, Arrays.asList(topicArns));
+    }
+
+    /**
+     * Sets how many stacks a page of the listing of all stacks holds.
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets how many events a page of DescribeStackEvents holds.
+     */
+    public void setEventPageSize(int eventPageSize) {
+        this.eventPageSize = eventPageSize;
+    }
+
+    /**
+     * @return How many DescribeStacks calls were made, counting every page
+     */
+    public int getDescribeStacksCallCount() {
+        return describeStacksCalls.get();
+    }
+
+    /**
+     * @return How many pages of the listing of all stacks were asked for
+     */
+    public int getListStacksCallCount() {
+        return listStacksCalls.get();
+    }
+
+    /**
+     * @return How many DescribeStackEvents calls were made, counting every
+     *         page
+     */
+    public int getDescribeStackEventsCallCount() {
+        return describeStackEventsCalls.get();
+    }
+
+    @Override
+    public synchronized DescribeStacksResult describeStacks(
+            DescribeStacksRequest request) {
+        describeStacksCalls.incrementAndGet();
+        String stackName = request.getStackName();
+        if (stackName == null) {
+            return list(request.getNextToken());
+        }
+        String name = findByName(stackName);
+        Stack stack = newStack(name);
+        advance(name);
+        return new DescribeStacksResult().withStacks(stack);
+    }
+
+    @Override
+    public synchronized DescribeStackEventsResult describeStackEvents(
+            DescribeStackEventsRequest request) {
+        describeStackEventsCalls.incrementAndGet();
+        String stackName = request.getStackName();
+        String name = null;
+        for (String candidate : statuses.keySet()) {
+            if (stackId(candidate).equals(stackName)) {
+                name = candidate;
+            }
+        }
+        if (name == null) {
+            name = findByName(stackName);
+        }
+        List<StackEvent> newestFirst = new ArrayList<StackEvent>();
+        List<StackEvent> stackEvents = events.get(name);
+        for (int i = stackEvents.size() - 1; i >= 0; i--) {
+            newestFirst.add(stackEvents.get(i));
+        }
+        // The token is the ID of the next event, so that pages do not shift
+        // when events happen between them
+        String nextToken = request.getNextToken();
+        int from = 0;
+        while (nextToken != null
+                && !newestFirst.get(from).getEventId().equals(nextToken)) {
+            from++;
+        }
+        int to = Math.min(from + eventPageSize, newestFirst.size());
+        DescribeStackEventsResult result = new DescribeStackEventsResult()
+                .withStackEvents(new ArrayList<StackEvent>(newestFirst
+                        .subList(from, to)));
+        if (to < newestFirst.size()) {
+            result.setNextToken(newestFirst.get(to).getEventId());
+        }
+        if (nextToken == null) {
+            advance(name);
+        }
+        return result;
+    }
+
+    private DescribeStacksResult list(String nextToken) {
+        listStacksCalls.incrementAndGet();
+        List<String> listed = new ArrayList<String>();
+        for (String stackName : statuses.keySet()) {
+            if (!StackStatusPoll.DELETE_COMPLETE.equals(statuses
+                    .get(stackName))) {
+                listed.add(stackName);
+            }
+        }
+        int from = nextToken == null ? 0 : Integer.parseInt(nextToken);
+        int to = Math.min(from + pageSize, listed.size());
+        DescribeStacksResult result = new DescribeStacksResult();
+        for (String stackName : listed.subList(from, to)) {
+            result.getStacks().add(newStack(stackName));
+            advance(stackName);
+        }
+        return result.withNextToken(to < listed.size() ? String.valueOf(to)
+                : null);
+    }
+
+    private String findByName(String stackName) {
+        if (!statuses.containsKey(stackName)
+                || StackStatusPoll.DELETE_COMPLETE.equals(statuses
+                        .get(stackName))) {
+            AmazonServiceException e = new AmazonServiceException("Stack with id "
+                    + stackName + " does not exist");
+            e.setErrorCode("ValidationError");
+            e.setStatusCode(400);
+            throw e;
+        }
+        return stackName;
+    }
+
+    /**
+     * Moves the stack on to its next status, if it has one.
+     */
+    private void advance(String stackName) {
+        LinkedList<List<StackEvent>> stackSteps = steps.get(stackName);
+        if (stackSteps.isEmpty()) {
+            return;
+        }
+        for (StackEvent event : stackSteps.removeFirst()) {
+            events.get(stackName).add(event);
+            if (STACK_TYPE.equals(event.getResourceType())
+                    && stackName.equals(event.getLogicalResourceId())) {
+                statuses.put(stackName, event.getResourceStatus());
+            }
+        }
+    }
+
+    private Stack newStack(String stackName) {
+        Stack stack = new Stack().withStackName(stackName)
+                .withStackId(stackId(stackName))
+                .withStackStatus(statuses.get(stackName))
+                .withCreationTime(creationTimes.get(stackName));
+        if (notificationArns.containsKey(stackName)) {
+            stack.setNotificationARNs(notificationArns.get(stackName));
+        }
+        return stack;
+    }
+
+    private StackEvent newEvent(String stackName, String logicalResourceId,
+            String resourceType, String status) {
+        return new StackEvent()
+                .withEventId("event" + eventIds.incrementAndGet())
+                .withStackName(stackName)
+                .withStackId(stackId(stackName))
+                .withLogicalResourceId(logicalResourceId)
+                .withPhysicalResourceId(
+                        STACK_TYPE.equals(resourceType) ? stackId(stackName)
+                                : logicalResourceId.toLowerCase())
+                .withResourceType(resourceType).withResourceStatus(status)
+                .withTimestamp(new Date());
+    }
+
+    static String stackId(String stackName) {
+        return "arn:aws:cloudformation:us-east-1:123456789012:stack/"
+                + stackName + "/0";
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.Project;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ant.TestClients;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sns.model.SubscribeRequest;
+import com.amazonaws.services.sns.model.SubscribeResult;
+import com.amazonaws.services.sns.model.UnsubscribeRequest;
+import com.amazonaws.services.sns.model.UnsubscribeResult;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.SetQueueAttributesResult;
+import com.amazonaws.util.json.Jackson;
+
+/**
+ * An in-memory stand-in for the SNS and SQS APIs used to receive stack
+ * notifications. Like SNS, a message published to a topic is delivered, in
+ * an SNS envelope, to the queues subscribed to it whose policy names the
+ * topic. A received message stays in flight until it is deleted.
+ */
+public class FakeSnsSqs {
+
+    private static final String ACCOUNT = "123456789012";
+    private static final String QUEUE_URL_PREFIX = "https://sqs.us-east-1.amazonaws.com/"
+            + ACCOUNT + "/";
+    private static final String QUEUE_ARN_PREFIX = "arn:aws:sqs:us-east-1:"
+            + ACCOUNT + ":";
+
+    private final Map<String, BlockingQueue<String>> queues = new ConcurrentHashMap<String, BlockingQueue<String>>();
+    private final Map<String, String> policies = new ConcurrentHashMap<String, String>();
+    private final Map<String, String[]> subscriptions = new ConcurrentHashMap<String, String[]>();
+    private final Map<String, String> inFlight = new ConcurrentHashMap<String, String>();
+    private final AtomicInteger receiveCalls = new AtomicInteger();
+    private final AtomicInteger deletedMessages = new AtomicInteger();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final Sns sns = new Sns();
+    private final Sqs sqs = new Sqs();
+    private volatile boolean denied;
+
+    /**
+     * Makes the tasks of the given project use this stand-in for SNS and SQS.
+     */
+    public void useIn(Project project) {
+        TestClients.use(project, AmazonSNSClient.class, null, sns);
+        TestClients.use(project, AmazonSQSClient.class, null, sqs);
+    }
+
+    /**
+     * Makes every call fail with AccessDenied.
+     */
+    public void setDenied(boolean denied) {
+        this.denied = denied;
+    }
+
+    /**
+     * Creates a queue with the given policy, as an earlier build would have.
+     */
+    public void createQueue(String queueName, String policy) {
+        queues.put(queueName, new LinkedBlockingQueue<String>());
+        policies.put(queueName, policy);
+    }
+
+    /**
+     * Delivers the message to every queue subscribed to the topic that lets
+     * the topic send to it.
+     */
+    public void publish(String topicArn, String message) {
+        Map<String, String> envelope = new LinkedHashMap<String, String>();
+        envelope.put("Type", "Notification");
+        envelope.put("TopicArn", topicArn);
+        envelope.put("Message", message);
+        for (String[] subscription : subscriptions.values()) {
+            String policy = policies.get(subscription[1]);
+            if (subscription[0].equals(topicArn) && policy != null
+                    && policy.contains(topicArn)) {
+                queues.get(subscription[1]).add(
+                        Jackson.toJsonString(envelope));
+            }
+        }
+    }
+
+    /**
+     * @return The names of the queues that exist
+     */
+    public List<String> getQueueNames() {
+        return new ArrayList<String>(queues.keySet());
+    }
+
+    /**
+     * @return The policy of the queue, or null if it has none
+     */
+    public String getPolicy(String queueName) {
+        return policies.get(queueName);
+    }
+
+    public int getSubscriptionCount() {
+        return subscriptions.size();
+    }
+
+    public int getReceiveCallCount() {
+        return receiveCalls.get();
+    }
+
+    public int getDeletedMessageCount() {
+        return deletedMessages.get();
+    }
+
+    /**
+     * @return The messages received and not deleted
+     */
+    public List<String> getInFlightMessages() {
+        return new ArrayList<String>(inFlight.values());
+    }
+
+    private void check() {
+        if (denied) {
+            AmazonServiceException e = new AmazonServiceException(
+                    "Access to the resource is denied");
+            e.setErrorCode("AccessDenied");
+            e.setStatusCode(403);
+            throw e;
+        }
+    }
+
+    private BlockingQueue<String> queueOf(String queueUrl) {
+        BlockingQueue<String> queue = queues.get(nameOf(queueUrl));
+        if (queue == null) {
+            AmazonServiceException e = new AmazonServiceException(
+                    "The specified queue does not exist");
+            e.setErrorCode("AWS.SimpleQueueService.NonExistentQueue");
+            e.setStatusCode(400);
+            throw e;
+        }
+        return queue;
+    }
+
+    private static String nameOf(String queueUrl) {
+        return queueUrl.substring(queueUrl.lastIndexOf('/') + 1);
+    }
+
+    private class Sns extends AmazonSNSClient {
+        Sns() {
+            super(new AWSStaticCredentialsProvider(new BasicAWSCredentials(
+                    "key", "secret")));
+        }
+
+        @Override
+        public SubscribeResult subscribe(SubscribeRequest request) {
+            check();
+            String queueName = request.getEndpoint().substring(
+                    request.getEndpoint().lastIndexOf(':') + 1);
+            for (Map.Entry<String, String[]> subscription : subscriptions
+                    .entrySet()) {
+                if (subscription.getValue()[0].equals(request.getTopicArn())
+                        && subscription.getValue()[1].equals(queueName)) {
+                    return new SubscribeResult().withSubscriptionArn(
+                            subscription.getKey());
+                }
+            }
+            String subscriptionArn = request.getTopicArn() + ":"
+                    + ids.incrementAndGet();
+            subscriptions.put(subscriptionArn, new String[] {
+                    request.getTopicArn(), queueName });
+            return new SubscribeResult().withSubscriptionArn(subscriptionArn);
+        }
+
+        @Override
+        public UnsubscribeResult unsubscribe(UnsubscribeRequest request) {
+            check();
+            subscriptions.remove(request.getSubscriptionArn());
+            return new UnsubscribeResult();
+        }
+    }
+
+    private class Sqs extends AmazonSQSClient {
+        Sqs() {
+            super(new AWSStaticCredentialsProvider(new BasicAWSCredentials(
+                    "key", "secret")));
+        }
+
+        @Override
+        public CreateQueueResult createQueue(CreateQueueRequest request) {
+            check();
+            if (!queues.containsKey(request.getQueueName())) {
+                queues.put(request.getQueueName(),
+                        new LinkedBlockingQueue<String>());
+            }
+            return new CreateQueueResult().withQueueUrl(QUEUE_URL_PREFIX
+                    + request.getQueueName());
+        }
+
+        @Override
+        public GetQueueAttributesResult getQueueAttributes(
+                GetQueueAttributesRequest request) {
+            check();
+            queueOf(request.getQueueUrl());
+            String queueName = nameOf(request.getQueueUrl());
+            Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("QueueArn", QUEUE_ARN_PREFIX + queueName);
+            if (policies.containsKey(queueName)) {
+                attributes.put("Policy", policies.get(queueName));
+            }
+            return new GetQueueAttributesResult().withAttributes(attributes);
+        }
+
+        @Override
+        public SetQueueAttributesResult setQueueAttributes(
+                SetQueueAttributesRequest request) {
+            check();
+            queueOf(request.getQueueUrl());
+            String policy = request.getAttributes().get("Policy");
+            if (policy != null) {
+                policies.put(nameOf(request.getQueueUrl()), policy);
+            }
+            return new SetQueueAttributesResult();
+        }
+
+        @Override
+        public ReceiveMessageResult receiveMessage(
+                ReceiveMessageRequest request) {
+            check();
+            receiveCalls.incrementAndGet();
+            BlockingQueue<String> queue = queueOf(request.getQueueUrl());
+            List<String> bodies = new ArrayList<String>();
+            try {
+                String first = queue.poll(request.getWaitTimeSeconds(),
+                        TimeUnit.SECONDS);
+                if (first != null) {
+                    bodies.add(first);
+                    queue.drainTo(bodies, request.getMaxNumberOfMessages() - 1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            List<Message> messages = new ArrayList<Message>();
+            for (String body : bodies) {
+                String receiptHandle = "handle" + ids.incrementAndGet();
+                inFlight.put(receiptHandle, body);
+                messages.add(new Message().withReceiptHandle(receiptHandle)
+                        .withBody(body));
+            }
+            return new ReceiveMessageResult().withMessages(messages);
+        }
+
+        @Override
+        public DeleteMessageBatchResult deleteMessageBatch(
+                DeleteMessageBatchRequest request) {
+            check();
+            queueOf(request.getQueueUrl());
+            for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+                if (inFlight.remove(entry.getReceiptHandle()) != null) {
+                    deletedMessages.incrementAndGet();
+                }
+            }
+            return new DeleteMessageBatchResult();
+        }
+
+        @Override
+        public DeleteQueueResult deleteQueue(DeleteQueueRequest request) {
+            check();
+            queueOf(request.getQueueUrl());
+            queues.remove(nameOf(request.getQueueUrl()));
+            policies.remove(nameOf(request.getQueueUrl()));
+            return new DeleteQueueResult();
+        }
+    }
+}
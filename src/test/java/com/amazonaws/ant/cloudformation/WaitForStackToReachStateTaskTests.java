@@ -0,0 +1,361 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ant.cloudformation.WaitForStackToReachStateTask.StackStatus;
+import com.amazonaws.services.cloudformation.model.StackEvent;
+import com.amazonaws.util.DateUtils;
+
+public class WaitForStackToReachStateTaskTests {
+
+    private static final String STACK_NAME = "AntTaskTestStack";
+    private static final String TOPIC_ARN = "arn:aws:sns:us-east-1:123456789012:stack-events";
+    private static final String QUEUE_NAME = "test-stack-events";
+    private Project project;
+    private FakeCloudFormation cloudFormation;
+    private FakeSnsSqs snsSqs;
+
+    @Before
+    public void setUp() {
+        project = new Project();
+        cloudFormation = new FakeCloudFormation();
+        cloudFormation.useIn(project);
+        snsSqs = new FakeSnsSqs();
+        snsSqs.useIn(project);
+    }
+
+    @Test
+    public void testStackAlreadyInStatusIsNotWaitedFor() {
+        cloudFormation.setStatuses(STACK_NAME, "CREATE_COMPLETE");
+        long start = System.currentTimeMillis();
+        newTask("CREATE_COMPLETE").execute();
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(1, cloudFormation.getDescribeStackEventsCallCount());
+        assertEquals(0, cloudFormation.getDescribeStacksCallCount());
+    }
+
+    @Test
+    public void testWaitsForStatus() {
+        cloudFormation.setStatuses(STACK_NAME, "CREATE_IN_PROGRESS",
+                "CREATE_COMPLETE");
+        assertEquals("CREATE_COMPLETE", WaitForStackToReachStateTask
+                .newWaiter(cloudFormation, STACK_NAME, "CREATE_COMPLETE", 5000)
+                .withDelays(10, 10).run().get(STACK_NAME));
+        assertEquals(2, cloudFormation.getDescribeStackEventsCallCount());
+    }
+
+    @Test
+    public void testRollbackFailsTheBuild() {
+        cloudFormation.setStatuses(STACK_NAME, "UPDATE_ROLLBACK_COMPLETE");
+        try {
+            newTask("UPDATE_COMPLETE").execute();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("UPDATE_ROLLBACK_COMPLETE"));
+        }
+        assertFalse(WaitForStackToReachStateTask
+                .waitForCloudFormationStackToReachStatus(cloudFormation,
+                        STACK_NAME, "UPDATE_COMPLETE"));
+    }
+
+    @Test
+    public void testManyStacksAreListedTogether() {
+        Map<String, String> targets = new LinkedHashMap<String, String>();
+        for (int i = 0; i < 10; i++) {
+            cloudFormation.setStatuses("stack" + i, "CREATE_IN_PROGRESS",
+                    "CREATE_IN_PROGRESS", "CREATE_COMPLETE");
+            targets.put("stack" + i, "CREATE_COMPLETE");
+        }
+        cloudFormation.setStatuses("other", "UPDATE_COMPLETE");
+        cloudFormation.setPageSize(4);
+        WaitForStackToReachStateTask.newWaiter(cloudFormation, targets, 5000,
+                false)
+                .withDelays(10, 10).run();
+        // Three listings of three pages each, instead of thirty describes
+        assertEquals(9, cloudFormation.getListStacksCallCount());
+        assertEquals(9, cloudFormation.getDescribeStacksCallCount());
+    }
+
+    @Test
+    public void testNestedStacks() {
+        cloudFormation.setStatuses("one", "CREATE_IN_PROGRESS",
+                "CREATE_COMPLETE");
+        cloudFormation.setStatuses("two", "DELETE_IN_PROGRESS",
+                "DELETE_COMPLETE");
+        cloudFormation.setStatuses("three", "UPDATE_COMPLETE");
+        WaitForStackToReachStateTask task = new WaitForStackToReachStateTask();
+        task.setProject(project);
+        task.addConfiguredStack(newStack("one", "CREATE_COMPLETE"));
+        task.addConfiguredStack(newStack("two", "DELETE_COMPLETE"));
+        task.addConfiguredStack(newStack("three", "UPDATE_COMPLETE"));
+        task.setTimeoutInMinutes(1);
+        task.execute();
+    }
+
+    @Test
+    public void testAnyFailedStackFailsFast() {
+        Map<String, String> targets = new LinkedHashMap<String, String>();
+        for (int i = 0; i < 5; i++) {
+            cloudFormation.setStatuses("stack" + i, "CREATE_IN_PROGRESS");
+            targets.put("stack" + i, "CREATE_COMPLETE");
+        }
+        cloudFormation.setStatuses("stack3", "CREATE_IN_PROGRESS",
+                "CREATE_FAILED");
+        try {
+            WaitForStackToReachStateTask.newWaiter(cloudFormation, targets,
+                    60000, false).withDelays(10, 10).run();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("stack3=CREATE_FAILED"));
+        }
+        assertEquals(2, cloudFormation.getListStacksCallCount());
+    }
+
+    @Test
+    public void testEventsAreTailedWithoutDuplicates() {
+        cloudFormation.setStatuses(STACK_NAME, "UPDATE_COMPLETE",
+                "UPDATE_IN_PROGRESS", "UPDATE_IN_PROGRESS",
+                "UPDATE_COMPLETE_CLEANUP_IN_PROGRESS", "UPDATE_COMPLETE");
+        for (int i = 0; i < 5; i++) {
+            cloudFormation.addResourceEvents(STACK_NAME, 2, "Bucket" + i,
+                    "UPDATE_IN_PROGRESS", "UPDATE_COMPLETE");
+        }
+        cloudFormation.setEventPageSize(3);
+        PrintStream out = System.out;
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(log, true));
+        try {
+            WaitForStackToReachStateTask
+                    .newWaiter(cloudFormation, STACK_NAME,
+                            "UPDATE_COMPLETE_CLEANUP_IN_PROGRESS", 5000)
+                    .withDelays(10, 10).run();
+        } finally {
+            System.setOut(out);
+        }
+        String printed = log.toString();
+        assertEquals(printed.indexOf("Bucket3 (AWS::S3::Bucket) is in status UPDATE_COMPLETE"),
+                printed.lastIndexOf("Bucket3 (AWS::S3::Bucket) is in status UPDATE_COMPLETE"));
+        assertTrue(printed.indexOf("Bucket0") < printed.indexOf("Bucket4"));
+        assertTrue(printed.trim().endsWith(
+                "is in status UPDATE_COMPLETE_CLEANUP_IN_PROGRESS"));
+        // One page to start, then 11 new events on four pages, then one page
+        // for each status after that
+        assertEquals(7, cloudFormation.getDescribeStackEventsCallCount());
+        assertEquals(0, cloudFormation.getDescribeStacksCallCount());
+    }
+
+    @Test
+    public void testFailedResourceIsPrinted() {
+        cloudFormation.setStatuses(STACK_NAME, "CREATE_IN_PROGRESS",
+                "ROLLBACK_IN_PROGRESS", "ROLLBACK_COMPLETE");
+        cloudFormation.addResourceEvents(STACK_NAME, 1, "Bucket",
+                "CREATE_IN_PROGRESS", "CREATE_FAILED");
+        PrintStream out = System.out;
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(log, true));
+        try {
+            WaitForStackToReachStateTask.newWaiter(cloudFormation, STACK_NAME,
+                    "CREATE_COMPLETE", 5000).withDelays(10, 10).run();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("ROLLBACK_COMPLETE"));
+        } finally {
+            System.setOut(out);
+        }
+        assertTrue(log.toString().contains(
+                "Bucket (AWS::S3::Bucket) is in status CREATE_FAILED"));
+    }
+
+    @Test
+    public void testNotificationsEndTheWait() throws Exception {
+        cloudFormation.setStatuses(STACK_NAME, "CREATE_IN_PROGRESS");
+        cloudFormation.setNotificationArns(STACK_NAME, TOPIC_ARN);
+        WaitForStackToReachStateTask task = newNotificationTask();
+        task.setNotificationFallbackInSeconds(30);
+        Thread publisher = publishWhenReceiving(
+                // From an earlier operation on the stack
+                notification(STACK_NAME, "AWS::CloudFormation::Stack",
+                        "CREATE_COMPLETE", new Date(System.currentTimeMillis()
+                                - 3600 * 1000L)),
+                notification("Bucket", "AWS::S3::Bucket", "CREATE_COMPLETE",
+                        new Date()),
+                notification(STACK_NAME, "AWS::CloudFormation::Stack",
+                        "CREATE_COMPLETE", new Date()));
+        long start = System.currentTimeMillis();
+        task.execute();
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        publisher.join();
+        assertEquals(1, cloudFormation.getDescribeStacksCallCount());
+        assertEquals(0, cloudFormation.getDescribeStackEventsCallCount());
+        assertEquals(3, snsSqs.getDeletedMessageCount());
+        // The queue of the wait is gone, with its subscription
+        assertTrue(snsSqs.getQueueNames().isEmpty());
+        assertEquals(0, snsSqs.getSubscriptionCount());
+    }
+
+    @Test
+    public void testNamedQueueIsSharedWithOtherBuilds() throws Exception {
+        String otherTopicArn = "arn:aws:sns:us-east-1:123456789012:other-events";
+        snsSqs.createQueue(QUEUE_NAME, "{\"Version\":\"2012-10-17\","
+                + "\"Statement\":[{\"Sid\":\"other\",\"Effect\":\"Allow\","
+                + "\"Principal\":\"*\",\"Action\":\"sqs:SendMessage\","
+                + "\"Resource\":\"arn:aws:sqs:us-east-1:123456789012:"
+                + QUEUE_NAME + "\",\"Condition\":{\"ArnEquals\":"
+                + "{\"aws:SourceArn\":\"" + otherTopicArn + "\"}}}]}");
+        cloudFormation.setStatuses(STACK_NAME, "CREATE_IN_PROGRESS");
+        cloudFormation.setNotificationArns(STACK_NAME, TOPIC_ARN);
+        WaitForStackToReachStateTask task = newNotificationTask();
+        task.setQueueName(QUEUE_NAME);
+        task.setNotificationFallbackInSeconds(30);
+        String otherStack = notification(STACK_NAME,
+                "AWS::CloudFormation::Stack", "CREATE_IN_PROGRESS", new Date())
+                .replace(FakeCloudFormation.stackId(STACK_NAME),
+                        FakeCloudFormation.stackId("OtherStack"));
+        Thread publisher = publishWhenReceiving(otherStack,
+                notification(STACK_NAME, "AWS::CloudFormation::Stack",
+                        "CREATE_COMPLETE", new Date()));
+        task.execute();
+        publisher.join();
+
+        // The notification about the stack of another build is left for it
+        assertEquals(1, snsSqs.getDeletedMessageCount());
+        assertEquals(1, snsSqs.getInFlightMessages().size());
+        assertTrue(snsSqs.getInFlightMessages().get(0).contains("OtherStack"));
+        // The queue is kept, and lets both topics send to it
+        assertTrue(snsSqs.getQueueNames().contains(QUEUE_NAME));
+        assertTrue(snsSqs.getPolicy(QUEUE_NAME).contains(otherTopicArn));
+        assertTrue(snsSqs.getPolicy(QUEUE_NAME).contains(TOPIC_ARN));
+        assertEquals(1, snsSqs.getSubscriptionCount());
+    }
+
+    @Test
+    public void testSilentQueueFallsBackToPolling() throws Exception {
+        cloudFormation.setStatuses(STACK_NAME, "CREATE_IN_PROGRESS",
+                "CREATE_COMPLETE");
+        cloudFormation.setNotificationArns(STACK_NAME, TOPIC_ARN);
+        WaitForStackToReachStateTask task = newNotificationTask();
+        task.setNotificationFallbackInSeconds(1);
+        task.execute();
+        assertEquals(2, cloudFormation.getDescribeStacksCallCount());
+        assertEquals(1, snsSqs.getReceiveCallCount());
+        assertTrue(snsSqs.getQueueNames().isEmpty());
+    }
+
+    @Test
+    public void testRefusedQueueFallsBackToPolling() throws Exception {
+        cloudFormation.setStatuses(STACK_NAME, "CREATE_IN_PROGRESS",
+                "CREATE_COMPLETE");
+        cloudFormation.setNotificationArns(STACK_NAME, TOPIC_ARN);
+        snsSqs.setDenied(true);
+        newNotificationTask().execute();
+        assertEquals(0, snsSqs.getReceiveCallCount());
+        assertEquals(1, cloudFormation.getDescribeStackEventsCallCount());
+    }
+
+    @Test
+    public void testEnvelopedNotificationIsRead() {
+        String message = notification("Bucket", "AWS::S3::Bucket",
+                "CREATE_FAILED", new Date());
+        StackEvent event = StackNotificationPoll.parse("{\"Type\":\"Notification\","
+                + "\"Message\":\""
+                + message.replace("\"", "\\\"").replace("\n", "\\n") + "\"}");
+        assertEquals("Bucket", event.getLogicalResourceId());
+        assertEquals("CREATE_FAILED", event.getResourceStatus());
+        assertEquals("Bucket already exists", event.getResourceStatusReason());
+        assertNull(StackNotificationPoll.parse("{\"Type\":\"SubscriptionConfirmation\"}"));
+    }
+
+    private WaitForStackToReachStateTask newNotificationTask() {
+        WaitForStackToReachStateTask task = newTask("CREATE_COMPLETE");
+        task.setUseNotifications(true);
+        task.setTimeoutInMinutes(1);
+        return task;
+    }
+
+    /**
+     * @return A started thread that publishes the messages to the topic of
+     *         the test stack once the queue is subscribed and waited on
+     */
+    private Thread publishWhenReceiving(final String... messages) {
+        Thread publisher = new Thread() {
+            public void run() {
+                while (snsSqs.getReceiveCallCount() == 0) {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                for (String message : messages) {
+                    snsSqs.publish(TOPIC_ARN, message);
+                }
+            }
+        };
+        publisher.start();
+        return publisher;
+    }
+
+    /**
+     * @return A notification about a resource of the test stack, in the
+     *         format CloudFormation publishes
+     */
+    private static String notification(String logicalResourceId,
+            String resourceType, String status, Date timestamp) {
+        String stackId = FakeCloudFormation.stackId(STACK_NAME);
+        return "StackId='" + stackId + "'\n"
+                + "Timestamp='" + DateUtils.formatISO8601Date(timestamp) + "'\n"
+                + "EventId='" + logicalResourceId + "-" + status + "'\n"
+                + "LogicalResourceId='" + logicalResourceId + "'\n"
+                + "Namespace='123456789012'\n"
+                + "PhysicalResourceId='"
+                + (logicalResourceId.equals(STACK_NAME) ? stackId
+                        : logicalResourceId.toLowerCase()) + "'\n"
+                + "ResourceProperties='{\"BucketName\":\"bucket\"}'\n"
+                + "ResourceStatus='" + status + "'\n"
+                + "ResourceStatusReason='"
+                + (status.endsWith("FAILED") ? "Bucket already exists" : "")
+                + "'\n"
+                + "ResourceType='" + resourceType + "'\n"
+                + "StackName='" + STACK_NAME + "'\n";
+    }
+
+    private StackStatus newStack(String name, String status) {
+        StackStatus stack = new StackStatus();
+        stack.setName(name);
+        stack.setStatus(status);
+        return stack;
+    }
+
+    private WaitForStackToReachStateTask newTask(String status) {
+        WaitForStackToReachStateTask task = new WaitForStackToReachStateTask();
+        task.setProject(project);
+        task.setStackName(STACK_NAME);
+        task.setStatus(status);
+        return task;
+    }
+}
@@ -50,11 +50,7 @@ public class TestSuccessfulBeanstalkDeploymentTask extends AWSAntTask {
                     "No environments found with the specified name "
                             + environmentName);
         }
-        try {
-            AWSTestUtils.waitForEnvironmentToTransitionToStateAndHealth(
-                    environmentName, EnvironmentStatus.Ready, null, bcClient);
-        } catch (InterruptedException e) {
-            throw new BuildException(e.getMessage());
-        }
+        AWSTestUtils.waitForEnvironmentToTransitionToStateAndHealth(
+                environmentName, EnvironmentStatus.Ready, null, bcClient);
     }
 }
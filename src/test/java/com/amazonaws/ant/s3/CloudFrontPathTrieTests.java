@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class CloudFrontPathTrieTests {
+
+    @Test
+    public void testFewChangesAreInvalidatedExactly() {
+        CloudFrontPathTrie trie = trie("index.html", "css/site.css",
+                "css/site.css", "js/app.js");
+        assertEquals(3, trie.size());
+        assertEquals(Arrays.asList("/css/site.css", "/index.html",
+                "/js/app.js"), trie.collapse(10, 0));
+    }
+
+    @Test
+    public void testDirectoriesWithManyChangesGetAWildcard() {
+        CloudFrontPathTrie trie = trie("index.html", "img/a.png", "img/b.png",
+                "img/c.png", "img/icons/d.png", "img/icons/e.png");
+        assertEquals(Arrays.asList("/img/*", "/index.html"),
+                trie.collapse(3, 0));
+    }
+
+    @Test
+    public void testWildcardsCountAsOnePath() {
+        CloudFrontPathTrie trie = trie("img/a.png", "img/b.png", "img/c.png",
+                "img/icons/1.png", "img/icons/2.png", "img/icons/3.png",
+                "img/icons/4.png", "img/icons/5.png");
+        assertEquals(Arrays.asList("/img/a.png", "/img/b.png", "/img/c.png",
+                "/img/icons/*"), trie.collapse(4, 0));
+    }
+
+    @Test
+    public void testDirectoriesAreCollapsedUntilPathsFit() {
+        CloudFrontPathTrie trie = trie("a/1", "a/2", "b/1", "b/2", "c");
+        assertEquals(Arrays.asList("/a/*", "/b/*", "/c"), trie.collapse(10, 3));
+        assertEquals(Collections.singletonList("/*"), trie.collapse(10, 1));
+    }
+
+    @Test
+    public void testRootIsOnlyCollapsedToFitMaxPaths() {
+        CloudFrontPathTrie trie = trie("a.html", "b.html", "c.html",
+                "d.html", "img/1.png");
+        assertEquals(Arrays.asList("/a.html", "/b.html", "/c.html",
+                "/d.html", "/img/1.png"), trie.collapse(2, 0));
+        assertEquals(Collections.singletonList("/*"), trie.collapse(2, 4));
+    }
+
+    @Test
+    public void testKeysAreUrlEncoded() {
+        assertEquals(Arrays.asList("/my%20docs/r%C3%A9sum%C3%A9.pdf"),
+                trie("my docs/résumé.pdf").collapse(10, 0));
+    }
+
+    @Test
+    public void testNothingChanged() {
+        assertTrue(new CloudFrontPathTrie().collapse(10, 0).isEmpty());
+    }
+
+    private static CloudFrontPathTrie trie(String... keys) {
+        CloudFrontPathTrie trie = new CloudFrontPathTrie();
+        for (String key : keys) {
+            trie.add(key);
+        }
+        return trie;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.cloudfront.AmazonCloudFront;
+
+public class CloudFrontTests {
+    private Project project;
+
+    @Before
+    public void setUp() {
+        project = new Project();
+    }
+
+    @Test
+    public void testChangedKeysAreInvalidated() {
+        S3ChangeSets.record(project, "site", "war/index.html");
+        S3ChangeSets.record(project, "site", "war/css/site.css");
+        S3ChangeSets.record(project, "other", "war/about.html");
+        FakeCloudFront cloudFront = new FakeCloudFront(0, 3000);
+        CloudFront task = newTask(cloudFront, "E1");
+        task.setBucketName("site");
+        task.setOriginPath("/war");
+        task.execute();
+        assertEquals(Arrays.asList(Arrays.asList("/css/site.css",
+                "/index.html")), cloudFront.getInvalidations("E1"));
+    }
+
+    @Test
+    public void testNothingChangedCreatesNoInvalidation() {
+        FakeCloudFront cloudFront = new FakeCloudFront(0, 3000);
+        CloudFront task = newTask(cloudFront, "E1");
+        task.setBucketName("site");
+        task.execute();
+        assertTrue(cloudFront.getInvalidations("E1").isEmpty());
+    }
+
+    @Test
+    public void testPathsAreBatchedWithinTheInProgressLimit() {
+        // Only two paths may be in progress, so each batch waits for the last
+        FakeCloudFront cloudFront = new FakeCloudFront(50, 2);
+        CloudFront task = newTask(cloudFront, "E1,E2");
+        task.setPathsString("/a,/b,/c,/d,/e");
+        task.setMaxPathsPerInvalidation(2);
+        task.setWaitForCompletion(true);
+        task.setLatencyProperty("invalidation.latency");
+        task.execute();
+        for (String distributionId : new String[] { "E1", "E2" }) {
+            List<List<String>> invalidations = cloudFront
+                    .getInvalidations(distributionId);
+            assertEquals(Arrays.asList(Arrays.asList("/a", "/b"),
+                    Arrays.asList("/c", "/d"), Arrays.asList("/e")),
+                    invalidations);
+            assertTrue(cloudFront.isCompleted(distributionId));
+        }
+        assertTrue(cloudFront.getRefusalCount() > 0);
+        assertTrue(Long.parseLong(project.getProperty("invalidation.latency")) >= 150);
+    }
+
+    @Test
+    public void testWildcardsAreBatchedWithinTheirLimit() {
+        String[] paths = new String[CloudFrontInvalidator.MAX_WILDCARDS_IN_PROGRESS + 3];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = "/dir" + i + "/*";
+        }
+        List<List<String>> batches = CloudFrontInvalidator.batch(
+                Arrays.asList(paths), 3000,
+                CloudFrontInvalidator.MAX_WILDCARDS_IN_PROGRESS);
+        assertEquals(2, batches.size());
+        assertEquals(CloudFrontInvalidator.MAX_WILDCARDS_IN_PROGRESS, batches
+                .get(0).size());
+    }
+
+    @Test(expected = BuildException.class)
+    public void testTimeoutFailsTheTask() {
+        FakeCloudFront cloudFront = new FakeCloudFront(60 * 60 * 1000L, 3000);
+        CloudFront task = newTask(cloudFront, "E1");
+        task.setPathsString("/index.html");
+        task.setWaitForCompletion(true);
+        task.setTimeoutInMinutes(0);
+        task.execute();
+    }
+
+    @Test
+    public void testCoalescedInvalidationsAreMergedUntilFlushed() {
+        FakeCloudFront cloudFront = new FakeCloudFront(0, 3000);
+        CloudFront task = newTask(cloudFront, "E1,E2");
+        task.setPathsString("/index.html,/css/site.css,/js/app.js");
+        task.setCoalesce(true);
+        task.execute();
+        task = newTask(cloudFront, "E1");
+        task.setPathsString("/css/*,/index.html");
+        task.setCoalesce(true);
+        task.execute();
+        assertTrue(cloudFront.getInvalidations("E1").isEmpty());
+
+        CloudFrontFlushTask flush = newFlushTask(cloudFront);
+        flush.setLatencyProperty("flush.latency");
+        flush.execute();
+        assertEquals(Arrays.asList(Arrays.asList("/css/*", "/index.html",
+                "/js/app.js")), cloudFront.getInvalidations("E1"));
+        assertEquals(Arrays.asList(Arrays.asList("/css/site.css",
+                "/index.html", "/js/app.js")), cloudFront.getInvalidations("E2"));
+        assertNotNull(project.getProperty("flush.latency"));
+
+        // Flushed invalidations are not created again
+        newFlushTask(cloudFront).execute();
+        assertEquals(1, cloudFront.getInvalidations("E1").size());
+    }
+
+    @Test
+    public void testDeferredInvalidationsAreCreatedWhenTheBuildFinishes() {
+        FakeCloudFront cloudFront = new FakeCloudFront(0, 3000);
+        CloudFront task = newTask(cloudFront, "E1");
+        task.setPathsString("/index.html");
+        task.setCoalesce(true);
+        task.execute();
+        project.fireBuildFinished(null);
+        assertEquals(Arrays.asList(Arrays.asList("/index.html")),
+                cloudFront.getInvalidations("E1"));
+    }
+
+    @Test
+    public void testMergeDropsPathsCoveredByWildcards() {
+        assertEquals(Arrays.asList("/a/*", "/b", "/c*"),
+                CloudFrontInvalidations.merge(Arrays.asList("/a/x", "/c",
+                        "/a/*", "/b", "/a/b/*", "/c*", "/cd/e", "/b")));
+    }
+
+    private CloudFrontFlushTask newFlushTask(final AmazonCloudFront client) {
+        CloudFrontFlushTask task = new CloudFrontFlushTask() {
+            @Override
+            protected AmazonCloudFront createClient() {
+                return client;
+            }
+        };
+        task.setProject(project);
+        task.setPollIntervalInMs(10);
+        return task;
+    }
+
+    private CloudFront newTask(final AmazonCloudFront client,
+            String distributionId) {
+        CloudFront task = new CloudFront() {
+            @Override
+            protected AmazonCloudFront createClient() {
+                return client;
+            }
+        };
+        task.setProject(project);
+        task.setDistributionId(distributionId);
+        task.setPollIntervalInMs(10);
+        return task;
+    }
+}
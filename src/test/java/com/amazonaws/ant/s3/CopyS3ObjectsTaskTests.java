@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Date;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CopyS3ObjectsTaskTests {
+    private static final String STAGE_BUCKET = "stagebucket";
+    private static final String PROD_BUCKET = "prodbucket";
+
+    private FakeS3Server s3;
+    private Project project;
+
+    @Before
+    public void setUp() throws IOException {
+        s3 = new FakeS3Server();
+        s3.start();
+        project = new Project();
+        s3.useIn(project);
+        for (int i = 0; i < 30; i++) {
+            s3.putObject(STAGE_BUCKET, "release/lib" + i + ".jar", "lib " + i);
+        }
+    }
+
+    @Test
+    public void testCopyWithoutTransferringContent() {
+        newTask().execute();
+        assertEquals("lib 7", s3.getContent(PROD_BUCKET, "live/lib7.jar"));
+        assertEquals(30, s3.getCopyCount());
+        assertEquals(0, s3.getFullGetCount());
+        assertEquals(0, s3.getPutCount());
+    }
+
+    @Test
+    public void testUnchangedObjectsAreSkipped() {
+        newTask().execute();
+        s3.putObject(STAGE_BUCKET, "release/lib3.jar", "lib 3, patched");
+        newTask().execute();
+        assertEquals(31, s3.getCopyCount());
+        assertEquals("lib 3, patched",
+                s3.getContent(PROD_BUCKET, "live/lib3.jar"));
+    }
+
+    @Test
+    public void testObjectsUploadedInPartsAreNotCopiedAgain() {
+        s3.putMultipartObject(STAGE_BUCKET, "release/app.war", "app", 2);
+        newTask().execute();
+        assertEquals(31, s3.getCopyCount());
+        newTask().execute();
+        assertEquals(31, s3.getCopyCount());
+
+        // A later build, after a new upload of the same size
+        s3.putObject(PROD_BUCKET, "live/app.war", "app", new Date(
+                System.currentTimeMillis() - 60 * 1000L), "STANDARD");
+        s3.putMultipartObject(STAGE_BUCKET, "release/app.war", "APP", 2);
+        project = new Project();
+        s3.useIn(project);
+        newTask().execute();
+        assertEquals(32, s3.getCopyCount());
+        assertEquals("APP", s3.getContent(PROD_BUCKET, "live/app.war"));
+    }
+
+    @Test(expected = BuildException.class)
+    public void testPartSizeIsChecked() {
+        CopyS3ObjectsTask task = newTask();
+        task.setPartSizeInMb(0);
+        task.execute();
+    }
+
+    @Test
+    public void testLargeObjectsAreCopiedInParts() {
+        s3.putObject(STAGE_BUCKET, "release/big.bin", "0123456789abcdefghij");
+        CopyS3ObjectsTask task = newTask();
+        task.setMultipartThreshold(16);
+        task.setPartSize(8);
+        task.execute();
+        assertEquals("0123456789abcdefghij",
+                s3.getContent(PROD_BUCKET, "live/big.bin"));
+        assertEquals(3, s3.getPartCopyCount());
+    }
+
+    @Test
+    public void testStorageClassIsKept() {
+        s3.putObject(STAGE_BUCKET, "release/big.bin", "0123456789abcdefghij",
+                new Date(), "STANDARD_IA");
+        s3.putObject(STAGE_BUCKET, "release/small.bin", "0123",
+                new Date(), "STANDARD_IA");
+        CopyS3ObjectsTask task = newTask();
+        task.setMultipartThreshold(16);
+        task.setPartSize(8);
+        task.execute();
+        assertEquals("STANDARD_IA", s3.getObjectHeader(PROD_BUCKET,
+                "live/big.bin", "x-amz-storage-class"));
+        assertEquals("STANDARD_IA", s3.getObjectHeader(PROD_BUCKET,
+                "live/small.bin", "x-amz-storage-class"));
+        assertNull(s3.getObjectHeader(PROD_BUCKET, "live/lib7.jar",
+                "x-amz-storage-class"));
+    }
+
+    @Test(expected = BuildException.class)
+    public void testCopyOntoItself() {
+        CopyS3ObjectsTask task = newTask();
+        task.setDestinationBucket(STAGE_BUCKET);
+        task.setDestinationPrefix("release/");
+        task.execute();
+    }
+
+    @After
+    public void tearDown() {
+        s3.stop();
+    }
+
+    private CopyS3ObjectsTask newTask() {
+        CopyS3ObjectsTask task = new CopyS3ObjectsTask();
+        task.setProject(project);
+        task.setSourceBucket(STAGE_BUCKET);
+        task.setSourcePrefix("release/");
+        task.setDestinationBucket(PROD_BUCKET);
+        task.setDestinationPrefix("live/");
+        return task;
+    }
+}
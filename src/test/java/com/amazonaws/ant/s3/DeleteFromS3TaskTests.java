@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeleteFromS3TaskTests {
+    private static final String BUCKET_NAME = "deletetestbucket";
+
+    private FakeS3Server s3;
+    private DeleteFromS3Task task;
+
+    @Before
+    public void setUp() throws IOException {
+        s3 = new FakeS3Server();
+        s3.start();
+        for (int i = 0; i < 2500; i++) {
+            s3.putObject(BUCKET_NAME, "env/" + i % 7 + "/object" + i, "x");
+        }
+        s3.putObject(BUCKET_NAME, "keep/object", "x");
+        Project project = new Project();
+        s3.useIn(project);
+        task = new DeleteFromS3Task();
+        task.setProject(project);
+        task.setBucketName(BUCKET_NAME);
+    }
+
+    @Test
+    public void testDeletePrefixInBatches() {
+        task.setKeyPrefix("env/");
+        task.execute();
+        assertEquals(1, s3.getObjectCount());
+        assertEquals(3, s3.getDeleteRequestCount());
+    }
+
+    @Test
+    public void testPartialFailuresAreRetried() {
+        s3.failNextDeleteOf("env/3/object10");
+        s3.failNextDeleteOf("env/4/object11");
+        task.setKeyPrefix("env/");
+        task.execute();
+        assertEquals(1, s3.getObjectCount());
+        assertTrue(s3.getDeleteRequestCount() >= 4);
+    }
+
+    @Test
+    public void testFailureAfterRetries() {
+        s3.failNextDeleteOf("keep/object");
+        task.setKeyPrefix("keep/");
+        task.setMaxRetries(0);
+        try {
+            task.execute();
+            fail("Expected the failed key to be reported");
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("keep/object"));
+        }
+    }
+
+    @Test
+    public void testEmptyAndDeleteBucket() {
+        task.setKeyPrefix("");
+        task.setDeleteBucket(true);
+        task.execute();
+        assertEquals(0, s3.getObjectCount());
+        assertTrue(s3.isBucketDeleted(BUCKET_NAME));
+    }
+
+    @Test(expected = BuildException.class)
+    public void testDeleteBucketNeedsEmptyPrefix() {
+        task.setKeyPrefix("env/");
+        task.setDeleteBucket(true);
+        task.execute();
+    }
+
+    @After
+    public void tearDown() {
+        s3.stop();
+    }
+}
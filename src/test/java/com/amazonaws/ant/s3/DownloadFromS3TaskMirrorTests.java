@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DownloadFromS3TaskMirrorTests {
+    private static final String BUCKET_NAME = "mirrortestbucket";
+    private static final String KEY_PREFIX = "replica/";
+
+    private FakeS3Server s3;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        s3 = new FakeS3Server();
+        s3.start();
+        dir = File.createTempFile("mirror", "");
+        dir.delete();
+    }
+
+    @Test
+    public void testMirrorDownloadsIntoDirectories() throws IOException {
+        s3.putObject(BUCKET_NAME, KEY_PREFIX + "a.txt", "a");
+        s3.putObject(BUCKET_NAME, KEY_PREFIX + "sub/b.txt", "b");
+        s3.putObject(BUCKET_NAME, "other/c.txt", "c");
+        mirror();
+        assertEquals("a", read(KEY_PREFIX + "a.txt"));
+        assertEquals("b", read(KEY_PREFIX + "sub/b.txt"));
+        assertFalse(new File(dir, "other").exists());
+        assertEquals(2, s3.getFullGetCount());
+    }
+
+    @Test
+    public void testMirrorOnlyTransfersChanges() throws IOException {
+        s3.putObject(BUCKET_NAME, KEY_PREFIX + "a.txt", "a");
+        s3.putObject(BUCKET_NAME, KEY_PREFIX + "b.txt", "b");
+        mirror();
+        s3.putObject(BUCKET_NAME, KEY_PREFIX + "b.txt", "b, changed",
+                new Date(System.currentTimeMillis() + 5000),
+                "STANDARD");
+        mirror();
+        assertEquals("b, changed", read(KEY_PREFIX + "b.txt"));
+        assertEquals(3, s3.getFullGetCount());
+    }
+
+    @Test
+    public void testMirrorDeletesStaleFiles() throws IOException {
+        s3.putObject(BUCKET_NAME, KEY_PREFIX + "a.txt", "a");
+        s3.putObject(BUCKET_NAME, KEY_PREFIX + "old/b.txt", "b");
+        mirror();
+        s3.deleteObject(BUCKET_NAME, KEY_PREFIX + "old/b.txt");
+        FileUtils.writeStringToFile(new File(dir, KEY_PREFIX + "local.txt"),
+                "local");
+        // Outside the prefix, so never an object that is mirrored
+        FileUtils.writeStringToFile(new File(dir, "local.txt"), "local");
+        FileUtils.writeStringToFile(new File(dir, "replica.txt"), "local");
+        mirror();
+        assertEquals("a", read(KEY_PREFIX + "a.txt"));
+        assertFalse(new File(dir, KEY_PREFIX + "old").exists());
+        assertFalse(new File(dir, KEY_PREFIX + "local.txt").exists());
+        assertTrue(new File(dir, "local.txt").exists());
+        assertTrue(new File(dir, "replica.txt").exists());
+    }
+
+    @Test
+    public void testMirrorWithParallelListing() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            s3.putObject(BUCKET_NAME, KEY_PREFIX + "dir" + i % 4 + "/file" + i,
+                    "content " + i);
+        }
+        mirror(4);
+        assertEquals("content 7", read(KEY_PREFIX + "dir3/file7"));
+        assertEquals(20, s3.getFullGetCount());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        s3.stop();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private void mirror() {
+        mirror(1);
+    }
+
+    private void mirror(int listThreads) {
+        Project project = new Project();
+        s3.useIn(project);
+        DownloadFileFromS3Task task = new DownloadFileFromS3Task();
+        task.setProject(project);
+        task.setBucketName(BUCKET_NAME);
+        task.setKeyPrefix(KEY_PREFIX);
+        task.setDir(dir.getPath());
+        task.setMirror(true);
+        task.setListThreads(listThreads);
+        task.execute();
+    }
+
+    private String read(String key) throws IOException {
+        return FileUtils.readFileToString(new File(dir, key));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DownloadFromS3TaskSelectorTests {
+    private static final String BUCKET_NAME = "selectortestbucket";
+    private static final String KEY_PREFIX = "builds/";
+    private static final long DAY_IN_MS = 24L * 60 * 60 * 1000;
+
+    private FakeS3Server s3;
+    private File dir;
+    private DownloadFileFromS3Task task;
+
+    @Before
+    public void setUp() throws IOException {
+        s3 = new FakeS3Server();
+        s3.start();
+        dir = File.createTempFile("selectors", "");
+        dir.delete();
+        long now = System.currentTimeMillis();
+        s3.putObject(BUCKET_NAME, KEY_PREFIX + "app.jar", "0123456789",
+                new Date(now), "STANDARD");
+        s3.putObject(BUCKET_NAME, KEY_PREFIX + "lib/util.jar", "01234",
+                new Date(now - 10 * DAY_IN_MS), "STANDARD");
+        s3.putObject(BUCKET_NAME, KEY_PREFIX + "logs/build.log", "log",
+                new Date(now), "GLACIER");
+        s3.putObject(BUCKET_NAME, "unrelated/app.jar", "0123456789");
+
+        Project project = new Project();
+        s3.useIn(project);
+        task = new DownloadFileFromS3Task();
+        task.setProject(project);
+        task.setBucketName(BUCKET_NAME);
+        task.setKeyPrefix(KEY_PREFIX);
+        task.setDir(dir.getPath());
+    }
+
+    @Test
+    public void testSelectorsUseOnlyTheListing() {
+        S3ObjectSelectors.Key key = new S3ObjectSelectors.Key();
+        key.setGlob(KEY_PREFIX + "**/*.jar");
+        task.addConfiguredKey(key);
+        S3ObjectSelectors.Modified modified = new S3ObjectSelectors.Modified();
+        modified.setWithinHours(24);
+        task.addConfiguredModified(modified);
+        task.execute();
+
+        assertTrue(new File(dir, KEY_PREFIX + "app.jar").exists());
+        assertFalse(new File(dir, KEY_PREFIX + "lib/util.jar").exists());
+        assertFalse(new File(dir, KEY_PREFIX + "logs/build.log").exists());
+        assertEquals(1, s3.getFullGetCount());
+        assertEquals(0, s3.getHeadCount());
+    }
+
+    @Test
+    public void testSizeAndStorageClass() {
+        S3ObjectSelectors.Size size = new S3ObjectSelectors.Size();
+        size.setMax("5");
+        task.addConfiguredSize(size);
+        S3ObjectSelectors.StorageClass storageClass = new S3ObjectSelectors.StorageClass();
+        storageClass.setName("standard, standard_ia");
+        task.addConfiguredStorageClass(storageClass);
+        task.execute();
+
+        assertFalse(new File(dir, KEY_PREFIX + "app.jar").exists());
+        assertTrue(new File(dir, KEY_PREFIX + "lib/util.jar").exists());
+        assertFalse(new File(dir, KEY_PREFIX + "logs/build.log").exists());
+    }
+
+    @Test
+    public void testGlob() {
+        String regex = S3ObjectSelectors.Key.globToRegex("a/**/*.jar");
+        assertTrue("a/x.jar".matches(regex));
+        assertTrue("a/b/c/x.jar".matches(regex));
+        assertFalse("a/x.jar.sha1".matches(regex));
+        assertFalse("a/b/x.jar".matches(S3ObjectSelectors.Key
+                .globToRegex("a/*.jar")));
+        assertEquals(5L * 1024 * 1024,
+                S3ObjectSelectors.Size.parseSize("5M"));
+    }
+
+    @Test(expected = BuildException.class)
+    public void testKeyNeedsGlobOrRegex() {
+        task.addConfiguredKey(new S3ObjectSelectors.Key());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        s3.stop();
+        FileUtils.deleteDirectory(dir);
+    }
+}
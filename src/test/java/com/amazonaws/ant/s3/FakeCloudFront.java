@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.services.cloudfront.AbstractAmazonCloudFront;
+import com.amazonaws.services.cloudfront.model.CreateInvalidationRequest;
+import com.amazonaws.services.cloudfront.model.CreateInvalidationResult;
+import com.amazonaws.services.cloudfront.model.GetInvalidationRequest;
+import com.amazonaws.services.cloudfront.model.GetInvalidationResult;
+import com.amazonaws.services.cloudfront.model.Invalidation;
+import com.amazonaws.services.cloudfront.model.TooManyInvalidationsInProgressException;
+
+/**
+ * An in-memory CloudFront that keeps the invalidations it is sent. An
+ * invalidation completes a fixed time after it is created, and a distribution
+ * refuses new invalidations while too many paths are in progress.
+ */
+public class FakeCloudFront extends AbstractAmazonCloudFront {
+    private final long completionDelayInMs;
+    private final int maxPathsInProgress;
+    private final Map<String, FakeInvalidation> invalidations = new LinkedHashMap<String, FakeInvalidation>();
+    private final Set<String> callerReferences = new HashSet<String>();
+    private int refusals;
+
+    public FakeCloudFront(long completionDelayInMs, int maxPathsInProgress) {
+        this.completionDelayInMs = completionDelayInMs;
+        this.maxPathsInProgress = maxPathsInProgress;
+    }
+
+    @Override
+    public synchronized CreateInvalidationResult createInvalidation(
+            CreateInvalidationRequest request) {
+        String callerReference = request.getInvalidationBatch()
+                .getCallerReference();
+        if (!callerReferences.add(callerReference)) {
+            throw new IllegalStateException("Caller reference reused: "
+                    + callerReference);
+        }
+        List<String> paths = request.getInvalidationBatch().getPaths()
+                .getItems();
+        int inProgress = 0;
+        for (FakeInvalidation invalidation : invalidations.values()) {
+            if (invalidation.distributionId.equals(request.getDistributionId())
+                    && !invalidation.isCompleted()) {
+                inProgress += invalidation.paths.size();
+            }
+        }
+        if (inProgress + paths.size() > maxPathsInProgress) {
+            callerReferences.remove(callerReference);
+            refusals++;
+            throw new TooManyInvalidationsInProgressException(
+                    "Too many invalidations in progress");
+        }
+        FakeInvalidation invalidation = new FakeInvalidation(
+                request.getDistributionId(), paths);
+        String id = "I" + invalidations.size();
+        invalidations.put(id, invalidation);
+        return new CreateInvalidationResult().withInvalidation(new Invalidation()
+                .withId(id).withStatus("InProgress"));
+    }
+
+    @Override
+    public synchronized GetInvalidationResult getInvalidation(
+            GetInvalidationRequest request) {
+        FakeInvalidation invalidation = invalidations.get(request.getId());
+        return new GetInvalidationResult().withInvalidation(new Invalidation()
+                .withId(request.getId()).withStatus(
+                        invalidation.isCompleted() ? "Completed" : "InProgress"));
+    }
+
+    /**
+     * @return The paths of every invalidation of the distribution, in the
+     *         order they were created
+     */
+    public synchronized List<List<String>> getInvalidations(
+            String distributionId) {
+        List<List<String>> paths = new ArrayList<List<String>>();
+        for (FakeInvalidation invalidation : invalidations.values()) {
+            if (invalidation.distributionId.equals(distributionId)) {
+                paths.add(invalidation.paths);
+            }
+        }
+        return paths;
+    }
+
+    public synchronized boolean isCompleted(String distributionId) {
+        for (FakeInvalidation invalidation : invalidations.values()) {
+            if (invalidation.distributionId.equals(distributionId)
+                    && !invalidation.isCompleted()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized int getRefusalCount() {
+        return refusals;
+    }
+
+    private class FakeInvalidation {
+        private final String distributionId;
+        private final List<String> paths;
+        private final long completedAt = System.currentTimeMillis()
+                + completionDelayInMs;
+
+        FakeInvalidation(String distributionId, List<String> paths) {
+            this.distributionId = distributionId;
+            this.paths = new ArrayList<String>(paths);
+        }
+
+        boolean isCompleted() {
+            return System.currentTimeMillis() >= completedAt;
+        }
+    }
+}
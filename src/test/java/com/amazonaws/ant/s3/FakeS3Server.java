@@ -0,0 +1,612 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.tools.ant.Project;
+
+import com.amazonaws.ant.TestClients;
+import com.amazonaws.auth.AnonymousAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.DateUtils;
+import com.amazonaws.util.IOUtils;
+import com.amazonaws.util.Md5Utils;
+import com.amazonaws.util.StringUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for S3 that holds objects in memory. It serves GET
+ * and HEAD requests honoring If-None-Match, lists buckets, and supports puts,
+ * copies, multipart uploads and DeleteObjects. Use
+ * {@link #newClient()} to get a client that talks to it.
+ */
+public class FakeS3Server {
+
+    private static final int MAX_KEYS = 1000;
+
+    private final ConcurrentNavigableMap<String, FakeObject> objects = new ConcurrentSkipListMap<String, FakeObject>();
+    private final Set<String> failingDeletes = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> readOnlyBuckets = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> deletedBuckets = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Map<String, Map<Integer, FakeObject>> uploads = new ConcurrentHashMap<String, Map<Integer, FakeObject>>();
+    private final Map<String, Map<String, String>> objectHeaders = new ConcurrentHashMap<String, Map<String, String>>();
+    private final AtomicInteger deleteRequests = new AtomicInteger();
+    private final AtomicInteger puts = new AtomicInteger();
+    private final AtomicInteger copies = new AtomicInteger();
+    private final AtomicInteger partCopies = new AtomicInteger();
+    private final AtomicInteger heads = new AtomicInteger();
+    private final AtomicInteger lists = new AtomicInteger();
+    private final AtomicInteger listedKeys = new AtomicInteger();
+    private final AtomicInteger fullGets = new AtomicInteger();
+    private final AtomicInteger notModifiedGets = new AtomicInteger();
+    private HttpServer server;
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public void putObject(String bucketName, String key, String content) {
+        putObject(bucketName, key, content, new Date(), "STANDARD");
+    }
+
+    public void putObject(String bucketName, String key, String content,
+            Date lastModified, String storageClass) {
+        // S3 keeps last modified dates to the second
+        objects.put(bucketName + "/" + key, new FakeObject(
+                content.getBytes(StringUtils.UTF8), new Date(
+                        lastModified.getTime() / 1000 * 1000), storageClass));
+    }
+
+    /**
+     * Puts an object as if it had been uploaded in the given number of parts,
+     * with an ETag that isn't the MD5 of its content.
+     */
+    public void putMultipartObject(String bucketName, String key,
+            String content, int partCount) {
+        byte[] bytes = content.getBytes(StringUtils.UTF8);
+        objects.put(bucketName + "/" + key, new FakeObject(bytes, new Date(
+                System.currentTimeMillis() / 1000 * 1000), "STANDARD",
+                BinaryUtils.toHex(Md5Utils.computeMD5Hash(bytes)) + "-"
+                        + partCount));
+    }
+
+    public void deleteObject(String bucketName, String key) {
+        objects.remove(bucketName + "/" + key);
+    }
+
+    /**
+     * Makes the next DeleteObjects request that includes the key fail to
+     * delete it.
+     */
+    public void failNextDeleteOf(String key) {
+        failingDeletes.add(key);
+    }
+
+    /**
+     * Makes PUTs, multipart uploads and DeleteObjects requests to the bucket
+     * fail with Access Denied.
+     */
+    public void denyWritesTo(String bucketName) {
+        readOnlyBuckets.add(bucketName);
+    }
+
+    public int getDeleteRequestCount() {
+        return deleteRequests.get();
+    }
+
+    public int getObjectCount() {
+        return objects.size();
+    }
+
+    public boolean isBucketDeleted(String bucketName) {
+        return deletedBuckets.contains(bucketName);
+    }
+
+    public int getPutCount() {
+        return puts.get();
+    }
+
+    public int getCopyCount() {
+        return copies.get();
+    }
+
+    public int getPartCopyCount() {
+        return partCopies.get();
+    }
+
+    public String getContent(String bucketName, String key) {
+        FakeObject object = objects.get(bucketName + "/" + key);
+        return object == null ? null : new String(object.content,
+                StringUtils.UTF8);
+    }
+
+    /**
+     * @return A header of the request that created the object, such as
+     *         Cache-Control or x-amz-storage-class, or null if it had none
+     */
+    public String getObjectHeader(String bucketName, String key, String name) {
+        Map<String, String> headers = objectHeaders.get(bucketName + "/" + key);
+        return headers == null ? null : headers.get(name.toLowerCase());
+    }
+
+    public int getHeadCount() {
+        return heads.get();
+    }
+
+    public int getListCount() {
+        return lists.get();
+    }
+
+    /**
+     * @return The number of object summaries returned by all listings
+     */
+    public int getListedKeyCount() {
+        return listedKeys.get();
+    }
+
+    public int getFullGetCount() {
+        return fullGets.get();
+    }
+
+    public int getNotModifiedGetCount() {
+        return notModifiedGets.get();
+    }
+
+    /**
+     * Returns an anonymous, path-style client for the given endpoint.
+     */
+    public static AmazonS3Client newClient(String endpoint) {
+        AmazonS3Client client = new AmazonS3Client(new AnonymousAWSCredentials());
+        client.setEndpoint(endpoint);
+        client.setS3ClientOptions(S3ClientOptions.builder()
+                .setPathStyleAccess(true).build());
+        return client;
+    }
+
+    public AmazonS3Client newClient() {
+        return newClient(getEndpoint());
+    }
+
+    /**
+     * Makes the S3 tasks of the given project use a client that talks to
+     * this server.
+     */
+    public void useIn(Project project) {
+        useIn(project, null);
+    }
+
+    /**
+     * Makes the S3 tasks of the given project use a client that talks to
+     * this server for the given region.
+     */
+    public void useIn(Project project, String region) {
+        TestClients.use(project, AmazonS3Client.class, region, newClient());
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath().substring(1);
+        String query = exchange.getRequestURI().getRawQuery();
+        Map<String, String> params = parseQuery(query);
+        String method = exchange.getRequestMethod();
+        int slash = path.indexOf('/');
+        boolean bucketRequest = slash < 0 || slash == path.length() - 1;
+        String bucketName = slash < 0 ? path : path.substring(0, slash);
+
+        if (("PUT".equals(method) || "POST".equals(method))
+                && readOnlyBuckets.contains(bucketName)) {
+            IOUtils.toByteArray(exchange.getRequestBody());
+            sendError(exchange, 403, "AccessDenied");
+        } else if ("POST".equals(method) && params.containsKey("delete")) {
+            deleteObjects(exchange, bucketName);
+        } else if ("POST".equals(method) && params.containsKey("uploads")) {
+            initiateMultipartUpload(exchange, path);
+        } else if ("POST".equals(method) && params.containsKey("uploadId")) {
+            completeMultipartUpload(exchange, path, params.get("uploadId"));
+        } else if ("PUT".equals(method)) {
+            put(exchange, path, params);
+        } else if ("DELETE".equals(method) && bucketRequest) {
+            deletedBuckets.add(bucketName);
+            exchange.sendResponseHeaders(204, -1);
+        } else if ("DELETE".equals(method)) {
+            objects.remove(path);
+            exchange.sendResponseHeaders(204, -1);
+        } else if (bucketRequest) {
+            list(exchange, bucketName);
+        } else {
+            get(exchange, path);
+        }
+    }
+
+    private void get(HttpExchange exchange, String path) throws IOException {
+        FakeObject object = objects.get(path);
+        boolean head = "HEAD".equals(exchange.getRequestMethod());
+        if (object == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        byte[] content = object.content;
+        String eTag = object.getETag();
+        exchange.getResponseHeaders().set("ETag", "\"" + eTag + "\"");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.getResponseHeaders().set("Last-Modified",
+                DateUtils.formatRFC822Date(object.lastModified));
+        if (head) {
+            heads.incrementAndGet();
+            exchange.getResponseHeaders().set("Content-Length",
+                    String.valueOf(content.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst(
+                "If-None-Match");
+        if (ifNoneMatch != null && ifNoneMatch.contains(eTag)) {
+            notModifiedGets.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        fullGets.incrementAndGet();
+        exchange.sendResponseHeaders(200, content.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(content);
+        out.close();
+    }
+
+    /**
+     * Serves PutObject, CopyObject, UploadPart and UploadPartCopy requests.
+     */
+    private void put(HttpExchange exchange, String path,
+            Map<String, String> params) throws IOException {
+        String copySource = exchange.getRequestHeaders().getFirst(
+                "x-amz-copy-source");
+        byte[] content;
+        if (copySource != null) {
+            FakeObject source = objects.get(URLDecoder.decode(
+                    copySource.startsWith("/") ? copySource.substring(1)
+                            : copySource, "UTF-8"));
+            if (source == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            content = source.content;
+            String range = exchange.getRequestHeaders().getFirst(
+                    "x-amz-copy-source-range");
+            if (range != null) {
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                content = Arrays.copyOfRange(content,
+                        Integer.parseInt(bounds[0]),
+                        Integer.parseInt(bounds[1]) + 1);
+            }
+        } else {
+            content = IOUtils.toByteArray(exchange.getRequestBody());
+        }
+
+        String uploadId = params.get("uploadId");
+        String eTag;
+        if (uploadId != null) {
+            if (copySource != null) {
+                partCopies.incrementAndGet();
+            }
+            FakeObject part = new FakeObject(content, new Date(), "STANDARD");
+            uploads.get(uploadId).put(
+                    Integer.parseInt(params.get("partNumber")), part);
+            eTag = part.getETag();
+        } else {
+            if (copySource != null) {
+                copies.incrementAndGet();
+            } else {
+                puts.incrementAndGet();
+            }
+            FakeObject object = new FakeObject(content, new Date(),
+                    "STANDARD");
+            objects.put(path, object);
+            objectHeaders.put(path, headersOf(exchange));
+            eTag = object.getETag();
+        }
+
+        if (copySource == null) {
+            exchange.getResponseHeaders().set("ETag", "\"" + eTag + "\"");
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        String root = uploadId != null ? "CopyPartResult" : "CopyObjectResult";
+        sendXml(exchange, "<" + root + "><LastModified>"
+                + DateUtils.formatISO8601Date(new Date())
+                + "</LastModified><ETag>&quot;" + eTag + "&quot;</ETag></"
+                + root + ">");
+    }
+
+    private void initiateMultipartUpload(HttpExchange exchange, String path)
+            throws IOException {
+        String uploadId = "upload" + uploads.size();
+        objectHeaders.put(path, headersOf(exchange));
+        uploads.put(uploadId, new ConcurrentSkipListMap<Integer, FakeObject>());
+        int slash = path.indexOf('/');
+        sendXml(exchange, "<InitiateMultipartUploadResult><Bucket>"
+                + path.substring(0, slash) + "</Bucket><Key>"
+                + escape(path.substring(slash + 1)) + "</Key><UploadId>"
+                + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+    }
+
+    private void completeMultipartUpload(HttpExchange exchange, String path,
+            String uploadId) throws IOException {
+        IOUtils.toString(exchange.getRequestBody());
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        StringBuilder partETags = new StringBuilder();
+        Map<Integer, FakeObject> parts = uploads.remove(uploadId);
+        for (FakeObject part : parts.values()) {
+            content.write(part.content);
+            partETags.append(part.getETag());
+        }
+        // Like S3, the ETag of a multipart object isn't the MD5 of its content
+        FakeObject object = new FakeObject(content.toByteArray(), new Date(),
+                "STANDARD", BinaryUtils.toHex(Md5Utils.computeMD5Hash(partETags
+                        .toString().getBytes(StringUtils.UTF8)))
+                        + "-" + parts.size());
+        objects.put(path, object);
+        int slash = path.indexOf('/');
+        sendXml(exchange, "<CompleteMultipartUploadResult><Bucket>"
+                + path.substring(0, slash) + "</Bucket><Key>"
+                + escape(path.substring(slash + 1)) + "</Key><ETag>&quot;"
+                + object.getETag()
+                + "&quot;</ETag></CompleteMultipartUploadResult>");
+    }
+
+    private static Map<String, String> headersOf(HttpExchange exchange) {
+        Map<String, String> headers = new HashMap<String, String>();
+        for (Map.Entry<String, List<String>> header : exchange
+                .getRequestHeaders().entrySet()) {
+            headers.put(header.getKey().toLowerCase(), header.getValue()
+                    .get(0));
+        }
+        return headers;
+    }
+
+    private void sendXml(HttpExchange exchange, String xml) throws IOException {
+        byte[] bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml)
+                .getBytes(StringUtils.UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private void sendError(HttpExchange exchange, int status, String code)
+            throws IOException {
+        byte[] bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>"
+                + code + "</Code><Message>" + code + "</Message></Error>")
+                .getBytes(StringUtils.UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /**
+     * Serves a DeleteObjects request, failing each key passed to
+     * {@link #failNextDeleteOf(String)} once.
+     */
+    private void deleteObjects(HttpExchange exchange, String bucketName)
+            throws IOException {
+        deleteRequests.incrementAndGet();
+        String body = IOUtils.toString(exchange.getRequestBody());
+        StringBuilder result = new StringBuilder(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?><DeleteResult>");
+        Matcher matcher = Pattern.compile("<Key>(.*?)</Key>").matcher(body);
+        while (matcher.find()) {
+            String key = matcher.group(1).replace("&lt;", "<")
+                    .replace("&gt;", ">").replace("&amp;", "&");
+            if (failingDeletes.remove(key)) {
+                result.append("<Error><Key>").append(escape(key))
+                        .append("</Key><Code>InternalError</Code>")
+                        .append("<Message>Try again</Message></Error>");
+            } else {
+                objects.remove(bucketName + "/" + key);
+            }
+        }
+        byte[] bytes = result.append("</DeleteResult>").toString()
+                .getBytes(StringUtils.UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /**
+     * Serves a version 1 ListObjects request, with prefix, marker and
+     * delimiter.
+     */
+    private void list(HttpExchange exchange, String bucketName)
+            throws IOException {
+        lists.incrementAndGet();
+        Map<String, String> params = parseQuery(exchange.getRequestURI()
+                .getRawQuery());
+        String prefix = params.containsKey("prefix") ? params.get("prefix")
+                : "";
+        String marker = params.get("marker");
+        String delimiter = params.get("delimiter");
+        int maxKeys = params.containsKey("max-keys") ? Integer
+                .parseInt(params.get("max-keys")) : MAX_KEYS;
+
+        String from = bucketName + "/" + prefix;
+        if (marker != null && marker.compareTo(prefix) > 0) {
+            from = bucketName + "/" + marker + "\0";
+        }
+        StringBuilder contents = new StringBuilder();
+        String lastKey = null;
+        String lastPrefix = null;
+        int count = 0;
+        boolean truncated = false;
+        for (Map.Entry<String, FakeObject> entry : objects.tailMap(from, true)
+                .entrySet()) {
+            if (!entry.getKey().startsWith(bucketName + "/" + prefix)) {
+                break;
+            }
+            String key = entry.getKey().substring(bucketName.length() + 1);
+            if (delimiter != null && marker != null
+                    && marker.endsWith(delimiter) && key.startsWith(marker)) {
+                // Already returned as a common prefix
+                continue;
+            }
+            if (delimiter != null) {
+                int index = key.indexOf(delimiter, prefix.length());
+                if (index >= 0) {
+                    String commonPrefix = key.substring(0,
+                            index + delimiter.length());
+                    if (commonPrefix.equals(lastPrefix)) {
+                        continue;
+                    }
+                    if (count == maxKeys) {
+                        truncated = true;
+                        break;
+                    }
+                    contents.append("<CommonPrefixes><Prefix>")
+                            .append(escape(commonPrefix))
+                            .append("</Prefix></CommonPrefixes>");
+                    lastPrefix = commonPrefix;
+                    lastKey = commonPrefix;
+                    count++;
+                    continue;
+                }
+            }
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            FakeObject object = entry.getValue();
+            contents.append("<Contents><Key>").append(escape(key))
+                    .append("</Key><LastModified>")
+                    .append(DateUtils.formatISO8601Date(object.lastModified))
+                    .append("</LastModified><ETag>&quot;")
+                    .append(object.getETag()).append("&quot;</ETag><Size>")
+                    .append(object.content.length)
+                    .append("</Size><StorageClass>")
+                    .append(object.storageClass)
+                    .append("</StorageClass></Contents>");
+            lastKey = key;
+            count++;
+            listedKeys.incrementAndGet();
+        }
+
+        StringBuilder body = new StringBuilder(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                        + "<ListBucketResult><Name>").append(bucketName)
+                .append("</Name><Prefix>").append(escape(prefix))
+                .append("</Prefix><MaxKeys>").append(maxKeys)
+                .append("</MaxKeys><IsTruncated>").append(truncated)
+                .append("</IsTruncated>");
+        if (truncated && lastKey != null) {
+            body.append("<NextMarker>").append(escape(lastKey))
+                    .append("</NextMarker>");
+        }
+        body.append(contents).append("</ListBucketResult>");
+        byte[] bytes = body.toString().getBytes(StringUtils.UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private static Map<String, String> parseQuery(String query)
+            throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int equals = param.indexOf('=');
+            String name = equals < 0 ? param : param.substring(0, equals);
+            String value = equals < 0 ? "" : param.substring(equals + 1);
+            params.put(URLDecoder.decode(name, "UTF-8"),
+                    URLDecoder.decode(value, "UTF-8"));
+        }
+        return params;
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;")
+                .replace(">", "&gt;");
+    }
+
+    private static class FakeObject {
+        private final byte[] content;
+        private final Date lastModified;
+        private final String storageClass;
+        private final String eTag;
+
+        FakeObject(byte[] content, Date lastModified, String storageClass) {
+            this(content, lastModified, storageClass, BinaryUtils
+                    .toHex(Md5Utils.computeMD5Hash(content)));
+        }
+
+        FakeObject(byte[] content, Date lastModified, String storageClass,
+                String eTag) {
+            this.content = content;
+            this.lastModified = lastModified;
+            this.storageClass = storageClass;
+            this.eTag = eTag;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class HedgedRequestsTests {
+
+    private HedgedRequests hedger = new HedgedRequests(95, 50);
+
+    @Test
+    public void testSlowRequestIsHedged() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            assertEquals("fast", hedger.execute(new SleepingRequest(0, 0)));
+        }
+        // The first attempt hangs; the duplicate returns immediately
+        SleepingRequest slow = new SleepingRequest(60000, 0);
+        assertEquals("fast", hedger.execute(slow));
+        assertEquals(2, slow.attempts.get());
+        assertEquals(1, slow.aborts.get());
+    }
+
+    @Test
+    public void testLoserCompletingAfterAbortIsDiscarded() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            hedger.execute(new SleepingRequest(0, 0));
+        }
+        // The first attempt ignores the abort and completes anyway
+        SleepingRequest slow = new SleepingRequest(500, 0, false);
+        assertEquals("fast", hedger.execute(slow));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (slow.discards.get() == 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, slow.discards.get());
+    }
+
+    @Test
+    public void testNoHedgingBeforeEnoughSamples() throws Exception {
+        SleepingRequest request = new SleepingRequest(200, 200);
+        hedger.execute(request);
+        assertEquals(1, request.attempts.get());
+    }
+
+    @Test
+    public void testBudgetLimitsHedging() throws Exception {
+        hedger = new HedgedRequests(50, 0);
+        for (int i = 0; i < 20; i++) {
+            hedger.execute(new SleepingRequest(0, 0));
+        }
+        SleepingRequest slow = new SleepingRequest(200, 0);
+        hedger.execute(slow);
+        assertEquals(1, slow.attempts.get());
+    }
+
+    @After
+    public void tearDown() {
+        hedger.shutdown();
+    }
+
+    private static class SleepingRequest implements
+            HedgedRequests.Request<String> {
+        private final long firstSleepInMs;
+        private final long laterSleepInMs;
+        private final AtomicInteger attempts = new AtomicInteger();
+        private final AtomicInteger aborts = new AtomicInteger();
+        private final AtomicInteger discards = new AtomicInteger();
+        private final boolean interruptible;
+
+        SleepingRequest(long firstSleepInMs, long laterSleepInMs) {
+            this(firstSleepInMs, laterSleepInMs, true);
+        }
+
+        SleepingRequest(long firstSleepInMs, long laterSleepInMs,
+                boolean interruptible) {
+            this.firstSleepInMs = firstSleepInMs;
+            this.laterSleepInMs = laterSleepInMs;
+            this.interruptible = interruptible;
+        }
+
+        public HedgedRequests.Attempt<String> newAttempt() {
+            final long sleep = attempts.getAndIncrement() == 0 ? firstSleepInMs
+                    : laterSleepInMs;
+            return new HedgedRequests.Attempt<String>() {
+                public String call() throws Exception {
+                    if (interruptible) {
+                        Thread.sleep(sleep);
+                    } else {
+                        long end = System.currentTimeMillis() + sleep;
+                        while (System.currentTimeMillis() < end) {
+                            Thread.yield();
+                        }
+                    }
+                    return sleep > 0 ? "slow" : "fast";
+                }
+
+                public void abort() {
+                    aborts.incrementAndGet();
+                }
+
+                public void discard(String result) {
+                    discards.incrementAndGet();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.apache.tools.ant.BuildException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+
+public class S3BatchDeleterTests {
+    private static final String BUCKET_NAME = "batchdeletertestbucket";
+
+    private FakeS3Server s3;
+
+    @Before
+    public void setUp() throws IOException {
+        s3 = new FakeS3Server();
+        s3.start();
+    }
+
+    @Test
+    public void testFatalErrorStopsDeletion() {
+        s3.denyWritesTo(BUCKET_NAME);
+        S3BatchDeleter deleter = new S3BatchDeleter(s3.newClient(),
+                BUCKET_NAME, 1, 3);
+        int queued = 0;
+        try {
+            for (; queued < 1000 * S3BatchDeleter.MAX_BATCH_SIZE; queued++) {
+                deleter.delete(new KeyVersion("object" + queued));
+            }
+            deleter.finish();
+            fail("Expected the denied deletes to fail");
+        } catch (BuildException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Access Denied")
+                    || e.getMessage().contains("AccessDenied"));
+        }
+        // The failure surfaced while keys were still being queued
+        assertTrue(queued < 1000 * S3BatchDeleter.MAX_BATCH_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        s3.stop();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.util.IOUtils;
+
+public class S3CachingProxyTests {
+    private static final String BUCKET_NAME = "cachingproxytestbucket";
+    private static final String KEY = "artifacts/app.jar";
+
+    private FakeS3Server s3;
+    private S3CachingProxy proxy;
+    private File cacheDir;
+    private AmazonS3Client client;
+
+    @Before
+    public void setUp() throws IOException {
+        s3 = new FakeS3Server();
+        s3.start();
+        cacheDir = File.createTempFile("s3cache", "");
+        cacheDir.delete();
+        proxy = new S3CachingProxy(s3.newClient(), new S3DownloadCache(
+                cacheDir, 0));
+        proxy.start(new InetSocketAddress("localhost", 0), 4);
+        client = FakeS3Server.newClient("http://localhost:" + proxy.getPort());
+    }
+
+    @Test
+    public void testRepeatedGetIsServedFromCache() throws IOException {
+        s3.putObject(BUCKET_NAME, KEY, "version 1");
+        assertEquals("version 1", get(KEY));
+        assertEquals("version 1", get(KEY));
+        assertEquals(1, s3.getFullGetCount());
+        assertEquals(1, s3.getNotModifiedGetCount());
+        assertEquals(1, proxy.getHitCount());
+    }
+
+    @Test
+    public void testChangedObjectIsRefetched() throws IOException {
+        s3.putObject(BUCKET_NAME, KEY, "version 1");
+        assertEquals("version 1", get(KEY));
+        s3.putObject(BUCKET_NAME, KEY, "version 2");
+        assertEquals("version 2", get(KEY));
+        assertEquals(2, s3.getFullGetCount());
+        assertEquals(0, proxy.getHitCount());
+    }
+
+    @Test
+    public void testVersionedGetIsRefused() throws IOException {
+        s3.putObject(BUCKET_NAME, KEY, "version 1");
+        try {
+            client.getObject(new GetObjectRequest(BUCKET_NAME, KEY, "v1"));
+            fail("Expected the proxy to refuse the versionId parameter");
+        } catch (AmazonS3Exception e) {
+            assertEquals(501, e.getStatusCode());
+            assertEquals("NotImplemented", e.getErrorCode());
+        }
+        assertEquals(0, s3.getFullGetCount());
+    }
+
+    @Test
+    public void testDownloadTaskThroughProxy() throws IOException {
+        s3.putObject(BUCKET_NAME, KEY, "version 1");
+        File target = File.createTempFile("res", ".jar");
+        DownloadFileFromS3Task task = new DownloadFileFromS3Task();
+        task.setProject(new Project());
+        task.setAWSAccessKeyId("AKIDEXAMPLE");
+        task.setAWSSecretKey("secret");
+        task.setBucketName(BUCKET_NAME);
+        task.setKey(KEY);
+        task.setFile(target);
+        task.setProxyEndpoint("http://localhost:" + proxy.getPort());
+        task.execute();
+        task.execute();
+        assertEquals("version 1", FileUtils.readFileToString(target));
+        assertEquals(1, s3.getFullGetCount());
+        target.delete();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        proxy.stop();
+        s3.stop();
+        FileUtils.deleteDirectory(cacheDir);
+    }
+
+    private String get(String key) throws IOException {
+        return IOUtils.toString(client.getObject(BUCKET_NAME, key)
+                .getObjectContent());
+    }
+}
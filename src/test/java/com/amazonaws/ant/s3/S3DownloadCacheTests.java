@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.IOUtils;
+import com.amazonaws.util.Md5Utils;
+import com.amazonaws.util.StringUtils;
+
+public class S3DownloadCacheTests {
+    private static final String BUCKET_NAME = "downloadcachetestbucket";
+
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = File.createTempFile("s3cache", "");
+        cacheDir.delete();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(cacheDir);
+    }
+
+    @Test
+    public void testTrimEvictsLeastRecentlyUsed() throws IOException {
+        S3DownloadCache cache = new S3DownloadCache(cacheDir, 250);
+        File a = store(cache, "a", 100);
+        File b = store(cache, "b", 100);
+        File c = store(cache, "c", 100);
+        // b was used longest ago, then c, then a
+        lockFileOf(a).setLastModified(3000000);
+        lockFileOf(b).setLastModified(1000000);
+        lockFileOf(c).setLastModified(2000000);
+
+        cache.trim();
+        assertFalse(lockFileOf(b).exists());
+        assertFalse(isCached(cache, "b"));
+        assertTrue(isCached(cache, "a"));
+        assertTrue(isCached(cache, "c"));
+
+        // The lookups made a and c recent, and b is stored again as the
+        // most recent of all
+        lockFileOf(a).setLastModified(2000000);
+        lockFileOf(c).setLastModified(1000000);
+        store(cache, "b", 100);
+        cache.trim();
+        assertFalse(isCached(cache, "c"));
+        assertTrue(isCached(cache, "a"));
+        assertTrue(isCached(cache, "b"));
+    }
+
+    @Test
+    public void testOpenEntrySurvivesTrim() throws IOException {
+        S3DownloadCache cache = new S3DownloadCache(cacheDir, 50);
+        store(cache, "a", 100);
+        InputStream entry = cache.lookup(BUCKET_NAME, "a", "etag");
+        try {
+            cache.trim();
+            assertFalse(isCached(cache, "a"));
+            assertEquals(100, IOUtils.toByteArray(entry).length);
+        } finally {
+            entry.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentStoreAndLookup() throws Exception {
+        final S3DownloadCache cache = new S3DownloadCache(cacheDir, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int thread = 0; thread < 8; thread++) {
+            final int size = 1000 + thread;
+            results.add(executor.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    for (int i = 0; i < 50; i++) {
+                        String key = "key" + (i % 5);
+                        store(cache, key, size);
+                        InputStream entry = cache.lookup(BUCKET_NAME, key,
+                                "etag");
+                        // Another thread may have replaced the entry, but
+                        // never with partial contents
+                        byte[] content;
+                        try {
+                            content = IOUtils.toByteArray(entry);
+                        } finally {
+                            entry.close();
+                        }
+                        assertTrue(content.length >= 1000
+                                && content.length < 1008);
+                        for (byte b : content) {
+                            assertEquals('x', b);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        for (File shard : cacheDir.listFiles()) {
+            for (String name : shard.list()) {
+                assertFalse(name, name.endsWith(".part"));
+            }
+        }
+    }
+
+    @Test
+    public void testHitsAreHardLinked() throws IOException {
+        FakeS3Server s3 = new FakeS3Server();
+        s3.start();
+        try {
+            s3.putObject(BUCKET_NAME, "app.jar", "contents");
+            S3DownloadCache cache = new S3DownloadCache(cacheDir, 0);
+            File target = new File(cacheDir, "target/app.jar");
+            assertFalse(cache.fetch(s3.newClient(), BUCKET_NAME, "app.jar",
+                    null, target));
+            assertTrue(cache.fetch(s3.newClient(), BUCKET_NAME, "app.jar",
+                    null, target));
+            assertTrue(Files.isSameFile(target.toPath(),
+                    entryOf(cache, "app.jar", md5Of("contents")).toPath()));
+        } finally {
+            s3.stop();
+        }
+    }
+
+    @Test
+    public void testHardLinkFailureFallsBackToCopy() throws IOException {
+        FakeS3Server s3 = new FakeS3Server();
+        s3.start();
+        try {
+            s3.putObject(BUCKET_NAME, "app.jar", "contents");
+            S3DownloadCache cache = new S3DownloadCache(cacheDir, 0) {
+                @Override
+                void createLink(File target, File entry) throws IOException {
+                    throw new IOException("Invalid cross-device link");
+                }
+            };
+            File target = new File(cacheDir, "target/app.jar");
+            cache.fetch(s3.newClient(), BUCKET_NAME, "app.jar", null, target);
+            assertEquals("contents", FileUtils.readFileToString(target));
+            assertFalse(Files.isSameFile(target.toPath(),
+                    entryOf(cache, "app.jar", md5Of("contents")).toPath()));
+        } finally {
+            s3.stop();
+        }
+    }
+
+    private static File entryOf(S3DownloadCache cache, String key,
+            String eTag) {
+        String name = S3DownloadCache.entryName(BUCKET_NAME, key, eTag);
+        return new File(new File(cache.getDirectory(), name.substring(0, 2)),
+                name);
+    }
+
+    private static String md5Of(String content) {
+        return BinaryUtils.toHex(Md5Utils.computeMD5Hash(content
+                .getBytes(StringUtils.UTF8)));
+    }
+
+    private static boolean isCached(S3DownloadCache cache, String key)
+            throws IOException {
+        InputStream entry = cache.lookup(BUCKET_NAME, key, "etag");
+        if (entry == null) {
+            return false;
+        }
+        entry.close();
+        return true;
+    }
+
+    private static File store(S3DownloadCache cache, String key, int size)
+            throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            content.append('x');
+        }
+        cache.store(BUCKET_NAME, key, "etag", new ByteArrayInputStream(
+                content.toString().getBytes(StringUtils.UTF8))).close();
+        return entryOf(cache, key, "etag");
+    }
+
+    private static File lockFileOf(File entry) {
+        return new File(entry.getPath() + ".lock");
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+public class S3ListingSnapshotTests {
+    private static final String BUCKET_NAME = "snapshotbucket";
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("listing", ".snapshot");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testLookups() throws IOException {
+        List<S3ObjectSummary> objects = new ArrayList<S3ObjectSummary>();
+        for (int i = 0; i < 1000; i++) {
+            objects.add(newSummary(String.format("assets/%04d/app.js", i), i,
+                    String.format("%032x", i), new Date(1400000000000L + i),
+                    i % 3 == 0 ? "GLACIER" : "STANDARD"));
+        }
+        objects.add(newSummary("assets/big.bin", 1L << 40,
+                "0123456789abcdef0123456789abcdef-12", null, null));
+        objects.add(newSummary("assets/été.txt", 5, null, null,
+                "STANDARD"));
+        S3ListingSnapshot.write(new ListSource(objects), file, BUCKET_NAME,
+                "assets/");
+
+        S3ListingSnapshot snapshot = S3ListingSnapshot.open(file);
+        assertEquals(BUCKET_NAME, snapshot.getBucketName());
+        assertEquals("assets/", snapshot.getPrefix());
+        assertEquals(objects.size(), snapshot.size());
+        for (S3ObjectSummary expected : objects) {
+            S3ObjectSummary actual = snapshot.get(expected.getKey());
+            assertEquals(expected.getKey(), actual.getKey());
+            assertEquals(expected.getSize(), actual.getSize());
+            assertEquals(expected.getETag(), actual.getETag());
+            assertEquals(expected.getLastModified(), actual.getLastModified());
+            assertEquals(expected.getStorageClass(), actual.getStorageClass());
+            assertEquals(BUCKET_NAME, actual.getBucketName());
+        }
+        assertNull(snapshot.get("assets/"));
+        assertNull(snapshot.get("assets/0500/app.jsx"));
+        assertNull(snapshot.get("zzz"));
+        // Smaller than the keys and ETags alone, as text
+        assertTrue(file.length() < 1000 * ("assets/0000/app.js".length() + 32));
+    }
+
+    @Test
+    public void testPrefixIteration() throws IOException {
+        S3ListingSnapshot.write(new ListSource(Arrays.asList(
+                newSummary("a/1", 1, null, null, null),
+                newSummary("a/2", 1, null, null, null),
+                newSummary("b/1", 1, null, null, null),
+                newSummary("b/2", 1, null, null, null),
+                newSummary("c/1", 1, null, null, null))), file, BUCKET_NAME, "");
+        final List<String> keys = new ArrayList<String>();
+        S3ListingSnapshot.open(file).withPrefix("b/").forEachObject(
+                new S3ObjectSource.Handler() {
+                    public void handle(S3ObjectSummary objectSummary) {
+                        keys.add(objectSummary.getKey());
+                    }
+                });
+        assertEquals(Arrays.asList("b/1", "b/2"), keys);
+    }
+
+    @Test
+    public void testEmptyListing() throws IOException {
+        S3ListingSnapshot.write(new ListSource(new ArrayList<S3ObjectSummary>()),
+                file, BUCKET_NAME, "");
+        S3ListingSnapshot snapshot = S3ListingSnapshot.open(file);
+        assertEquals(0, snapshot.size());
+        assertNull(snapshot.get("a"));
+    }
+
+    @Test
+    public void testIsMd5Hex() {
+        assertTrue(S3ListingSnapshot.isMd5Hex("0123456789abcdef0123456789abcdef"));
+        assertFalse(S3ListingSnapshot.isMd5Hex("0123456789ABCDEF0123456789abcdef"));
+        assertFalse(S3ListingSnapshot.isMd5Hex("0123456789abcdef0123456789abcdeg"));
+        assertFalse(S3ListingSnapshot.isMd5Hex("0123456789abcdef0123456789abcdef-2"));
+        assertFalse(S3ListingSnapshot.isMd5Hex(""));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnsortedListingIsRejected() throws IOException {
+        S3ListingSnapshot.write(new ListSource(Arrays.asList(
+                newSummary("b", 1, null, null, null),
+                newSummary("a", 1, null, null, null))), file, BUCKET_NAME, "");
+    }
+
+    @Test
+    public void testSnapshotsAreSharedUntilInvalidated() throws IOException {
+        FakeS3Server s3 = new FakeS3Server();
+        s3.start();
+        try {
+            for (int i = 0; i < 20; i++) {
+                s3.putObject(BUCKET_NAME, "release/lib" + i + ".jar", "lib");
+            }
+            Project project = new Project();
+            S3ListingSnapshot snapshot = S3ListingSnapshots.get(project,
+                    s3.newClient(), BUCKET_NAME, "release/", 4);
+            int lists = s3.getListCount();
+            assertEquals(20, snapshot.size());
+            assertSame(snapshot, S3ListingSnapshots.get(project,
+                    s3.newClient(), BUCKET_NAME, "release/lib1", 4));
+            assertNull(S3ListingSnapshots.find(project, BUCKET_NAME, ""));
+            assertEquals(lists, s3.getListCount());
+
+            S3ListingSnapshots.invalidate(project, BUCKET_NAME);
+            assertNull(S3ListingSnapshots.find(project, BUCKET_NAME,
+                    "release/"));
+        } finally {
+            s3.stop();
+        }
+    }
+
+    @Test
+    public void testTasksUseTheSnapshotOfTheBuild() throws IOException {
+        FakeS3Server s3 = new FakeS3Server();
+        s3.start();
+        File dir = File.createTempFile("snapshot", "");
+        dir.delete();
+        try {
+            for (int i = 0; i < 20; i++) {
+                s3.putObject(BUCKET_NAME, "site/page" + i + ".html", "page");
+            }
+            Project project = new Project();
+            s3.useIn(project);
+            SnapshotS3ListingTask snapshotTask = new SnapshotS3ListingTask();
+            snapshotTask.setProject(project);
+            snapshotTask.setBucketName(BUCKET_NAME);
+            snapshotTask.execute();
+            int lists = s3.getListCount();
+
+            DownloadFileFromS3Task download = new DownloadFileFromS3Task();
+            download.setProject(project);
+            download.setBucketName(BUCKET_NAME);
+            download.setKeyPrefix("site/");
+            download.setDir(dir.getPath());
+            download.execute();
+            assertEquals(20, dir.listFiles()[0].listFiles().length);
+            assertEquals(lists, s3.getListCount());
+
+            DeleteFromS3Task delete = new DeleteFromS3Task();
+            delete.setProject(project);
+            delete.setBucketName(BUCKET_NAME);
+            delete.setKeyPrefix("site/page1");
+            delete.execute();
+            assertEquals(lists, s3.getListCount());
+            assertEquals(9, s3.getObjectCount());
+            assertNull(S3ListingSnapshots.find(project, BUCKET_NAME, ""));
+        } finally {
+            s3.stop();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private static S3ObjectSummary newSummary(String key, long size,
+            String eTag, Date lastModified, String storageClass) {
+        S3ObjectSummary objectSummary = new S3ObjectSummary();
+        objectSummary.setKey(key);
+        objectSummary.setSize(size);
+        objectSummary.setETag(eTag);
+        objectSummary.setLastModified(lastModified);
+        objectSummary.setStorageClass(storageClass);
+        return objectSummary;
+    }
+
+    private static class ListSource implements S3ObjectSource {
+        private final List<S3ObjectSummary> objects;
+
+        ListSource(List<S3ObjectSummary> objects) {
+            this.objects = objects;
+        }
+
+        public void forEachObject(Handler handler) {
+            for (S3ObjectSummary objectSummary : objects) {
+                handler.handle(objectSummary);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+public class S3MetadataRulesTests {
+    private static final String BUCKET = "site";
+
+    @Test
+    public void testFingerprints() {
+        assertTrue(S3MetadataRules.isFingerprinted("war/app.3f2a9c1b.js"));
+        assertTrue(S3MetadataRules.isFingerprinted("logo-5d41402abc4b2a76.png"));
+        assertTrue(S3MetadataRules.isFingerprinted("war/3F2A9C1B8E.css"));
+        assertFalse(S3MetadataRules.isFingerprinted("war/app.js"));
+        assertFalse(S3MetadataRules.isFingerprinted("war/report-20140101.html"));
+        assertFalse(S3MetadataRules.isFingerprinted("war/deadbeef.js"));
+        assertFalse(S3MetadataRules.isFingerprinted("3f2a9c1b/app.js"));
+    }
+
+    @Test
+    public void testFirstMatchingRuleDecidesEachHeader() {
+        S3MetadataRules rules = new S3MetadataRules(Arrays.asList(
+                rule("**/*.html", "no-cache", null, "text/html; charset=utf-8"),
+                rule("**/*", "public, max-age=300", "STANDARD_IA", null)),
+                true);
+
+        ObjectMetadata html = new ObjectMetadata();
+        rules.apply("war/index.html", html);
+        assertEquals("no-cache", html.getCacheControl());
+        assertEquals("text/html; charset=utf-8", html.getContentType());
+        assertEquals("STANDARD_IA", html.getRawMetadataValue(Headers.STORAGE_CLASS));
+
+        ObjectMetadata fingerprinted = new ObjectMetadata();
+        rules.apply("war/app.3f2a9c1b.js", fingerprinted);
+        assertEquals(S3MetadataRules.IMMUTABLE_CACHE_CONTROL,
+                fingerprinted.getCacheControl());
+        assertNull(fingerprinted.getContentType());
+    }
+
+    @Test
+    public void testRelativeExpires() {
+        S3MetadataRules.Rule rule = new S3MetadataRules.Rule();
+        rule.setGlob("war/feed.xml");
+        rule.setExpires("2h");
+        rule.checkParams();
+        ObjectMetadata metadata = new ObjectMetadata();
+        long before = System.currentTimeMillis();
+        new S3MetadataRules(Arrays.asList(rule), false).apply("war/feed.xml",
+                metadata);
+        long expiresIn = metadata.getHttpExpiresDate().getTime() - before;
+        assertTrue(expiresIn >= 2 * 3600 * 1000L - 1000
+                && expiresIn <= 2 * 3600 * 1000L + 1000);
+    }
+
+    @Test(expected = BuildException.class)
+    public void testRuleWithoutHeadersIsRejected() {
+        S3MetadataRules.Rule rule = new S3MetadataRules.Rule();
+        rule.setGlob("**/*");
+        rule.checkParams();
+    }
+
+    @Test
+    public void testUploadedObjectsGetTheHeaders() throws IOException {
+        FakeS3Server s3 = new FakeS3Server();
+        s3.start();
+        File root = File.createTempFile("metadata", "");
+        root.delete();
+        try {
+            File war = new File(root, "war");
+            war.mkdirs();
+            FileUtils.writeStringToFile(new File(war, "index.html"), "<html/>");
+            FileUtils.writeStringToFile(new File(war, "app.3f2a9c1b.js"),
+                    "alert(1);");
+            Project project = new Project();
+            s3.useIn(project);
+
+            UploadFileSetToS3Task task = new UploadFileSetToS3Task();
+            task.setProject(project);
+            FileSet fileset = new FileSet();
+            fileset.setDir(root);
+            task.addFileset(fileset);
+            UploadFileSetToS3Task.Destination destination = new UploadFileSetToS3Task.Destination();
+            destination.setBucket(BUCKET);
+            task.addConfiguredDestination(destination);
+            task.addConfiguredMetadata(rule("**/*.html", "no-cache", null,
+                    null));
+            task.addConfiguredMetadata(rule("**/*", "public, max-age=300",
+                    "REDUCED_REDUNDANCY", null));
+            task.setImmutableFingerprints(true);
+            task.execute();
+
+            assertEquals("no-cache", s3.getObjectHeader(BUCKET,
+                    "war/index.html", "Cache-Control"));
+            assertEquals("text/html", s3.getObjectHeader(BUCKET,
+                    "war/index.html", "Content-Type"));
+            assertEquals(S3MetadataRules.IMMUTABLE_CACHE_CONTROL,
+                    s3.getObjectHeader(BUCKET, "war/app.3f2a9c1b.js",
+                            "Cache-Control"));
+            assertEquals("REDUCED_REDUNDANCY", s3.getObjectHeader(BUCKET,
+                    "war/app.3f2a9c1b.js", Headers.STORAGE_CLASS));
+        } finally {
+            s3.stop();
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    private static S3MetadataRules.Rule rule(String glob, String cacheControl,
+            String storageClass, String contentType) {
+        S3MetadataRules.Rule rule = new S3MetadataRules.Rule();
+        rule.setGlob(glob);
+        rule.setCacheControl(cacheControl);
+        rule.setStorageClass(storageClass);
+        rule.setContentType(contentType);
+        rule.checkParams();
+        return rule;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+public class S3ObjectSourceTests {
+    private static final String BUCKET_NAME = "inventorytestbucket";
+
+    @Test
+    public void testInventoryReport() throws Exception {
+        List<S3ObjectSummary> objects = collect(new S3InventoryObjectSource(
+                null, resource("inventory/manifest.json").getPath(), null,
+                BUCKET_NAME, "builds/"));
+        assertEquals(2, objects.size());
+        assertEquals("builds/app.jar", objects.get(0).getKey());
+        assertEquals(10, objects.get(0).getSize());
+        assertEquals("3b5d3c7d207e37dceeedd301e35e2e58", objects.get(0)
+                .getETag());
+        assertNotNull(objects.get(0).getLastModified());
+        assertEquals("builds/my notes.txt", objects.get(1).getKey());
+    }
+
+    @Test(expected = BuildException.class)
+    public void testInventoryOfAnotherBucket() throws Exception {
+        collect(new S3InventoryObjectSource(null, resource(
+                "inventory/manifest.json").getPath(), null, "otherbucket", ""));
+    }
+
+    @Test
+    public void testKeyList() throws Exception {
+        List<S3ObjectSummary> objects = collect(new S3KeyListObjectSource(
+                resource("keys.txt"), BUCKET_NAME, "builds/"));
+        assertEquals(2, objects.size());
+        assertEquals("builds/app.jar", objects.get(0).getKey());
+        assertEquals("builds/lib/util.jar", objects.get(1).getKey());
+        assertEquals(5, objects.get(1).getSize());
+    }
+
+    @Test
+    public void testJsonArrayKeyList() throws Exception {
+        File keyList = File.createTempFile("keys", ".json");
+        try {
+            FileUtils.writeStringToFile(keyList,
+                    "[\"a.txt\", {\"key\": \"b.txt\", \"eTag\": \"abc\"}]");
+            List<S3ObjectSummary> objects = collect(new S3KeyListObjectSource(
+                    keyList, BUCKET_NAME, ""));
+            assertEquals(2, objects.size());
+            assertEquals("abc", objects.get(1).getETag());
+        } finally {
+            keyList.delete();
+        }
+    }
+
+    @Test
+    public void testCsvLine() {
+        assertEquals(Arrays.asList("a", "b,c", "say \"hi\"", ""),
+                S3InventoryObjectSource
+                        .parseCsvLine("\"a\",\"b,c\",\"say \"\"hi\"\"\","));
+    }
+
+    @Test
+    public void testDownloadFromKeyListDoesNotList() throws Exception {
+        FakeS3Server s3 = new FakeS3Server();
+        s3.start();
+        File dir = File.createTempFile("keylist", "");
+        dir.delete();
+        try {
+            s3.putObject(BUCKET_NAME, "builds/app.jar", "app");
+            s3.putObject(BUCKET_NAME, "builds/lib/util.jar", "util");
+            Project project = new Project();
+            s3.useIn(project);
+            DownloadFileFromS3Task task = new DownloadFileFromS3Task();
+            task.setProject(project);
+            task.setBucketName(BUCKET_NAME);
+            task.setKeyPrefix("builds/");
+            task.setKeyList(resource("keys.txt"));
+            task.setDir(dir.getPath());
+            task.execute();
+            assertEquals("util", FileUtils.readFileToString(new File(dir,
+                    "builds/lib/util.jar")));
+            assertEquals(0, s3.getListCount());
+            assertEquals(2, s3.getFullGetCount());
+        } finally {
+            s3.stop();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private static File resource(String name) throws URISyntaxException {
+        return new File(S3ObjectSourceTests.class.getResource("/" + name)
+                .toURI());
+    }
+
+    private static List<S3ObjectSummary> collect(S3ObjectSource source)
+            throws IOException {
+        final List<S3ObjectSummary> objects = new ArrayList<S3ObjectSummary>();
+        source.forEachObject(new S3ObjectSource.Handler() {
+            public void handle(S3ObjectSummary objectSummary) {
+                objects.add(objectSummary);
+            }
+        });
+        return objects;
+    }
+}
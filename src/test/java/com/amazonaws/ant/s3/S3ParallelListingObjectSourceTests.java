@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+public class S3ParallelListingObjectSourceTests {
+    private static final String BUCKET_NAME = "parallellistingtestbucket";
+    private static final String PREFIX = "data/";
+
+    private FakeS3Server s3;
+    private List<String> keys = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws IOException {
+        s3 = new FakeS3Server();
+        s3.start();
+        Random random = new Random(42);
+        for (int i = 0; i < 300; i++) {
+            // A flat run of hashed keys...
+            addKey(PREFIX + Long.toHexString(random.nextLong()));
+        }
+        for (int i = 0; i < 100; i++) {
+            // ...next to directories sharing a long prefix
+            addKey(PREFIX + "logs/2014-06-0" + (i % 3) + "/build-" + i
+                    + ".log");
+        }
+        addKey(PREFIX + "logs/");
+        s3.putObject(BUCKET_NAME, "other/file", "x");
+        Collections.sort(keys);
+    }
+
+    @Test
+    public void testSortedListing() throws IOException {
+        assertEquals(keys, list(true));
+    }
+
+    @Test
+    public void testUnsortedListing() throws IOException {
+        List<String> listed = list(false);
+        Collections.sort(listed);
+        assertEquals(keys, listed);
+    }
+
+    @Test
+    public void testSparseRangesDoNotOverFetch() throws IOException {
+        list(true);
+        // Every split makes dozens of mostly empty ranges; with full pages
+        // they fetched over twenty times as many keys as there are
+        assertTrue(s3.getListedKeyCount() < 8 * keys.size());
+    }
+
+    @Test
+    public void testChildPageSize() {
+        List<S3ObjectSummary> page = new ArrayList<S3ObjectSummary>();
+        for (String key : Arrays.asList("p/a1", "p/a2", "p/a3", "p/b1",
+                "p/b2", "p/c1")) {
+            S3ObjectSummary objectSummary = new S3ObjectSummary();
+            objectSummary.setKey(key);
+            page.add(objectSummary);
+        }
+        // Two keys per character, with room to spare
+        assertEquals(4, S3ParallelListingObjectSource.childPageSize(page,
+                Arrays.asList("p/d", "p/e"), 1000));
+        assertEquals(3, S3ParallelListingObjectSource.childPageSize(page,
+                Arrays.asList("p/d", "p/e"), 3));
+    }
+
+    @Test
+    public void testSplitBoundaries() {
+        List<String> boundaries = S3ParallelListingObjectSource
+                .splitBoundaries("p/", "p/abc1", "p/abc5", "p/abd");
+        assertEquals("p/abc6", boundaries.get(0));
+        assertEquals("p/abcz", boundaries.get(boundaries.size() - 1));
+        assertEquals(Arrays.asList("p/b", "p/c"), S3ParallelListingObjectSource
+                .splitBoundaries("p/", "p/0", "p/a", "p/d"));
+        assertEquals("p/a0", S3ParallelListingObjectSource
+                .splitBoundaries("p/", "p/a", "p/a", null).get(0));
+    }
+
+    @After
+    public void tearDown() {
+        s3.stop();
+    }
+
+    private void addKey(String key) {
+        s3.putObject(BUCKET_NAME, key, key);
+        keys.add(key);
+    }
+
+    private List<String> list(boolean sorted) throws IOException {
+        S3ParallelListingObjectSource source = new S3ParallelListingObjectSource(
+                s3.newClient(), BUCKET_NAME, PREFIX, 4, sorted);
+        source.setPageSize(10);
+        final List<String> listed = new ArrayList<String>();
+        source.forEachObject(new S3ObjectSource.Handler() {
+            public void handle(S3ObjectSummary objectSummary) {
+                listed.add(objectSummary.getKey());
+            }
+        });
+        return listed;
+    }
+}
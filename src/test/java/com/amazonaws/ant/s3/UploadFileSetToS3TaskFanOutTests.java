@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UploadFileSetToS3TaskFanOutTests {
+    private static final String US_BUCKET = "releases-us";
+    private static final String EU_BUCKET = "releases-eu";
+    private static final String EU_REGION = "eu-west-1";
+
+    private FakeS3Server us;
+    private FakeS3Server eu;
+    private Project project;
+    private File root;
+    private String bigContent;
+
+    @Before
+    public void setUp() throws IOException {
+        us = new FakeS3Server();
+        us.start();
+        eu = new FakeS3Server();
+        eu.start();
+        project = new Project();
+        us.useIn(project);
+        eu.useIn(project, EU_REGION);
+
+        root = File.createTempFile("fanout", "");
+        root.delete();
+        File war = new File(root, "war");
+        war.mkdirs();
+        FileUtils.writeStringToFile(new File(war, "index.html"), "<html/>");
+        FileUtils.writeStringToFile(new File(war, "app.js"), "alert(1);");
+        StringBuilder big = new StringBuilder();
+        while (big.length() < 6 * 1024 * 1024) {
+            big.append("0123456789abcdef");
+        }
+        bigContent = big.toString();
+        FileUtils.writeStringToFile(new File(war, "big.bin"), bigContent);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        us.stop();
+        eu.stop();
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Test
+    public void testEveryDestinationGetsEveryFile() {
+        newTask().execute();
+        for (FakeS3Server s3 : new FakeS3Server[] { us, eu }) {
+            String bucket = s3 == us ? US_BUCKET : EU_BUCKET;
+            assertEquals("<html/>", s3.getContent(bucket, "war/index.html"));
+            assertEquals("alert(1);", s3.getContent(bucket, "war/app.js"));
+            assertEquals(bigContent, s3.getContent(bucket, "war/big.bin"));
+            // The big file is uploaded in parts, the others with a PUT each
+            assertEquals(2, s3.getPutCount());
+            assertEquals(3, S3ChangeSets.get(project, bucket).size());
+        }
+    }
+
+    @Test
+    public void testFailingDestinationDoesNotStopTheOthers() {
+        eu.denyWritesTo(EU_BUCKET);
+        UploadFileSetToS3Task task = newTask();
+        task.setContinueOnFail("true");
+        task.execute();
+        assertEquals("<html/>", us.getContent(US_BUCKET, "war/index.html"));
+        assertEquals(bigContent, us.getContent(US_BUCKET, "war/big.bin"));
+        assertEquals(0, eu.getObjectCount());
+    }
+
+    @Test(expected = BuildException.class)
+    public void testFailingDestinationFailsTheTask() {
+        eu.denyWritesTo(EU_BUCKET);
+        newTask().execute();
+    }
+
+    private UploadFileSetToS3Task newTask() {
+        UploadFileSetToS3Task task = new UploadFileSetToS3Task();
+        task.setProject(project);
+        FileSet fileset = new FileSet();
+        fileset.setDir(root);
+        task.addFileset(fileset);
+        task.setPartSizeInMb(5);
+        UploadFileSetToS3Task.Destination destination = new UploadFileSetToS3Task.Destination();
+        destination.setBucket(US_BUCKET);
+        task.addConfiguredDestination(destination);
+        destination = new UploadFileSetToS3Task.Destination();
+        destination.setBucket(EU_BUCKET);
+        destination.setRegion(EU_REGION);
+        task.addConfiguredDestination(destination);
+        return task;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UploadFileSetToS3TaskSkipExistingTests {
+    private static final String BUCKET_NAME = "assetbucket";
+
+    private FakeS3Server s3;
+    private Project project;
+    private File root;
+    private File war;
+    private File indexDir;
+
+    @Before
+    public void setUp() throws IOException {
+        s3 = new FakeS3Server();
+        s3.start();
+        project = new Project();
+        s3.useIn(project);
+        root = File.createTempFile("skipexisting", "");
+        root.delete();
+        war = new File(root, "war");
+        indexDir = new File(root, "index");
+        for (int i = 0; i < 10; i++) {
+            FileUtils.writeStringToFile(new File(war, "app-" + i + ".js"),
+                    "app " + i);
+        }
+        // Half of the files were uploaded by an earlier build
+        for (int i = 0; i < 5; i++) {
+            s3.putObject(BUCKET_NAME, "war/app-" + i + ".js", "app " + i);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        s3.stop();
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Test
+    public void testOnlyPossiblyExistingKeysAreChecked() {
+        newTask().execute();
+        assertEquals(5, s3.getPutCount());
+        assertEquals(5, s3.getHeadCount());
+        assertEquals("app 7", s3.getContent(BUCKET_NAME, "war/app-7.js"));
+    }
+
+    @Test
+    public void testIndexIsReusedAndUpdatedWithUploads() throws IOException {
+        newTask().execute();
+        int lists = s3.getListCount();
+        FileUtils.writeStringToFile(new File(war, "app-10.js"), "app 10");
+        newTask().execute();
+        assertEquals(lists, s3.getListCount());
+        assertEquals(6, s3.getPutCount());
+        assertEquals("app 10", s3.getContent(BUCKET_NAME, "war/app-10.js"));
+        // Every key but the new one was in the index, and confirmed
+        assertEquals(5 + 10, s3.getHeadCount());
+    }
+
+    @Test
+    public void testStaleIndexIsRebuilt() {
+        newTask().execute();
+        int lists = s3.getListCount();
+        UploadFileSetToS3Task task = newTask();
+        task.setKeyIndexMaxAgeInHours(-1);
+        task.execute();
+        assertTrue(s3.getListCount() > lists);
+        assertEquals(5, s3.getPutCount());
+    }
+
+    private UploadFileSetToS3Task newTask() {
+        UploadFileSetToS3Task task = new UploadFileSetToS3Task();
+        task.setProject(project);
+        FileSet fileset = new FileSet();
+        fileset.setDir(root);
+        fileset.setIncludes("war/**");
+        task.addFileset(fileset);
+        UploadFileSetToS3Task.Destination destination = new UploadFileSetToS3Task.Destination();
+        destination.setBucket(BUCKET_NAME);
+        task.addConfiguredDestination(destination);
+        task.setSkipExisting(true);
+        task.setKeyIndexDir(indexDir);
+        return task;
+    }
+}
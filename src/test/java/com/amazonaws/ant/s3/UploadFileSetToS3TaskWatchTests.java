@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UploadFileSetToS3TaskWatchTests {
+    private static final String BUCKET_NAME = "previewbucket";
+    private static final long TIMEOUT_IN_MS = 10000;
+
+    private FakeS3Server s3;
+    private File root;
+    private File war;
+    private Thread watching;
+
+    @Before
+    public void setUp() throws Exception {
+        s3 = new FakeS3Server();
+        s3.start();
+        root = File.createTempFile("watch", "");
+        root.delete();
+        war = new File(root, "war");
+        new File(war, "css").mkdirs();
+        FileUtils.writeStringToFile(new File(war, "index.html"), "v1");
+        FileUtils.writeStringToFile(new File(war, "css/site.css"), "body {}");
+        FileUtils.writeStringToFile(new File(war, "notes.tmp"), "draft");
+
+        Project project = new Project();
+        s3.useIn(project);
+        final UploadFileSetToS3Task task = new UploadFileSetToS3Task();
+        task.setProject(project);
+        FileSet fileset = new FileSet();
+        fileset.setDir(root);
+        fileset.setExcludes("**/*.tmp");
+        task.addFileset(fileset);
+        task.setBucketName(BUCKET_NAME);
+        task.setWatch(true);
+        task.setWatchDebounceInMs(50);
+        watching = new Thread() {
+            @Override
+            public void run() {
+                task.execute();
+            }
+        };
+        watching.start();
+        waitFor("war/css/site.css", "body {}");
+        waitFor("war/index.html", "v1");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // An interrupt that lands in an S3 request is consumed by the client
+        long deadline = System.currentTimeMillis() + TIMEOUT_IN_MS;
+        while (watching.isAlive() && System.currentTimeMillis() < deadline) {
+            watching.interrupt();
+            watching.join(100);
+        }
+        s3.stop();
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Test
+    public void testInitialSyncSkipsExcludedFiles() {
+        assertEquals(2, s3.getObjectCount());
+    }
+
+    @Test
+    public void testChangedAndNewFilesAreUploaded() throws Exception {
+        FileUtils.writeStringToFile(new File(war, "index.html"), "v2");
+        FileUtils.writeStringToFile(new File(war, "js/app.js"), "alert(1);");
+        FileUtils.writeStringToFile(new File(war, "more.tmp"), "draft");
+        waitFor("war/index.html", "v2");
+        waitFor("war/js/app.js", "alert(1);");
+        assertNull(s3.getContent(BUCKET_NAME, "war/more.tmp"));
+    }
+
+    @Test
+    public void testFilesOutsideWarAreSkipped() throws Exception {
+        FileUtils.writeStringToFile(new File(root, "build.log"), "log");
+        FileUtils.writeStringToFile(new File(war, "about.html"), "about");
+        waitFor("war/about.html", "about");
+        assertTrue(watching.isAlive());
+        assertEquals(3, s3.getObjectCount());
+    }
+
+    @Test
+    public void testDeletedFilesAreDeleted() throws Exception {
+        FileUtils.deleteDirectory(new File(war, "css"));
+        waitFor("war/css/site.css", null);
+        assertEquals("v1", s3.getContent(BUCKET_NAME, "war/index.html"));
+    }
+
+    private void waitFor(String key, String content)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_IN_MS;
+        while (true) {
+            String actual = s3.getContent(BUCKET_NAME, key);
+            if (content == null ? actual == null : content.equals(actual)) {
+                return;
+            }
+            assertTrue("Timed out waiting for " + key,
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+}
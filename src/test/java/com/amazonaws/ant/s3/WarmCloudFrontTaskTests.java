@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.util.StringUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class WarmCloudFrontTaskTests {
+    private HttpServer server;
+    private List<String> requests;
+    private Project project;
+
+    @Before
+    public void setUp() throws IOException {
+        requests = Collections.synchronizedList(new ArrayList<String>());
+        // Stands in for a CloudFront edge: a path is a miss the first time
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getRawPath();
+                String encoding = exchange.getRequestHeaders().getFirst(
+                        "Accept-Encoding");
+                boolean cached;
+                synchronized (requests) {
+                    cached = requests.contains(path + " " + encoding);
+                    requests.add(path + " " + encoding);
+                }
+                if (path.contains("missing")) {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                }
+                byte[] body = path.getBytes(StringUtils.UTF8);
+                exchange.getResponseHeaders().set("X-Cache",
+                        cached ? "Hit from cloudfront" : "Miss from cloudfront");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        project = new Project();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testUploadedKeysAreFetchedWithEveryEncoding() {
+        S3ChangeSets.record(project, "site", "war/index.html");
+        S3ChangeSets.record(project, "site", "war/my page.html");
+        S3ChangeSets.recordDeletion(project, "site", "war/old.html");
+        S3ChangeSets.record(project, "site", "other/file.txt");
+        WarmCloudFrontTask task = newTask();
+        task.setBucketName("site");
+        task.setOriginPath("/war");
+        task.setAcceptEncodings("gzip,br");
+        task.execute();
+        List<String> sorted = new ArrayList<String>(requests);
+        Collections.sort(sorted);
+        assertEquals(Arrays.asList("/index.html br", "/index.html gzip",
+                "/my%20page.html br", "/my%20page.html gzip"), sorted);
+    }
+
+    @Test
+    public void testUrlsAreFetched() {
+        WarmCloudFrontTask task = newTask();
+        task.setUrls("/a.css, b.js," + getBaseUrl() + "/c.png");
+        task.execute();
+        assertEquals(3, requests.size());
+        assertTrue(requests.containsAll(Arrays.asList("/a.css null",
+                "/b.js null", "/c.png null")));
+    }
+
+    @Test
+    public void testErrorsOnlyFailTheTaskIfAsked() {
+        WarmCloudFrontTask task = newTask();
+        task.setUrls("/missing.html");
+        task.execute();
+        task.setFailOnError(true);
+        try {
+            task.execute();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("1 URLs failed"));
+        }
+    }
+
+    private WarmCloudFrontTask newTask() {
+        WarmCloudFrontTask task = new WarmCloudFrontTask();
+        task.setProject(project);
+        task.setBaseUrl(getBaseUrl() + "/");
+        task.setConcurrency(4);
+        return task;
+    }
+
+    private String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+}